@@ -2,11 +2,15 @@ package com.mongodb.corruptutil;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -24,6 +28,7 @@ import com.mongodb.MongoClientURI;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoIterable;
+import com.mongodb.util.VirtualThreadExecutor;
 
 public class CorruptUtil {
     
@@ -36,6 +41,9 @@ public class CorruptUtil {
     
     private MongoClient sourceClient;
     private int threads = 4;
+    // > 0 scans each collection on its own virtual thread, at most this many at once
+    private int virtualConcurrency = 0;
+    private final static int DEFAULT_VIRTUAL_CONCURRENCY = 100;
     private File outDir;
     
     private ExecutorService executor;
@@ -46,7 +54,12 @@ public class CorruptUtil {
     }
     
     public void run() throws InterruptedException {
-        executor = Executors.newFixedThreadPool(threads);
+        if (virtualConcurrency > 0) {
+            executor = new VirtualThreadExecutor("corrupt", virtualConcurrency);
+        } else {
+            executor = Executors.newFixedThreadPool(threads);
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>();
         MongoIterable<String> dbNames = sourceClient.listDatabaseNames();
         for (String dbName : dbNames) {
             if (! databasesBlacklist.contains(dbName)) {
@@ -59,7 +72,7 @@ public class CorruptUtil {
                     }
                     MongoCollection<RawBsonDocument> coll = db.getCollection(collectionName, RawBsonDocument.class);
                     Runnable worker = new CorruptFinderWorker(sourceClient, coll, outDir);
-                    executor.execute(worker);
+                    futures.add(executor.submit(worker));
                 }
             }
         }
@@ -69,6 +82,21 @@ public class CorruptUtil {
             logger.debug("Waiting for pool to terminate");
             Thread.sleep(1000);
         }
+        // a failed scan must not look like a collection without corruption
+        RuntimeException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                logger.error("Collection scan failed", e.getCause());
+                if (failure == null) {
+                    failure = new RuntimeException("Collection scan failed", e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
         logger.debug("CorruptUtil complete");
     }
     
@@ -76,6 +104,10 @@ public class CorruptUtil {
         this.threads = threads;
     }
 
+    private void setVirtualConcurrency(int virtualConcurrency) {
+        this.virtualConcurrency = virtualConcurrency;
+    }
+
     @SuppressWarnings("static-access")
     private static CommandLine initializeAndParseCommandLineOptions(String[] args) {
         options = new Options();
@@ -85,6 +117,10 @@ public class CorruptUtil {
         options.addOption(OptionBuilder.withArgName("Zip output path").hasArgs().withLongOpt("outDir")
                 .isRequired(true).create("o"));
         options.addOption(OptionBuilder.withArgName("# threads").hasArgs().withLongOpt("threads").create("t"));
+        options.addOption(OptionBuilder.withArgName("max collections at once").hasOptionalArg()
+                .withDescription("one (virtual on Java 21+) thread per collection instead of -t threads, default limit "
+                        + DEFAULT_VIRTUAL_CONCURRENCY)
+                .withLongOpt("virtual").create());
         
 
         CommandLineParser parser = new GnuParser();
@@ -119,6 +155,11 @@ public class CorruptUtil {
             int threads = Integer.parseInt(threadsStr);
             util.setThreads(threads);
         }
+        if (line.hasOption("virtual")) {
+            String concurrencyStr = line.getOptionValue("virtual");
+            util.setVirtualConcurrency(
+                    concurrencyStr != null ? Integer.parseInt(concurrencyStr) : DEFAULT_VIRTUAL_CONCURRENCY);
+        }
         String outDirStr = line.getOptionValue("o");
         File outDir = new File(outDirStr);
         if (! outDir.canWrite()) {
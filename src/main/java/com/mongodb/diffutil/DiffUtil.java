@@ -10,6 +10,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.bson.BsonDocument;
 import org.bson.BsonValue;
@@ -34,6 +39,7 @@ import com.mongodb.client.MongoIterable;
 import com.mongodb.client.model.Sorts;
 import com.mongodb.model.ShardCollection;
 import com.mongodb.util.CodecUtils;
+import com.mongodb.util.VirtualThreadExecutor;
 import com.mongodb.util.bson.BsonValueComparator;
 
 public class DiffUtil {
@@ -60,6 +66,10 @@ public class DiffUtil {
     
     private BsonValueComparator comparator = new BsonValueComparator();
 
+    private int threads = 1;
+    // > 0 compares each collection on its own virtual thread, at most this many at once
+    private int virtualConcurrency = 0;
+
     public DiffUtil() {
         logger.debug("DiffUtil starting");
     }
@@ -94,6 +104,8 @@ public class DiffUtil {
 
     public void compareChunks() {
         logger.debug("Starting chunkCounts mode");
+        ExecutorService executor = newExecutor();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
 
         for (String dbName : sourceDbInfoMap.keySet()) {
             Document destInfo = destDbInfoMap.get(dbName);
@@ -107,12 +119,52 @@ public class DiffUtil {
                     if (dbName.equals("admin") || dbName.equals("local") || collectionName.equals("system.profile")) {
                         continue;
                     }
-                    hashChunk(sourceDb, destDb, collectionName);
+                    futures.add(executor.submit(() -> hashChunk(sourceDb, destDb, collectionName)));
                 }
             }
 
         }
+        awaitTermination(executor, futures);
+    }
 
+    /**
+     * Collections are compared concurrently, at most threads (or
+     * virtualConcurrency) at once.
+     */
+    private ExecutorService newExecutor() {
+        if (virtualConcurrency > 0) {
+            return new VirtualThreadExecutor("diff", virtualConcurrency);
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Wait for all collection comparisons, then rethrow the first failure so
+     * that an incomplete comparison does not pass as a clean one.
+     */
+    private static void awaitTermination(ExecutorService executor, List<Future<?>> futures) {
+        executor.shutdown();
+        RuntimeException failure = null;
+        try {
+            while (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.debug("Waiting for collection comparisons to complete");
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.error("Collection comparison failed", e.getCause());
+                    if (failure == null) {
+                        failure = new RuntimeException("Collection comparison failed", e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     
@@ -302,10 +354,23 @@ public class DiffUtil {
         this.destClusterUri = destClusterUri;
     }
 
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Compare each collection on its own (virtual, on Java 21+) thread, at
+     * most virtualConcurrency at once, instead of on the pool of threads.
+     */
+    public void setVirtualConcurrency(int virtualConcurrency) {
+        this.virtualConcurrency = virtualConcurrency;
+    }
+
     @SuppressWarnings("unchecked")
     public void compareIds() {
         logger.debug("*********** Starting compareIds mode");
-        Document sort = new Document("_id", 1);
+        ExecutorService executor = newExecutor();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
 
         for (String dbName : sourceDbInfoMap.keySet()) {
             Document destInfo = destDbInfoMap.get(dbName);
@@ -322,75 +387,79 @@ public class DiffUtil {
                         continue;
                     }
                     
-                    logger.debug(String.format("Starting namespace %s.%s", dbName, collectionName));
-                    MongoCollection<RawBsonDocument> sourceColl = sourceDb.getCollection(collectionName,
-                            RawBsonDocument.class);
-                    MongoCollection<RawBsonDocument> destColl = destDb.getCollection(collectionName,
-                            RawBsonDocument.class);
-
-                    MongoCursor<RawBsonDocument> sourceCursor = sourceColl.find().sort(sort).projection(sort)
-                            .iterator();
-                    MongoCursor<RawBsonDocument> destCursor = destColl.find().sort(sort).projection(sort).iterator();
-
-                    RawBsonDocument sourceDoc = null;
-                    RawBsonDocument sourceNext = null;
-                    BsonValue sourceKey = null;
-                    
-                    RawBsonDocument destDoc = null;
-                    RawBsonDocument destNext = null;
-                    BsonValue destKey = null;
-                    Integer compare = null;
-                    
-                    while (sourceCursor.hasNext() || sourceNext != null || destCursor.hasNext() || destNext != null) {
-                        if (sourceNext != null) {
-                            sourceDoc = sourceNext;
-                            sourceNext = null;
-                            sourceKey = sourceDoc.get("_id");
-                        } else if (sourceCursor.hasNext()) {
-                            sourceDoc = sourceCursor.next();
-                            sourceKey = sourceDoc.get("_id");
-                        } else {
-                            sourceDoc = null;
-                            sourceKey = null;
-                        }
-                        
-                        if (destNext != null) {
-                            destDoc = destNext;
-                            destNext = null;
-                            destKey = destDoc.get("_id");
-                        } else if (destCursor.hasNext()) {
-                            destDoc = destCursor.next();
-                            destKey = destDoc.get("_id");
-                        } else {
-                            destDoc = null;
-                            destKey = null;
-                        }
-                        
-                        
-                        if (sourceKey != null && destKey != null) {
-                            compare = comparator.compare(sourceKey, destKey);
-                        } else if (sourceKey == null) {
-                            logger.debug(String.format("%s - fail: %s missing on source", collectionName, destKey));
-                            continue;
-                        } else if (destKey == null) {
-                            logger.debug(String.format("%s - fail: %s missing on dest", collectionName, sourceKey));
-                            continue;
-                        }
-
-                        if (compare < 0) {
-                            logger.error(String.format("%s - fail: %s missing on dest", collectionName, sourceKey));
-                            destNext = destDoc;
-                        } else if (compare > 0) {
-                            logger.warn(String.format("%s - fail: %s missing on source", collectionName, destKey));
-                            sourceNext = sourceDoc;
-                        }
-                    }
-
+                    futures.add(executor.submit(() -> compareIds(sourceDb, destDb, collectionName)));
                 }
             } else {
                 logger.warn(String.format("Destination db not found, name: %s", dbName));
             }
         }
+        awaitTermination(executor, futures);
+    }
+
+    private void compareIds(MongoDatabase sourceDb, MongoDatabase destDb, String collectionName) {
+        logger.debug(String.format("Starting namespace %s.%s", sourceDb.getName(), collectionName));
+        MongoCollection<RawBsonDocument> sourceColl = sourceDb.getCollection(collectionName,
+                RawBsonDocument.class);
+        MongoCollection<RawBsonDocument> destColl = destDb.getCollection(collectionName,
+                RawBsonDocument.class);
+
+        MongoCursor<RawBsonDocument> sourceCursor = sourceColl.find().sort(SORT_ID).projection(SORT_ID)
+                .iterator();
+        MongoCursor<RawBsonDocument> destCursor = destColl.find().sort(SORT_ID).projection(SORT_ID).iterator();
+
+        RawBsonDocument sourceDoc = null;
+        RawBsonDocument sourceNext = null;
+        BsonValue sourceKey = null;
+        
+        RawBsonDocument destDoc = null;
+        RawBsonDocument destNext = null;
+        BsonValue destKey = null;
+        Integer compare = null;
+        
+        while (sourceCursor.hasNext() || sourceNext != null || destCursor.hasNext() || destNext != null) {
+            if (sourceNext != null) {
+                sourceDoc = sourceNext;
+                sourceNext = null;
+                sourceKey = sourceDoc.get("_id");
+            } else if (sourceCursor.hasNext()) {
+                sourceDoc = sourceCursor.next();
+                sourceKey = sourceDoc.get("_id");
+            } else {
+                sourceDoc = null;
+                sourceKey = null;
+            }
+            
+            if (destNext != null) {
+                destDoc = destNext;
+                destNext = null;
+                destKey = destDoc.get("_id");
+            } else if (destCursor.hasNext()) {
+                destDoc = destCursor.next();
+                destKey = destDoc.get("_id");
+            } else {
+                destDoc = null;
+                destKey = null;
+            }
+            
+            
+            if (sourceKey != null && destKey != null) {
+                compare = comparator.compare(sourceKey, destKey);
+            } else if (sourceKey == null) {
+                logger.debug(String.format("%s - fail: %s missing on source", collectionName, destKey));
+                continue;
+            } else if (destKey == null) {
+                logger.debug(String.format("%s - fail: %s missing on dest", collectionName, sourceKey));
+                continue;
+            }
+
+            if (compare < 0) {
+                logger.error(String.format("%s - fail: %s missing on dest", collectionName, sourceKey));
+                destNext = destDoc;
+            } else if (compare > 0) {
+                logger.warn(String.format("%s - fail: %s missing on source", collectionName, destKey));
+                sourceNext = sourceDoc;
+            }
+        }
     }
 
 }
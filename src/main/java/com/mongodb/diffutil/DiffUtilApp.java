@@ -17,6 +17,8 @@ public class DiffUtilApp {
     //private final static String COMPARE_CHUNKS = "compareChunks";
     
     private final static String COMPARE_IDS = "compareIds";
+    private final static String VIRTUAL = "virtual";
+    private final static int DEFAULT_VIRTUAL_CONCURRENCY = 100;
 
     @SuppressWarnings("static-access")
     private static CommandLine initializeAndParseCommandLineOptions(String[] args) {
@@ -32,6 +34,11 @@ public class DiffUtilApp {
                 .withLongOpt(CHUNK_COUNTS).create(CHUNK_COUNTS));
         options.addOption(OptionBuilder.withArgName("Compare ids ")
                 .withLongOpt(COMPARE_IDS).create(COMPARE_IDS));
+        options.addOption(OptionBuilder.withArgName("# threads").hasArgs().withLongOpt("threads").create("t"));
+        options.addOption(OptionBuilder.withArgName("max collections at once").hasOptionalArg()
+                .withDescription("one (virtual on Java 21+) thread per collection instead of -t threads, default limit "
+                        + DEFAULT_VIRTUAL_CONCURRENCY)
+                .withLongOpt(VIRTUAL).create(VIRTUAL));
 
         CommandLineParser parser = new GnuParser();
         CommandLine line = null;
@@ -62,6 +69,15 @@ public class DiffUtilApp {
         DiffUtil sync = new DiffUtil();
         sync.setSourceClusterUri(line.getOptionValue("s"));
         sync.setDestClusterUri(line.getOptionValue("d"));
+        String threadsStr = line.getOptionValue("t");
+        if (threadsStr != null) {
+            sync.setThreads(Integer.parseInt(threadsStr));
+        }
+        if (line.hasOption(VIRTUAL)) {
+            String concurrencyStr = line.getOptionValue(VIRTUAL);
+            sync.setVirtualConcurrency(
+                    concurrencyStr != null ? Integer.parseInt(concurrencyStr) : DEFAULT_VIRTUAL_CONCURRENCY);
+        }
         sync.init();
         if (line.hasOption(COLL_COUNTS)) {
             //sync.compareShardCounts();
@@ -1,28 +1,26 @@
 package com.mongodb.mongoreplay;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.DataFormatException;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.GnuParser;
@@ -30,9 +28,7 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
-import org.bson.BSONDecoder;
-import org.bson.BSONObject;
-import org.bson.BasicBSONDecoder;
+import org.apache.commons.lang3.StringUtils;
 import org.bson.BasicBSONEncoder;
 import org.bson.Document;
 import org.slf4j.Logger;
@@ -40,13 +36,15 @@ import org.slf4j.LoggerFactory;
 
 import com.mongodb.Mongo;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
 import com.mongodb.ReadConcern;
 import com.mongodb.ReadPreference;
 import com.mongodb.connection.ClusterDescription;
 import com.mongodb.connection.ClusterType;
-import com.mongodb.util.CallerBlocksPolicy;
-import com.mongodb.util.PausableThreadPoolExecutor;
+import com.mongodb.mongoreplay.undo.UndoStore;
+import com.mongodb.shardsync.MongosBalancer;
+import com.mongodb.shardsync.ShardClient;
 
 public abstract class AbstractMongoReplayUtil {
 
@@ -64,41 +62,114 @@ public abstract class AbstractMongoReplayUtil {
     private int threads = 8;
     private int queueSize = 250000;
     
-    private final static int ONE_MINUTE = 60 * 1000;
-
     private static Monitor monitor;
 
-    protected PausableThreadPoolExecutor pool = null;
-    private BlockingQueue<Runnable> workQueue;
-    List<Future<ReplayResult>> futures = new LinkedList<Future<ReplayResult>>();
+    protected ReplayExecutor pool = null;
+    protected final ReplayStatistics replayStatistics = new ReplayStatistics();
 
     private String mongoUriStr;
     private static MongoClient mongoClient;
+    
+    // A/B replay, every operation is also sent to this cluster
+    private String comparisonUriStr;
+    private ComparisonTarget comparisonTarget;
     ClusterType clusterType;
     
     private int limit = Integer.MAX_VALUE;
     int count = 0;
+    
+    // > 0 stops submitting this many seconds after the start
+    long durationSeconds = 0;
+    private long deadlineNanos;
     int written = 0;
     int ignored = 0;
     int getMoreCount = 0;
     
-    private BSONObject firstSeen;
-    private BSONObject lastSeen;
+    private long firstSeen;
+    private long lastSeen;
     
-    private Set<Integer> opcodeWhitelist = new HashSet<Integer>();
+    private BitSet opcodeWhitelist = new BitSet();
     
     private ReplayOptions replayOptions;
     
+    // > 0 enables time-faithful replay at this multiple of the captured rate
+    double speed = 0;
+    private ReplayScheduler scheduler;
+    
+    // preserve per-connection ordering by hashing connections onto lanes
+    private boolean connectionAffine = false;
+    
+    // > 0 enables the async driver engine with this many ops in flight
+    private int asyncWindow = 0;
+    private final static int DEFAULT_ASYNC_WINDOW = 1000;
+    
+    // > 0 runs each op on its own virtual thread with this many in flight
+    private int virtualInFlight = 0;
+    private final static int DEFAULT_VIRTUAL_IN_FLIGHT = 1000;
+    
+    // spread ops over all mongos of the target, null sends all through mongoClient
+    private MongosBalancer.Strategy mongosStrategy;
+    private ShardClient mongosShardClient;
+    private MongosBalancer mongosBalancer;
+    
+    // closed-loop load control, at most one of these is > 0
+    private double targetOpsPerSecond = 0;
+    private double targetP99Millis = 0;
+    
+    // per interval latency output, enabled by a file prefix
+    private String timeSeriesPrefix;
+    private long timeSeriesIntervalMillis = 1000;
+    private ReplayTimeSeries timeSeries;
+    private ReplayTimeSeries comparisonTimeSeries;
+    
+    // replay getMores by following cursors through the capture
+    private boolean trackCursors = false;
+    private CursorTracker cursorTracker;
+    
+    // write-coalescing stress mode, enabled by a window > 0
+    private long coalesceWindowMillis = 0;
+    private int coalesceMaxBytes = DEFAULT_COALESCE_BYTES;
+    private final static long DEFAULT_COALESCE_WINDOW = 10;
+    private final static int DEFAULT_COALESCE_BYTES = 4 * 1024 * 1024;
+    private InsertCoalescer insertCoalescer;
+    
+    // distributed replay: only replay connections with
+    // seenconnectionnum % partitionCount == partition, starting at startAtMillis
+    private int partition;
+    private int partitionCount = 0;
+    private long startAtMillis = 0;
+    protected File resultsFile;
+    
+    // load amplification, N rewritten copies of every operation
+    private Amplifier amplifier;
+    private final static int COPY_CONNECTION_SHIFT = 24;
+    
+    // record pre-images so that UndoRevert can reset the target afterwards
+    private String undoNamespace;
+    private UndoStore undoStore;
+    
+    // time window / opcode subset, located through the sidecar CaptureIndex
+    private String from;
+    private String to;
+    private BitSet opcodeSubset;
+    
     //private Set<Long> seenConnections = new HashSet<Long>();
     
     public AbstractMongoReplayUtil() {
         this.encoder = new BasicBSONEncoder();
-        opcodeWhitelist.addAll(Arrays.asList(2004, 2010, 2013));
+        for (int opcode : new int[] {2004, 2010, 2012, 2013}) {
+            opcodeWhitelist.set(opcode);
+        }
     }
 
-    public void init() throws NoSuchMethodException, SecurityException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+    public void init() throws NoSuchMethodException, SecurityException, IllegalAccessException, IllegalArgumentException, InvocationTargetException, FileNotFoundException {
         logger.debug("mongoUriStr: " + mongoUriStr);
-        MongoClientURI connectionString = new MongoClientURI(mongoUriStr);
+        MongoClientOptions.Builder clientOptions = MongoClientOptions.builder();
+        if (virtualInFlight > 0) {
+            // ops beyond maxPoolSize wait for a connection rather than failing
+            clientOptions.threadsAllowedToBlockForConnectionMultiplier(Math.max(5, virtualInFlight));
+        }
+        MongoClientURI connectionString = new MongoClientURI(mongoUriStr, clientOptions);
         mongoClient = new MongoClient(connectionString);
         //readPreference = mongoClient.getMongoClientOptions().getReadPreference();
         
@@ -122,21 +193,168 @@ public abstract class AbstractMongoReplayUtil {
         this.clusterType = cd.getType();
         logger.debug("Connected: " + clusterType);
         
-        //workQueue = new ArrayBlockingQueue<Runnable>(queueSize);
-        workQueue = new LinkedBlockingQueue<Runnable>(queueSize);
+        if (virtualInFlight > 0 && (asyncWindow > 0 || comparisonUriStr != null)) {
+            throw new IllegalArgumentException("--virtual is not supported with --async or --compare");
+        }
+        if (virtualInFlight > 0 && (connectionAffine || trackCursors)) {
+            throw new IllegalArgumentException("--virtual is not supported with --connectionAffine or --getMore");
+        }
+        
+        if (mongosStrategy != null) {
+            if (clusterType != ClusterType.SHARDED) {
+                throw new IllegalArgumentException("--mongos requires a sharded cluster, target is " + clusterType);
+            }
+            if (asyncWindow > 0 || trackCursors) {
+                // a getMore has to go to the mongos that opened its cursor
+                throw new IllegalArgumentException("--mongos is not supported with --async or --getMore");
+            }
+            mongosShardClient = new ShardClient("replay", mongoUriStr);
+            mongosBalancer = new MongosBalancer("replay", mongosShardClient.getMongosMongoClientsMap(),
+                    mongosStrategy);
+            replayOptions.setMongosBalancer(mongosBalancer);
+        }
         
-        pool = new PausableThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, workQueue, new CallerBlocksPolicy(ONE_MINUTE*5));
-        pool.pause();
+        if (comparisonUriStr != null) {
+            comparisonTarget = new ComparisonTarget(comparisonUriStr);
+            comparisonTarget.getMongoClient().getDatabase("admin").runCommand(new Document("ismaster", 1));
+            replayOptions.setComparisonTarget(comparisonTarget);
+            logger.debug("A/B replay, comparing against " + comparisonUriStr);
+        }
         
+        LoadController loadController = null;
+        if (targetOpsPerSecond > 0) {
+            loadController = new RateLimitController(targetOpsPerSecond);
+        } else if (targetP99Millis > 0) {
+            loadController = new LatencyTargetController(targetP99Millis, maxInFlight());
+        }
+        if (loadController != null) {
+            replayOptions.setLoadController(loadController);
+            registerMBean(loadController);
+            logger.debug(loadController.toString());
+        }
+        
+        if (trackCursors) {
+            if (asyncWindow > 0) {
+                throw new IllegalArgumentException("--getMore is not supported with --async");
+            }
+            // a getMore has to run after the command that opened its cursor
+            connectionAffine = true;
+            cursorTracker = new CursorTracker();
+            replayOptions.setLiveCursors(new CursorTracker.LiveCursors());
+        }
+        
+        if (undoNamespace != null) {
+            if (asyncWindow > 0 || comparisonTarget != null) {
+                throw new IllegalArgumentException("--undo is not supported with --async or --compare");
+            }
+            undoStore = new UndoStore(mongoClient, undoNamespace);
+            replayOptions.setUndoStore(undoStore);
+            logger.debug("Recording pre-images to " + undoNamespace);
+            if (!connectionAffine) {
+                logger.warn("--undo without --connectionAffine: writes to one document from different connections "
+                        + "may be recorded out of order");
+            }
+        }
+        
+        if (amplifier != null) {
+            replayOptions.setAmplifier(amplifier);
+            logger.debug(String.format("Amplifying %sx", amplifier.getCopies()));
+        }
+        
+        if (coalesceWindowMillis > 0) {
+            if (asyncWindow > 0) {
+                throw new IllegalArgumentException("--coalesce is not supported with --async");
+            }
+            insertCoalescer = new InsertCoalescer(mongoClient, replayOptions, coalesceWindowMillis, coalesceMaxBytes);
+            replayOptions.setInsertCoalescer(insertCoalescer);
+            logger.debug(String.format("Coalescing inserts, window %s ms, max %s bytes", coalesceWindowMillis,
+                    coalesceMaxBytes));
+        }
+        
+        if (asyncWindow > 0) {
+            // -t issuer threads driving up to asyncWindow ops in flight
+            pool = new AsyncReplayExecutor(mongoUriStr, threads, asyncWindow, queueSize, loadController,
+                    comparisonUriStr);
+            logger.debug("Async replay using " + threads + " threads, window " + asyncWindow);
+        } else if (virtualInFlight > 0) {
+            // the reader blocks while virtualInFlight ops are running
+            pool = new VirtualReplayExecutor(virtualInFlight);
+            logger.debug("Thread per op replay, " + pool);
+        } else if (connectionAffine) {
+            // one lane per thread, ops from a captured connection stay in order
+            pool = new LaneReplayExecutor(threads, queueSize);
+            logger.debug("Connection-affine replay using " + threads + " lanes");
+        } else {
+            // the reader blocks while queueSize operations are waiting
+            pool = new PooledReplayExecutor(threads, queueSize);
+        }
+        
+        if (speed > 0) {
+            startScheduler();
+        }
         
         //pool.prestartAllCoreThreads();
 
+        if (timeSeriesPrefix != null) {
+            timeSeries = new ReplayTimeSeries(timeSeriesPrefix, timeSeriesIntervalMillis);
+            replayStatistics.setTimeSeries(timeSeries);
+            logger.debug("Writing latency time series to " + timeSeriesPrefix + ".csv / .hlog");
+            if (comparisonTarget != null) {
+                comparisonTimeSeries = new ReplayTimeSeries(timeSeriesPrefix + "-b", timeSeriesIntervalMillis);
+                comparisonTarget.getReplayStatistics().setTimeSeries(comparisonTimeSeries);
+            }
+        }
+        
         monitor = new Monitor(Thread.currentThread());
         monitor.setPool(pool);
+        monitor.setReplayStatistics(replayStatistics);
+        monitor.setLoadController(loadController);
+        registerMBean(monitor);
         monitor.start();
     }
+    
+    /**
+     * Expose a load controller's setpoint (so it can be changed while the
+     * replay is running) or the monitor's rolling windows over JMX.
+     */
+    private static void registerMBean(Object mbean) {
+        try {
+            ObjectName name = new ObjectName("com.mongodb.mongoreplay:type=" + mbean.getClass().getSimpleName());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+        } catch (JMException e) {
+            logger.warn("Unable to register " + mbean.getClass().getSimpleName() + " MBean", e);
+        }
+    }
+
+    /**
+     * Replay at the captured times, scaled by speed, dispatching to the pool.
+     */
+    void startScheduler() {
+        scheduler = new ReplayScheduler(pool, speed);
+        scheduler.start();
+        logger.debug("Time-faithful replay at " + speed + "x");
+    }
+    
+    /**
+     * Wait for the scheduled operations to be handed to the pool.
+     */
+    void stopScheduler() {
+        if (scheduler != null) {
+            try {
+                scheduler.drainAndStop();
+            } catch (InterruptedException e) {
+                Thread.interrupted();
+                logger.warn("interrupted while waiting for scheduled operations");
+            }
+        }
+    }
 
     public void close() {
+        stopScheduler();
         pool.shutdown();
 
         while (!pool.isTerminated()) {
@@ -163,8 +381,39 @@ public abstract class AbstractMongoReplayUtil {
             logger.warn("interrupted while waiting for pool termination");
         }
 
+        if (insertCoalescer != null) {
+            // the workers are done, send the inserts still waiting for their window
+            insertCoalescer.close();
+        }
+        
+        if (undoStore != null) {
+            undoStore.close();
+        }
+        
+        if (mongosBalancer != null) {
+            mongosBalancer.close();
+            mongosShardClient.close();
+        }
+
+        if (cursorTracker != null) {
+            logger.debug(String.format("Killing %s open cursors", replayOptions.getLiveCursors().size()));
+            replayOptions.getLiveCursors().killAll(mongoClient);
+            if (comparisonTarget != null) {
+                comparisonTarget.getLiveCursors().killAll(comparisonTarget.getMongoClient());
+            }
+        }
+
         halt();
+        if (timeSeries != null) {
+            timeSeries.close();
+        }
+        if (comparisonTimeSeries != null) {
+            comparisonTimeSeries.close();
+        }
         mongoClient.close();
+        if (comparisonTarget != null) {
+            comparisonTarget.close();
+        }
         logger.debug("close() complete");
     }
 
@@ -190,56 +439,75 @@ public abstract class AbstractMongoReplayUtil {
         }
     }
 
-    public void replayFile(String filename) throws FileNotFoundException, DataFormatException {
+    public void replayFile(String filename) throws IOException, DataFormatException {
         File file = new File(filename);
-        InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
-        BSONDecoder decoder = new BasicBSONDecoder();
+        CaptureReader reader = null;
+        CaptureIndex index = null;
         
         try {
-            while (inputStream.available() > 0) {
-
-                if (count >= limit) {
-                    break;
-                }
-
-                BSONObject obj = decoder.readObject(inputStream);
-                if (obj == null) {
-                    break;
-                }
-
-                BSONObject raw = (BSONObject) obj.get("rawop");
-                
-                if (raw == null) {
-                    continue;
+            reader = CaptureReader.open(file);
+            if (from != null || to != null || opcodeSubset != null) {
+                // seek through the sidecar index, the capture is only touched
+                // for the records that are replayed
+                index = CaptureIndex.open(file);
+                long[] range = index.range(from, to);
+                logger.debug(String.format("Replaying index entries [%s, %s) of %s", range[0], range[1], index.size()));
+                if (scheduler != null && range[0] < range[1]) {
+                    // anchor from the index, a compressed reader can only move forward
+                    scheduler.setOrigin(index.getSeenSeconds(range[0]), index.getSeenNanos(range[0]));
                 }
-                BSONObject header = (BSONObject) raw.get("header");
-                int opcode = (Integer) header.get("opcode");
-                if (! opcodeWhitelist.contains(opcode)) {
-                    continue;
+                for (long i = range[0]; i < range[1] && !isDone(); i++) {
+                    if (!inPartition(index.getConnectionNum(i))) {
+                        continue;
+                    }
+                    int opcode = index.getOpcode(i);
+                    int responseTo = index.getResponseTo(i);
+                    if (responseTo != 0 && cursorTracker != null) {
+                        reader.seek(index.getOffset(i));
+                        reader.next();
+                        cursorTracker.onReply(reader.getSeenConnectionNum(), reader.getBody());
+                        continue;
+                    }
+                    if (!isReplayed(opcode, responseTo)) {
+                        continue;
+                    }
+                    reader.seek(index.getOffset(i));
+                    reader.next();
+                    submit(reader, opcode);
                 }
-                
-                Long seenconnectionnum = (Long)obj.get("seenconnectionnum");
-                //seenConnections.add(seenconnectionnum);
-                
-                lastSeen = (BSONObject) obj.get("seen");
-                if (count == 0) {
-                    firstSeen = lastSeen;
+            } else {
+                while (reader.next() && !isDone()) {
+                    // peek the header in place, records that are not replayed are never decoded
+                    if (scheduler != null && !scheduler.hasOrigin()) {
+                        anchorSchedule(reader);
+                    }
+                    if (!inPartition(reader.getSeenConnectionNum())) {
+                        continue;
+                    }
+                    int opcode = reader.getOpcode();
+                    int responseTo = reader.getResponseTo();
+                    if (responseTo != 0 && cursorTracker != null) {
+                        // replies are only read for the cursor ids they carry
+                        cursorTracker.onReply(reader.getSeenConnectionNum(), reader.getBody());
+                        continue;
+                    }
+                    if (!isReplayed(opcode, responseTo)) {
+                        continue;
+                    }
+                    submit(reader, opcode);
                 }
-                
-                RawReplayTask rawTask = new RawReplayTask(monitor, mongoClient, replayOptions, raw);
-                futures.add(pool.submit(rawTask));
-
-                count++;
-//                if ((count % 100000) == 0) {
-//                    logger.debug("workQueue size " + workQueue.size());
-//                    //logger.debug("seenConnections: " + seenConnections.size());
-//                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("interrupted while scheduling operations");
         } finally {
             try {
-                inputStream.close();
+                if (reader != null) {
+                    reader.close();
+                }
+                if (index != null) {
+                    index.close();
+                }
             } catch (IOException e) {
             }
         }
@@ -249,9 +517,129 @@ public abstract class AbstractMongoReplayUtil {
         logger.debug(String.format("last event: %s", convertSeen(lastSeen)));
     }
     
+    /**
+     * Anchor the scheduler on the current record if it is the first one with
+     * a seen time. Every partition sees the same first record, so workers
+     * replaying different partitions keep their relative timing.
+     */
+    private void anchorSchedule(CaptureReader reader) {
+        long sec = reader.getSeenSeconds();
+        if (sec >= 0) {
+            scheduler.setOrigin(sec, reader.getSeenNanos());
+        }
+    }
 
+    private boolean inPartition(long connectionNum) {
+        return partitionCount == 0 || Math.floorMod(connectionNum, (long) partitionCount) == partition;
+    }
     
+    /**
+     * Block until the shared start time of a distributed replay, if any.
+     */
+    protected void awaitStartTime() {
+        if (startAtMillis != 0) {
+            long waitMillis = startAtMillis - System.currentTimeMillis();
+            if (waitMillis < 0) {
+                logger.warn(String.format("Start time passed %s ms ago, starting now", -waitMillis));
+            } else {
+                logger.debug(String.format("Waiting %s ms for start time %s", waitMillis,
+                        Instant.ofEpochMilli(startAtMillis)));
+                try {
+                    Thread.sleep(waitMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        if (durationSeconds > 0) {
+            deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        }
+    }
+    
+    /**
+     * @return true once -l operations were submitted or --duration is up
+     */
+    protected boolean isDone() {
+        return count >= limit || (durationSeconds > 0 && System.nanoTime() - deadlineNanos >= 0);
+    }
+    
+    private boolean isReplayed(int opcode, int responseTo) {
+        if (opcode < 0 || !opcodeWhitelist.get(opcode)) {
+            return false;
+        }
+        if (opcodeSubset != null && !opcodeSubset.get(opcode)) {
+            return false;
+        }
+        // OP_COMPRESSED wraps server replies as well as requests
+        return responseTo == 0;
+    }
+    
+    private void submit(CaptureReader reader, int opcode) throws InterruptedException {
+        long seenconnectionnum = reader.getSeenConnectionNum();
+        //seenConnections.add(seenconnectionnum);
+        
+        lastSeen = reader.getSeenSeconds();
+        if (count == 0) {
+            firstSeen = lastSeen;
+        }
+        
+        long cursorKey = CursorTracker.NONE;
+        if (cursorTracker != null) {
+            cursorKey = cursorTracker.onRequest(seenconnectionnum, reader.getBody());
+            if (cursorKey != CursorTracker.NONE) {
+                getMoreCount++;
+            }
+        }
+        
+        submit(opcode, seenconnectionnum, reader.getBody(), cursorKey, lastSeen, reader.getSeenNanos());
+//        if ((count % 100000) == 0) {
+//            logger.debug("workQueue size " + workQueue.size());
+//            //logger.debug("seenConnections: " + seenConnections.size());
+//        }
+    }
+    
+    /**
+     * Replay one request, and its amplified copies, at its (captured or
+     * synthetic) seen time if replaying with -s, otherwise as soon as a worker
+     * is free.
+     * 
+     * @param body the complete wire protocol message, shared by the copies
+     */
+    protected void submit(int opcode, long seenconnectionnum, ByteBuffer body, long cursorKey, long seenSec,
+            long seenNsec) throws InterruptedException {
+        int copies = amplifier != null ? amplifier.getCopies() : 1;
+        for (int copy = 0; copy < copies; copy++) {
+            // each copy is replayed as if on its own connection, so copies
+            // spread over lanes and keep their own cursors
+            long connectionNum = seenconnectionnum + ((long) copy << COPY_CONNECTION_SHIFT);
+            RawReplayTask rawTask = new RawReplayTask(monitor, replayStatistics, mongoClient, replayOptions, opcode,
+                    connectionNum, body);
+            rawTask.setCopy(copy);
+            if (cursorKey != CursorTracker.NONE) {
+                rawTask.setCursorKey(copyCursorKey(cursorKey, copy));
+            }
+            if (scheduler != null) {
+                scheduler.schedule(rawTask, seenSec, seenNsec);
+            } else {
+                pool.execute(rawTask);
+            }
+        }
+
+        count++;
+    }
 
+    protected ReplayOptions getReplayOptions() {
+        return replayOptions;
+    }
+
+    /**
+     * @param cursorKey key of the captured request that opened a cursor, which
+     *            may have been sent on another connection than the getMore
+     * @return the key under which copy registers that cursor
+     */
+    static long copyCursorKey(long cursorKey, int copy) {
+        return CursorTracker.key((cursorKey >>> 32) + ((long) copy << COPY_CONNECTION_SHIFT), (int) cursorKey);
+    }
 
     @SuppressWarnings("static-access")
     protected static CommandLine initializeAndParseCommandLineOptions(String[] args) {
@@ -268,12 +656,107 @@ public abstract class AbstractMongoReplayUtil {
         options.addOption(
                 OptionBuilder.withArgName("play back target mongo uri").hasArg().withLongOpt("host").isRequired().create("h"));
 
+        options.addOption(OptionBuilder.withArgName("comparison target mongo uri").hasArg()
+                .withDescription("A/B replay, send every operation to both -h and this cluster").withLongOpt("compare")
+                .create("b"));
+
         options.addOption(OptionBuilder.withArgName("# threads").hasArgs().withLongOpt("threads").create("t"));
         
         options.addOption(OptionBuilder.withArgName("queue size").hasArgs().withLongOpt("threads").create("q"));
         
         options.addOption(OptionBuilder.withArgName("ignore collection").hasArgs().withLongOpt("ingoreColl").create("c"));
         
+        options.addOption(OptionBuilder.withArgName("replay speed multiplier, replays with captured timing")
+                .hasArg().withLongOpt("speed").create("s"));
+        
+        options.addOption(OptionBuilder.withDescription("preserve per-connection ordering, one lane per thread")
+                .withLongOpt("connectionAffine").create());
+        
+        options.addOption(OptionBuilder
+                .withDescription("replay getMores, mapping captured to live cursor ids (implies --connectionAffine)")
+                .withLongOpt("getMore").create());
+        
+        options.addOption(OptionBuilder.withArgName("window ms").hasOptionalArg()
+                .withDescription("stress mode, batch single document inserts per namespace, default window "
+                        + DEFAULT_COALESCE_WINDOW + " ms")
+                .withLongOpt("coalesce").create());
+        
+        options.addOption(OptionBuilder.withArgName("bytes").hasArg()
+                .withDescription("maximum size of a coalesced insert batch, default " + DEFAULT_COALESCE_BYTES)
+                .withLongOpt("coalesceBytes").create());
+        
+        options.addOption(OptionBuilder.withArgName("max in-flight ops").hasOptionalArg()
+                .withDescription("replay on the async driver, default window " + DEFAULT_ASYNC_WINDOW)
+                .withLongOpt("async").create());
+        
+        options.addOption(OptionBuilder.withArgName("max in-flight ops").hasOptionalArg()
+                .withDescription("one (virtual on Java 21+) thread per op instead of -t workers, default limit "
+                        + DEFAULT_VIRTUAL_IN_FLIGHT)
+                .withLongOpt("virtual").create());
+        
+        options.addOption(OptionBuilder.withArgName("roundRobin|leastOutstanding").hasOptionalArg()
+                .withDescription("spread ops over all healthy mongos of a sharded target, default leastOutstanding")
+                .withLongOpt("mongos").create());
+        
+        options.addOption(OptionBuilder.withArgName("start time, ISO-8601 or seconds from capture start").hasArg()
+                .withLongOpt("from").create());
+        
+        options.addOption(OptionBuilder.withArgName("end time, ISO-8601 or seconds from capture start").hasArg()
+                .withLongOpt("to").create());
+        
+        options.addOption(OptionBuilder.withArgName("ops/sec").hasArg()
+                .withDescription("hold a target rate (token bucket), adjustable over JMX").withLongOpt("rate").create());
+        
+        options.addOption(OptionBuilder.withArgName("ms").hasArg()
+                .withDescription("hold a target p99 latency by adjusting concurrency, adjustable over JMX")
+                .withLongOpt("targetP99").create());
+        
+        options.addOption(OptionBuilder.withArgName("file prefix").hasArg()
+                .withDescription("write per interval latencies to <prefix>.csv and <prefix>.hlog")
+                .withLongOpt("timeSeries").create());
+        
+        options.addOption(OptionBuilder.withArgName("seconds").hasArg()
+                .withDescription("time series interval, default 1").withLongOpt("interval").create());
+        
+        options.addOption(OptionBuilder.withArgName("N").hasArg()
+                .withDescription("replay N copies of every operation, see --amplifySuffix / --amplifyKeyOffset")
+                .withLongOpt("amplify").create());
+        
+        options.addOption(OptionBuilder.withArgName("suffix").hasArg()
+                .withDescription("copy k uses collection <name><suffix>k, default _ unless only --amplifyKeyOffset is given")
+                .withLongOpt("amplifySuffix").create());
+        
+        options.addOption(OptionBuilder.withArgName("offset").hasArg()
+                .withDescription("copy k shifts numeric keys by k * offset (strings / ObjectIds are made unique per copy)")
+                .withLongOpt("amplifyKeyOffset").create());
+        
+        options.addOption(OptionBuilder.withArgName("field(s)").hasArgs()
+                .withDescription("key fields rewritten by --amplifyKeyOffset in addition to _id")
+                .withLongOpt("amplifyFields").create());
+        
+        options.addOption(OptionBuilder.withArgName("database.collection").hasOptionalArg()
+                .withDescription("record pre-images of written documents for UndoRevert, default "
+                        + UndoStore.DEFAULT_NAMESPACE)
+                .withLongOpt("undo").create());
+        
+        options.addOption(OptionBuilder.withArgName("k/N").hasArg()
+                .withDescription("distributed replay, only replay connections with seenconnectionnum % N == k")
+                .withLongOpt("partition").create());
+        
+        options.addOption(OptionBuilder.withArgName("time").hasArg()
+                .withDescription("start replaying at this wall-clock time, ISO-8601 or epoch millis")
+                .withLongOpt("startAt").create());
+        
+        options.addOption(OptionBuilder.withArgName("seconds").hasArg()
+                .withDescription("stop after this many seconds, WorkloadGenerator defaults to the modeled duration")
+                .withLongOpt("duration").create());
+        
+        options.addOption(OptionBuilder.withArgName("file").hasArg()
+                .withDescription("write the results (histograms) for merging by MongoReplayCoordinator")
+                .withLongOpt("results").create());
+        
+        options.addOption(OptionBuilder.withArgName("opcode(s) to replay").hasArgs().withLongOpt("opcodes").create());
+        
         CommandLineParser parser = new GnuParser();
         CommandLine line = null;
         try {
@@ -312,6 +795,7 @@ public abstract class AbstractMongoReplayUtil {
         String mongoUriStr = line.getOptionValue("h");
        
         setMongoUriStr(mongoUriStr);
+        setComparisonUriStr(line.getOptionValue("b"));
 
         String threadsStr = line.getOptionValue("t");
         if (threadsStr != null) {
@@ -334,6 +818,243 @@ public abstract class AbstractMongoReplayUtil {
             setQueueSize(q);
         }
         
+        if (line.hasOption("async")) {
+            String windowStr = line.getOptionValue("async");
+            setAsyncWindow(windowStr != null ? Integer.parseInt(windowStr) : DEFAULT_ASYNC_WINDOW);
+        }
+        
+        if (line.hasOption("virtual")) {
+            String inFlightStr = line.getOptionValue("virtual");
+            setVirtualInFlight(inFlightStr != null ? Integer.parseInt(inFlightStr) : DEFAULT_VIRTUAL_IN_FLIGHT);
+        }
+        
+        if (line.hasOption("mongos")) {
+            String strategyStr = line.getOptionValue("mongos");
+            setMongosStrategy(strategyStr != null ? MongosBalancer.Strategy.parse(strategyStr)
+                    : MongosBalancer.Strategy.LEAST_OUTSTANDING);
+        }
+        
+        if (line.hasOption("connectionAffine")) {
+            setConnectionAffine(true);
+        }
+        
+        if (line.hasOption("coalesce")) {
+            if (line.hasOption("async")) {
+                throw new IllegalArgumentException("--coalesce is not supported with --async");
+            }
+            String windowStr = line.getOptionValue("coalesce");
+            setCoalesceWindowMillis(windowStr != null ? Long.parseLong(windowStr) : DEFAULT_COALESCE_WINDOW);
+        }
+        if (line.hasOption("coalesceBytes")) {
+            setCoalesceMaxBytes(Integer.parseInt(line.getOptionValue("coalesceBytes")));
+        }
+        
+        if (line.hasOption("getMore")) {
+            if (line.hasOption("async")) {
+                throw new IllegalArgumentException("--getMore is not supported with --async");
+            }
+            setTrackCursors(true);
+        }
+        
+        String speedStr = line.getOptionValue("s");
+        if (speedStr != null) {
+            setSpeed(Double.parseDouble(StringUtils.removeEndIgnoreCase(speedStr, "x")));
+        }
+        
+        if (line.hasOption("rate") && line.hasOption("targetP99")) {
+            throw new IllegalArgumentException("--rate and --targetP99 are mutually exclusive");
+        }
+        if (line.hasOption("rate")) {
+            setTargetOpsPerSecond(Double.parseDouble(line.getOptionValue("rate")));
+        }
+        if (line.hasOption("targetP99")) {
+            setTargetP99Millis(Double.parseDouble(line.getOptionValue("targetP99")));
+        }
+        
+        setTimeSeries(line.getOptionValue("timeSeries"));
+        if (line.hasOption("interval")) {
+            setTimeSeriesIntervalMillis((long) (Double.parseDouble(line.getOptionValue("interval")) * 1000));
+        }
+        
+        if (line.hasOption("amplify")) {
+            Amplifier amplifier = new Amplifier(Integer.parseInt(line.getOptionValue("amplify")));
+            if (line.hasOption("amplifySuffix") || !line.hasOption("amplifyKeyOffset")) {
+                amplifier.setNamespaceSuffix(line.getOptionValue("amplifySuffix", "_"));
+            }
+            if (line.hasOption("amplifyKeyOffset")) {
+                amplifier.setKeyOffset(Long.parseLong(line.getOptionValue("amplifyKeyOffset")));
+            }
+            if (line.hasOption("amplifyFields")) {
+                amplifier.addKeyFields(line.getOptionValues("amplifyFields"));
+            }
+            setAmplifier(amplifier);
+        }
+        
+        if (line.hasOption("undo")) {
+            if (line.hasOption("async") || line.hasOption("b")) {
+                throw new IllegalArgumentException("--undo is not supported with --async or --compare");
+            }
+            setUndoNamespace(line.getOptionValue("undo", UndoStore.DEFAULT_NAMESPACE));
+        }
+        
+        if (line.hasOption("partition")) {
+            String[] partition = line.getOptionValue("partition").split("/");
+            if (partition.length != 2) {
+                throw new IllegalArgumentException("--partition must be k/N, e.g. 0/4");
+            }
+            setPartition(Integer.parseInt(partition[0]), Integer.parseInt(partition[1]));
+        }
+        if (line.hasOption("startAt")) {
+            setStartAtMillis(parseStartTime(line.getOptionValue("startAt")));
+        }
+        if (line.hasOption("duration")) {
+            setDurationSeconds(Long.parseLong(line.getOptionValue("duration")));
+        }
+        if (line.hasOption("results")) {
+            setResultsFile(new File(line.getOptionValue("results")));
+        }
+        
+        setTimeRange(line.getOptionValue("from"), line.getOptionValue("to"));
+        setOpcodeSubset(CaptureIndex.parseOpcodes(line.getOptionValues("opcodes")));
+    }
+
+    /**
+     * @param spec ISO-8601 instant or epoch millis
+     */
+    public static long parseStartTime(String spec) {
+        if (StringUtils.isNumeric(spec)) {
+            return Long.parseLong(spec);
+        }
+        return Instant.parse(spec).toEpochMilli();
+    }
+
+    /**
+     * Record the pre-images of written documents in this namespace of the
+     * target, see {@link UndoStore}. null (the default) disables recording.
+     */
+    public void setUndoNamespace(String undoNamespace) {
+        this.undoNamespace = undoNamespace;
+    }
+
+    /**
+     * Replay the copies defined by amplifier of every operation, null for
+     * none.
+     */
+    public void setAmplifier(Amplifier amplifier) {
+        this.amplifier = amplifier;
+    }
+
+    /**
+     * Distributed replay: only replay the captured connections with
+     * seenconnectionnum % partitionCount == partition.
+     */
+    public void setPartition(int partition, int partitionCount) {
+        if (partitionCount < 1 || partition < 0 || partition >= partitionCount) {
+            throw new IllegalArgumentException(String.format("invalid partition %s/%s", partition, partitionCount));
+        }
+        this.partition = partition;
+        this.partitionCount = partitionCount;
+    }
+
+    /**
+     * Distributed replay: wait until this wall-clock time before replaying.
+     */
+    public void setStartAtMillis(long startAtMillis) {
+        this.startAtMillis = startAtMillis;
+    }
+
+    /**
+     * Write the results to file when done, see {@link ReplayStatistics#write(File)}.
+     */
+    public void setResultsFile(File resultsFile) {
+        this.resultsFile = resultsFile;
+    }
+
+    /**
+     * Only replay records seen in [from, to), see {@link CaptureIndex#parseTime(String)}.
+     */
+    public void setTimeRange(String from, String to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Only replay these opcodes (in addition to the supported opcode whitelist).
+     */
+    public void setOpcodeSubset(BitSet opcodeSubset) {
+        this.opcodeSubset = opcodeSubset;
+    }
+
+    public void setTimeSeries(String timeSeriesPrefix) {
+        this.timeSeriesPrefix = timeSeriesPrefix;
+    }
+
+    public void setTimeSeriesIntervalMillis(long timeSeriesIntervalMillis) {
+        this.timeSeriesIntervalMillis = Math.max(1, timeSeriesIntervalMillis);
+    }
+
+    public void setTargetOpsPerSecond(double targetOpsPerSecond) {
+        this.targetOpsPerSecond = targetOpsPerSecond;
+    }
+
+    public void setTargetP99Millis(double targetP99Millis) {
+        this.targetP99Millis = targetP99Millis;
+    }
+
+    public void setAsyncWindow(int asyncWindow) {
+        this.asyncWindow = asyncWindow;
+    }
+
+    /**
+     * Run every op on its own thread, at most virtualInFlight at once, see
+     * {@link VirtualReplayExecutor}. 0 (the default) uses -t workers.
+     */
+    public void setVirtualInFlight(int virtualInFlight) {
+        this.virtualInFlight = virtualInFlight;
+    }
+
+    /**
+     * Spread operations over all mongos of the target, see
+     * {@link MongosBalancer}. null (the default) sends them all through the
+     * client of the replay URI.
+     */
+    public void setMongosStrategy(MongosBalancer.Strategy mongosStrategy) {
+        this.mongosStrategy = mongosStrategy;
+    }
+
+    private int maxInFlight() {
+        if (asyncWindow > 0) {
+            return asyncWindow;
+        }
+        return virtualInFlight > 0 ? virtualInFlight : threads;
+    }
+
+    /**
+     * Replay getMores on the cursors opened by the replayed finds and
+     * aggregates, see {@link CursorTracker}.
+     */
+    public void setTrackCursors(boolean trackCursors) {
+        this.trackCursors = trackCursors;
+    }
+
+    /**
+     * Coalesce single document inserts into bulk inserts, see
+     * {@link InsertCoalescer}. 0 (the default) disables coalescing.
+     */
+    public void setCoalesceWindowMillis(long coalesceWindowMillis) {
+        this.coalesceWindowMillis = coalesceWindowMillis;
+    }
+
+    public void setCoalesceMaxBytes(int coalesceMaxBytes) {
+        this.coalesceMaxBytes = coalesceMaxBytes;
+    }
+
+    public void setConnectionAffine(boolean connectionAffine) {
+        this.connectionAffine = connectionAffine;
+    }
+
+    public void setSpeed(double speed) {
+        this.speed = speed;
     }
 
     private void setQueueSize(int q) {
@@ -362,13 +1083,35 @@ public abstract class AbstractMongoReplayUtil {
         this.limit = limit;
     }
 
+    /**
+     * Stop submitting operations this many seconds after the start, 0 (the
+     * default) for no limit.
+     */
+    public void setDurationSeconds(long durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
     public void setMongoUriStr(String mongoUriStr) {
         this.mongoUriStr = mongoUriStr;
     }
+
+    /**
+     * A/B replay: also send every operation to this cluster, null for none.
+     */
+    public void setComparisonUriStr(String comparisonUriStr) {
+        this.comparisonUriStr = comparisonUriStr;
+    }
+
+    /**
+     * @return the comparison cluster of an A/B replay, null unless
+     *         {@link #setComparisonUriStr(String)} was used
+     */
+    public ComparisonTarget getComparisonTarget() {
+        return comparisonTarget;
+    }
     
-    private static ZonedDateTime convertSeen(BSONObject seen) {
-        Long sec = (Long)seen.get("sec");
-        Long t = (sec + internalToUnix) * 1000;
+    private static ZonedDateTime convertSeen(long sec) {
+        long t = (sec + internalToUnix) * 1000;
         return ZonedDateTime.ofInstant(Instant.ofEpochMilli(t), ZoneId.of("UTC"));
     }
 
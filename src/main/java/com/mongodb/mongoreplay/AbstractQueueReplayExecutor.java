@@ -0,0 +1,148 @@
+package com.mongodb.mongoreplay;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed worker threads fed from bounded queues, the common part of
+ * {@link PooledReplayExecutor} (all workers share one queue) and
+ * {@link LaneReplayExecutor} (one queue per worker). Worker i serves queue
+ * <code>i % queueCount</code>; the worker loop that takes, runs and accounts
+ * for a task lives only here. Subclasses pick the queue of a task in
+ * {@link #execute(Runnable)}.
+ */
+public abstract class AbstractQueueReplayExecutor implements ReplayExecutor {
+
+    protected static final Logger logger = LoggerFactory.getLogger(AbstractQueueReplayExecutor.class);
+
+    private final BlockingQueue<Runnable>[] queues;
+    private final Thread[] workers;
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param name worker thread name prefix
+     * @param threads number of worker threads
+     * @param queueCount number of queues, 1 or threads
+     * @param queueCapacity capacity of each queue
+     */
+    @SuppressWarnings("unchecked")
+    protected AbstractQueueReplayExecutor(String name, int threads, int queueCount, int queueCapacity) {
+        this.queues = new BlockingQueue[queueCount];
+        for (int i = 0; i < queueCount; i++) {
+            queues[i] = new ArrayBlockingQueue<Runnable>(queueCapacity);
+        }
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            BlockingQueue<Runnable> queue = queues[i % queueCount];
+            workers[i] = new Thread(() -> work(queue), name + "-" + i);
+            workers[i].start();
+        }
+    }
+
+    private void work(BlockingQueue<Runnable> queue) {
+        while (!shutdown || !queue.isEmpty()) {
+            Runnable task;
+            try {
+                task = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == null) {
+                continue;
+            }
+            active.incrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Error executing task", e);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Queue command on queue, blocking while it is full.
+     */
+    protected void put(int queue, Runnable command) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        try {
+            queues[queue].put(command);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted", e);
+        }
+    }
+
+    protected int getQueueCount() {
+        return queues.length;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    @Override
+    public int getQueueSize() {
+        int size = 0;
+        for (BlockingQueue<Runnable> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    @Override
+    public int getPoolSize() {
+        return workers.length;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public void shutdownNow() {
+        shutdown = true;
+        for (BlockingQueue<Runnable> queue : queues) {
+            queue.clear();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        for (Thread worker : workers) {
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return shutdown;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return isTerminated();
+            }
+            worker.join(remaining);
+        }
+        return isTerminated();
+    }
+
+}
@@ -0,0 +1,231 @@
+package com.mongodb.mongoreplay;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Load amplification: every captured operation is replayed as N logical
+ * copies. Copy 0 is the captured operation; copies 1..N-1 are rewritten so
+ * that they touch their own data, and data and cache footprints grow with the
+ * load:
+ * <ul>
+ * <li>namespace suffix: the collection name gets <code>suffix + copy</code>
+ * appended, e.g. orders_1, orders_2</li>
+ * <li>key offset: <code>_id</code> (and any configured key fields) in
+ * inserted documents and in filters are mapped per copy; numbers are shifted
+ * by <code>copy * offset</code>, strings get <code>-copy</code> appended and
+ * ObjectIds have their counter bytes mixed with the copy number. Other types
+ * are left as captured.</li>
+ * </ul>
+ * Both rules can be combined. Nested pipelines (e.g. $lookup) are not
+ * rewritten.
+ */
+public class Amplifier {
+
+    private final int copies;
+    private String namespaceSuffix;
+    private long keyOffset;
+    private final Set<String> keyFields = new HashSet<String>();
+
+    public Amplifier(int copies) {
+        if (copies < 1) {
+            throw new IllegalArgumentException("copies must be >= 1, was " + copies);
+        }
+        this.copies = copies;
+        keyFields.add("_id");
+    }
+
+    public int getCopies() {
+        return copies;
+    }
+
+    /**
+     * @param namespaceSuffix appended, followed by the copy number, to the
+     *            collection name of each copy; null to keep the namespace
+     */
+    public void setNamespaceSuffix(String namespaceSuffix) {
+        this.namespaceSuffix = namespaceSuffix;
+    }
+
+    /**
+     * @param keyOffset distance between the numeric keys of two copies, 0 to
+     *            keep keys as captured
+     */
+    public void setKeyOffset(long keyOffset) {
+        this.keyOffset = keyOffset;
+    }
+
+    /**
+     * Rewrite these fields in addition to _id.
+     */
+    public void addKeyFields(String... fields) {
+        for (String field : fields) {
+            keyFields.add(field);
+        }
+    }
+
+    public String collectionName(String collectionName, int copy) {
+        if (copy == 0 || namespaceSuffix == null || collectionName == null) {
+            return collectionName;
+        }
+        return collectionName + namespaceSuffix + copy;
+    }
+
+    /**
+     * Rewrite a decoded command for copy.
+     */
+    public void rewrite(Document commandDoc, Command command, int copy) {
+        if (copy == 0) {
+            return;
+        }
+        String collectionField = collectionField(command);
+        Object collection = commandDoc.get(collectionField);
+        if (collection instanceof String) {
+            commandDoc.put(collectionField, collectionName((String) collection, copy));
+        }
+        if (keyOffset == 0) {
+            return;
+        }
+        switch (command) {
+        case FIND:
+            rewriteDocument(commandDoc.get("filter"), copy);
+            break;
+        case INSERT:
+            rewriteStatements(commandDoc.get("documents"), null, copy);
+            break;
+        case UPDATE:
+            rewriteStatements(commandDoc.get("updates"), "q", copy);
+            break;
+        case DELETE:
+            rewriteStatements(commandDoc.get("deletes"), "q", copy);
+            break;
+        case COUNT:
+        case FIND_AND_MODIFY:
+            rewriteDocument(commandDoc.get("query"), copy);
+            break;
+        case AGGREGATE:
+            Object pipeline = commandDoc.get("pipeline");
+            if (pipeline instanceof List) {
+                for (Object stage : (List<?>) pipeline) {
+                    if (stage instanceof Document) {
+                        rewriteDocument(((Document) stage).get("$match"), copy);
+                    }
+                }
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private static String collectionField(Command command) {
+        switch (command) {
+        case FIND:
+            return "find";
+        case INSERT:
+            return "insert";
+        case UPDATE:
+            return "update";
+        case DELETE:
+            return "delete";
+        case COUNT:
+            return "count";
+        case FIND_AND_MODIFY:
+            return "findandmodify";
+        case AGGREGATE:
+            return "aggregate";
+        case GETMORE:
+            return "collection";
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @param field the document of each statement, null if the statements are
+     *            the documents themselves
+     */
+    private void rewriteStatements(Object statements, String field, int copy) {
+        if (!(statements instanceof List)) {
+            return;
+        }
+        for (Object statement : (List<?>) statements) {
+            if (statement instanceof Document) {
+                rewriteDocument(field == null ? statement : ((Document) statement).get(field), copy);
+            }
+        }
+    }
+
+    /**
+     * Map the key fields of a document or filter, descending into $and / $or /
+     * $nor.
+     */
+    private void rewriteDocument(Object value, int copy) {
+        if (!(value instanceof Document)) {
+            return;
+        }
+        for (Map.Entry<String, Object> entry : ((Document) value).entrySet()) {
+            String name = entry.getKey();
+            if (keyFields.contains(name)) {
+                entry.setValue(rewriteKey(entry.getValue(), copy));
+            } else if (name.equals("$and") || name.equals("$or") || name.equals("$nor")) {
+                if (entry.getValue() instanceof List) {
+                    for (Object clause : (List<?>) entry.getValue()) {
+                        rewriteDocument(clause, copy);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Map a key value, or the operands of a query operator document such as
+     * {$in: [...]} or {$gte: ...}.
+     */
+    private Object rewriteKey(Object value, int copy) {
+        if (value instanceof Document) {
+            Document document = (Document) value;
+            boolean operators = !document.isEmpty() && document.keySet().iterator().next().startsWith("$");
+            if (!operators) {
+                // an embedded document key is matched as a whole
+                return value;
+            }
+            for (Map.Entry<String, Object> entry : document.entrySet()) {
+                entry.setValue(rewriteKey(entry.getValue(), copy));
+            }
+            return document;
+        } else if (value instanceof List) {
+            List<Object> values = new ArrayList<Object>();
+            for (Object v : (List<?>) value) {
+                values.add(rewriteKey(v, copy));
+            }
+            return values;
+        } else if (value instanceof Integer) {
+            long shifted = (Integer) value + copy * keyOffset;
+            if (shifted == (int) shifted) {
+                return (int) shifted;
+            }
+            return shifted;
+        } else if (value instanceof Long) {
+            return (Long) value + copy * keyOffset;
+        } else if (value instanceof Double) {
+            return (Double) value + copy * keyOffset;
+        } else if (value instanceof String) {
+            return value + "-" + copy;
+        } else if (value instanceof ObjectId) {
+            byte[] bytes = ((ObjectId) value).toByteArray();
+            // keep the timestamp, so time ordering is preserved
+            bytes[4] ^= (byte) copy;
+            bytes[5] ^= (byte) (copy >>> 8);
+            return new ObjectId(bytes);
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,255 @@
+package com.mongodb.mongoreplay;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ReadPreference;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.async.client.MongoClient;
+import com.mongodb.async.client.MongoClients;
+import com.mongodb.async.client.MongoDatabase;
+
+/**
+ * Non-blocking replay engine on the async driver. A handful of issuer threads
+ * parse queued {@link RawReplayTask}s and send them without waiting for the
+ * reply; a semaphore bounds the number of operations in flight. Latency is
+ * measured when the driver invokes the completion callback.
+ */
+// the callback based async driver is deprecated in the current 3.x driver
+@SuppressWarnings("deprecation")
+public class AsyncReplayExecutor implements ReplayExecutor {
+
+    protected static final Logger logger = LoggerFactory.getLogger(AsyncReplayExecutor.class);
+
+    private final MongoClient mongoClient;
+    private final ReadPreference readPreference;
+    // A/B replay, null unless a comparison target is set
+    private final MongoClient comparisonClient;
+    private final ReadPreference comparisonReadPreference;
+    private final Semaphore window;
+    private final int windowSize;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final BlockingQueue<RawReplayTask> queue;
+    private final LoadController loadController;
+    private final Thread[] issuers;
+    private volatile boolean shutdown = false;
+    private boolean closed = false;
+
+    /**
+     * @param mongoUriStr target connection string
+     * @param threads number of issuer threads
+     * @param windowSize maximum number of operations in flight
+     * @param queueSize number of operations that may be queued before the
+     *            caller blocks
+     * @param loadController rate / latency control, null to send as fast as
+     *            the window allows
+     * @param comparisonUriStr A/B replay, every operation is also sent to this
+     *            cluster; null for none
+     */
+    public AsyncReplayExecutor(String mongoUriStr, int threads, int windowSize, int queueSize,
+            LoadController loadController, String comparisonUriStr) {
+        ConnectionString connectionString = new ConnectionString(mongoUriStr);
+        this.mongoClient = createClient(connectionString, windowSize);
+        this.readPreference = readPreference(connectionString);
+        if (comparisonUriStr != null) {
+            ConnectionString comparisonString = new ConnectionString(comparisonUriStr);
+            this.comparisonClient = createClient(comparisonString, windowSize);
+            this.comparisonReadPreference = readPreference(comparisonString);
+        } else {
+            this.comparisonClient = null;
+            this.comparisonReadPreference = null;
+        }
+        this.windowSize = windowSize;
+        this.loadController = loadController;
+        this.window = new Semaphore(windowSize);
+        this.queue = new ArrayBlockingQueue<RawReplayTask>(queueSize);
+        this.issuers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            issuers[i] = new Thread(this::issue, "async-issuer-" + i);
+            issuers[i].start();
+        }
+    }
+
+    private static MongoClient createClient(ConnectionString connectionString, int windowSize) {
+        MongoClientSettings.Builder settings = MongoClientSettings.builder().applyConnectionString(connectionString);
+        if (connectionString.getMaxConnectionPoolSize() == null) {
+            // the pool must be able to carry the whole window
+            settings.applyToConnectionPoolSettings(builder -> builder.maxSize(windowSize).maxWaitQueueSize(windowSize));
+        }
+        return MongoClients.create(settings.build());
+    }
+
+    private static ReadPreference readPreference(ConnectionString connectionString) {
+        return connectionString.getReadPreference() != null ? connectionString.getReadPreference()
+                : ReadPreference.primary();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        try {
+            queue.put((RawReplayTask) command);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted", e);
+        }
+    }
+
+    private void issue() {
+        while (!shutdown || !queue.isEmpty()) {
+            RawReplayTask task;
+            try {
+                task = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (task == null || !task.prepare()) {
+                    continue;
+                }
+                if (loadController != null) {
+                    loadController.acquire();
+                }
+                window.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            send(task);
+        }
+    }
+
+    /**
+     * Send the task to the target, and to the comparison target if any. The
+     * window slot is held until every copy has completed.
+     */
+    private void send(RawReplayTask task) {
+        inFlight.incrementAndGet();
+        AtomicInteger pending = new AtomicInteger(comparisonClient != null ? 2 : 1);
+        Runnable done = () -> {
+            if (pending.decrementAndGet() == 0) {
+                inFlight.decrementAndGet();
+                window.release();
+            }
+        };
+        final long start = System.nanoTime();
+        SingleResultCallback<Document> callback = (result, t) -> {
+            long duration = System.nanoTime() - start;
+            try {
+                // the load controller tracks the primary target only
+                if (loadController != null) {
+                    loadController.release(t == null ? duration : -1);
+                }
+                task.complete(result, t, duration);
+            } finally {
+                done.run();
+            }
+        };
+        SingleResultCallback<Document> comparisonCallback = (result, t) -> {
+            try {
+                task.completeComparison(result, t, System.nanoTime() - start);
+            } finally {
+                done.run();
+            }
+        };
+        if (comparisonClient != null) {
+            runCommand(comparisonClient, comparisonReadPreference, task, comparisonCallback);
+        }
+        runCommand(mongoClient, readPreference, task, callback);
+    }
+
+    private static void runCommand(MongoClient client, ReadPreference readPreference, RawReplayTask task,
+            SingleResultCallback<Document> callback) {
+        try {
+            MongoDatabase db = client.getDatabase(task.getDatabaseName());
+            if (task.getCommand().isRead()) {
+                db.runCommand(task.getCommandDoc(), readPreference, callback);
+            } else {
+                db.runCommand(task.getCommandDoc(), callback);
+            }
+        } catch (RuntimeException e) {
+            callback.onResult(null, e);
+        }
+    }
+
+    /**
+     * @return the number of operations in flight
+     */
+    @Override
+    public int getActiveCount() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return issuers.length;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public void shutdownNow() {
+        shutdown = true;
+        queue.clear();
+        for (Thread issuer : issuers) {
+            issuer.interrupt();
+        }
+        closeClient();
+    }
+
+    private synchronized void closeClient() {
+        if (!closed) {
+            closed = true;
+            mongoClient.close();
+            if (comparisonClient != null) {
+                comparisonClient.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        if (!shutdown || inFlight.get() > 0) {
+            return false;
+        }
+        for (Thread issuer : issuers) {
+            if (issuer.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isTerminated()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        closeClient();
+        return true;
+    }
+
+}
@@ -0,0 +1,372 @@
+package com.mongodb.mongoreplay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sidecar index for a mongoreplay capture file, stored next to it as
+ * <code>&lt;capture&gt;.idx</code>. The index holds one fixed-width entry per
+ * record (file offset, seen time, connection, opcode, responseTo, length), so
+ * a time window can be located by binary search and an opcode subset can be
+ * selected without touching the capture itself.
+ *
+ * Layout (little endian): a 32 byte header (ints magic, version, entry size
+ * and {@link #BLOCK_ENTRIES} at 0, 4, 8 and 12, longs entry count and capture
+ * length at 16 and 24) followed by the entries, written in blocks of
+ * {@link #BLOCK_ENTRIES}.
+ *
+ * Seen times are stored as unix epoch nanos. Capture files are written in
+ * seen order; records without a seen time (the playback metadata document)
+ * inherit the time of the previous record, or of the first record with one
+ * if they lead the capture, so the entries stay sorted and entry 0 holds the
+ * start of the capture.
+ */
+public class CaptureIndex implements Closeable {
+
+    protected static final Logger logger = LoggerFactory.getLogger(CaptureIndex.class);
+
+    public final static String SUFFIX = ".idx";
+
+    private final static int MAGIC = 0x5849524d; // "MRIX"
+    private final static int VERSION = 2;
+    private final static int HEADER_SIZE = 32;
+    private final static int ENTRY_SIZE = 40;
+    private final static int BLOCK_ENTRIES = 4096;
+
+    // entries per mapped chunk, keeps each mapping well below 2GB
+    private final static int CHUNK_BITS = 24;
+    private final static long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private final static long unixToInternal = 62135596800L;
+    private final static long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    // entry field offsets
+    private final static int OFFSET = 0;
+    private final static int SEEN = 8;
+    private final static int CONNECTION = 16;
+    private final static int OPCODE = 24;
+    private final static int RESPONSE_TO = 28;
+    private final static int LENGTH = 32;
+
+    private final RandomAccessFile file;
+    private final long size;
+    private final ByteBuffer[] chunks;
+
+    private CaptureIndex(File indexFile) throws IOException {
+        this.file = new RandomAccessFile(indexFile, "r");
+        FileChannel channel = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != ENTRY_SIZE) {
+            file.close();
+            throw new IOException("Not a capture index (or unsupported version): " + indexFile);
+        }
+        this.size = header.getLong(16);
+        int chunkCount = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+        this.chunks = new ByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            long first = (long) i << CHUNK_BITS;
+            long entries = Math.min(size - first, 1L << CHUNK_BITS);
+            chunks[i] = channel.map(MapMode.READ_ONLY, HEADER_SIZE + first * ENTRY_SIZE, entries * ENTRY_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    public static File indexFileFor(File capture) {
+        return new File(capture.getPath() + SUFFIX);
+    }
+
+    /**
+     * Open the index of capture, (re)building it first if it is missing or
+     * was built for a capture of a different length.
+     */
+    public static CaptureIndex open(File capture) throws IOException {
+        File indexFile = indexFileFor(capture);
+        if (!isCurrent(indexFile, capture)) {
+            logger.info("Building index " + indexFile);
+            build(capture, indexFile);
+        }
+        return new CaptureIndex(indexFile);
+    }
+
+    private static boolean isCurrent(File indexFile, File capture) throws IOException {
+        if (!indexFile.exists() || indexFile.length() < HEADER_SIZE) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            raf.getChannel().read(header, 0);
+            return header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == ENTRY_SIZE
+                    && header.getLong(24) == capture.length();
+        }
+    }
+
+    /**
+     * Walk capture once (headers are read in place, nothing is decoded) and
+     * write its index to indexFile.
+     *
+     * @return the number of entries written
+     */
+    public static long build(File capture, File indexFile) throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        long entries = 0;
+        try (CaptureReader reader = CaptureReader.open(capture);
+                RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            channel.position(HEADER_SIZE);
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_ENTRIES * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long seen = 0;
+            // entries before the first record with a seen time
+            long leading = 0;
+            while (reader.next()) {
+                long sec = reader.getSeenSeconds();
+                if (sec >= 0) {
+                    seen = toUnixNanos(sec, reader.getSeenNanos());
+                } else if (seen == 0) {
+                    leading++;
+                }
+                block.putLong(reader.getRecordOffset());
+                block.putLong(seen);
+                block.putLong(reader.getSeenConnectionNum());
+                block.putInt(reader.getOpcode());
+                block.putInt(reader.getResponseTo());
+                block.putInt(reader.getRecordLength());
+                block.putInt(0);
+                entries++;
+                if (!block.hasRemaining()) {
+                    writeBlock(channel, block);
+                }
+            }
+            writeBlock(channel, block);
+
+            if (leading > 0 && leading < entries) {
+                // backfill with the first seen time
+                ByteBuffer first = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                channel.read(first, HEADER_SIZE + leading * ENTRY_SIZE + SEEN);
+                for (long i = 0; i < leading; i++) {
+                    first.flip();
+                    channel.write(first, HEADER_SIZE + i * ENTRY_SIZE + SEEN);
+                }
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(ENTRY_SIZE).putInt(BLOCK_ENTRIES);
+            header.putLong(entries).putLong(capture.length());
+            header.flip();
+            channel.write(header, 0);
+        }
+        if (indexFile.exists() && !indexFile.delete() || !tmp.renameTo(indexFile)) {
+            throw new IOException("Unable to replace " + indexFile);
+        }
+        return entries;
+    }
+
+    private static void writeBlock(FileChannel channel, ByteBuffer block) throws IOException {
+        block.flip();
+        while (block.hasRemaining()) {
+            channel.write(block);
+        }
+        block.clear();
+    }
+
+    /**
+     * @param sec seen.sec (Go internal epoch, seconds since year 1)
+     * @param nsec seen.nsec
+     * @return unix epoch nanos
+     */
+    public static long toUnixNanos(long sec, long nsec) {
+        return (sec - unixToInternal) * NANOS_PER_SECOND + Math.max(nsec, 0);
+    }
+
+    /**
+     * @return the number of entries (records)
+     */
+    public long size() {
+        return size;
+    }
+
+    private ByteBuffer chunk(long i) {
+        return chunks[(int) (i >>> CHUNK_BITS)];
+    }
+
+    private int pos(long i) {
+        return (int) (i & CHUNK_MASK) * ENTRY_SIZE;
+    }
+
+    public long getOffset(long i) {
+        return chunk(i).getLong(pos(i) + OFFSET);
+    }
+
+    /**
+     * @return seen time in unix epoch nanos
+     */
+    public long getSeen(long i) {
+        return chunk(i).getLong(pos(i) + SEEN);
+    }
+
+    /**
+     * @return seen.sec of the record (Go internal epoch), as read by
+     *         {@link CaptureReader#getSeenSeconds()}
+     */
+    public long getSeenSeconds(long i) {
+        return Math.floorDiv(getSeen(i), NANOS_PER_SECOND) + unixToInternal;
+    }
+
+    /**
+     * @return seen.nsec of the record
+     */
+    public long getSeenNanos(long i) {
+        return Math.floorMod(getSeen(i), NANOS_PER_SECOND);
+    }
+
+    public long getConnectionNum(long i) {
+        return chunk(i).getLong(pos(i) + CONNECTION);
+    }
+
+    /**
+     * @return header opcode, -1 for records without a rawop
+     */
+    public int getOpcode(long i) {
+        return chunk(i).getInt(pos(i) + OPCODE);
+    }
+
+    public int getResponseTo(long i) {
+        return chunk(i).getInt(pos(i) + RESPONSE_TO);
+    }
+
+    public int getLength(long i) {
+        return chunk(i).getInt(pos(i) + LENGTH);
+    }
+
+    /**
+     * @return index of the first entry seen at or after unixNanos, or
+     *         {@link #size()} if there is none
+     */
+    public long lowerBound(long unixNanos) {
+        long low = 0;
+        long high = size;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (getSeen(mid) < unixNanos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Resolve a time given on the command line: either an ISO-8601 instant
+     * (e.g. 2019-06-01T10:15:00Z) or a number of seconds relative to the
+     * first record of the capture (e.g. 600 or +600.5).
+     *
+     * @return unix epoch nanos
+     */
+    public long parseTime(String spec) {
+        spec = spec.trim();
+        if (spec.startsWith("+") || Character.isDigit(spec.charAt(0)) && !spec.contains("-") && !spec.contains(":")) {
+            long start = size == 0 ? 0 : getSeen(0);
+            return start + (long) (Double.parseDouble(spec) * NANOS_PER_SECOND);
+        }
+        Instant instant = Instant.parse(spec);
+        return instant.getEpochSecond() * NANOS_PER_SECOND + instant.getNano();
+    }
+
+    /**
+     * @return [firstEntry, endEntry) covering the records seen in [from, to),
+     *         either bound may be null for an open range
+     */
+    public long[] range(String from, String to) {
+        long first = from == null ? 0 : lowerBound(parseTime(from));
+        long end = to == null ? size : lowerBound(parseTime(to));
+        return new long[] { first, Math.max(first, end) };
+    }
+
+    /**
+     * @param opcodes opcode numbers, may be comma separated
+     * @return the opcode set, or null (all opcodes) if opcodes is null
+     */
+    public static BitSet parseOpcodes(String[] opcodes) {
+        if (opcodes == null) {
+            return null;
+        }
+        BitSet set = new BitSet();
+        for (String value : opcodes) {
+            for (String opcode : value.split(",")) {
+                if (!opcode.trim().isEmpty()) {
+                    set.set(Integer.parseInt(opcode.trim()));
+                }
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    @SuppressWarnings("static-access")
+    private static CommandLine initializeAndParseCommandLineOptions(String[] args) {
+        Options options = new Options();
+        options.addOption(new Option("help", "print this message"));
+        options.addOption(
+                OptionBuilder.withArgName("input mongoreplay bson file(s)").hasArgs().withLongOpt("files").create("f"));
+
+        CommandLineParser parser = new GnuParser();
+        CommandLine line = null;
+        try {
+            line = parser.parse(options, args);
+            if (line.hasOption("help")) {
+                printHelpAndExit(options);
+            }
+        } catch (org.apache.commons.cli.ParseException e) {
+            System.out.println(e.getMessage());
+            printHelpAndExit(options);
+        }
+
+        if (line.getOptionValues("f") == null) {
+            printHelpAndExit(options);
+        }
+        return line;
+    }
+
+    private static void printHelpAndExit(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("captureIndex", options);
+        System.exit(-1);
+    }
+
+    public static void main(String args[]) throws Exception {
+        CommandLine line = initializeAndParseCommandLineOptions(args);
+        for (String filename : line.getOptionValues("f")) {
+            File capture = new File(filename);
+            long start = System.currentTimeMillis();
+            long entries = build(capture, indexFileFor(capture));
+            System.err.println(String.format("%s: %,d records indexed in %,d ms", indexFileFor(capture), entries,
+                    System.currentTimeMillis() - start));
+        }
+    }
+
+}
@@ -0,0 +1,326 @@
+package com.mongodb.mongoreplay;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.mongoreplay.opcodes.Opcode2012;
+import com.mongodb.mongoreplay.opcodes.Opcode2013;
+import com.mongodb.mongoreplay.opcodes.WireMessage;
+import com.mongodb.util.HyperLogLog;
+import com.mongodb.util.ShapeUtil;
+import com.mongodb.util.SpaceSaving;
+import com.mongodb.util.bson.BsonScanner;
+
+/**
+ * Profile of (a segment of) a capture, built in a single pass over the file. Record headers and command predicates are read in place, nothing is
+ * decoded.
+ *
+ * Memory is bounded: namespaces, commands and shapes are tracked with
+ * Space-Saving counters, sizes in histograms, and connections per second with
+ * small HyperLogLog sketches. Profiles of different segments are combined
+ * with {@link #merge(CaptureProfile)}.
+ */
+public class CaptureProfile {
+
+    protected static final Logger logger = LoggerFactory.getLogger(CaptureProfile.class);
+
+    private final static int HLL_PRECISION = 8;
+    private final static long MAX_MESSAGE_SIZE = 48 * 1000 * 1000;
+    private final static long NANOS_PER_SECOND = 1000000000L;
+
+    private final static byte[] FILTER = "filter".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] QUERY = "query".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] Q = "q".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] UPDATES = "updates".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] DELETES = "deletes".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] COLLECTION = "collection".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] GET_MORE = "getMore".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Requests and distinct connections seen in one second.
+     */
+    public static class Second {
+        private long requests;
+        private final HyperLogLog connections = new HyperLogLog(HLL_PRECISION);
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getConnections() {
+            return connections.cardinality();
+        }
+    }
+
+    private long records;
+    private long metadataRecords;
+    private long requests;
+    private long replies;
+    private long decompressErrors;
+    private final Map<Integer, Long> opcodeCounts = new TreeMap<Integer, Long>();
+
+    private final TreeMap<Long, Second> seconds = new TreeMap<Long, Second>();
+    private long lastSecond = Long.MIN_VALUE;
+    private Second current;
+
+    private final SpaceSaving<String> namespaces;
+    private final SpaceSaving<String> commands;
+    private final SpaceSaving<String> shapes;
+
+    private final Histogram requestSizes = new Histogram(MAX_MESSAGE_SIZE, 2);
+    private final Histogram replySizes = new Histogram(MAX_MESSAGE_SIZE, 2);
+
+    private final WireMessage message = new WireMessage();
+
+    /**
+     * @param capacity number of namespaces / commands / shapes tracked exactly
+     *            before the Space-Saving counters start to approximate
+     */
+    public CaptureProfile(int capacity) {
+        this.namespaces = new SpaceSaving<String>(capacity);
+        this.commands = new SpaceSaving<String>(capacity);
+        this.shapes = new SpaceSaving<String>(capacity);
+    }
+
+    /**
+     * Profile the records starting in [start, end) of file.
+     */
+    public void profile(File file, long start, long end) throws IOException {
+        try (CaptureReader reader = CaptureReader.open(file)) {
+            reader.seek(start);
+            while (reader.next() && reader.getRecordOffset() < end) {
+                add(reader);
+            }
+        }
+    }
+
+    void add(CaptureReader reader) {
+        records++;
+        if (!reader.hasRawOp()) {
+            metadataRecords++;
+            return;
+        }
+        int opcode = reader.getOpcode();
+        opcodeCounts.merge(opcode, 1L, Long::sum);
+        ByteBuffer body = reader.getBody();
+        int size = body == null ? 0 : body.remaining();
+
+        if (reader.getResponseTo() != 0) {
+            replies++;
+            replySizes.recordValue(Math.min(size, MAX_MESSAGE_SIZE));
+            return;
+        }
+        requests++;
+        requestSizes.recordValue(Math.min(size, MAX_MESSAGE_SIZE));
+
+        long sec = reader.getSeenSeconds();
+        if (sec >= 0) {
+            long second = CaptureIndex.toUnixNanos(sec, reader.getSeenNanos()) / NANOS_PER_SECOND;
+            if (second != lastSecond) {
+                current = seconds.computeIfAbsent(second, s -> new Second());
+                lastSecond = second;
+            }
+            current.requests++;
+            current.connections.add(reader.getSeenConnectionNum());
+        }
+
+        if (body == null || size < WireMessage.HEADER_LENGTH) {
+            return;
+        }
+        if (opcode == WireMessage.OP_COMPRESSED) {
+            try {
+                body = Opcode2012.decompress(body);
+            } catch (DataFormatException e) {
+                decompressErrors++;
+                return;
+            }
+            opcode = body.getInt(12);
+        }
+        if (opcode == WireMessage.OP_QUERY || opcode == WireMessage.OP_COMMAND || opcode == WireMessage.OP_MSG) {
+            try {
+                addCommand(message.wrap(body, body.position()));
+            } catch (RuntimeException e) {
+                // a truncated or otherwise malformed message, count it but do
+                // not let it stop the pass
+                logger.trace("Unable to parse message", e);
+                commands.add("<unparsed>");
+            }
+        }
+    }
+
+    private void addCommand(WireMessage message) {
+        String database = message.getDatabaseName();
+        String command;
+        String namespace;
+        int doc = message.getCommandDocumentOffset();
+
+        if (message.getOpcode() == WireMessage.OP_QUERY && !message.getFullCollectionName().endsWith(".$cmd")) {
+            // legacy OP_QUERY find
+            command = "query";
+            namespace = message.getFullCollectionName();
+        } else {
+            command = message.getCommandName();
+            namespace = database + "." + collectionName(message, doc);
+        }
+        namespaces.add(namespace);
+        commands.add(command);
+
+        int predicate = predicateOffset(message, doc, command);
+        if (predicate >= 0) {
+            String shape = ShapeUtil.getShapeString(message.getBuffer(), predicate);
+            shapes.add(namespace + " " + command + " " + shape);
+        }
+    }
+
+    static String collectionName(WireMessage message, int doc) {
+        ByteBuffer buf = message.getBuffer();
+        if (doc < 0 || BsonScanner.documentEnd(buf, doc) - doc <= 5) {
+            return null;
+        }
+        int element = BsonScanner.firstElement(doc);
+        if (BsonScanner.nameEquals(buf, element + 1, GET_MORE)) {
+            element = BsonScanner.findElement(buf, doc, COLLECTION);
+        }
+        if (element < 0 || BsonScanner.elementType(buf, element) != BsonScanner.STRING) {
+            return null;
+        }
+        return BsonScanner.readString(buf, BsonScanner.valueOffset(buf, element));
+    }
+
+    /**
+     * @return offset of the predicate document of the command, or -1
+     */
+    static int predicateOffset(WireMessage message, int doc, String command) {
+        if (doc < 0 || command == null) {
+            return -1;
+        }
+        ByteBuffer buf = message.getBuffer();
+        if (command.equals("query")) {
+            return doc;
+        } else if (command.equals("find")) {
+            return documentValue(buf, BsonScanner.findElement(buf, doc, FILTER));
+        } else if (command.equals("count") || command.equals("distinct") || command.equalsIgnoreCase("findAndModify")) {
+            return documentValue(buf, BsonScanner.findElement(buf, doc, QUERY));
+        } else if (command.equals("update") || command.equals("delete")) {
+            // the first statement, either in the command or an OP_MSG document sequence
+            int statement = -1;
+            int array = BsonScanner.findElement(buf, doc, command.equals("update") ? UPDATES : DELETES);
+            if (array >= 0 && BsonScanner.elementType(buf, array) == BsonScanner.ARRAY) {
+                int arrayDoc = BsonScanner.valueOffset(buf, array);
+                if (BsonScanner.documentEnd(buf, arrayDoc) - arrayDoc > 5) {
+                    statement = documentValue(buf, BsonScanner.firstElement(arrayDoc));
+                }
+            } else if (message.getOpcode() == WireMessage.OP_MSG) {
+                for (int section = message.getFirstSection(); message.hasSection(section); section = message.getNextSection(section)) {
+                    if (message.getSectionKind(section) == Opcode2013.KIND_DOCUMENT_SEQUENCE) {
+                        statement = message.getSequenceFirstDocument(section);
+                        break;
+                    }
+                }
+            }
+            return statement < 0 ? -1 : documentValue(buf, BsonScanner.findElement(buf, statement, Q));
+        }
+        return -1;
+    }
+
+    private static int documentValue(ByteBuffer buf, int element) {
+        if (element < 0 || BsonScanner.elementType(buf, element) != BsonScanner.DOCUMENT) {
+            return -1;
+        }
+        return BsonScanner.valueOffset(buf, element);
+    }
+
+    public void merge(CaptureProfile other) {
+        records += other.records;
+        metadataRecords += other.metadataRecords;
+        requests += other.requests;
+        replies += other.replies;
+        decompressErrors += other.decompressErrors;
+        for (Map.Entry<Integer, Long> entry : other.opcodeCounts.entrySet()) {
+            opcodeCounts.merge(entry.getKey(), entry.getValue(), Long::sum);
+        }
+        for (Map.Entry<Long, Second> entry : other.seconds.entrySet()) {
+            Second second = seconds.get(entry.getKey());
+            if (second == null) {
+                seconds.put(entry.getKey(), entry.getValue());
+            } else {
+                // a second split across two segments
+                second.requests += entry.getValue().requests;
+                second.connections.merge(entry.getValue().connections);
+            }
+        }
+        lastSecond = Long.MIN_VALUE;
+        namespaces.merge(other.namespaces);
+        commands.merge(other.commands);
+        shapes.merge(other.shapes);
+        requestSizes.add(other.requestSizes);
+        replySizes.add(other.replySizes);
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getMetadataRecords() {
+        return metadataRecords;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getReplies() {
+        return replies;
+    }
+
+    public long getDecompressErrors() {
+        return decompressErrors;
+    }
+
+    public Map<Integer, Long> getOpcodeCounts() {
+        return opcodeCounts;
+    }
+
+    /**
+     * @return per second (unix epoch seconds) request counts and connections
+     */
+    public TreeMap<Long, Second> getSeconds() {
+        return seconds;
+    }
+
+    public SpaceSaving<String> getNamespaces() {
+        return namespaces;
+    }
+
+    public SpaceSaving<String> getCommands() {
+        return commands;
+    }
+
+    public SpaceSaving<String> getShapes() {
+        return shapes;
+    }
+
+    /**
+     * @return request message sizes in bytes
+     */
+    public Histogram getRequestSizes() {
+        return requestSizes;
+    }
+
+    /**
+     * @return reply message sizes in bytes
+     */
+    public Histogram getReplySizes() {
+        return replySizes;
+    }
+
+}
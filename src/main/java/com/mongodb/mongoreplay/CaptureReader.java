@@ -0,0 +1,259 @@
+package com.mongodb.mongoreplay;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import com.mongodb.util.bson.BsonScanner;
+
+/**
+ * Sequential reader of the records of a mongoreplay capture (playback) file.
+ * Records are located by their BSON length prefixes, and header fields are
+ * read in place and only resolved on demand, so records that are skipped
+ * cost neither a decode nor an allocation.
+ *
+ * {@link #open(File)} picks the implementation: uncompressed captures are
+ * memory mapped ({@link MappedCaptureReader}), gzip, zstd and snappy
+ * compressed ones are decompressed ahead of the reader
+ * ({@link CompressedCaptureReader}). Offsets are always offsets into the
+ * uncompressed capture.
+ *
+ * Buffers handed out by {@link #getBody()} and {@link #getRecord()} remain
+ * valid after the reader has moved on.
+ */
+public abstract class CaptureReader implements Closeable {
+
+    private static final byte[] RAWOP = "rawop".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEADER = "header".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BODY = "body".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OPCODE = "opcode".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] REQUEST_ID = "requestid".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESPONSE_TO = "responseto".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEEN = "seen".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEC = "sec".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NSEC = "nsec".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEEN_CONNECTION_NUM = "seenconnectionnum".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int UNRESOLVED = -2;
+    private static final int MISSING = -1;
+
+    // little endian buffer holding the current record
+    private ByteBuffer window;
+    // position of the current record within the window
+    private int recordPos;
+    private long recordOffset;
+    private int recordLength;
+
+    // lazily resolved element offsets within the window
+    private int rawopPos;
+    private int headerPos;
+
+    /**
+     * @return a mapped reader for an uncompressed capture, a decompressing
+     *         one for .gz, .zst and .snappy files
+     */
+    public static CaptureReader open(File file) throws IOException {
+        if (CompressedCaptureReader.Compression.of(file) != CompressedCaptureReader.Compression.NONE) {
+            return new CompressedCaptureReader(file);
+        }
+        return new MappedCaptureReader(file);
+    }
+
+    /**
+     * @return true if file is read with a {@link CompressedCaptureReader}
+     */
+    public static boolean isCompressed(File file) {
+        return CompressedCaptureReader.Compression.of(file) != CompressedCaptureReader.Compression.NONE;
+    }
+
+    /**
+     * @return filename without a compression extension, e.g. for naming
+     *         output files
+     */
+    public static String uncompressedName(String filename) {
+        return CompressedCaptureReader.Compression.of(new File(filename)).strip(filename);
+    }
+
+    /**
+     * Cut file into segments of whole records that can be read in parallel,
+     * see {@link MappedCaptureReader#split(File, long, long)}. A compressed
+     * capture can only be read from the start, it is a single segment and
+     * limit is left to the caller.
+     *
+     * @return list of [startOffset, endOffset) pairs
+     */
+    public static List<long[]> split(File file, long segmentSize, long limit) throws IOException {
+        if (isCompressed(file)) {
+            return Collections.singletonList(new long[] { 0, Long.MAX_VALUE });
+        }
+        return MappedCaptureReader.split(file, segmentSize, limit);
+    }
+
+    /**
+     * Position the reader at the given offset, which must be the start of a
+     * record.
+     */
+    public abstract void seek(long offset) throws IOException;
+
+    /**
+     * Advance to the next record.
+     *
+     * @return false at end of file
+     */
+    public abstract boolean next() throws IOException;
+
+    /**
+     * Make the record at pos of window the current one.
+     */
+    protected void setRecord(ByteBuffer window, int pos, long offset, int length) {
+        this.window = window;
+        this.recordPos = pos;
+        this.recordOffset = offset;
+        this.recordLength = length;
+        this.rawopPos = UNRESOLVED;
+        this.headerPos = UNRESOLVED;
+    }
+
+    public long getRecordOffset() {
+        return recordOffset;
+    }
+
+    public int getRecordLength() {
+        return recordLength;
+    }
+
+    /**
+     * @return true if the current record carries a rawop (i.e. is not the
+     *         playback file metadata document)
+     */
+    public boolean hasRawOp() {
+        return rawop() >= 0;
+    }
+
+    /**
+     * @return the header opcode of the current record, or -1 if the record has
+     *         no rawop
+     */
+    public int getOpcode() {
+        return headerInt(OPCODE);
+    }
+
+    public int getRequestId() {
+        return headerInt(REQUEST_ID);
+    }
+
+    public int getResponseTo() {
+        return headerInt(RESPONSE_TO);
+    }
+
+    /**
+     * @return seenconnectionnum of the current record, or -1 if not present
+     */
+    public long getSeenConnectionNum() {
+        int element = BsonScanner.findElement(window, recordPos, SEEN_CONNECTION_NUM);
+        if (element < 0) {
+            return -1;
+        }
+        return BsonScanner.readIntegral(window, element);
+    }
+
+    /**
+     * @return seen.sec of the current record (Go internal epoch, seconds since
+     *         year 1), or -1 if not present
+     */
+    public long getSeenSeconds() {
+        return seenField(SEC);
+    }
+
+    /**
+     * @return seen.nsec of the current record, or -1 if not present
+     */
+    public long getSeenNanos() {
+        return seenField(NSEC);
+    }
+
+    private long seenField(byte[] name) {
+        int seen = BsonScanner.findElement(window, recordPos, SEEN);
+        if (seen < 0 || BsonScanner.elementType(window, seen) != BsonScanner.DOCUMENT) {
+            return -1;
+        }
+        int element = BsonScanner.findElement(window, BsonScanner.valueOffset(window, seen), name);
+        if (element < 0) {
+            return -1;
+        }
+        return BsonScanner.readIntegral(window, element);
+    }
+
+    /**
+     * @return a little endian slice of rawop.body (the complete wire protocol
+     *         message, including its 16 byte header), or null if not present
+     */
+    public ByteBuffer getBody() {
+        int raw = rawop();
+        if (raw < 0) {
+            return null;
+        }
+        int element = BsonScanner.findElement(window, raw, BODY);
+        if (element < 0 || BsonScanner.elementType(window, element) != BsonScanner.BINARY) {
+            return null;
+        }
+        int valuePos = BsonScanner.valueOffset(window, element);
+        return slice(BsonScanner.binaryDataOffset(window, valuePos), BsonScanner.binaryDataLength(window, valuePos));
+    }
+
+    /**
+     * @return a little endian slice of the complete current record
+     */
+    public ByteBuffer getRecord() {
+        return slice(recordPos, recordLength);
+    }
+
+    private ByteBuffer slice(int pos, int length) {
+        ByteBuffer dup = window.duplicate();
+        dup.limit(pos + length).position(pos);
+        return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int rawop() {
+        if (rawopPos == UNRESOLVED) {
+            int element = BsonScanner.findElement(window, recordPos, RAWOP);
+            if (element < 0 || BsonScanner.elementType(window, element) != BsonScanner.DOCUMENT) {
+                rawopPos = MISSING;
+            } else {
+                rawopPos = BsonScanner.valueOffset(window, element);
+            }
+        }
+        return rawopPos;
+    }
+
+    private int header() {
+        if (headerPos == UNRESOLVED) {
+            int raw = rawop();
+            int element = raw < 0 ? -1 : BsonScanner.findElement(window, raw, HEADER);
+            if (element < 0 || BsonScanner.elementType(window, element) != BsonScanner.DOCUMENT) {
+                headerPos = MISSING;
+            } else {
+                headerPos = BsonScanner.valueOffset(window, element);
+            }
+        }
+        return headerPos;
+    }
+
+    private int headerInt(byte[] name) {
+        int header = header();
+        if (header < 0) {
+            return -1;
+        }
+        int element = BsonScanner.findElement(window, header, name);
+        if (element < 0) {
+            return -1;
+        }
+        return (int) BsonScanner.readIntegral(window, element);
+    }
+
+}
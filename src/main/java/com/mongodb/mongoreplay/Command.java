@@ -7,7 +7,7 @@ public enum Command {
 
     FIND(READ),
 
-    INSERT(WRITE), UPDATE(WRITE), GETMORE(WRITE), AGGREGATE(READ), DELETE(WRITE), COUNT(READ), FIND_AND_MODIFY(WRITE);
+    INSERT(WRITE), UPDATE(WRITE), GETMORE(READ), AGGREGATE(READ), DELETE(WRITE), COUNT(READ), FIND_AND_MODIFY(WRITE);
 
     private CommandType commandType;
 
@@ -0,0 +1,67 @@
+package com.mongodb.mongoreplay;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+
+/**
+ * The second cluster of an A/B replay. Every operation is parsed once and
+ * sent to both the primary target and this one at the same time, with the
+ * results recorded into separate {@link ReplayStatistics}, so both clusters
+ * see identical load at identical times.
+ */
+public class ComparisonTarget {
+
+    private final String mongoUriStr;
+    private final MongoClient mongoClient;
+    private final ReplayStatistics replayStatistics = new ReplayStatistics();
+    private final CursorTracker.LiveCursors liveCursors = new CursorTracker.LiveCursors();
+
+    // sends the comparison copy while the calling worker sends the primary one
+    private final ExecutorService executor;
+
+    public ComparisonTarget(String mongoUriStr) {
+        this.mongoUriStr = mongoUriStr;
+        this.mongoClient = new MongoClient(new MongoClientURI(mongoUriStr));
+        AtomicInteger threadNum = new AtomicInteger();
+        // at most one comparison send per worker is outstanding, so this
+        // grows to the number of workers and no further
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "comparison-" + threadNum.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public String getMongoUriStr() {
+        return mongoUriStr;
+    }
+
+    public MongoClient getMongoClient() {
+        return mongoClient;
+    }
+
+    public ReplayStatistics getReplayStatistics() {
+        return replayStatistics;
+    }
+
+    /**
+     * @return cursors opened on this target, used when getMores are replayed
+     */
+    public CursorTracker.LiveCursors getLiveCursors() {
+        return liveCursors;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+        mongoClient.close();
+    }
+
+}
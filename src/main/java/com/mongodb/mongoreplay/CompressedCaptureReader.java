@@ -0,0 +1,438 @@
+package com.mongodb.mongoreplay;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.bson.BsonSerializationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.PureJavaCrc32C;
+import org.xerial.snappy.Snappy;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * Reader for gzip (.gz), zstd (.zst) and snappy (.snappy, .sz) compressed
+ * captures, so they can be replayed, filtered and profiled without
+ * decompressing them to disk first.
+ *
+ * Decompression runs ahead of the reader: gzip and zstd streams on one
+ * read-ahead thread, snappy in parallel, since both the snappy framing format
+ * and the snappy-java stream format consist of independently compressed
+ * blocks. Decompressed blocks are handed over in order through a bounded
+ * queue. Records are read in place from the blocks, only a record that spans
+ * two blocks is copied.
+ *
+ * The capture can only be read forward, {@link #seek(long)} skips records.
+ */
+public class CompressedCaptureReader extends CaptureReader {
+
+    protected static final Logger logger = LoggerFactory.getLogger(CompressedCaptureReader.class);
+
+    private final static int BLOCK_SIZE = 4 * 1024 * 1024;
+    private final static int INPUT_BUFFER_SIZE = 1024 * 1024;
+    // snappy blocks are at most 64 KB, they are decompressed in batches
+    private final static int SNAPPY_BATCH_SIZE = 1024 * 1024;
+
+    private final static byte[] SNAPPY_FRAMED_MAGIC = { (byte) 0xff, 0x06, 0x00, 0x00, 's', 'N', 'a', 'P', 'p', 'Y' };
+    private final static byte[] SNAPPY_STREAM_MAGIC = { (byte) 0x82, 'S', 'N', 'A', 'P', 'P', 'Y', 0 };
+    private final static int SNAPPY_STREAM_HEADER_SIZE = 16;
+    private final static int SNAPPY_CRC_MASK_DELTA = 0xa282ead8;
+
+    public enum Compression {
+        NONE(), GZIP(".gz", ".gzip"), ZSTD(".zst", ".zstd"), SNAPPY(".snappy", ".sz");
+
+        private final String[] extensions;
+
+        Compression(String... extensions) {
+            this.extensions = extensions;
+        }
+
+        public static Compression of(File file) {
+            String name = file.getName().toLowerCase();
+            for (Compression compression : values()) {
+                for (String extension : compression.extensions) {
+                    if (name.endsWith(extension)) {
+                        return compression;
+                    }
+                }
+            }
+            return NONE;
+        }
+
+        String strip(String filename) {
+            for (String extension : extensions) {
+                if (filename.toLowerCase().endsWith(extension)) {
+                    return filename.substring(0, filename.length() - extension.length());
+                }
+            }
+            return filename;
+        }
+    }
+
+    // marks the end of the capture in the queue
+    private final static Future<ByteBuffer> END = CompletableFuture.completedFuture(null);
+
+    private final File file;
+    private final Compression compression;
+    private final BlockingQueue<Future<ByteBuffer>> blocks;
+    private final ExecutorService decompressors;
+    private final Thread readAhead;
+    private volatile boolean closed;
+
+    // current block, positioned at the next record
+    private ByteBuffer block;
+    private boolean eof;
+    private long nextOffset;
+    private final byte[] lengthBytes = new byte[4];
+
+    public CompressedCaptureReader(File file) throws IOException {
+        this(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads snappy decompression threads, gzip and zstd always use
+     *            one
+     */
+    public CompressedCaptureReader(File file, int threads) throws IOException {
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        this.file = file;
+        this.compression = Compression.of(file);
+        if (compression == Compression.NONE) {
+            throw new IllegalArgumentException(file + " is not a compressed capture");
+        }
+        if (compression == Compression.SNAPPY) {
+            AtomicInteger count = new AtomicInteger();
+            this.decompressors = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "capture-snappy-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+            this.blocks = new ArrayBlockingQueue<Future<ByteBuffer>>(threads * 2 + 2);
+        } else {
+            this.decompressors = null;
+            this.blocks = new ArrayBlockingQueue<Future<ByteBuffer>>(4);
+        }
+        this.readAhead = new Thread(this::readAhead, "capture-read-ahead");
+        readAhead.setDaemon(true);
+        readAhead.start();
+    }
+
+    private void readAhead() {
+        try (InputStream in = new FileInputStream(file)) {
+            if (compression == Compression.SNAPPY) {
+                readSnappy(new DataInputStream(new BufferedInputStream(in, INPUT_BUFFER_SIZE)));
+            } else {
+                InputStream decompressed = compression == Compression.GZIP ? new GZIPInputStream(in, INPUT_BUFFER_SIZE)
+                        : new ZstdInputStream(new BufferedInputStream(in, INPUT_BUFFER_SIZE));
+                readStream(decompressed);
+            }
+            put(END);
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException | RuntimeException e) {
+            CompletableFuture<ByteBuffer> failed = new CompletableFuture<ByteBuffer>();
+            failed.completeExceptionally(e);
+            try {
+                put(failed);
+            } catch (InterruptedException ie) {
+            }
+        }
+    }
+
+    private void put(Future<ByteBuffer> future) throws InterruptedException {
+        if (!closed) {
+            blocks.put(future);
+        }
+    }
+
+    private void readStream(InputStream in) throws IOException, InterruptedException {
+        while (!closed) {
+            byte[] buf = new byte[BLOCK_SIZE];
+            int n = 0;
+            int read;
+            while (n < buf.length && (read = in.read(buf, n, buf.length - n)) >= 0) {
+                n += read;
+            }
+            if (n > 0) {
+                put(CompletableFuture.completedFuture(ByteBuffer.wrap(buf, 0, n)));
+            }
+            if (n < buf.length) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Cut the snappy stream into batches of compressed blocks, each
+     * decompressed on a decompressor thread. The queue keeps the batches in
+     * stream order.
+     */
+    private void readSnappy(DataInputStream in) throws IOException, InterruptedException {
+        byte[] magic = new byte[SNAPPY_FRAMED_MAGIC.length];
+        in.readFully(magic, 0, SNAPPY_STREAM_MAGIC.length);
+        boolean framed;
+        if (Arrays.equals(Arrays.copyOf(magic, SNAPPY_STREAM_MAGIC.length), SNAPPY_STREAM_MAGIC)) {
+            framed = false;
+            in.skipBytes(SNAPPY_STREAM_HEADER_SIZE - SNAPPY_STREAM_MAGIC.length);
+        } else {
+            in.readFully(magic, SNAPPY_STREAM_MAGIC.length, magic.length - SNAPPY_STREAM_MAGIC.length);
+            if (!Arrays.equals(magic, SNAPPY_FRAMED_MAGIC)) {
+                throw new IOException(file + " is neither in the snappy framing nor in the snappy-java stream format");
+            }
+            framed = true;
+        }
+
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        int batchSize = 0;
+        while (!closed) {
+            byte[] chunk = framed ? readFrame(in) : readStreamBlock(in);
+            if (chunk == null) {
+                break;
+            }
+            if (chunk.length == 0) {
+                continue;
+            }
+            chunks.add(chunk);
+            batchSize += chunk.length;
+            if (batchSize >= SNAPPY_BATCH_SIZE) {
+                submitBatch(chunks, framed);
+                chunks = new ArrayList<byte[]>();
+                batchSize = 0;
+            }
+        }
+        if (!chunks.isEmpty()) {
+            submitBatch(chunks, framed);
+        }
+    }
+
+    private void submitBatch(List<byte[]> chunks, boolean framed) throws InterruptedException {
+        put(decompressors.submit(() -> decompressBatch(chunks, framed)));
+    }
+
+    /**
+     * @return type byte followed by the frame data of the next data frame, an
+     *         empty array for skipped frames, null at end of stream
+     */
+    private byte[] readFrame(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        int length = in.readUnsignedByte() | in.readUnsignedByte() << 8 | in.readUnsignedByte() << 16;
+        if (type == 0x00 || type == 0x01) {
+            byte[] chunk = new byte[length + 1];
+            chunk[0] = (byte) type;
+            in.readFully(chunk, 1, length);
+            return chunk;
+        } else if (type == 0xff || type >= 0x80) {
+            // stream identifier (of concatenated streams), padding or skippable
+            in.skipBytes(length);
+            return new byte[0];
+        }
+        throw new IOException(String.format("Unskippable snappy frame type 0x%02x in %s", type, file));
+    }
+
+    /**
+     * @return the next compressed block of the snappy-java stream format,
+     *         null at end of stream
+     */
+    private byte[] readStreamBlock(DataInputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return null;
+        }
+        int length = b << 24 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+        byte[] chunk = new byte[length];
+        in.readFully(chunk);
+        return chunk;
+    }
+
+    private ByteBuffer decompressBatch(List<byte[]> chunks, boolean framed) throws IOException {
+        // framed chunks carry a type byte and a masked crc32c before the data
+        int dataOffset = framed ? 5 : 0;
+        int total = 0;
+        for (byte[] chunk : chunks) {
+            total += isCompressedChunk(chunk, framed)
+                    ? Snappy.uncompressedLength(chunk, dataOffset, chunk.length - dataOffset)
+                    : chunk.length - dataOffset;
+        }
+        byte[] out = new byte[total];
+        int pos = 0;
+        PureJavaCrc32C crc = framed ? new PureJavaCrc32C() : null;
+        for (byte[] chunk : chunks) {
+            int n;
+            if (isCompressedChunk(chunk, framed)) {
+                n = Snappy.uncompress(chunk, dataOffset, chunk.length - dataOffset, out, pos);
+            } else {
+                n = chunk.length - dataOffset;
+                System.arraycopy(chunk, dataOffset, out, pos, n);
+            }
+            if (framed) {
+                crc.reset();
+                crc.update(out, pos, n);
+                int c = (int) crc.getValue();
+                int masked = ((c >>> 15) | (c << 17)) + SNAPPY_CRC_MASK_DELTA;
+                int expected = (chunk[1] & 0xff) | (chunk[2] & 0xff) << 8 | (chunk[3] & 0xff) << 16 | (chunk[4] & 0xff) << 24;
+                if (masked != expected) {
+                    throw new IOException("Snappy frame checksum mismatch in " + file);
+                }
+            }
+            pos += n;
+        }
+        return ByteBuffer.wrap(out, 0, pos);
+    }
+
+    private static boolean isCompressedChunk(byte[] chunk, boolean framed) {
+        return !framed || chunk[0] == 0x00;
+    }
+
+    /**
+     * @return the next decompressed block, null at the end of the capture
+     */
+    private ByteBuffer nextBlock() throws IOException {
+        if (eof) {
+            return null;
+        }
+        Future<ByteBuffer> future;
+        try {
+            future = blocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + file, e);
+        }
+        if (future == END) {
+            eof = true;
+            return null;
+        }
+        try {
+            return future.get().order(ByteOrder.LITTLE_ENDIAN);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + file, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to decompress " + file, cause);
+        }
+    }
+
+    /**
+     * Skip forward to offset, which must be the start of a record.
+     */
+    @Override
+    public void seek(long offset) throws IOException {
+        if (offset < nextOffset) {
+            throw new IOException(String.format("Compressed capture %s can only be read forward, cannot seek back to %s",
+                    file, offset));
+        }
+        while (nextOffset < offset) {
+            if (!next()) {
+                return;
+            }
+        }
+        if (nextOffset != offset) {
+            throw new IOException(String.format("Offset %s is not the start of a record in %s", offset, file));
+        }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (block == null || !block.hasRemaining()) {
+            block = nextBlock();
+            if (block == null) {
+                return false;
+            }
+        }
+        int pos = block.position();
+        byte[] record;
+        if (block.remaining() >= 4) {
+            int length = block.getInt(pos);
+            checkLength(length);
+            if (block.remaining() >= length) {
+                // the usual case, the record is read in place
+                block.position(pos + length);
+                setRecord(block, pos, nextOffset, length);
+                nextOffset += length;
+                return true;
+            }
+            // the record spans blocks, copy it
+            record = new byte[length];
+            readFully(record, 0, length);
+        } else {
+            // even the length spans blocks
+            readFully(lengthBytes, 0, 4);
+            int length = ByteBuffer.wrap(lengthBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+            checkLength(length);
+            record = new byte[length];
+            System.arraycopy(lengthBytes, 0, record, 0, 4);
+            readFully(record, 4, length - 4);
+        }
+        setRecord(ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN), 0, nextOffset, record.length);
+        nextOffset += record.length;
+        return true;
+    }
+
+    private void checkLength(int length) {
+        if (length < 5) {
+            throw new BsonSerializationException(
+                    String.format("Invalid record length %s at offset %s", length, nextOffset));
+        }
+    }
+
+    private void readFully(byte[] dst, int off, int len) throws IOException {
+        while (len > 0) {
+            while (block == null || !block.hasRemaining()) {
+                block = nextBlock();
+                if (block == null) {
+                    throw new EOFException(String.format("Truncated record at offset %s of %s", nextOffset, file));
+                }
+            }
+            int n = Math.min(len, block.remaining());
+            block.get(dst, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        readAhead.interrupt();
+        blocks.clear();
+        try {
+            readAhead.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (decompressors != null) {
+            decompressors.shutdownNow();
+        }
+        blocks.clear();
+    }
+
+}
@@ -0,0 +1,271 @@
+package com.mongodb.mongoreplay;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.mongoreplay.opcodes.Opcode2012;
+import com.mongodb.mongoreplay.opcodes.WireMessage;
+import com.mongodb.util.bson.BsonScanner;
+
+/**
+ * Follows cursors through a capture so that getMores can be replayed.
+ *
+ * The capture reader feeds every request and reply through
+ * {@link #onRequest(long, ByteBuffer)} / {@link #onReply(long, ByteBuffer)}.
+ * Cursor ids found in captured replies are mapped to the request that opened
+ * the cursor, identified by connection and requestId (its "cursor key"). A
+ * captured getMore is tagged with the cursor key of its cursor; when it is
+ * replayed the key is looked up in the {@link LiveCursors} of the target,
+ * which the replayed find / aggregate registered with the cursor id the
+ * target returned.
+ *
+ * This relies on a getMore running after the command that opened its cursor,
+ * i.e. on connection-affine replay where both run on the same lane. Not
+ * thread safe, used by the reader thread only.
+ */
+public class CursorTracker {
+
+    protected static final Logger logger = LoggerFactory.getLogger(CursorTracker.class);
+
+    public static final long NONE = -1;
+
+    private static final byte[] GET_MORE = "getMore".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KILL_CURSORS = "killCursors".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CURSORS = "cursors".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CURSOR = "cursor".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ID = "id".getBytes(StandardCharsets.US_ASCII);
+
+    // captured cursor id -> cursor key of the request that opened it
+    private final Map<Long, Long> capturedCursors = new HashMap<Long, Long>();
+
+    // captured getMore request (connection, requestId) -> captured cursor id,
+    // until its reply is seen
+    private final Map<Long, Long> pendingGetMores = new HashMap<Long, Long>();
+
+    private final WireMessage message = new WireMessage();
+
+    /**
+     * @return the key identifying the request sent with requestId on a
+     *         captured connection
+     */
+    public static long key(long connectionNum, int requestId) {
+        return (connectionNum << 32) | (requestId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param body a captured request
+     * @return for a getMore on a tracked cursor, the cursor key of the request
+     *         that opened the cursor, otherwise {@link #NONE}
+     */
+    public long onRequest(long connectionNum, ByteBuffer body) {
+        if (!wrap(body)) {
+            return NONE;
+        }
+        ByteBuffer buf = message.getBuffer();
+        try {
+            if (message.commandNameEquals(GET_MORE)) {
+                int doc = message.getCommandDocumentOffset();
+                long cursorId = BsonScanner.readIntegral(buf, BsonScanner.firstElement(doc));
+                Long cursorKey = capturedCursors.get(cursorId);
+                if (cursorKey == null) {
+                    return NONE;
+                }
+                pendingGetMores.put(key(connectionNum, message.getRequestId()), cursorId);
+                return cursorKey;
+            } else if (message.commandNameEquals(KILL_CURSORS)) {
+                int doc = message.getCommandDocumentOffset();
+                int cursors = BsonScanner.findElement(buf, doc, CURSORS);
+                if (cursors >= 0 && BsonScanner.elementType(buf, cursors) == BsonScanner.ARRAY) {
+                    int array = BsonScanner.valueOffset(buf, cursors);
+                    int end = BsonScanner.documentEnd(buf, array) - 1;
+                    for (int e = BsonScanner.firstElement(array); e < end; e = BsonScanner.nextElement(buf, e)) {
+                        capturedCursors.remove(BsonScanner.readIntegral(buf, e));
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // truncated request
+            logger.trace("Unable to parse request", e);
+        }
+        return NONE;
+    }
+
+    /**
+     * @param body a captured reply
+     */
+    public void onReply(long connectionNum, ByteBuffer body) {
+        if (!wrap(body)) {
+            return;
+        }
+        long requestKey = key(connectionNum, message.getResponseTo());
+        long cursorId = replyCursorId();
+        Long getMoreCursorId = pendingGetMores.remove(requestKey);
+        if (getMoreCursorId != null) {
+            // exhausted or failed, the capture does not use it again
+            if (cursorId == 0) {
+                capturedCursors.remove(getMoreCursorId);
+            }
+        } else if (cursorId != 0) {
+            capturedCursors.putIfAbsent(cursorId, requestKey);
+        }
+    }
+
+    private boolean wrap(ByteBuffer body) {
+        if (body == null || body.remaining() < WireMessage.HEADER_LENGTH) {
+            return false;
+        }
+        try {
+            if (body.order(ByteOrder.LITTLE_ENDIAN).getInt(body.position() + 12) == WireMessage.OP_COMPRESSED) {
+                body = Opcode2012.decompress(body);
+            }
+            message.wrap(body, body.position());
+            return true;
+        } catch (DataFormatException e) {
+            logger.trace("Unable to decompress message", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return cursor.id of the wrapped reply, 0 if there is none
+     */
+    private long replyCursorId() {
+        ByteBuffer buf = message.getBuffer();
+        try {
+            int doc = message.getReplyDocumentOffset();
+            int cursor = doc < 0 ? -1 : BsonScanner.findElement(buf, doc, CURSOR);
+            if (cursor < 0 || BsonScanner.elementType(buf, cursor) != BsonScanner.DOCUMENT) {
+                return 0;
+            }
+            int id = BsonScanner.findElement(buf, BsonScanner.valueOffset(buf, cursor), ID);
+            return id < 0 ? 0 : BsonScanner.readIntegral(buf, id);
+        } catch (RuntimeException e) {
+            // truncated reply
+            logger.trace("Unable to parse reply", e);
+            return 0;
+        }
+    }
+
+    public int getCapturedCursorCount() {
+        return capturedCursors.size();
+    }
+
+    /**
+     * Cursors opened on one replay target, by cursor key. Thread safe.
+     */
+    public static class LiveCursors {
+
+        private final ConcurrentMap<Long, LiveCursor> cursors = new ConcurrentHashMap<Long, LiveCursor>();
+
+        /**
+         * Register the cursor of a successful find / aggregate result, if it
+         * has one that is still open.
+         */
+        public void opened(long cursorKey, Document commandResult) {
+            LiveCursor cursor = LiveCursor.of(commandResult);
+            if (cursor != null) {
+                cursors.put(cursorKey, cursor);
+            }
+        }
+
+        /**
+         * @return the live cursor for cursorKey, null if the command that
+         *         should have opened it failed, returned no cursor, or the
+         *         cursor is closed
+         */
+        public LiveCursor get(long cursorKey) {
+            return cursors.get(cursorKey);
+        }
+
+        /**
+         * Update after a getMore, the cursor is forgotten if the getMore
+         * failed or exhausted it.
+         */
+        public void getMoreCompleted(long cursorKey, Document commandResult) {
+            if (LiveCursor.of(commandResult) == null) {
+                cursors.remove(cursorKey);
+            }
+        }
+
+        public int size() {
+            return cursors.size();
+        }
+
+        /**
+         * Kill the cursors that are still open, e.g. because the capture
+         * ended before they were exhausted.
+         */
+        public void killAll(MongoClient mongoClient) {
+            Map<String, List<Long>> byNamespace = new HashMap<String, List<Long>>();
+            for (LiveCursor cursor : cursors.values()) {
+                byNamespace.computeIfAbsent(cursor.getNamespace(), ns -> new ArrayList<Long>()).add(cursor.getId());
+            }
+            cursors.clear();
+            for (Map.Entry<String, List<Long>> entry : byNamespace.entrySet()) {
+                String ns = entry.getKey();
+                int dot = ns == null ? -1 : ns.indexOf('.');
+                if (dot < 0) {
+                    continue;
+                }
+                Document killCursors = new Document("killCursors", ns.substring(dot + 1)).append("cursors",
+                        entry.getValue());
+                try {
+                    mongoClient.getDatabase(ns.substring(0, dot)).runCommand(killCursors);
+                } catch (RuntimeException e) {
+                    logger.warn("Error killing cursors on " + ns + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public static class LiveCursor {
+
+        private final long id;
+        private final String namespace;
+
+        private LiveCursor(long id, String namespace) {
+            this.id = id;
+            this.namespace = namespace;
+        }
+
+        /**
+         * @return the open cursor of a command result, null if there is none
+         */
+        static LiveCursor of(Document commandResult) {
+            if (commandResult == null) {
+                return null;
+            }
+            Object cursor = commandResult.get("cursor");
+            if (!(cursor instanceof Document)) {
+                return null;
+            }
+            Object id = ((Document) cursor).get("id");
+            if (!(id instanceof Number) || ((Number) id).longValue() == 0) {
+                return null;
+            }
+            return new LiveCursor(((Number) id).longValue(), ((Document) cursor).getString("ns"));
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getNamespace() {
+            return namespace;
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+package com.mongodb.mongoreplay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.shardsync.MongosBalancer;
+
+/**
+ * Stress mode that pushes ingest beyond the captured rate without changing the
+ * data: single document inserts are collected per namespace and sent as one
+ * unordered bulk insert once the batch window has elapsed or the batch reaches
+ * its size limit.
+ *
+ * Every original insert is still accounted for individually; each one records
+ * the latency and outcome of the bulk insert that carried it.
+ */
+public class InsertCoalescer {
+
+    protected static final Logger logger = LoggerFactory.getLogger(InsertCoalescer.class);
+
+    // the bulk insert is sent as a single command document
+    public static final int MAX_BATCH_BYTES = 15 * 1024 * 1024;
+    private static final int MAX_BATCH_COUNT = 100000;
+
+    static class Batch {
+        final String databaseName;
+        final String collectionName;
+        final long createdNanos = System.nanoTime();
+        final List<RawReplayTask> tasks = new ArrayList<RawReplayTask>();
+        final List<Document> documents = new ArrayList<Document>();
+        int bytes;
+
+        Batch(String databaseName, String collectionName) {
+            this.databaseName = databaseName;
+            this.collectionName = collectionName;
+        }
+    }
+
+    private final MongoClient mongoClient;
+    private final ReplayOptions replayOptions;
+    private final long windowNanos;
+    private final int maxBatchBytes;
+
+    // namespace -> batch being filled
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param windowMillis how long an insert may wait for others to join it
+     * @param maxBatchBytes a batch is sent once its captured messages add up
+     *            to this size, at most {@link #MAX_BATCH_BYTES}
+     */
+    public InsertCoalescer(MongoClient mongoClient, ReplayOptions replayOptions, long windowMillis, int maxBatchBytes) {
+        this.mongoClient = mongoClient;
+        this.replayOptions = replayOptions;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxBatchBytes = Math.min(maxBatchBytes, MAX_BATCH_BYTES);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "insert-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, windowMillis / 2);
+        flusher.scheduleAtFixedRate(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add a prepared task to the batch of its namespace. A batch that is full,
+     * or that the task would push past maxBatchBytes, is sent on the calling
+     * thread.
+     *
+     * @return false if the task is not a single document insert, it is then
+     *         left to the caller to replay
+     */
+    public boolean add(RawReplayTask task) {
+        Document document = task.getSingleInsertDocument();
+        if (document == null) {
+            return false;
+        }
+        String namespace = task.getDatabaseName() + "." + task.getCollectionName();
+        Batch previous = null;
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = batches.get(namespace);
+            if (batch != null && batch.bytes + task.getMessageLength() > maxBatchBytes) {
+                // send what fits, this task starts the next batch
+                batches.remove(namespace);
+                previous = batch;
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new Batch(task.getDatabaseName(), task.getCollectionName());
+                batches.put(namespace, batch);
+            }
+            batch.tasks.add(task);
+            batch.documents.add(document);
+            batch.bytes += task.getMessageLength();
+            if (batch.bytes >= maxBatchBytes || batch.documents.size() >= MAX_BATCH_COUNT) {
+                batches.remove(namespace);
+                full = batch;
+            }
+        }
+        if (previous != null) {
+            send(previous);
+        }
+        if (full != null) {
+            send(full);
+        }
+        return true;
+    }
+
+    private void flushExpired() {
+        try {
+            long now = System.nanoTime();
+            for (Batch batch : take(now - windowNanos)) {
+                send(batch);
+            }
+        } catch (RuntimeException e) {
+            // never let the scheduled task die silently
+            logger.error("Error flushing inserts", e);
+        }
+    }
+
+    /**
+     * Remove and return the batches created before createdBefore.
+     */
+    private synchronized List<Batch> take(long createdBefore) {
+        List<Batch> expired = new ArrayList<Batch>();
+        for (Batch batch : batches.values()) {
+            if (batch.createdNanos - createdBefore <= 0) {
+                expired.add(batch);
+            }
+        }
+        for (Batch batch : expired) {
+            batches.remove(batch.databaseName + "." + batch.collectionName);
+        }
+        return expired;
+    }
+
+    void send(Batch batch) {
+        Document insert = new Document("insert", batch.collectionName).append("documents", batch.documents)
+                .append("ordered", false).append("writeConcern", replayOptions.getWriteConcern());
+
+        LoadController loadController = replayOptions.getLoadController();
+        if (loadController != null) {
+            try {
+                loadController.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        ComparisonTarget comparison = replayOptions.getComparisonTarget();
+        Future<?> comparisonResult = null;
+        if (comparison != null) {
+            comparisonResult = comparison.getExecutor().submit(() -> {
+                long start = System.nanoTime();
+                Document result = null;
+                Exception error = null;
+                try {
+                    result = comparison.getMongoClient().getDatabase(batch.databaseName).runCommand(insert);
+                } catch (Exception e) {
+                    logger.error(String.format("Error executing bulk insert of %s documents on comparison target",
+                            batch.documents.size()), e);
+                    error = e;
+                }
+                long duration = System.nanoTime() - start;
+                for (RawReplayTask task : batch.tasks) {
+                    task.recordComparison(result, error, duration);
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        Document result = null;
+        Exception error = null;
+        try {
+            MongosBalancer mongosBalancer = replayOptions.getMongosBalancer();
+            if (mongosBalancer != null) {
+                result = mongosBalancer.execute(client -> client.getDatabase(batch.databaseName).runCommand(insert));
+            } else {
+                result = mongoClient.getDatabase(batch.databaseName).runCommand(insert);
+            }
+        } catch (Exception e) {
+            logger.error(String.format("Error executing bulk insert of %s documents", batch.documents.size()), e);
+            error = e;
+        }
+        long duration = System.nanoTime() - start;
+
+        if (comparisonResult != null) {
+            try {
+                comparisonResult.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.error("Error executing bulk insert on comparison target", e.getCause());
+            }
+        }
+        if (loadController != null) {
+            loadController.release(error == null ? duration : -1);
+        }
+        for (RawReplayTask task : batch.tasks) {
+            task.record(result, error, duration);
+        }
+    }
+
+    /**
+     * Stop the window timer and send whatever is still batched. Call once
+     * nothing is added anymore.
+     */
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Batch> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<Batch>(batches.values());
+            batches.clear();
+        }
+        for (Batch batch : remaining) {
+            send(batch);
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package com.mongodb.mongoreplay;
+
+/**
+ * Connection-affine execution. Each captured connection
+ * (<code>seenconnectionnum</code>) is hashed onto a fixed lane, and each lane
+ * is served by a single thread, so operations from one client connection run
+ * in capture order and never concurrently, while different lanes run in
+ * parallel.
+ */
+public class LaneReplayExecutor extends AbstractQueueReplayExecutor {
+
+    /**
+     * @param laneCount number of lanes (threads)
+     * @param queueSize total number of operations that may be queued across all
+     *            lanes before the caller blocks
+     */
+    public LaneReplayExecutor(int laneCount, int queueSize) {
+        super("lane", laneCount, laneCount, Math.max(1, queueSize / laneCount));
+    }
+
+    public int laneFor(long connectionNum) {
+        long h = connectionNum * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % getQueueCount());
+    }
+
+    /**
+     * Dispatch to the lane owning the task's captured connection, blocking
+     * while that lane's queue is full.
+     */
+    @Override
+    public void execute(Runnable command) {
+        long connectionNum = command instanceof RawReplayTask ? ((RawReplayTask) command).getConnectionNum() : 0;
+        put(laneFor(connectionNum), command);
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.mongodb.mongoreplay;
+
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds a target p99 latency by adjusting the number of operations in flight,
+ * AIMD style. Latencies are sampled over short intervals: when the interval
+ * p99 exceeds the target the concurrency limit is cut by a quarter, otherwise
+ * it grows by a fixed step (1% of the maximum, at least 1) provided the
+ * current limit was actually reached.
+ */
+public class LatencyTargetController implements LoadController, LatencyTargetControllerMBean {
+
+    protected static final Logger logger = LoggerFactory.getLogger(LatencyTargetController.class);
+
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final int MIN_SAMPLES = 10;
+    private static final double BACKOFF_RATIO = 0.75;
+
+    private final Recorder recorder = new Recorder(ReplayAccumulator.HIGHEST_TRACKABLE_MICROS,
+            ReplayAccumulator.SIGNIFICANT_DIGITS);
+    private Histogram interval;
+
+    private volatile long targetP99Micros;
+    private volatile int maxConcurrency;
+    private volatile double lastP99Micros;
+
+    private int limit;
+    private int inFlight;
+    private boolean saturated;
+    private long nextAdjustNanos = System.nanoTime() + ADJUST_INTERVAL_NANOS;
+
+    /**
+     * @param targetP99Millis latency target
+     * @param maxConcurrency upper bound of the limit, typically the number of
+     *            threads or the async window
+     */
+    public LatencyTargetController(double targetP99Millis, int maxConcurrency) {
+        setTargetP99Millis(targetP99Millis);
+        this.maxConcurrency = maxConcurrency;
+        this.limit = Math.max(1, maxConcurrency / 4);
+    }
+
+    @Override
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= limit) {
+            saturated = true;
+            wait();
+        }
+        inFlight++;
+    }
+
+    @Override
+    public void release(long latencyNanos) {
+        if (latencyNanos >= 0) {
+            recorder.recordValue(ReplayAccumulator.toMicros(latencyNanos));
+        }
+        synchronized (this) {
+            inFlight--;
+            long now = System.nanoTime();
+            if (now >= nextAdjustNanos) {
+                nextAdjustNanos = now + ADJUST_INTERVAL_NANOS;
+                adjust();
+            }
+            notifyAll();
+        }
+    }
+
+    private void adjust() {
+        interval = recorder.getIntervalHistogram(interval);
+        if (interval.getTotalCount() < MIN_SAMPLES) {
+            return;
+        }
+        long p99 = interval.getValueAtPercentile(99.0);
+        lastP99Micros = p99;
+        int previous = limit;
+        if (p99 > targetP99Micros) {
+            limit = Math.max(1, (int) (limit * BACKOFF_RATIO));
+        } else if (saturated) {
+            limit = Math.min(maxConcurrency, limit + Math.max(1, maxConcurrency / 100));
+        }
+        saturated = false;
+        if (limit != previous && logger.isTraceEnabled()) {
+            logger.trace(String.format("p99 %.1f ms, concurrency limit %s -> %s", p99 / 1000.0, previous, limit));
+        }
+    }
+
+    @Override
+    public double getTargetP99Millis() {
+        return targetP99Micros / 1000.0;
+    }
+
+    @Override
+    public void setTargetP99Millis(double targetP99Millis) {
+        if (targetP99Millis <= 0) {
+            throw new IllegalArgumentException("targetP99Millis must be > 0, was " + targetP99Millis);
+        }
+        this.targetP99Micros = (long) (targetP99Millis * 1000);
+    }
+
+    @Override
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Override
+    public synchronized void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        limit = Math.min(limit, this.maxConcurrency);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int getConcurrencyLimit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public double getLastP99Millis() {
+        return lastP99Micros / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("p99 target: %.1f ms, last p99: %.1f ms, concurrency limit: %s", getTargetP99Millis(),
+                getLastP99Millis(), getConcurrencyLimit());
+    }
+
+}
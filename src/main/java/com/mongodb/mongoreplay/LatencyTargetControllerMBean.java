@@ -0,0 +1,19 @@
+package com.mongodb.mongoreplay;
+
+public interface LatencyTargetControllerMBean {
+
+    double getTargetP99Millis();
+
+    void setTargetP99Millis(double targetP99Millis);
+
+    int getMaxConcurrency();
+
+    void setMaxConcurrency(int maxConcurrency);
+
+    int getConcurrencyLimit();
+
+    int getInFlight();
+
+    double getLastP99Millis();
+
+}
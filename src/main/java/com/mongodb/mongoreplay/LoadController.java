@@ -0,0 +1,24 @@
+package com.mongodb.mongoreplay;
+
+/**
+ * Closed-loop load control for replay. Engines call {@link #acquire()} before
+ * issuing an operation and {@link #release(long)} once it has completed, so an
+ * implementation can hold a target rate or react to the observed latency.
+ *
+ * Implementations are thread safe and expose their setpoint as a JMX MBean so
+ * it can be changed while the replay is running.
+ */
+public interface LoadController {
+
+    /**
+     * Block until the next operation may be issued.
+     */
+    void acquire() throws InterruptedException;
+
+    /**
+     * @param latencyNanos latency of the completed operation, or -1 if it
+     *            failed before a latency could be measured
+     */
+    void release(long latencyNanos);
+
+}
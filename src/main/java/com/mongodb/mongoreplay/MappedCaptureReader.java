@@ -0,0 +1,115 @@
+package com.mongodb.mongoreplay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BsonSerializationException;
+
+/**
+ * Zero-copy reader for uncompressed mongoreplay capture (playback) files. The
+ * file is memory mapped in windows and records are located by walking the
+ * BSON length prefixes.
+ *
+ * Buffers handed out by {@link #getBody()} and {@link #getRecord()} are slices
+ * of the mapping and remain valid after the reader has moved on.
+ */
+public class MappedCaptureReader extends CaptureReader {
+
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    private long nextOffset;
+
+    public MappedCaptureReader(File file) throws IOException {
+        this(file, MAX_WINDOW_SIZE);
+    }
+
+    MappedCaptureReader(File file, long windowSize) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.fileSize = channel.size();
+        this.windowSize = windowSize;
+    }
+
+    @Override
+    public void seek(long offset) {
+        this.nextOffset = offset;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (nextOffset + 4 > fileSize) {
+            return false;
+        }
+        ensureMapped(nextOffset, 4);
+        int length = window.getInt((int) (nextOffset - windowStart));
+        if (length < 5 || nextOffset + length > fileSize) {
+            throw new BsonSerializationException(
+                    String.format("Invalid record length %s at offset %s", length, nextOffset));
+        }
+        ensureMapped(nextOffset, length);
+        setRecord(window, (int) (nextOffset - windowStart), nextOffset, length);
+        nextOffset += length;
+        return true;
+    }
+
+    private void ensureMapped(long offset, int length) throws IOException {
+        if (window != null && offset >= windowStart && offset + length <= windowStart + window.capacity()) {
+            return;
+        }
+        long size = Math.min(Math.max(windowSize, length), fileSize - offset);
+        window = channel.map(MapMode.READ_ONLY, offset, size);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        windowStart = offset;
+    }
+
+    /**
+     * Walk the record length prefixes (without decoding) and cut file into
+     * segments of whole records of roughly segmentSize bytes.
+     * 
+     * @param limit maximum number of records covered by the segments
+     * @return list of [startOffset, endOffset) pairs
+     */
+    public static List<long[]> split(File file, long segmentSize, long limit) throws IOException {
+        List<long[]> segments = new ArrayList<long[]>();
+        try (MappedCaptureReader reader = new MappedCaptureReader(file)) {
+            long segmentStart = 0;
+            long end = 0;
+            long records = 0;
+            while (records < limit && reader.next()) {
+                records++;
+                end = reader.getRecordOffset() + reader.getRecordLength();
+                if (end - segmentStart >= segmentSize) {
+                    segments.add(new long[] { segmentStart, end });
+                    segmentStart = end;
+                }
+            }
+            if (end > segmentStart) {
+                segments.add(new long[] { segmentStart, end });
+            }
+        }
+        return segments;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+        file.close();
+    }
+
+}
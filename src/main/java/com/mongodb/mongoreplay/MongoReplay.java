@@ -1,61 +1,54 @@
 package com.mongodb.mongoreplay;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.zip.DataFormatException;
 
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.HdrHistogram.Histogram;
 
 public class MongoReplay extends AbstractMongoReplayUtil {
 
-    private Map<AccumulatorKey, DescriptiveStatistics> accumulators = new HashMap<AccumulatorKey, DescriptiveStatistics>();
-
-    private int NANOS_TO_MILLIS = 1000000;
+    private final static double MICROS_TO_MILLIS = 1000.0;
 
     public void execute() throws NoSuchMethodException, SecurityException, IllegalAccessException,
-            IllegalArgumentException, InvocationTargetException, FileNotFoundException, DataFormatException {
+            IllegalArgumentException, InvocationTargetException, IOException, DataFormatException {
         init();
+        awaitStartTime();
         for (String filename : fileNames) {
             replayFile(filename);
         }
 
-        logger.debug("Processing results");
-        for (Future<ReplayResult> future : futures) {
-            ReplayResult result = null;
-            try {
-                result = future.get();
-            } catch (InterruptedException | ExecutionException e) {
-                logger.error("Error getting future", e);
-            }
-            
-            if (result == null) {
-                continue;
-            }
-            
+        logger.debug("All operations submitted, waiting for completion");
+        close();
 
-            AccumulatorKey key = new AccumulatorKey(result.getDbName(), result.getCollectionName(), result.getCommand(), result.getQueryShape());
-            DescriptiveStatistics stats = accumulators.get(key);
-            if (stats == null) {
-                stats = new DescriptiveStatistics();
-                accumulators.put(key, stats);
+        if (resultsFile != null) {
+            try {
+                replayStatistics.write(resultsFile);
+                logger.debug("Results written to " + resultsFile);
+            } catch (IOException e) {
+                logger.error("Unable to write results to " + resultsFile, e);
             }
-            stats.addValue(result.getDuration());
-
         }
-        logger.debug("DONE processing results");
-        if (pool.isPaused()) {
-            logger.debug("pool is paused, resuming");
-            pool.resume();
+
+        if (getComparisonTarget() != null) {
+            reportComparison(getComparisonTarget().getReplayStatistics());
+            return;
         }
-        close();
+        report(replayStatistics);
+    }
 
+    /**
+     * Print the per namespace / shape / command latencies.
+     */
+    public static void report(ReplayStatistics replayStatistics) {
         int maxNamespaceLen = 0;
         int maxShapeLen = 0;
-        for (AccumulatorKey key : accumulators.keySet()) {
+        for (ReplayAccumulator accumulator : replayStatistics.getAccumulators()) {
+            AccumulatorKey key = accumulator.getKey();
             int nsLen = key.getNamespace().length();
             if (nsLen > maxNamespaceLen) {
                 maxNamespaceLen = nsLen;
@@ -66,22 +59,93 @@ public class MongoReplay extends AbstractMongoReplayUtil {
                     maxShapeLen = shapeLen;
                 }
             }
-            
+
         }
         maxNamespaceLen++;
         maxShapeLen++;
-        
-        String formatString = "%-" + maxNamespaceLen + "s %-" + maxShapeLen +  "s %-10s %-10d %-10.0f %-10.0f %-10.0f %-10.0f";
-        String headerFormatString = "%-" + maxNamespaceLen + "s %-" + maxShapeLen +  "s %-10s %-10s %-10s %-10s %-10s %-10s";
-        System.out.println(String.format(headerFormatString, "namespace", "query shape", "cmd", "count", "min", "max", "avg", "95p"));
-
-        for (Map.Entry<AccumulatorKey, DescriptiveStatistics> entry : accumulators.entrySet()) {
-            AccumulatorKey key = entry.getKey();
-            DescriptiveStatistics stats = entry.getValue();
+
+        String formatString = "%-" + maxNamespaceLen + "s %-" + maxShapeLen +  "s %-10s %-10d %-10.1f %-10.1f %-10.1f %-10.1f %-10.1f";
+        String headerFormatString = "%-" + maxNamespaceLen + "s %-" + maxShapeLen +  "s %-10s %-10s %-10s %-10s %-10s %-10s %-10s";
+        System.out.println(String.format(headerFormatString, "namespace", "query shape", "cmd", "count", "min", "max", "avg", "95p", "99p"));
+
+        for (ReplayAccumulator accumulator : replayStatistics.getAccumulators()) {
+            AccumulatorKey key = accumulator.getKey();
+            Histogram stats = accumulator.getHistogram();
             System.out.println(String.format(formatString, key.getNamespace(), key.getShape(), key.getCommand().name(),
-                    stats.getN(), stats.getMin() / NANOS_TO_MILLIS, stats.getMax() / NANOS_TO_MILLIS,
-                    stats.getMean() / NANOS_TO_MILLIS, stats.getPercentile(0.95) / NANOS_TO_MILLIS));
+                    stats.getTotalCount(), stats.getMinValue() / MICROS_TO_MILLIS, stats.getMaxValue() / MICROS_TO_MILLIS,
+                    stats.getMean() / MICROS_TO_MILLIS, stats.getValueAtPercentile(95.0) / MICROS_TO_MILLIS,
+                    stats.getValueAtPercentile(99.0) / MICROS_TO_MILLIS));
+        }
+    }
+
+    /**
+     * A/B report: per key latencies of both targets side by side, with the
+     * B/A ratios (> 1 means B is slower).
+     */
+    private void reportComparison(ReplayStatistics comparisonStatistics) {
+        Set<AccumulatorKey> keys = new LinkedHashSet<AccumulatorKey>();
+        int maxNamespaceLen = "TOTAL".length();
+        int maxShapeLen = 0;
+        for (Collection<ReplayAccumulator> accumulators : Arrays.asList(replayStatistics.getAccumulators(),
+                comparisonStatistics.getAccumulators())) {
+            for (ReplayAccumulator accumulator : accumulators) {
+                AccumulatorKey key = accumulator.getKey();
+                keys.add(key);
+                maxNamespaceLen = Math.max(maxNamespaceLen, key.getNamespace().length());
+                if (key.getShape() != null) {
+                    maxShapeLen = Math.max(maxShapeLen, key.getShape().length());
+                }
+            }
+        }
+        maxNamespaceLen++;
+        maxShapeLen++;
+
+        String formatString = "%-" + maxNamespaceLen + "s %-" + maxShapeLen
+                + "s %-10s %-10d %-10d %-8d %-8d %-10.1f %-10.1f %-10.1f %-10.1f %-10.1f %-10.1f %-8s %-8s %-8s";
+        String headerFormatString = "%-" + maxNamespaceLen + "s %-" + maxShapeLen
+                + "s %-10s %-10s %-10s %-8s %-8s %-10s %-10s %-10s %-10s %-10s %-10s %-8s %-8s %-8s";
+        System.out.println(String.format(headerFormatString, "namespace", "query shape", "cmd", "count A", "count B",
+                "err A", "err B", "avg A", "avg B", "95p A", "95p B", "99p A", "99p B", "avg B/A", "95p B/A", "99p B/A"));
+
+        long totalErrorsA = 0;
+        long totalErrorsB = 0;
+        for (AccumulatorKey key : keys) {
+            ReplayAccumulator a = replayStatistics.getAccumulator(key);
+            ReplayAccumulator b = comparisonStatistics.getAccumulator(key);
+            long errorsA = a != null ? a.getErrorCount() : 0;
+            long errorsB = b != null ? b.getErrorCount() : 0;
+            totalErrorsA += errorsA;
+            totalErrorsB += errorsB;
+            printComparison(formatString, key.getNamespace(), key.getShape(), key.getCommand().name(),
+                    a != null ? a.getHistogram() : null, b != null ? b.getHistogram() : null, errorsA, errorsB);
+        }
+        printComparison(formatString, "TOTAL", null, "", replayStatistics.getTotalHistogram(),
+                comparisonStatistics.getTotalHistogram(), totalErrorsA, totalErrorsB);
+    }
+
+    private void printComparison(String formatString, String namespace, String shape, String command, Histogram a,
+            Histogram b, long errorsA, long errorsB) {
+        Histogram empty = new Histogram(1);
+        if (a == null) {
+            a = empty;
+        }
+        if (b == null) {
+            b = empty;
+        }
+        System.out.println(String.format(formatString, namespace, shape, command, a.getTotalCount(),
+                b.getTotalCount(), errorsA, errorsB, a.getMean() / MICROS_TO_MILLIS,
+                b.getMean() / MICROS_TO_MILLIS, a.getValueAtPercentile(95.0) / MICROS_TO_MILLIS,
+                b.getValueAtPercentile(95.0) / MICROS_TO_MILLIS, a.getValueAtPercentile(99.0) / MICROS_TO_MILLIS,
+                b.getValueAtPercentile(99.0) / MICROS_TO_MILLIS, ratio(b.getMean(), a.getMean()),
+                ratio(b.getValueAtPercentile(95.0), a.getValueAtPercentile(95.0)),
+                ratio(b.getValueAtPercentile(99.0), a.getValueAtPercentile(99.0))));
+    }
+
+    private static String ratio(double b, double a) {
+        if (a <= 0 || b <= 0) {
+            return "-";
         }
+        return String.format("%.2f", b / a);
     }
 
     public static void main(String args[]) throws Exception {
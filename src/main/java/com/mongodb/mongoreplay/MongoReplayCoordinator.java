@@ -0,0 +1,274 @@
+package com.mongodb.mongoreplay;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Distributed replay, for loads one JVM cannot generate. The capture is
+ * partitioned by <code>seenconnectionnum</code> into N shards; N
+ * {@link MongoReplay} workers each replay one shard, all starting at the same
+ * wall-clock time, and write their latency histograms to a results file. The
+ * results are then merged into one report.
+ *
+ * <ul>
+ * <li>default: run the workers as local processes, wait for them and report</li>
+ * <li>--print: print the worker command lines, to run on separate hosts
+ * (whose clocks should be in sync)</li>
+ * <li>--merge: merge and report results files written by workers</li>
+ * <li>--split: write the shards as separate capture files, for workers that
+ * should only receive their own part of the capture</li>
+ * </ul>
+ *
+ * All arguments not recognized here (or following --) are passed on to the
+ * workers, e.g.
+ * <code>MongoReplayCoordinator -n 4 -- -f capture.bson -h mongodb://...</code>
+ */
+public class MongoReplayCoordinator {
+
+    protected static final Logger logger = LoggerFactory.getLogger(MongoReplayCoordinator.class);
+
+    private int workers = 2;
+    private long startDelayMillis = 10000;
+    private File dir = new File(".");
+
+    /**
+     * @return the results file of worker i
+     */
+    private File resultsFile(int i) {
+        return new File(dir, "replay-worker-" + i + ".json");
+    }
+
+    private List<String> workerArgs(String[] args, int i, long startAtMillis) {
+        List<String> command = new ArrayList<String>(Arrays.asList(args));
+        command.add("--partition");
+        command.add(i + "/" + workers);
+        command.add("--startAt");
+        command.add(Instant.ofEpochMilli(startAtMillis).toString());
+        command.add("--results");
+        command.add(resultsFile(i).getPath());
+        return command;
+    }
+
+    /**
+     * Run the workers as local processes and wait for all of them.
+     *
+     * @return the results files written
+     */
+    public List<File> runLocal(String[] args) throws IOException, InterruptedException {
+        dir.mkdirs();
+        long startAtMillis = System.currentTimeMillis() + startDelayMillis;
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<Process>();
+        for (int i = 0; i < workers; i++) {
+            List<String> command = new ArrayList<String>();
+            command.add(java);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(MongoReplay.class.getName());
+            command.addAll(workerArgs(args, i, startAtMillis));
+            File log = new File(dir, "replay-worker-" + i + ".log");
+            resultsFile(i).delete();
+            ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(log);
+            processes.add(builder.start());
+            logger.debug(String.format("Started worker %s, logging to %s", i, log));
+        }
+        logger.debug(String.format("Workers start at %s", Instant.ofEpochMilli(startAtMillis)));
+
+        List<File> results = new ArrayList<File>();
+        for (int i = 0; i < workers; i++) {
+            int exitCode = processes.get(i).waitFor();
+            if (exitCode != 0 || !resultsFile(i).exists()) {
+                logger.warn(String.format("Worker %s failed (exit code %s), see its log", i, exitCode));
+            } else {
+                results.add(resultsFile(i));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Print the command line of each worker, for running them on separate
+     * hosts.
+     */
+    public void print(String[] args) {
+        long startAtMillis = System.currentTimeMillis() + startDelayMillis;
+        for (int i = 0; i < workers; i++) {
+            System.out.println("java -cp mongo-util.jar " + MongoReplay.class.getName() + " "
+                    + StringUtils.join(workerArgs(args, i, startAtMillis), " "));
+        }
+    }
+
+    public ReplayStatistics merge(List<File> results) throws IOException {
+        ReplayStatistics replayStatistics = new ReplayStatistics();
+        for (File file : results) {
+            replayStatistics.merge(file);
+        }
+        return replayStatistics;
+    }
+
+    /**
+     * Write the shards of capture as <code>&lt;capture&gt;.shard&lt;k&gt;</code>
+     * files. Records without a rawop (the metadata record) go to every shard.
+     * Every shard also starts with a record carrying only the seen time of
+     * the first request of the capture, which time-faithful workers use as
+     * their common time origin.
+     */
+    public void split(File capture) throws IOException {
+        OutputStream[] streams = new OutputStream[workers];
+        WritableByteChannel[] channels = new WritableByteChannel[workers];
+        long[] counts = new long[workers];
+        boolean anchored = false;
+        String shardPrefix = CaptureReader.uncompressedName(capture.getPath());
+        try (CaptureReader reader = CaptureReader.open(capture)) {
+            for (int i = 0; i < workers; i++) {
+                streams[i] = new BufferedOutputStream(new FileOutputStream(shardPrefix + ".shard" + i), 1 << 20);
+                channels[i] = Channels.newChannel(streams[i]);
+            }
+            while (reader.next()) {
+                ByteBuffer record = reader.getRecord();
+                if (!reader.hasRawOp()) {
+                    for (WritableByteChannel channel : channels) {
+                        channel.write(record.duplicate());
+                    }
+                    continue;
+                }
+                if (!anchored && reader.getSeenSeconds() >= 0) {
+                    ByteBuffer anchor = anchorRecord(reader.getSeenSeconds(), reader.getSeenNanos());
+                    for (WritableByteChannel channel : channels) {
+                        channel.write(anchor.duplicate());
+                    }
+                    anchored = true;
+                }
+                int shard = (int) Math.floorMod(reader.getSeenConnectionNum(), (long) workers);
+                channels[shard].write(record);
+                counts[shard]++;
+            }
+        } finally {
+            for (OutputStream stream : streams) {
+                if (stream != null) {
+                    stream.close();
+                }
+            }
+        }
+        for (int i = 0; i < workers; i++) {
+            System.out.println(String.format("%s.shard%s: %,d records", shardPrefix, i, counts[i]));
+        }
+    }
+
+    private static ByteBuffer anchorRecord(long seenSec, long seenNsec) {
+        BsonDocument seen = new BsonDocument("sec", new BsonInt64(seenSec)).append("nsec", new BsonInt64(seenNsec));
+        RawBsonDocument record = new RawBsonDocument(new BsonDocument("seen", seen), new BsonDocumentCodec());
+        return record.getByteBuffer().asNIO();
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public void setStartDelayMillis(long startDelayMillis) {
+        this.startDelayMillis = startDelayMillis;
+    }
+
+    public void setDir(File dir) {
+        this.dir = dir;
+    }
+
+    @SuppressWarnings("static-access")
+    private static CommandLine initializeAndParseCommandLineOptions(String[] args) {
+        Options options = new Options();
+        options.addOption(new Option("help", "print this message"));
+        options.addOption(OptionBuilder.withArgName("# workers").hasArg().withLongOpt("workers").create("n"));
+        options.addOption(OptionBuilder.withArgName("seconds").hasArg()
+                .withDescription("delay from now until the shared start, default 10").withLongOpt("startDelay").create());
+        options.addOption(OptionBuilder.withArgName("directory").hasArg()
+                .withDescription("directory for worker logs and results").withLongOpt("dir").create());
+        options.addOption(OptionBuilder.withDescription("print the worker command lines instead of running them")
+                .withLongOpt("print").create());
+        options.addOption(OptionBuilder.withArgName("results file(s)").hasArgs()
+                .withDescription("merge and report worker results").withLongOpt("merge").create());
+        options.addOption(OptionBuilder.withArgName("capture file").hasArg()
+                .withDescription("write the -n shards as separate capture files").withLongOpt("split").create());
+
+        CommandLineParser parser = new GnuParser();
+        CommandLine line = null;
+        try {
+            // everything else is for the workers
+            line = parser.parse(options, args, true);
+            if (line.hasOption("help")) {
+                printHelpAndExit(options);
+            }
+        } catch (org.apache.commons.cli.ParseException e) {
+            System.out.println(e.getMessage());
+            printHelpAndExit(options);
+        }
+
+        if (!line.hasOption("merge") && !line.hasOption("split") && line.getArgs().length == 0) {
+            printHelpAndExit(options);
+        }
+        return line;
+    }
+
+    private static void printHelpAndExit(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("mongoReplayCoordinator [options] -- <mongoReplay options>", options);
+        System.exit(-1);
+    }
+
+    public static void main(String args[]) throws Exception {
+        CommandLine line = initializeAndParseCommandLineOptions(args);
+
+        MongoReplayCoordinator coordinator = new MongoReplayCoordinator();
+        if (line.hasOption("n")) {
+            coordinator.setWorkers(Integer.parseInt(line.getOptionValue("n")));
+        }
+        if (line.hasOption("startDelay")) {
+            coordinator.setStartDelayMillis((long) (Double.parseDouble(line.getOptionValue("startDelay")) * 1000));
+        }
+        if (line.hasOption("dir")) {
+            coordinator.setDir(new File(line.getOptionValue("dir")));
+        }
+
+        String[] workerArgs = line.getArgs();
+        if (line.hasOption("split")) {
+            coordinator.split(new File(line.getOptionValue("split")));
+        } else if (line.hasOption("merge")) {
+            List<File> results = new ArrayList<File>();
+            for (String filename : line.getOptionValues("merge")) {
+                results.add(new File(filename));
+            }
+            MongoReplay.report(coordinator.merge(results));
+        } else if (line.hasOption("print")) {
+            coordinator.print(workerArgs);
+        } else {
+            List<File> results = coordinator.runLocal(workerArgs);
+            MongoReplay.report(coordinator.merge(results));
+        }
+    }
+
+}
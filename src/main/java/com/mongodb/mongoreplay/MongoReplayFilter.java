@@ -1,22 +1,20 @@
 package com.mongodb.mongoreplay;
 
-import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
-import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
-
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.zip.DataFormatException;
 
 import org.apache.commons.cli.CommandLine;
@@ -27,31 +25,22 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.bson.BSONCallback;
-import org.bson.BSONDecoder;
 import org.bson.BSONObject;
 import org.bson.BasicBSONCallback;
-import org.bson.BasicBSONDecoder;
-import org.bson.BasicBSONEncoder;
 import org.bson.BsonBinaryReader;
-import org.bson.BsonBinaryWriter;
 import org.bson.BsonWriter;
 import org.bson.BsonWriterSettings;
 import org.bson.ByteBufNIO;
-import org.bson.Document;
-import org.bson.UuidRepresentation;
-import org.bson.codecs.DecoderContext;
-import org.bson.codecs.DocumentCodec;
-import org.bson.codecs.EncoderContext;
-import org.bson.codecs.UuidCodecProvider;
-import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.io.BasicOutputBuffer;
 import org.bson.io.ByteBufferBsonInput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xerial.snappy.Snappy;
 
-import com.mongodb.MongoClient;
-import com.mongodb.mongoreplay.opcodes.MessageHeader;
+import com.mongodb.mongoreplay.opcodes.Opcode2012;
+import com.mongodb.mongoreplay.opcodes.Opcode2013;
+import com.mongodb.mongoreplay.opcodes.WireMessage;
+import com.mongodb.util.bson.BsonRewriter;
+import com.mongodb.util.bson.BsonScanner;
 
 /**
  * Filter a mongoreplay bson file
@@ -61,332 +50,371 @@ public class MongoReplayFilter {
 
     protected static final Logger logger = LoggerFactory.getLogger(MongoReplayFilter.class);
 
-    private final BasicBSONEncoder encoder;
-    private final BSONDecoder decoder;
-    
-    CodecRegistry registry = fromRegistries(fromProviders(new UuidCodecProvider(UuidRepresentation.STANDARD)),
-            MongoClient.getDefaultCodecRegistry());
-    DocumentCodec documentCodec = new DocumentCodec(registry);
-
     private String[] removeUpdateFields;
 
     private int limit = Integer.MAX_VALUE;
 
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private final static long MIN_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // time window / opcode subset, located through the sidecar CaptureIndex
+    private String from;
+    private String to;
+    private BitSet opcodeSubset;
+
     private Map<Integer, Integer> opcodeSeenCounters = new TreeMap<Integer, Integer>();
 
     private int systemDatabasesSkippedCount = 0;
     int count = 0;
     int written = 0;
-    BSONObject obj;
-    BSONObject raw;
-    BSONObject header;
-    MessageHeader parsedHeader;
+    WireMessage message = new WireMessage();
+
+    private static final byte[] ADMIN = "admin".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LOCAL = "local".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ADMIN_CMD = "admin.$cmd".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LOCAL_CMD = "local.$cmd".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] QUERY = "$query".getBytes(StandardCharsets.US_ASCII);
+
+    // per segment rewrite state, the rewritten message is spliced into the record
+    private BsonRewriter queryRewriter;
+    private BsonRewriter commandRewriter;
+    private BsonRewriter msgBodyRewriter;
+    private BsonRewriter recordRewriter;
+    private final BasicOutputBuffer messageOut = new BasicOutputBuffer();
+    private final BasicOutputBuffer recordOut = new BasicOutputBuffer();
+    private int recordOpcode;
 
     public MongoReplayFilter() {
-        this.encoder = new BasicBSONEncoder();
-        this.decoder = new BasicBSONDecoder();
     }
 
-    @SuppressWarnings({ "unused", "unchecked" })
+    /**
+     * Filter filename into filename.FILTERED. The input is split into segments
+     * on record boundaries, each segment is filtered on a fork/join pool into
+     * its own part file, and the parts are then concatenated in their original
+     * order.
+     */
     public void filterFile(String filename) throws FileNotFoundException, DataFormatException {
         logger.debug("filterFile: " + filename);
         File file = new File(filename);
-        InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+        if (!file.exists()) {
+            throw new FileNotFoundException(filename);
+        }
 
-        File outputFile = new File(filename + ".FILTERED");
-        FileOutputStream fos = null;
+        File outputFile = new File(CaptureReader.uncompressedName(filename) + ".FILTERED");
 
         count = 0;
         written = 0;
+        ForkJoinPool forkJoinPool = new ForkJoinPool(threads);
         try {
-            fos = new FileOutputStream(outputFile);
-            FileChannel channel = fos.getChannel();
-            while (inputStream.available() > 0) {
+            List<long[]> segments = findSegments(file);
+            logger.debug(String.format("%s segments, %s threads", segments.size(), threads));
+
+            List<ForkJoinTask<MongoReplayFilter>> tasks = new ArrayList<ForkJoinTask<MongoReplayFilter>>();
+            List<File> partFiles = new ArrayList<File>();
+            for (int i = 0; i < segments.size(); i++) {
+                long[] segment = segments.get(i);
+                File partFile = new File(outputFile.getPath() + ".part" + i);
+                partFiles.add(partFile);
+                MongoReplayFilter segmentFilter = new MongoReplayFilter();
+                segmentFilter.setRemoveUpdateFields(removeUpdateFields);
+                segmentFilter.setOpcodeSubset(opcodeSubset);
+                // a compressed capture is one segment, not cut at the limit
+                segmentFilter.setLimit(limit);
+                tasks.add(forkJoinPool.submit(() -> {
+                    segmentFilter.filterSegment(file, segment[0], segment[1], partFile);
+                    return segmentFilter;
+                }));
+            }
 
-                if (count >= limit) {
-                    break;
+            try (FileChannel out = new FileOutputStream(outputFile).getChannel()) {
+                for (int i = 0; i < tasks.size(); i++) {
+                    MongoReplayFilter segmentFilter = tasks.get(i).join();
+                    merge(segmentFilter);
+                    File partFile = partFiles.get(i);
+                    try (FileChannel in = new FileInputStream(partFile).getChannel()) {
+                        long size = in.size();
+                        long pos = 0;
+                        while (pos < size) {
+                            pos += in.transferTo(pos, size - pos, out);
+                        }
+                    }
+                    partFile.delete();
                 }
-                count++;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            forkJoinPool.shutdown();
+        }
+        logCounts();
+        System.err.println(String.format("%s objects read, %s filtered objects written", count, written));
+    }
 
-                obj = decoder.readObject(inputStream);
-                if (obj == null) {
-                    break;
+    /**
+     * Cut the file into roughly equal segments of whole records, honoring the
+     * record limit.
+     * 
+     * @return list of [startOffset, endOffset) pairs
+     */
+    private List<long[]> findSegments(File file) throws IOException {
+        long segmentSize = Math.max(file.length() / (threads * 4L), MIN_SEGMENT_SIZE);
+        if (CaptureReader.isCompressed(file)) {
+            // read from the start either way, one pass
+            segmentSize = Long.MAX_VALUE;
+        }
+        if (from != null || to != null) {
+            return findSegments(file, segmentSize);
+        }
+        return CaptureReader.split(file, segmentSize, limit);
+    }
+
+    /**
+     * Cut the records seen in [from, to) into segments using the sidecar
+     * index, without walking the capture.
+     */
+    private List<long[]> findSegments(File file, long segmentSize) throws IOException {
+        List<long[]> segments = new ArrayList<long[]>();
+        try (CaptureIndex index = CaptureIndex.open(file)) {
+            long[] range = index.range(from, to);
+            long last = Math.min(range[1], range[0] + limit);
+            logger.debug(String.format("Filtering index entries [%s, %s) of %s", range[0], last, index.size()));
+            if (last <= range[0]) {
+                return segments;
+            }
+            long segmentStart = index.getOffset(range[0]);
+            long end = segmentStart;
+            for (long i = range[0]; i < last; i++) {
+                end = index.getOffset(i) + index.getLength(i);
+                if (end - segmentStart >= segmentSize) {
+                    segments.add(new long[] { segmentStart, end });
+                    segmentStart = end;
                 }
+            }
+            if (end > segmentStart) {
+                segments.add(new long[] { segmentStart, end });
+            }
+        }
+        return segments;
+    }
+
+    private void merge(MongoReplayFilter segmentFilter) {
+        count += segmentFilter.count;
+        written += segmentFilter.written;
+        systemDatabasesSkippedCount += segmentFilter.systemDatabasesSkippedCount;
+        for (Map.Entry<Integer, Integer> entry : segmentFilter.opcodeSeenCounters.entrySet()) {
+            opcodeSeenCounters.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        }
+    }
 
-                raw = (BSONObject) obj.get("rawop");
-                if (raw == null) {
+    /**
+     * Build the rewriters, once the options are known.
+     */
+    private void initRewriters() {
+        queryRewriter = new BsonRewriter().skip("projection");
+        commandRewriter = new BsonRewriter().skip("shardVersion", "projection");
+        if (removeUpdateFields != null) {
+            for (String fieldName : removeUpdateFields) {
+                commandRewriter.skip("updates.q." + fieldName);
+            }
+        }
+        msgBodyRewriter = new BsonRewriter().skip("txnNumber");
+        // the record keeps everything but the message and its header fields
+        recordRewriter = new BsonRewriter()
+                .replace("rawop.header.opcode", BsonScanner.INT32, out -> out.writeInt32(recordOpcode))
+                .replace("rawop.header.messagelength", BsonScanner.INT32, out -> out.writeInt32(messageOut.getSize()))
+                .replace("rawop.body", BsonScanner.BINARY, out -> {
+                    out.writeInt32(messageOut.getSize());
+                    out.writeByte(0);
+                    out.writeBytes(messageOut.getInternalBuffer(), 0, messageOut.getSize());
+                });
+    }
+
+    /**
+     * Filter the records in [start, end) of file into partFile. Records and
+     * messages are rewritten at the byte level with {@link BsonRewriter}s:
+     * unchanged runs of bytes are copied, nothing is decoded into objects.
+     */
+    private void filterSegment(File file, long start, long end, File partFile) throws IOException, DataFormatException {
+        initRewriters();
+        CaptureReader recordReader = CaptureReader.open(file);
+        recordReader.seek(start);
+        FileOutputStream fos = new FileOutputStream(partFile);
+        try {
+            FileChannel channel = fos.getChannel();
+            while (count < limit && recordReader.next() && recordReader.getRecordOffset() < end) {
+                count++;
+
+                ByteBuffer record = recordReader.getRecord();
+                if (!recordReader.hasRawOp()) {
                     logger.trace("raw was null");
-                    ByteBuffer buffer = ByteBuffer.wrap(encoder.encode(obj));
-                    channel.write(buffer);
+                    channel.write(record);
                     continue;
                 }
-                byte[] bytes = (byte[]) raw.get("body");
 
-                if (bytes.length == 0) {
-                    logger.trace("body length was 0");
+                // read in place, records outside the opcode subset are never rewritten
+                int opcode = recordReader.getOpcode();
+                if (opcodeSubset != null && !opcodeSubset.get(opcode)) {
                     continue;
                 }
 
-                header = (BSONObject) raw.get("header");
-                int responseto = (Integer) header.get("responseto");
-                if (responseto != 0) {
+                ByteBuffer messageBuffer = recordReader.getBody();
+                if (messageBuffer == null || messageBuffer.remaining() == 0) {
+                    logger.trace("body length was 0");
+                    continue;
+                }
+                if (recordReader.getResponseTo() != 0) {
                     continue;
                 }
 
-                if (header != null) {
-                    int opcode = (Integer) header.get("opcode");
-                    incrementOpcodeSeenCount(opcode);
-                    ByteBufferBsonInput bsonInput = new ByteBufferBsonInput(new ByteBufNIO(ByteBuffer.wrap(bytes)));
-                    BsonBinaryReader reader = new BsonBinaryReader(bsonInput);
-
-                    parsedHeader = MessageHeader.parse(bsonInput);
-                     
-                    //logger.debug("opcode: " + opcode + ", headerOpcode: " + headerOpcode);
-                    
-                    // https://github.com/mongodb/specifications/blob/master/source/compression/OP_COMPRESSED.rst
-                    if (opcode == 2012) {
-                        
-                        opcode = bsonInput.readInt32();
-                        logger.debug(String.format("Compressed, originalOpcode: %s", opcode));
-                        // Dumb hack, just double count the compressed / uncompressed opcode
-                        incrementOpcodeSeenCount(opcode);
-                        int uncompressedSize = bsonInput.readInt32();
-                        byte compressorId = bsonInput.readByte();
-                        
-                        //logger.debug("compressorId: " + compressorId);
-                        
-                        int position = bsonInput.getPosition();
-                        int remaining = parsedHeader.getMessageLength() - position;
-                        byte[] compressed = new byte[remaining];
-                        
-                        bsonInput.readBytes(compressed);
-                        byte[] uncompressed = Snappy.uncompress(compressed);
-                        //logger.debug(String.format("compressed.length: %s, uncompressedSize: %s, uncompressed.length: %s", compressed.length, uncompressedSize, uncompressed.length));
-                        
-                        if (opcode == 2013) {
-                            process2013(uncompressed, channel);
-                        } else {
-                            // TODO I think we can safely ignore these 2004s
-                        }
-                    } else if (opcode == 2004) {
-                        int flags = bsonInput.readInt32();
-                        String collectionName = bsonInput.readCString();
-                        if (collectionName.equals("admin.$cmd") || collectionName.equals("local.$cmd")) {
-                            systemDatabasesSkippedCount++;
-                            continue;
-                        }
-                        int nskip = bsonInput.readInt32();
-                        int nreturn = bsonInput.readInt32();
-                        Document commandDoc = documentCodec.decode(reader, DecoderContext.builder().build());
-
-                        //System.out.println("2004: " + commandDoc);
-                        Document queryCommand = (Document) commandDoc.get("$query");
-                        if (queryCommand != null) {
-                            commandDoc = queryCommand;
-                        }
+                incrementOpcodeSeenCount(opcode);
 
-                        commandDoc.remove("projection");
-                        BasicOutputBuffer tmpBuff = new BasicOutputBuffer();
-                        BsonBinaryWriter tmpWriter = new BsonBinaryWriter(tmpBuff);
-                        documentCodec.encode(tmpWriter, commandDoc, EncoderContext.builder().build());
-                        int commandDocSize = tmpBuff.getSize();
-
-                        BasicOutputBuffer rawOut = new BasicOutputBuffer();
-                        BsonBinaryWriter writer = new BsonBinaryWriter(rawOut);
-
-                        int totalLen = commandDocSize + 28 + collectionName.length();
-
-                        rawOut.writeInt(totalLen);
-                        rawOut.writeInt(parsedHeader.getRequestId());
-                        rawOut.writeInt(parsedHeader.getResponseTo());
-                        rawOut.writeInt(2004);
-                        rawOut.writeInt(0);
-
-                        rawOut.writeCString(collectionName);
-                        rawOut.writeInt(0); // skip
-                        rawOut.writeInt(-1); // return - these values don't seem to matter
-
-                        documentCodec.encode(writer, commandDoc, EncoderContext.builder().build());
-
-                        int size1 = writer.getBsonOutput().getPosition();
-                        header.put("messagelength", size1);
-                        // System.out.println("obj: " + obj);
-                        raw.put("body", rawOut.toByteArray());
-                        ByteBuffer buffer = ByteBuffer.wrap(encoder.encode(obj));
-                        channel.write(buffer);
-                        written++;
-
-                    } else if (opcode == 2010) {
-                        header.put("opcode", 2004);
-                        int p1 = bsonInput.getPosition();
-                        String databaseName = bsonInput.readCString();
-                        if (databaseName.equals("local") || databaseName.equals("admin")) {
-                            systemDatabasesSkippedCount++;
-                            continue;
-                        }
-                        int p2 = bsonInput.getPosition();
-                        int databaseNameLen = p2 - p1 + 5; // .$cmd gets
-                                                           // appended
-                        String command = bsonInput.readCString();
-                        Document commandDoc = documentCodec.decode(reader, DecoderContext.builder().build());
-                        Document queryCommand = (Document) commandDoc.get("$query");
-                        commandDoc.remove("shardVersion");
-                        commandDoc.remove("projection");
-
-                        if (command.equals("update")) {
-                            List<Document> updates = (List<Document>) commandDoc.get("updates");
-                            for (Document updateDoc : updates) {
-                                Document query = (Document) updateDoc.get("q");
-
-                                if (removeUpdateFields != null) {
-                                    for (String fieldName : removeUpdateFields) {
-                                        query.remove(fieldName);
-                                    }
-                                }
-                            }
-                        } else if (! command.equals("find")) {
-                            logger.debug(command);
-                        }
-
-                        BasicOutputBuffer tmpBuff = new BasicOutputBuffer();
-                        BsonBinaryWriter tmpWriter = new BsonBinaryWriter(tmpBuff);
-                        documentCodec.encode(tmpWriter, commandDoc, EncoderContext.builder().build());
-                        int commandDocSize = tmpBuff.getSize();
-
-                        BasicOutputBuffer rawOut = new BasicOutputBuffer();
-                        BsonBinaryWriter writer = new BsonBinaryWriter(rawOut);
-
-                        int totalLen = commandDocSize + 28 + databaseNameLen;
-
-                        rawOut.writeInt(totalLen);
-                        rawOut.writeInt(parsedHeader.getRequestId());
-                        rawOut.writeInt(parsedHeader.getResponseTo());
-                        rawOut.writeInt(2010);
-                        rawOut.writeInt(0);
-
-                        rawOut.writeCString(databaseName + ".$cmd");
-                        rawOut.writeInt(0); // skip
-                        rawOut.writeInt(-1); // return - these values don't seem
-                                             // to matter
-
-                        documentCodec.encode(writer, commandDoc, EncoderContext.builder().build());
-
-                        int size1 = writer.getBsonOutput().getPosition();
-
-                        header.put("messagelength", size1);
-
-                        raw.put("body", rawOut.toByteArray());
-                        ByteBuffer buffer = ByteBuffer.wrap(encoder.encode(obj));
-                        channel.write(buffer);
-                        written++;
-
-                    } else if (opcode == 2011) {
-                        // These are the command replies, we don't need to write
-                        // them through
-                        Document commandDoc = documentCodec.decode(reader, DecoderContext.builder().build());
-                        // System.out.println("doc: " + commandDoc);
-                    } else if (opcode == 2013) {
-                        // Just pass these through
-                        // TODO - we could probably do some filtering, e.g.
-                        // system dbs?
-//                        ByteBuffer buffer = ByteBuffer.wrap(encoder.encode(obj));
-//                        channel.write(buffer);
-//                        written++;
-                        byte[] slice = Arrays.copyOfRange(bytes, 16, bytes.length);
-                        process2013(slice, channel);
-                    }
+                // https://github.com/mongodb/specifications/blob/master/source/compression/OP_COMPRESSED.rst
+                if (opcode == 2012) {
+                    // decompress (snappy, zlib or zstd) into a full message with the
+                    // original header opcode, then filter it like an uncompressed one
+                    messageBuffer = Opcode2012.decompress(messageBuffer);
+                    opcode = messageBuffer.getInt(messageBuffer.position() + 12);
+                    logger.debug(String.format("Compressed, originalOpcode: %s", opcode));
+                    // Dumb hack, just double count the compressed / uncompressed opcode
+                    incrementOpcodeSeenCount(opcode);
+                }
+                message.wrap(messageBuffer, messageBuffer.position());
+
+                messageOut.truncateToPosition(0);
+                boolean keep;
+                if (opcode == 2004) {
+                    keep = rewriteQuery();
+                } else if (opcode == 2010) {
+                    keep = rewriteCommand();
+                } else if (opcode == 2013) {
+                    keep = rewriteMsg();
                 } else {
-                    logger.debug("Header was null, WTF?");
+                    // e.g. 2011 command replies, we don't need to write them through
+                    keep = false;
+                }
+                if (!keep) {
+                    continue;
                 }
 
-                // count++;
+                recordOut.truncateToPosition(0);
+                recordRewriter.rewrite(record, 0, recordOut);
+                channel.write(ByteBuffer.wrap(recordOut.getInternalBuffer(), 0, recordOut.getSize()));
+                written++;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         } finally {
             try {
-                inputStream.close();
+                recordReader.close();
+                fos.close();
             } catch (IOException e) {
             }
         }
-        logCounts();
-        System.err.println(String.format("%s objects read, %s filtered objects written", count, written));
     }
-    
+
     /**
-     * Note this implementation assumes that the header has already been consumed.
+     * Write the header of the rewritten message to messageOut, its length is
+     * patched by {@link #endMessage()}.
      */
-    private void process2013(byte[] uncompressed, FileChannel channel) throws IOException {
-        ByteBufferBsonInput bsonInput = new ByteBufferBsonInput(new ByteBufNIO(ByteBuffer.wrap(uncompressed)));
-        BsonBinaryReader reader = new BsonBinaryReader(bsonInput);
-        int flagBits = bsonInput.readInt32();
-        header.put("opcode", 2013);
-        
-        BasicOutputBuffer rawOut = new BasicOutputBuffer();
-        BsonBinaryWriter writer = new BsonBinaryWriter(rawOut);
-        
-        rawOut.writeInt32(uncompressed.length);
-        rawOut.writeInt32(parsedHeader.getRequestId());
-        rawOut.writeInt32(parsedHeader.getResponseTo());
-        rawOut.writeInt32(parsedHeader.getHeaderOpcode());
-        rawOut.writeInt32(flagBits);
-        
-        int i = 0;
-        while (bsonInput.getPosition() < uncompressed.length) {
-            //logger.debug(i + " position: " + bsonInput.getPosition() + ", totLen: " + uncompressed.length);
-            
-            byte kind = bsonInput.readByte();
-            rawOut.writeByte(kind);
-            
-            if (kind == 0) {
-                //byte[] slice = Arrays.copyOfRange(uncompressed, 5, uncompressed.length);
-                //rawOut.write(slice);
-                
-                //ByteBufferBsonInput in = new ByteBufferBsonInput(new ByteBufNIO(ByteBuffer.wrap(slice)));
-                
-                Document mobj = documentCodec.decode(reader, DecoderContext.builder().build());
-                String db = (String)mobj.get("$db");
-                if (db != null && db.equals("admin") || db.equals("local")) {
-                    return;
-                }
-                
-                mobj.remove("txnNumber");
-                //logger.debug("mobj: " + mobj);
-                documentCodec.encode(writer, mobj, EncoderContext.builder().build());
-                
-            } else if (kind == 1) {
-                int sectionSize = bsonInput.readInt32();
-                rawOut.writeInt32(sectionSize);
-                String sequenceId = bsonInput.readCString();
-                rawOut.writeCString(sequenceId);
-                int j = 0;
-                while (bsonInput.getPosition() < uncompressed.length) {
-                    //logger.debug(j + " kind=1, position: " + bsonInput.getPosition() + ", totLen: " + uncompressed.length);
-                    
-                    
-                    // TODO don't understand why we have to do this
-                    // if we don't we get:
-                    // BsonInvalidOperationException: readStartDocument can only be called when State is VALUE, not when State is DONE.
-                    reader = new BsonBinaryReader(bsonInput);
-                    
-                    Document mobj = documentCodec.decode(reader, DecoderContext.builder().build());
-                    documentCodec.encode(writer, mobj, EncoderContext.builder().build());
-                    //logger.debug("k1: " + mobj);
-                    j++;
-                }
+    private void startMessage(int opcode) {
+        recordOpcode = opcode;
+        messageOut.writeInt32(0);
+        messageOut.writeInt32(message.getRequestId());
+        messageOut.writeInt32(message.getResponseTo());
+        messageOut.writeInt32(opcode);
+    }
+
+    private void endMessage() {
+        messageOut.writeInt32(0, messageOut.getSize());
+    }
+
+    /**
+     * OP_QUERY: unwrap $query, remove the projection.
+     *
+     * @return false if the message is not written
+     */
+    private boolean rewriteQuery() {
+        ByteBuffer buf = message.getBuffer();
+        int collectionName = message.getFullCollectionNameOffset();
+        if (BsonScanner.nameEquals(buf, collectionName, ADMIN_CMD) || BsonScanner.nameEquals(buf, collectionName, LOCAL_CMD)) {
+            systemDatabasesSkippedCount++;
+            return false;
+        }
+        int queryDoc = message.getQueryDocumentOffset();
+        int queryCommand = BsonScanner.findElement(buf, queryDoc, QUERY);
+        if (queryCommand >= 0 && BsonScanner.elementType(buf, queryCommand) == BsonScanner.DOCUMENT) {
+            queryDoc = BsonScanner.valueOffset(buf, queryCommand);
+        }
+
+        startMessage(2004);
+        messageOut.writeInt32(0);
+        copyCString(buf, collectionName);
+        messageOut.writeInt32(0); // skip
+        messageOut.writeInt32(-1); // return - these values don't seem to matter
+        queryRewriter.rewrite(buf, queryDoc, messageOut);
+        endMessage();
+        return true;
+    }
+
+    /**
+     * OP_COMMAND: transcoded to an OP_QUERY on &lt;database&gt;.$cmd, without
+     * shardVersion, projection and the update query fields to remove. The
+     * metadata and input documents are dropped.
+     */
+    private boolean rewriteCommand() {
+        ByteBuffer buf = message.getBuffer();
+        int databaseName = message.getCommandDatabaseOffset();
+        if (BsonScanner.nameEquals(buf, databaseName, LOCAL) || BsonScanner.nameEquals(buf, databaseName, ADMIN)) {
+            systemDatabasesSkippedCount++;
+            return false;
+        }
+
+        startMessage(2004);
+        messageOut.writeInt32(0);
+        int databaseNameEnd = BsonScanner.skipCString(buf, databaseName) - 1;
+        copy(buf, databaseName, databaseNameEnd);
+        messageOut.writeCString(".$cmd");
+        messageOut.writeInt32(0); // skip
+        messageOut.writeInt32(-1); // return - these values don't seem to matter
+        commandRewriter.rewrite(buf, message.getCommandArgsOffset(), messageOut);
+        endMessage();
+        return true;
+    }
+
+    /**
+     * OP_MSG: remove txnNumber from the body, document sequences are copied
+     * as they are. A checksum is dropped, it would no longer match.
+     */
+    private boolean rewriteMsg() {
+        if (message.isSystemDatabase()) {
+            systemDatabasesSkippedCount++;
+            return false;
+        }
+        ByteBuffer buf = message.getBuffer();
+
+        startMessage(2013);
+        messageOut.writeInt32(message.getFlags() & ~Opcode2013.CHECKSUM_PRESENT);
+        for (int section = message.getFirstSection(); message.hasSection(section); section = message.getNextSection(section)) {
+            byte kind = message.getSectionKind(section);
+            if (kind == Opcode2013.KIND_BODY) {
+                messageOut.writeByte(kind);
+                msgBodyRewriter.rewrite(buf, message.getBodyDocumentOffset(section), messageOut);
             } else {
-                logger.error("Unexpected kind byte: " + kind);
+                copy(buf, section, message.getNextSection(section));
             }
-            i++;
         }
-        int newMessageLength = rawOut.getSize();
-        byte[] newMessageLengthBytes = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(newMessageLength).array();
-        header.put("messagelength", newMessageLength);
-        rawOut.write(newMessageLengthBytes, 0, 4);
-        raw.put("body", rawOut.toByteArray());
-        ByteBuffer buffer = ByteBuffer.wrap(encoder.encode(obj));
-        channel.write(buffer);
-        written++;
+        endMessage();
+        return true;
+    }
+
+    private void copyCString(ByteBuffer buf, int pos) {
+        copy(buf, pos, BsonScanner.skipCString(buf, pos));
+    }
+
+    /**
+     * Copy the bytes [from, to) of buf to messageOut.
+     */
+    private void copy(ByteBuffer buf, int from, int to) {
+        BsonRewriter.copy(buf, from, to, messageOut);
     }
     
     
@@ -431,6 +459,16 @@ public class MongoReplayFilter {
 
         options.addOption(OptionBuilder.withArgName("limit # operations").hasArg().withLongOpt("limit").create("l"));
 
+        options.addOption(OptionBuilder.withArgName("# threads").hasArg().withLongOpt("threads").create("t"));
+
+        options.addOption(OptionBuilder.withArgName("start time, ISO-8601 or seconds from capture start").hasArg()
+                .withLongOpt("from").create());
+
+        options.addOption(OptionBuilder.withArgName("end time, ISO-8601 or seconds from capture start").hasArg()
+                .withLongOpt("to").create());
+
+        options.addOption(OptionBuilder.withArgName("opcode(s) to keep").hasArgs().withLongOpt("opcodes").create());
+
         CommandLineParser parser = new GnuParser();
         CommandLine line = null;
         try {
@@ -468,6 +506,7 @@ public class MongoReplayFilter {
         String[] fileNames = line.getOptionValues("f");
         String[] removeUpdateFields = line.getOptionValues("u");
         String limitStr = line.getOptionValue("l");
+        String threadsStr = line.getOptionValue("t");
 
         MongoReplayFilter filter = new MongoReplayFilter();
         filter.setRemoveUpdateFields(removeUpdateFields);
@@ -477,6 +516,13 @@ public class MongoReplayFilter {
             filter.setLimit(limit);
         }
 
+        if (threadsStr != null) {
+            filter.setThreads(Integer.parseInt(threadsStr));
+        }
+
+        filter.setTimeRange(line.getOptionValue("from"), line.getOptionValue("to"));
+        filter.setOpcodeSubset(CaptureIndex.parseOpcodes(line.getOptionValues("opcodes")));
+
         for (String filename : fileNames) {
             filter.filterFile(filename);
         }
@@ -495,4 +541,23 @@ public class MongoReplayFilter {
         this.limit = limit;
     }
 
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Only filter records seen in [from, to), see {@link CaptureIndex#parseTime(String)}.
+     */
+    public void setTimeRange(String from, String to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Only keep these header opcodes (the metadata record is always kept).
+     */
+    public void setOpcodeSubset(BitSet opcodeSubset) {
+        this.opcodeSubset = opcodeSubset;
+    }
+
 }
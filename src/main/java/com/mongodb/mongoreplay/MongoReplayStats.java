@@ -1,87 +1,233 @@
 package com.mongodb.mongoreplay;
-import java.io.BufferedInputStream;
+
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import org.bson.BSONDecoder;
-import org.bson.BSONObject;
-import org.bson.BasicBSONDecoder;
-import org.bson.BasicBSONEncoder;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class MongoReplayStats {
+import com.mongodb.util.SpaceSaving;
 
-    private final BasicBSONEncoder encoder;
+/**
+ * Profile one or more mongoreplay bson files in a single parallel pass: opcode
+ * counts, per second request rates and connection concurrency, per namespace /
+ * command / query shape frequencies and message size distributions. Useful to
+ * size a replay before running it.
+ */
+public class MongoReplayStats {
 
-    public MongoReplayStats() {
-        this.encoder = new BasicBSONEncoder();
-    }
+    protected static final Logger logger = LoggerFactory.getLogger(MongoReplayStats.class);
 
-    public void filterFile(String filename) throws FileNotFoundException {
+    private final static long MIN_SEGMENT_SIZE = 16 * 1024 * 1024;
 
-        File file = new File(filename);
-        InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int top = 20;
+    private int capacity = 1000;
+    private File secondsFile;
 
-        HashMap<Integer, AtomicInteger> atomicCounter = new HashMap<Integer, AtomicInteger>();
+    private CaptureProfile profile;
 
-        BSONDecoder decoder = new BasicBSONDecoder();
-        int count = 0;
-        int written = 0;
+    /**
+     * Profile filenames, all files are combined into one profile.
+     */
+    public CaptureProfile profileFiles(String... filenames) throws FileNotFoundException {
+        profile = new CaptureProfile(capacity);
+        ForkJoinPool forkJoinPool = new ForkJoinPool(threads);
         try {
-            while (inputStream.available() > 0) {
-                BSONObject obj = decoder.readObject(inputStream);
-                if (obj == null) {
-                    break;
+            List<ForkJoinTask<CaptureProfile>> tasks = new ArrayList<ForkJoinTask<CaptureProfile>>();
+            for (String filename : filenames) {
+                File file = new File(filename);
+                if (!file.exists()) {
+                    throw new FileNotFoundException(filename);
                 }
-
-                BSONObject raw = (BSONObject) obj.get("rawop");
-                BSONObject header = (BSONObject) raw.get("header");
-                if (header != null) {
-                    Integer opcode = (Integer) header.get("opcode");
-                    
-                    AtomicInteger frequency = atomicCounter.get(opcode);
-                    if (frequency != null) {
-                        frequency.incrementAndGet();
-                    } else {
-                        atomicCounter.put(opcode, new AtomicInteger(1));
-                    }
+                long segmentSize = Math.max(file.length() / (threads * 4L), MIN_SEGMENT_SIZE);
+                for (long[] segment : CaptureReader.split(file, segmentSize, Long.MAX_VALUE)) {
+                    tasks.add(forkJoinPool.submit(() -> {
+                        CaptureProfile segmentProfile = new CaptureProfile(capacity);
+                        segmentProfile.profile(file, segment[0], segment[1]);
+                        return segmentProfile;
+                    }));
                 }
-
-                count++;
+            }
+            for (ForkJoinTask<CaptureProfile> task : tasks) {
+                profile.merge(task.join());
             }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            try {
-                inputStream.close();
-            } catch (IOException e) {
+            forkJoinPool.shutdown();
+        }
+        return profile;
+    }
+
+    public void report() throws IOException {
+        System.out.println(String.format("%,d records: %,d requests, %,d replies, %,d metadata", profile.getRecords(),
+                profile.getRequests(), profile.getReplies(), profile.getMetadataRecords()));
+        if (profile.getDecompressErrors() > 0) {
+            System.out.println(String.format("%,d compressed messages could not be decompressed", profile.getDecompressErrors()));
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-10s %12s", "opcode", "count"));
+        for (Map.Entry<Integer, Long> entry : profile.getOpcodeCounts().entrySet()) {
+            System.out.println(String.format("%-10d %,12d", entry.getKey(), entry.getValue()));
+        }
+
+        reportSeconds();
+
+        System.out.println();
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s", "bytes", "count", "min", "50p", "95p", "99p", "max"));
+        reportSizes("requests", profile.getRequestSizes());
+        reportSizes("replies", profile.getReplySizes());
+
+        reportTop("namespace", profile.getNamespaces());
+        reportTop("command", profile.getCommands());
+        reportTop("query shape", profile.getShapes());
+
+        if (secondsFile != null) {
+            try (PrintWriter out = new PrintWriter(secondsFile)) {
+                out.println("second,requests,connections");
+                for (Map.Entry<Long, CaptureProfile.Second> entry : profile.getSeconds().entrySet()) {
+                    out.println(entry.getKey() + "," + entry.getValue().getRequests() + "," + entry.getValue().getConnections());
+                }
             }
+            System.out.println();
+            System.out.println("Per second rates written to " + secondsFile);
+        }
+    }
+
+    private void reportSeconds() {
+        Map<Long, CaptureProfile.Second> seconds = profile.getSeconds();
+        if (seconds.isEmpty()) {
+            return;
         }
-        System.err.println(String.format("%s objects read, %s filtered objects written", count, written));
-        
-        Iterator<Entry<Integer, AtomicInteger>> it = atomicCounter.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<Integer, AtomicInteger> pair = it.next();
-            System.out.println(pair.getKey() + " = " + pair.getValue());
+        Histogram rates = new Histogram(3);
+        Histogram connections = new Histogram(3);
+        for (CaptureProfile.Second second : seconds.values()) {
+            rates.recordValue(second.getRequests());
+            connections.recordValue(second.getConnections());
         }
+        long first = profile.getSeconds().firstKey();
+        long duration = profile.getSeconds().lastKey() - first + 1;
+        System.out.println();
+        System.out.println(String.format("%,d seconds captured, %,d with traffic", duration, seconds.size()));
+        System.out.println(String.format("%-12s %10s %10s %10s %10s %10s", "per second", "min", "avg", "50p", "99p", "max"));
+        System.out.println(String.format("%-12s %10d %10.1f %10d %10d %10d", "requests", rates.getMinValue(),
+                profile.getRequests() / (double) duration, rates.getValueAtPercentile(50.0),
+                rates.getValueAtPercentile(99.0), rates.getMaxValue()));
+        System.out.println(String.format("%-12s %10d %10.1f %10d %10d %10d", "connections", connections.getMinValue(),
+                connections.getMean(), connections.getValueAtPercentile(50.0), connections.getValueAtPercentile(99.0),
+                connections.getMaxValue()));
     }
 
-    public static void main(String args[]) throws Exception {
+    private void reportSizes(String name, Histogram sizes) {
+        if (sizes.getTotalCount() == 0) {
+            return;
+        }
+        System.out.println(String.format("%-10s %,10d %10d %10d %10d %10d %10d", name, sizes.getTotalCount(),
+                sizes.getMinValue(), sizes.getValueAtPercentile(50.0), sizes.getValueAtPercentile(95.0),
+                sizes.getValueAtPercentile(99.0), sizes.getMaxValue()));
+    }
+
+    private void reportTop(String name, SpaceSaving<String> counter) {
+        List<SpaceSaving.Counter<String>> counters = counter.top(top);
+        if (counters.isEmpty()) {
+            return;
+        }
+        System.out.println();
+        System.out.println(String.format("%12s %10s  %s", "count", "+/-", name));
+        for (SpaceSaving.Counter<String> c : counters) {
+            System.out.println(String.format("%,12d %10s  %s", c.getCount(), c.getError() > 0 ? String.format("%,d", c.getError()) : "",
+                    c.getKey()));
+        }
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setTop(int top) {
+        this.top = top;
+    }
 
-        if (args.length < 1) {
-            throw new IllegalArgumentException("Expected <bson filename> argument");
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setSecondsFile(File secondsFile) {
+        this.secondsFile = secondsFile;
+    }
+
+    @SuppressWarnings("static-access")
+    private static CommandLine initializeAndParseCommandLineOptions(String[] args) {
+        Options options = new Options();
+        options.addOption(new Option("help", "print this message"));
+        options.addOption(
+                OptionBuilder.withArgName("input mongoreplay bson file(s)").hasArgs().withLongOpt("files").create("f"));
+        options.addOption(OptionBuilder.withArgName("# threads").hasArg().withLongOpt("threads").create("t"));
+        options.addOption(OptionBuilder.withArgName("# top entries reported").hasArg().withLongOpt("top").create("k"));
+        options.addOption(OptionBuilder.withArgName("# namespaces / commands / shapes tracked").hasArg()
+                .withLongOpt("capacity").create());
+        options.addOption(OptionBuilder.withArgName("per second csv output file").hasArg().withLongOpt("seconds")
+                .create("o"));
+
+        CommandLineParser parser = new GnuParser();
+        CommandLine line = null;
+        try {
+            line = parser.parse(options, args);
+            if (line.hasOption("help")) {
+                printHelpAndExit(options);
+            }
+        } catch (org.apache.commons.cli.ParseException e) {
+            System.out.println(e.getMessage());
+            printHelpAndExit(options);
+        }
+
+        if (line.getOptionValues("f") == null) {
+            printHelpAndExit(options);
         }
-        String filename = args[0];
-        MongoReplayStats filter = new MongoReplayStats();
-        filter.filterFile(filename);
+        return line;
+    }
+
+    private static void printHelpAndExit(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("mongoReplayStats", options);
+        System.exit(-1);
+    }
 
+    public static void main(String args[]) throws Exception {
+        CommandLine line = initializeAndParseCommandLineOptions(args);
+
+        MongoReplayStats stats = new MongoReplayStats();
+        if (line.hasOption("t")) {
+            stats.setThreads(Integer.parseInt(line.getOptionValue("t")));
+        }
+        if (line.hasOption("k")) {
+            stats.setTop(Integer.parseInt(line.getOptionValue("k")));
+        }
+        if (line.hasOption("capacity")) {
+            stats.setCapacity(Integer.parseInt(line.getOptionValue("capacity")));
+        }
+        if (line.hasOption("o")) {
+            stats.setSecondsFile(new File(line.getOptionValue("o")));
+        }
+        stats.profileFiles(line.getOptionValues("f"));
+        stats.report();
     }
 
 }
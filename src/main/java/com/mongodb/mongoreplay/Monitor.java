@@ -18,17 +18,28 @@
  */
 package com.mongodb.mongoreplay;
 
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.mongodb.util.PausableThreadPoolExecutor;
 import com.mongodb.util.Timer;
 
 
-public class Monitor extends Thread {
+/**
+ * Progress of a replay: logs counts, latencies and executor state every
+ * {@link #displayMillis}, and keeps rolling 1, 10 and 60 second windows of
+ * throughput, latency, errors by code and queue depth, published over JMX as
+ * {@link MonitorMXBean}.
+ */
+public class Monitor extends Thread implements MonitorMXBean {
     
     public static final int displayMillis = 15000;
     public static final int sleepMillis = 500;
@@ -43,7 +54,48 @@ public class Monitor extends Thread {
 
     
 
-    private PausableThreadPoolExecutor pool;
+    private ReplayExecutor pool;
+
+    private ReplayStatistics replayStatistics;
+
+    private LoadController loadController;
+
+    // how far behind schedule operations started, for the current display interval
+    private final LongAdder lagNanosSum = new LongAdder();
+    private final LongAdder lagCount = new LongAdder();
+    private final LongAccumulator lagNanosMax = new LongAccumulator(Long::max, 0);
+
+    // the current one second interval of the rolling windows
+    private final Recorder latencyRecorder = new Recorder(3);
+    private final LongAdder intervalOps = new LongAdder();
+    private final LongAdder intervalErrors = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> intervalErrorsByCode = new ConcurrentHashMap<String, LongAdder>();
+    private long intervalStartMillis;
+
+    // the last 60 intervals, a ring indexed by intervalCount
+    private static final int[] WINDOW_SECONDS = { 1, 10, 60 };
+    private final Interval[] intervals = new Interval[60];
+    private long intervalCount = 0;
+    private volatile MonitorWindow[] windows = { MonitorWindow.empty(1), MonitorWindow.empty(10),
+            MonitorWindow.empty(60) };
+
+    private static class Interval {
+        final long millis;
+        final long ops;
+        final long errors;
+        final Histogram histogram;
+        final Map<String, Long> errorsByCode;
+        final int queueSize;
+
+        Interval(long millis, long ops, long errors, Histogram histogram, Map<String, Long> errorsByCode, int queueSize) {
+            this.millis = millis;
+            this.ops = ops;
+            this.errors = errors;
+            this.histogram = histogram;
+            this.errorsByCode = errorsByCode;
+            this.queueSize = queueSize;
+        }
+    }
 
     private int totalSkipped = 0;
 
@@ -60,6 +112,7 @@ public class Monitor extends Thread {
     public Monitor(Thread _p) {
         parent = _p;
         lastDisplayMillis = System.currentTimeMillis();
+        intervalStartMillis = lastDisplayMillis;
     }
 
     public void run() {
@@ -108,7 +161,6 @@ public class Monitor extends Thread {
 
         // if anything goes wrong, the futuretask knows how to stop us
         // hence, we do nothing with the pool in this loop
-        int count = 0;
         logger.trace("looping every " + sleepMillis);
         while (running && !isInterrupted()) {
             // try to avoid thread starvation
@@ -116,6 +168,9 @@ public class Monitor extends Thread {
             
             currentMillis = System.currentTimeMillis();
             long elapsed = currentMillis - lastDisplayMillis;
+            if (currentMillis - intervalStartMillis >= 1000) {
+                tick(currentMillis);
+            }
             //logger.trace("Monitor loop " + currentMillis + " " + lastDisplayMillis + " " + elapsed);
             if (currentMillis - lastDisplayMillis > displayMillis) {
                     //&& (lastSkipped < totalSkipped || lastCount < timer.getEventCount())) {
@@ -127,18 +182,30 @@ public class Monitor extends Thread {
                          + " ("
                         + timer.getProgressMessage() + "), with "
                         + timer.getErrorCount() + " error(s) "
-                        + pool.getActiveCount() + " active threads, " + pool.getQueue().size() + " queued tasks");
+                        + pool.getActiveCount() + " active threads, " + pool.getQueueSize() + " queued tasks");
                 logger.info("thread count: core="
-                        + pool.getCorePoolSize() + ", active="
+                        + pool.getPoolSize() + ", active="
                         + pool.getActiveCount());
-                
-                // hack, resume pool as it may never get full
-                if (count >= 2 && pool.isPaused()) {
-                    logger.debug("pool is paused, resuming");
-                    pool.resume();
+                if (replayStatistics != null) {
+                    Histogram h = replayStatistics.getTotalHistogram();
+                    logger.info(String.format("latency ms: p50=%.1f, p95=%.1f, p99=%.1f, max=%.1f",
+                            h.getValueAtPercentile(50.0) / 1000.0, h.getValueAtPercentile(95.0) / 1000.0,
+                            h.getValueAtPercentile(99.0) / 1000.0, h.getMaxValue() / 1000.0));
+                }
+                MonitorWindow[] windows = this.windows;
+                logger.info("last " + windows[1] + "; last " + windows[2]);
+                if (!windows[2].getErrorsByCode().isEmpty()) {
+                    logger.info("errors in the last 60s by code: " + windows[2].getErrorsByCode());
+                }
+                long lagged = lagCount.sumThenReset();
+                if (lagged > 0) {
+                    logger.info(String.format("behind schedule ms: avg=%.1f, max=%.1f",
+                            lagNanosSum.sumThenReset() / (double) lagged / 1000000.0,
+                            lagNanosMax.getThenReset() / 1000000.0));
+                }
+                if (loadController != null) {
+                    logger.info(loadController.toString());
                 }
-                
-                
             }
 
             try {
@@ -146,13 +213,56 @@ public class Monitor extends Thread {
             } catch (InterruptedException e) {
                 // interrupt status will be reset below
             }
-            count++;
         }
         if (isInterrupted()) {
             interrupted();
         }
     }
 
+    /**
+     * Close the current one second interval and recompute the windows.
+     */
+    private void tick(long currentMillis) {
+        // adders are reset rather than replaced, so that no increment is lost;
+        // error codes are few, their adders are kept
+        Map<String, Long> errorCounts = new HashMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry : intervalErrorsByCode.entrySet()) {
+            long count = entry.getValue().sumThenReset();
+            if (count > 0) {
+                errorCounts.put(entry.getKey(), count);
+            }
+        }
+        Interval interval = new Interval(currentMillis - intervalStartMillis, intervalOps.sumThenReset(),
+                intervalErrors.sumThenReset(), latencyRecorder.getIntervalHistogram(), errorCounts,
+                pool == null ? 0 : pool.getQueueSize());
+        intervalStartMillis = currentMillis;
+        intervals[(int) (intervalCount++ % intervals.length)] = interval;
+
+        MonitorWindow[] updated = new MonitorWindow[WINDOW_SECONDS.length];
+        for (int w = 0; w < WINDOW_SECONDS.length; w++) {
+            int n = (int) Math.min(WINDOW_SECONDS[w], intervalCount);
+            long millis = 0, ops = 0, errors = 0, queueSizeSum = 0;
+            int maxQueueSize = 0;
+            Histogram histogram = new Histogram(3);
+            Map<String, Long> windowErrors = new HashMap<String, Long>();
+            for (int i = 1; i <= n; i++) {
+                Interval past = intervals[(int) ((intervalCount - i) % intervals.length)];
+                millis += past.millis;
+                ops += past.ops;
+                errors += past.errors;
+                histogram.add(past.histogram);
+                queueSizeSum += past.queueSize;
+                maxQueueSize = Math.max(maxQueueSize, past.queueSize);
+                for (Map.Entry<String, Long> entry : past.errorsByCode.entrySet()) {
+                    windowErrors.merge(entry.getKey(), entry.getValue(), Long::sum);
+                }
+            }
+            updated[w] = new MonitorWindow(WINDOW_SECONDS[w], millis, ops, errors, histogram, queueSizeSum, n,
+                    maxQueueSize, windowErrors);
+        }
+        windows = updated;
+    }
+
     /**
      * 
      */
@@ -186,10 +296,40 @@ public class Monitor extends Thread {
 
     public void incrementEventCount() {
         timer.incrementEventCount();
+        intervalOps.increment();
     }
     
     public void incrementErrorCount() {
+        incrementErrorCount("unknown");
+    }
+
+    /**
+     * @param code the server error code name (or code, or exception class),
+     *            for the errors by code of the rolling windows
+     */
+    public void incrementErrorCount(String code) {
         timer.incrementErrorCount();
+        intervalOps.increment();
+        intervalErrors.increment();
+        intervalErrorsByCode.computeIfAbsent(code, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Record the latency of a completed operation for the rolling windows.
+     */
+    public void recordLatency(long durationNanos) {
+        latencyRecorder.recordValue(Math.max(durationNanos / 1000, 0));
+    }
+
+    /**
+     * Record how late (in nanos) a scheduled operation started relative to its
+     * captured offset.
+     */
+    public void recordScheduleLag(long lagNanos) {
+        long lag = Math.max(lagNanos, 0);
+        lagNanosSum.add(lag);
+        lagCount.increment();
+        lagNanosMax.accumulate(lag);
     }
     
 
@@ -198,7 +338,37 @@ public class Monitor extends Thread {
      * @return
      */
     public long getEventCount() {
-        return timer.getEventCount().get();
+        return timer == null ? 0 : timer.getEventCount().get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return timer == null ? 0 : timer.getErrorCount();
+    }
+
+    @Override
+    public MonitorWindow getLast1Second() {
+        return windows[0];
+    }
+
+    @Override
+    public MonitorWindow getLast10Seconds() {
+        return windows[1];
+    }
+
+    @Override
+    public MonitorWindow getLast60Seconds() {
+        return windows[2];
+    }
+
+    @Override
+    public int getActiveCount() {
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return pool == null ? 0 : pool.getQueueSize();
     }
 
 
@@ -210,14 +380,22 @@ public class Monitor extends Thread {
         totalSkipped++;
     }
 
-    public ThreadPoolExecutor getPool() {
+    public ReplayExecutor getPool() {
         return pool;
     }
 
-    public void setPool(PausableThreadPoolExecutor pool) {
+    public void setPool(ReplayExecutor pool) {
         this.pool = pool;
     }
 
+    public void setReplayStatistics(ReplayStatistics replayStatistics) {
+        this.replayStatistics = replayStatistics;
+    }
+
+    public void setLoadController(LoadController loadController) {
+        this.loadController = loadController;
+    }
+
 //    /**
 //     * @param _msg
 //     */
@@ -0,0 +1,19 @@
+package com.mongodb.mongoreplay;
+
+public interface MonitorMXBean {
+
+    MonitorWindow getLast1Second();
+
+    MonitorWindow getLast10Seconds();
+
+    MonitorWindow getLast60Seconds();
+
+    long getEventCount();
+
+    long getErrorCount();
+
+    int getActiveCount();
+
+    int getQueueSize();
+
+}
@@ -0,0 +1,108 @@
+package com.mongodb.mongoreplay;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Replay throughput, latency, errors and queue depth over the last N seconds,
+ * as published by the {@link Monitor}.
+ */
+public class MonitorWindow {
+
+    private final int seconds;
+    private final double opsPerSecond;
+    private final double errorsPerSecond;
+    private final double p50Millis;
+    private final double p95Millis;
+    private final double p99Millis;
+    private final double maxMillis;
+    private final double avgQueueSize;
+    private final int maxQueueSize;
+    private final Map<String, Long> errorsByCode;
+
+    /**
+     * @param elapsedMillis the time actually covered, may be less than seconds
+     *            early in the run
+     * @param histogram latencies in micros
+     */
+    MonitorWindow(int seconds, long elapsedMillis, long ops, long errors, Histogram histogram, long queueSizeSum,
+            int queueSamples, int maxQueueSize, Map<String, Long> errorsByCode) {
+        double elapsedSeconds = Math.max(elapsedMillis, 1) / 1000.0;
+        this.seconds = seconds;
+        this.opsPerSecond = ops / elapsedSeconds;
+        this.errorsPerSecond = errors / elapsedSeconds;
+        this.p50Millis = histogram.getValueAtPercentile(50.0) / 1000.0;
+        this.p95Millis = histogram.getValueAtPercentile(95.0) / 1000.0;
+        this.p99Millis = histogram.getValueAtPercentile(99.0) / 1000.0;
+        this.maxMillis = histogram.getMaxValue() / 1000.0;
+        this.avgQueueSize = queueSamples == 0 ? 0 : queueSizeSum / (double) queueSamples;
+        this.maxQueueSize = maxQueueSize;
+        this.errorsByCode = Collections.unmodifiableMap(new HashMap<String, Long>(errorsByCode));
+    }
+
+    static MonitorWindow empty(int seconds) {
+        return new MonitorWindow(seconds, 0, 0, 0, new Histogram(3), 0, 0, 0, Collections.<String, Long>emptyMap());
+    }
+
+    public int getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * @return completed operations (including errors) per second
+     */
+    public double getOpsPerSecond() {
+        return opsPerSecond;
+    }
+
+    public double getErrorsPerSecond() {
+        return errorsPerSecond;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP95Millis() {
+        return p95Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * @return the average of the per second samples of operations waiting in
+     *         the executor
+     */
+    public double getAvgQueueSize() {
+        return avgQueueSize;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * @return error counts by server error code name (or code, or exception
+     *         class)
+     */
+    public Map<String, Long> getErrorsByCode() {
+        return errorsByCode;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%ss: %.0f ops/s, %.1f errors/s, p50=%.1f, p95=%.1f, p99=%.1f, max=%.1f ms, queue avg=%.0f max=%s",
+                seconds, opsPerSecond, errorsPerSecond, p50Millis, p95Millis, p99Millis, maxMillis, avgQueueSize,
+                maxQueueSize);
+    }
+
+}
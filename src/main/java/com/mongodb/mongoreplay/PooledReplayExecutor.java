@@ -0,0 +1,25 @@
+package com.mongodb.mongoreplay;
+
+/**
+ * Runs replayed operations on a fixed set of worker threads fed from one
+ * bounded queue, in whatever order the workers pick them up. The reader
+ * blocks in {@link #execute(Runnable)} while the queue is full, so it never
+ * runs further ahead than the queue size.
+ */
+public class PooledReplayExecutor extends AbstractQueueReplayExecutor {
+
+    /**
+     * @param threads number of worker threads
+     * @param queueSize number of operations that may be queued before the
+     *            caller blocks
+     */
+    public PooledReplayExecutor(int threads, int queueSize) {
+        super("replay", threads, 1, queueSize);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        put(0, command);
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.mongodb.mongoreplay;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket holding replay at a target number of operations per second.
+ * Tokens accrue continuously; up to a tenth of a second worth of them can be
+ * banked, which absorbs short stalls without allowing large bursts.
+ */
+public class RateLimitController implements LoadController, RateLimitControllerMBean {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_BURST_NANOS = NANOS_PER_SECOND / 10;
+
+    private volatile double opsPerSecond;
+    private volatile long intervalNanos;
+
+    // time at which the next token becomes available
+    private long nextFreeNanos = System.nanoTime();
+
+    public RateLimitController(double opsPerSecond) {
+        setOpsPerSecond(opsPerSecond);
+    }
+
+    @Override
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // unused capacity older than the burst window is lost
+            if (nextFreeNanos < now - MAX_BURST_NANOS) {
+                nextFreeNanos = now - MAX_BURST_NANOS;
+            }
+            waitNanos = nextFreeNanos - now;
+            nextFreeNanos += intervalNanos;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    @Override
+    public void release(long latencyNanos) {
+    }
+
+    @Override
+    public double getOpsPerSecond() {
+        return opsPerSecond;
+    }
+
+    @Override
+    public void setOpsPerSecond(double opsPerSecond) {
+        if (opsPerSecond <= 0) {
+            throw new IllegalArgumentException("opsPerSecond must be > 0, was " + opsPerSecond);
+        }
+        this.opsPerSecond = opsPerSecond;
+        this.intervalNanos = Math.max(1, (long) (NANOS_PER_SECOND / opsPerSecond));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("rate limit: %.1f ops/sec", opsPerSecond);
+    }
+
+}
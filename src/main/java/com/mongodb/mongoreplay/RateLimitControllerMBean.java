@@ -0,0 +1,9 @@
+package com.mongodb.mongoreplay;
+
+public interface RateLimitControllerMBean {
+
+    double getOpsPerSecond();
+
+    void setOpsPerSecond(double opsPerSecond);
+
+}
@@ -1,31 +1,44 @@
 package com.mongodb.mongoreplay;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
 
 import org.apache.commons.lang.StringUtils;
-import org.bson.BSONObject;
 import org.bson.BsonBinaryReader;
 import org.bson.ByteBufNIO;
 import org.bson.Document;
 import org.bson.codecs.DecoderContext;
 import org.bson.codecs.DocumentCodec;
 import org.bson.io.ByteBufferBsonInput;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
 import com.mongodb.ReadConcern;
 import com.mongodb.ReadConcernLevel;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.mongoreplay.opcodes.Opcode2012;
+import com.mongodb.mongoreplay.opcodes.Opcode2013;
+import com.mongodb.mongoreplay.opcodes.WireMessage;
+import com.mongodb.mongoreplay.undo.UndoStore;
+import com.mongodb.shardsync.MongosBalancer;
 import com.mongodb.util.ShapeUtil;
+import com.mongodb.util.bson.BsonScanner;
 
-public class RawReplayTask implements Callable<ReplayResult> {
+public class RawReplayTask implements Callable<ReplayResult>, Runnable {
 
     // private TimedEvent event;
     private Monitor monitor;
+    private ReplayStatistics replayStatistics;
     private MongoClient mongoClient;
     private Document commandDoc;
     private String databaseName;
@@ -35,127 +48,118 @@ public class RawReplayTask implements Callable<ReplayResult> {
     
     private ReplayOptions replayOptions;
     
-    private BSONObject raw;
+    private int opcode;
+    private long connectionNum;
+    private int requestId;
+    // for a getMore, identifies the captured command that opened its cursor
+    private long cursorKey = CursorTracker.NONE;
+    // amplified copy number, 0 is the captured operation
+    private int copy;
+    private ByteBuffer body;
+    private int messageLength;
     private boolean ignore = false;
+    private long scheduledNanos;
     
     private final static DocumentCodec documentCodec = new DocumentCodec();
     private final static DecoderContext decoderContext = DecoderContext.builder().build();
+    private final static ThreadLocal<WireMessage> MESSAGE = ThreadLocal.withInitial(WireMessage::new);
 
     protected static final Logger logger = LoggerFactory.getLogger(RawReplayTask.class);
 
-    public RawReplayTask(Monitor monitor, MongoClient mongoClient, ReplayOptions replayOptions, BSONObject raw) {
+    /**
+     * @param opcode the captured header opcode
+     * @param connectionNum the captured seenconnectionnum
+     * @param body the complete captured wire protocol message, including the
+     *            16 byte header. This is typically a slice of a
+     *            {@link CaptureReader} buffer and is not copied.
+     */
+    public RawReplayTask(Monitor monitor, ReplayStatistics replayStatistics, MongoClient mongoClient,
+            ReplayOptions replayOptions, int opcode, long connectionNum, ByteBuffer body) {
         this.monitor = monitor;
+        this.replayStatistics = replayStatistics;
         this.mongoClient = mongoClient;
         this.replayOptions = replayOptions;
-        this.raw = raw;
+        this.opcode = opcode;
+        this.connectionNum = connectionNum;
+        this.body = body;
     }
     
     private void process() {
-        byte[] bytes = (byte[]) raw.get("body");
-
-        if (bytes.length == 0) {
+        if (body == null || body.remaining() == 0) {
             return;
         }
+        
+        if (opcode == WireMessage.OP_COMPRESSED) {
+            // the decompressed message lives in a per thread buffer, it is
+            // fully decoded below before this thread decompresses anything else
+            try {
+                body = Opcode2012.decompress(body);
+            } catch (DataFormatException e) {
+                logger.warn("Error decompressing OP_COMPRESSED message: " + e.getMessage());
+                ignore = true;
+                return;
+            }
+            opcode = body.getInt(body.position() + 12);
+        }
 
-        BSONObject header = (BSONObject) raw.get("header");
-
-        if (header != null) {
-            int opcode = (Integer) header.get("opcode");
-            ByteBufferBsonInput bsonInput = new ByteBufferBsonInput(new ByteBufNIO(ByteBuffer.wrap(bytes)));
-            BsonBinaryReader reader = new BsonBinaryReader(bsonInput);
-
-            int messageLength = bsonInput.readInt32();
-            int requestId = bsonInput.readInt32();
-            int responseTo = bsonInput.readInt32();
-            int headerOpcode = bsonInput.readInt32();
-
-            if (opcode == 2004) {
-                int flags = bsonInput.readInt32();
-                String collectionName = bsonInput.readCString();
-                databaseName = StringUtils.substringBefore(collectionName, ".$cmd");
-                if (databaseName.equals("local") || databaseName.equals("admin")) {
+        if (opcode >= 0) {
+            WireMessage message = MESSAGE.get().wrap(body, body.position());
+            requestId = message.getRequestId();
+            
+            if (opcode == WireMessage.OP_QUERY) {
+                // checked in place, system database commands are never decoded
+                if (message.isSystemDatabase()) {
                     return;
                 }
+                String collectionName = message.getFullCollectionName();
+                databaseName = StringUtils.substringBefore(collectionName, ".$cmd");
                 if (replayOptions.getIgnoredCollections().contains(collectionName)) {
                     return;
                 }
                 
-                int nskip = bsonInput.readInt32();
-                int nreturn = bsonInput.readInt32();
-                
-                this.commandDoc = documentCodec.decode(reader, decoderContext);
+                this.commandDoc = decodeDocument(message.getQueryDocumentOffset());
                 processCommand(databaseName);
                 //written++;
 
-            } else if (opcode == 2010) {
-                int p1 = bsonInput.getPosition();
-                databaseName = bsonInput.readCString();
-                if (databaseName.equals("local") || databaseName.equals("admin")) {
+            } else if (opcode == WireMessage.OP_COMMAND) {
+                if (message.isSystemDatabase()) {
                     return;
                 }
-                String command = bsonInput.readCString();
-                this.commandDoc = documentCodec.decode(reader, decoderContext);
+                databaseName = message.getDatabaseName();
+                this.commandDoc = decodeDocument(message.getCommandArgsOffset());
                 commandDoc.remove("shardVersion");
                 processCommand(databaseName);
-            } else if (opcode == 2013) {  // OP_MSG
-                int flags = bsonInput.readInt32();
-                boolean moreSections = true;
-                while (moreSections) {
-                    byte kindByte = bsonInput.readByte();
-                    
-                    if (kindByte == 0) {
-                        commandDoc = documentCodec.decode(reader, decoderContext);
-                        
-                        moreSections = messageLength > bsonInput.getPosition();
-                        
+            } else if (opcode == WireMessage.OP_MSG) {
+                if (message.isSystemDatabase()) {
+                    return;
+                }
+                for (int section = message.getFirstSection(); message.hasSection(section); section = message.getNextSection(section)) {
+                    if (message.getSectionKind(section) == Opcode2013.KIND_BODY) {
+                        commandDoc = decodeDocument(message.getBodyDocumentOffset(section));
                         databaseName = commandDoc.getString("$db");
-                        if (databaseName.equals("local") || databaseName.equals("admin")) {
-                            continue;
-                        }
                         
                         commandDoc.remove("lsid");
                         commandDoc.remove("$db");
                         commandDoc.remove("$readPreference");
-                        
-                        if (! moreSections) {
-//                            if (commandDoc.containsKey("count")) {
-//                                System.out.println();
-//                            }
-                            processCommand(databaseName);
-                        }
-                        
                     } else {
-                        //logger.warn("ignored OP_MSG having Section kind 1");
-                        //ignored++;
-                        int p0 = bsonInput.getPosition();
-                        int size = bsonInput.readInt32();
-                        String seq = bsonInput.readCString();
-                        int p1 = bsonInput.getPosition();
-                        int remaining = size - (p1 - p0);
-                        
-                        byte[] mb = new byte[remaining];
-                        
-                        bsonInput.readBytes(mb);
-                        
-                        BsonBinaryReader r2 = new BsonBinaryReader(ByteBuffer.wrap(mb));
-                        Document d1 = documentCodec.decode(r2, decoderContext);
-                        
-                        if (commandDoc != null && commandDoc.containsKey("insert")) {
-                            commandDoc.put("documents", Arrays.asList(d1));
-                            processCommand(databaseName);
-                        } else if (commandDoc != null && commandDoc.containsKey("update")) {
-                            commandDoc.put("updates", Arrays.asList(d1));
-                            processCommand(databaseName);
-                        } else if (commandDoc != null && commandDoc.containsKey("delete")) {
-                            commandDoc.put("deletes", Arrays.asList(d1));
-                            processCommand(databaseName);
-                        } else {
-                            logger.debug("wtf: " + commandDoc);
+                        // document sequence, e.g. insert "documents", fold it back into the command
+                        String identifier = BsonScanner.readCString(body, message.getSequenceIdentifierOffset(section));
+                        List<Document> documents = new ArrayList<Document>();
+                        int sequenceEnd = message.getSequenceEnd(section);
+                        for (int doc = message.getSequenceFirstDocument(section); doc < sequenceEnd; doc = BsonScanner.documentEnd(body, doc)) {
+                            documents.add(decodeDocument(doc));
                         }
-                        
-                        moreSections = messageLength > bsonInput.getPosition();
+                        if (commandDoc == null) {
+                            logger.debug("document sequence before body section: " + identifier);
+                            ignore = true;
+                            return;
+                        }
+                        commandDoc.put(identifier, documents);
                     }
                 }
+                if (commandDoc != null) {
+                    processCommand(databaseName);
+                }
                     
             } else {
                 logger.warn("ignored opcode: " + opcode);
@@ -165,9 +169,15 @@ public class RawReplayTask implements Callable<ReplayResult> {
         }
     }
     
+    private Document decodeDocument(int offset) {
+        ByteBuffer dup = body.duplicate();
+        dup.position(offset);
+        BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(new ByteBufNIO(dup.slice())));
+        return documentCodec.decode(reader, decoderContext);
+    }
+    
     private void processCommand(String databaseName) {
         //System.out.println(commandDoc);
-        Set<String> shape = null;
         if (commandDoc.containsKey("$query")) {
             Document queryDoc = (Document)commandDoc.get("$query");
             commandDoc = queryDoc;
@@ -183,7 +193,7 @@ public class RawReplayTask implements Callable<ReplayResult> {
             command = Command.FIND;
             collectionName = commandDoc.getString("find");
             Document predicates = (Document) commandDoc.get("filter");
-            shape = ShapeUtil.getShape(predicates);
+            queryShape = ShapeUtil.getShapeString(predicates);
         }  else if (commandDoc.containsKey("insert")) {
             command = Command.INSERT;
             collectionName = commandDoc.getString("insert");
@@ -193,7 +203,7 @@ public class RawReplayTask implements Callable<ReplayResult> {
             List<Document> updates = (List<Document>)commandDoc.get("updates");
             for (Document updateDoc : updates) {
                 Document query = (Document)updateDoc.get("q");
-                shape = ShapeUtil.getShape(query);
+                queryShape = ShapeUtil.getShapeString(query);
                 if (replayOptions.getRemoveUpdateFields() != null) {
                     for (String fieldName : replayOptions.getRemoveUpdateFields()) {
                         query.remove(fieldName);
@@ -202,10 +212,19 @@ public class RawReplayTask implements Callable<ReplayResult> {
             }
         }  else if (commandDoc.containsKey("getMore")) {
             command = Command.GETMORE;
-            //getMoreCount++;
-            //ignored++;
-            ignore = true;
-            return;
+            collectionName = commandDoc.getString("collection");
+            // the find / aggregate that opened the cursor ran before on this lane
+            CursorTracker.LiveCursors liveCursors = replayOptions.getLiveCursors();
+            CursorTracker.LiveCursor cursor = liveCursors == null || cursorKey == CursorTracker.NONE ? null
+                    : liveCursors.get(cursorKey);
+            if (cursor == null) {
+                // not tracked, or the command that opened it failed or
+                // already returned everything on the target
+                //ignored++;
+                ignore = true;
+                return;
+            }
+            commandDoc.put("getMore", cursor.getId());
         }  else if (commandDoc.containsKey("aggregate")) {
             command = Command.AGGREGATE;
             List<Document> stages = (List<Document>)commandDoc.get("pipeline");
@@ -242,56 +261,353 @@ public class RawReplayTask implements Callable<ReplayResult> {
             return;
         }
         
-        if (shape != null) {
-            queryShape = shape.toString();
+        Amplifier amplifier = replayOptions.getAmplifier();
+        if (amplifier != null && copy > 0) {
+            amplifier.rewrite(commandDoc, command, copy);
+            collectionName = amplifier.collectionName(collectionName, copy);
+        }
+        if (command == Command.INSERT && replayOptions.isFreshInsertIds()) {
+            Object documents = commandDoc.get("documents");
+            if (documents instanceof List) {
+                for (Object document : (List<?>) documents) {
+                    if (document instanceof Document) {
+                        ((Document) document).put("_id", new ObjectId());
+                    }
+                }
+            }
         }
     }
 
-    @Override
-    public ReplayResult call() {
+    public long getConnectionNum() {
+        return connectionNum;
+    }
+
+    /**
+     * @param copy the amplified copy this task replays, see {@link Amplifier}
+     */
+    public void setCopy(int copy) {
+        this.copy = copy;
+    }
+
+    /**
+     * @param cursorKey see {@link CursorTracker#onRequest(long, ByteBuffer)}
+     */
+    public void setCursorKey(long cursorKey) {
+        this.cursorKey = cursorKey;
+    }
+
+    /**
+     * @param scheduledNanos the {@link System#nanoTime()} at which this task
+     *            was due to run, used to report how far the replay is behind
+     *            schedule
+     */
+    public void setScheduledNanos(long scheduledNanos) {
+        this.scheduledNanos = scheduledNanos;
+    }
+
+    /**
+     * Parse the captured message and decorate the command for replay. Split
+     * out from {@link #call()} so that other engines (e.g. the async engine)
+     * can issue the command themselves.
+     * 
+     * @return false if this operation is not replayed
+     */
+    public boolean prepare() {
+        if (scheduledNanos != 0) {
+            monitor.recordScheduleLag(System.nanoTime() - scheduledNanos);
+        }
         
+        messageLength = body == null ? 0 : body.remaining();
         process();
+        // no longer needed, release the mapping (or decompression buffer)
+        body = null;
         if (command == null || ignore) {
+            return false;
+        }
+        
+        if (command == Command.GETMORE) {
+            // runs with the read / write concern of its cursor
+        } else if (command.isRead()) {
+            if (replayOptions.getReadConcern() != null) {
+                commandDoc.put("readConcern", replayOptions.getReadConcern());
+            }
+        } else {
+            commandDoc.put("writeConcern", replayOptions.getWriteConcern());
+        }
+        return true;
+    }
+    
+    /**
+     * Record the outcome of the replayed command.
+     * 
+     * @param commandResult the server response, null if the command failed
+     * @param error the failure, null on success
+     * @param duration in nanos
+     */
+    public ReplayResult complete(Document commandResult, Throwable error, long duration) {
+        if (error != null) {
+            logger.error("Error executing task", error);
+        }
+        return record(commandResult, error, duration);
+    }
+    
+    /**
+     * {@link #complete(Document, Throwable, long)} without logging the error,
+     * for results shared by several tasks.
+     */
+    ReplayResult record(Document commandResult, Throwable error, long duration) {
+        trackCursor(replayOptions.getLiveCursors(), commandResult);
+        monitor.recordLatency(duration);
+        ReplayResult replayResult = null;
+        if (error != null) {
+            monitor.incrementErrorCount(errorCode(error));
+            // counted as a failed operation, so errors show up per key and interval
+            replayResult = new ReplayResult(queryShape, databaseName, collectionName, command, duration, false);
+            replayStatistics.record(replayResult);
+            return replayResult;
+        }
+        // logger.debug("result: " + result);
+        if (isOk(commandResult)) {
+            monitor.incrementEventCount();
+            replayResult = new ReplayResult(queryShape, databaseName, collectionName, command, duration, true);
+        } else {
+            // event.incrementError(1);
+            replayResult = new ReplayResult(queryShape, databaseName, collectionName, command, duration, false);
+            monitor.incrementErrorCount(errorCode(commandResult));
+        }
+        replayStatistics.record(replayResult);
+        return replayResult;
+    }
+    
+    /**
+     * @return true if ok is 1, whichever numeric type the server returned it
+     *         as (e.g. an int32 from mongos rather than a double)
+     */
+    static boolean isOk(Document commandResult) {
+        Object ok = commandResult == null ? null : commandResult.get("ok");
+        return ok instanceof Number && ((Number) ok).doubleValue() == 1.0;
+    }
+
+    /**
+     * @return the error code name (or code) of a server error, the exception
+     *         class otherwise
+     */
+    private static String errorCode(Throwable error) {
+        if (error instanceof MongoCommandException) {
+            MongoCommandException e = (MongoCommandException) error;
+            return StringUtils.isEmpty(e.getErrorCodeName()) ? String.valueOf(e.getErrorCode()) : e.getErrorCodeName();
+        } else if (error instanceof MongoException) {
+            return String.valueOf(((MongoException) error).getCode());
+        }
+        return error.getClass().getSimpleName();
+    }
+    
+    private static String errorCode(Document commandResult) {
+        Object codeName = commandResult.get("codeName");
+        if (codeName != null) {
+            return codeName.toString();
+        }
+        Object code = commandResult.get("code");
+        return code != null ? code.toString() : "unknown";
+    }
+    
+    /**
+     * Register the cursor opened by a find / aggregate, or forget a cursor
+     * that a getMore exhausted or failed on.
+     */
+    private void trackCursor(CursorTracker.LiveCursors liveCursors, Document commandResult) {
+        if (liveCursors == null) {
+            return;
+        }
+        if (command == Command.GETMORE) {
+            liveCursors.getMoreCompleted(cursorKey, commandResult);
+        } else if (command == Command.FIND || command == Command.AGGREGATE) {
+            liveCursors.opened(CursorTracker.key(connectionNum, requestId), commandResult);
+        }
+    }
+    
+    /**
+     * Record the outcome of the same command on the {@link ComparisonTarget}.
+     * Only the primary target drives the monitor counts.
+     */
+    public ReplayResult completeComparison(Document commandResult, Throwable error, long duration) {
+        if (error != null) {
+            logger.error("Error executing task on comparison target", error);
+        }
+        return recordComparison(commandResult, error, duration);
+    }
+    
+    /**
+     * {@link #completeComparison(Document, Throwable, long)} without logging
+     * the error, for results shared by several tasks.
+     */
+    ReplayResult recordComparison(Document commandResult, Throwable error, long duration) {
+        boolean success = error == null && isOk(commandResult);
+        if (replayOptions.getLiveCursors() != null) {
+            trackCursor(replayOptions.getComparisonTarget().getLiveCursors(), commandResult);
+        }
+        ReplayResult replayResult = new ReplayResult(queryShape, databaseName, collectionName, command, duration, success);
+        replayOptions.getComparisonTarget().getReplayStatistics().record(replayResult);
+        return replayResult;
+    }
+
+    @Override
+    public ReplayResult call() {
+        if (!prepare()) {
             return null;
         }
+        UndoStore undoStore = replayOptions.getUndoStore();
+        if (undoStore != null && !command.isRead()) {
+            // read ahead of the write, outside of its measured latency
+            undoStore.beforeWrite(databaseName, collectionName, command, commandDoc);
+        }
+        InsertCoalescer insertCoalescer = replayOptions.getInsertCoalescer();
+        if (insertCoalescer != null && insertCoalescer.add(this)) {
+            // completed when its batch is sent
+            return null;
+        }
+        LoadController loadController = replayOptions.getLoadController();
+        if (loadController != null) {
+            try {
+                loadController.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        
+        // A/B replay: the comparison copy is sent at the same time from the
+        // same (read only from here on) command document
+        ComparisonTarget comparison = replayOptions.getComparisonTarget();
+        Document comparisonDoc = comparison != null ? comparisonCommand(comparison) : null;
+        Future<?> comparisonResult = null;
+        if (comparisonDoc != null) {
+            comparisonResult = comparison.getExecutor().submit(() -> {
+                long start = System.nanoTime();
+                Document result = null;
+                try {
+                    MongoClient client = comparison.getMongoClient();
+                    result = runCommand(client.getDatabase(databaseName), client.getReadPreference(), comparisonDoc);
+                } catch (Exception e) {
+                    completeComparison(null, e, System.nanoTime() - start);
+                    return;
+                }
+                completeComparison(result, null, System.nanoTime() - start);
+            });
+        }
 
         // event = new TimedEvent();
         long start = System.nanoTime();
-        ReplayResult replayResult = null;
+        Document commandResult = null;
+        Exception error = null;
         try {
-            Document commandResult = null;
-            if (command.isRead()) {
-                 
-                if (replayOptions.getReadConcern() != null) {
-                    commandDoc.put("readConcern", replayOptions.getReadConcern());
-                }
-                commandResult = mongoClient.getDatabase(databaseName).runCommand(commandDoc, mongoClient.getReadPreference());
-                 
+            MongosBalancer mongosBalancer = replayOptions.getMongosBalancer();
+            if (mongosBalancer != null) {
+                // the read preference of the replay URI, the mongos clients have none
+                commandResult = mongosBalancer.execute(client -> runCommand(client.getDatabase(databaseName),
+                        mongoClient.getReadPreference(), commandDoc));
             } else {
-                
-                commandDoc.put("writeConcern", replayOptions.getWriteConcern());
-                commandResult = mongoClient.getDatabase(databaseName).runCommand(commandDoc);
+                commandResult = runCommand(mongoClient.getDatabase(databaseName), mongoClient.getReadPreference(),
+                        commandDoc);
             }
-            long duration = System.nanoTime() - start;
-            // long duration = event.stop();
-            Number ok = (Number) commandResult.get("ok");
-            // logger.debug("result: " + result);
-            if (ok.equals(1.0)) {
-                monitor.incrementEventCount();
-                replayResult = new ReplayResult(queryShape, databaseName, collectionName, command, duration, true);
-            } else {
-                // event.incrementError(1);
-                replayResult = new ReplayResult(queryShape, databaseName, collectionName, command, duration, false);
-                monitor.incrementErrorCount();
+        } catch (Exception e) {
+            error = e;
+        }
+        // long duration = event.stop();
+        long duration = System.nanoTime() - start;
+        
+        if (comparisonResult != null) {
+            // hold the worker (and with it the lane / load controller slot)
+            // until both clusters have answered
+            try {
+                comparisonResult.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.error("Error executing task on comparison target", e.getCause());
             }
+        }
+        
+        // the load controller tracks the primary target only
+        if (error != null) {
+            release(loadController, -1);
+            return complete(null, error, duration);
+        }
+        release(loadController, duration);
+        if (undoStore != null && !command.isRead()) {
+            undoStore.afterWrite(databaseName, collectionName, command, commandDoc, commandResult);
+        }
+        return complete(commandResult, null, duration);
+    }
+    
+    private Document runCommand(MongoDatabase database, ReadPreference readPreference, Document commandDoc) {
+        if (command.isRead()) {
+            return database.runCommand(commandDoc, readPreference);
+        } else {
+            return database.runCommand(commandDoc);
+        }
+    }
+    
+    /**
+     * @return the command for the comparison target: the shared command
+     *         document, except for a getMore, which needs that target's own
+     *         cursor id (null if it has no such cursor)
+     */
+    private Document comparisonCommand(ComparisonTarget comparison) {
+        if (command != Command.GETMORE) {
+            return commandDoc;
+        }
+        CursorTracker.LiveCursor cursor = comparison.getLiveCursors().get(cursorKey);
+        return cursor == null ? null : new Document(commandDoc).append("getMore", cursor.getId());
+    }
+    
+    private static void release(LoadController loadController, long duration) {
+        if (loadController != null) {
+            loadController.release(duration);
+        }
+    }
+    
+    public String getDatabaseName() {
+        return databaseName;
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            logger.error("Error executing task", e);
-            monitor.incrementErrorCount();
+    public String getCollectionName() {
+        return collectionName;
+    }
+
+    /**
+     * @return the size of the captured message
+     */
+    public int getMessageLength() {
+        return messageLength;
+    }
+
+    /**
+     * @return the document of a single document insert, null for any other
+     *         command
+     */
+    public Document getSingleInsertDocument() {
+        if (command != Command.INSERT) {
+            return null;
         }
+        Object documents = commandDoc.get("documents");
+        if (!(documents instanceof List) || ((List<?>) documents).size() != 1) {
+            return null;
+        }
+        Object document = ((List<?>) documents).get(0);
+        return document instanceof Document ? (Document) document : null;
+    }
 
-        // monitor.add(event);
-        return replayResult;
+    public Document getCommandDoc() {
+        return commandDoc;
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    @Override
+    public void run() {
+        call();
     }
 }
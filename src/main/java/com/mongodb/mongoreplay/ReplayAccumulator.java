@@ -1,12 +1,69 @@
 package com.mongodb.mongoreplay;
 
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Latency distribution for a single {@link AccumulatorKey}. Backed by a fixed
+ * size HDR histogram (microsecond resolution, 2 significant digits), so memory
+ * use does not grow with the number of recorded operations. Safe for
+ * concurrent recording from worker threads.
+ */
 public class ReplayAccumulator {
-    
-    private String dbName;
-    private String collName;
-    private String shape;
-    DescriptiveStatistics executionStats = new DescriptiveStatistics();
+
+    public static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+    public static final int SIGNIFICANT_DIGITS = 2;
+
+    private final AccumulatorKey key;
+    private final ConcurrentHistogram executionStats = newHistogram();
+    private final LongAdder errors = new LongAdder();
+
+    public ReplayAccumulator(AccumulatorKey key) {
+        this.key = key;
+    }
+
+    public static ConcurrentHistogram newHistogram() {
+        return new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+    }
+
+    public static long toMicros(long durationNanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(durationNanos);
+        return Math.min(Math.max(micros, 0), HIGHEST_TRACKABLE_MICROS);
+    }
+
+    public void record(long durationNanos, boolean success) {
+        executionStats.recordValue(toMicros(durationNanos));
+        if (!success) {
+            errors.increment();
+        }
+    }
+
+    /**
+     * Add results recorded elsewhere, e.g. by another replay process.
+     * 
+     * @param histogram latencies in microseconds
+     */
+    public void add(Histogram histogram, long errorCount) {
+        executionStats.add(histogram);
+        errors.add(errorCount);
+    }
+
+    public AccumulatorKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return a point in time copy of the latency histogram, in microseconds
+     */
+    public Histogram getHistogram() {
+        return executionStats.copy();
+    }
+
+    public long getErrorCount() {
+        return errors.sum();
+    }
 
 }
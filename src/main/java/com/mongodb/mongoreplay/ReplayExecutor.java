@@ -0,0 +1,29 @@
+package com.mongodb.mongoreplay;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The execution engine that replayed operations are handed to, either
+ * directly by the reader or by the {@link ReplayScheduler}.
+ */
+public interface ReplayExecutor extends Executor {
+
+    int getActiveCount();
+
+    int getQueueSize();
+
+    /**
+     * @return the number of worker threads (or lanes)
+     */
+    int getPoolSize();
+
+    void shutdown();
+
+    void shutdownNow();
+
+    boolean isTerminated();
+
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+
+}
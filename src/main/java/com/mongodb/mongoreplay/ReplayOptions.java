@@ -7,6 +7,8 @@ import org.bson.BsonDocument;
 import org.bson.BsonString;
 
 import com.mongodb.ReadConcernLevel;
+import com.mongodb.mongoreplay.undo.UndoStore;
+import com.mongodb.shardsync.MongosBalancer;
 
 public class ReplayOptions {
     
@@ -17,6 +19,22 @@ public class ReplayOptions {
     
     private BsonDocument readConcernDocument;
     
+    private LoadController loadController;
+    
+    private ComparisonTarget comparisonTarget;
+    
+    private CursorTracker.LiveCursors liveCursors;
+    
+    private InsertCoalescer insertCoalescer;
+    
+    private Amplifier amplifier;
+    
+    private UndoStore undoStore;
+    
+    private MongosBalancer mongosBalancer;
+
+    private boolean freshInsertIds;
+    
     // readConcern: { level: "majority" }
 
     public Set<String> getIgnoredCollections() {
@@ -51,6 +69,97 @@ public class ReplayOptions {
     public BsonDocument getReadConcern() {
         return readConcernDocument;
     }
+
+    /**
+     * @return the rate / latency controller, or null if replay is not throttled
+     */
+    public LoadController getLoadController() {
+        return loadController;
+    }
+
+    public void setLoadController(LoadController loadController) {
+        this.loadController = loadController;
+    }
+
+    /**
+     * @return the second cluster of an A/B replay, or null
+     */
+    public ComparisonTarget getComparisonTarget() {
+        return comparisonTarget;
+    }
+
+    public void setComparisonTarget(ComparisonTarget comparisonTarget) {
+        this.comparisonTarget = comparisonTarget;
+    }
+
+    /**
+     * @return cursors opened on the target, null unless getMores are replayed
+     */
+    public CursorTracker.LiveCursors getLiveCursors() {
+        return liveCursors;
+    }
+
+    public void setLiveCursors(CursorTracker.LiveCursors liveCursors) {
+        this.liveCursors = liveCursors;
+    }
+
+    /**
+     * @return the insert batching of the write-coalescing stress mode, or null
+     */
+    public InsertCoalescer getInsertCoalescer() {
+        return insertCoalescer;
+    }
+
+    public void setInsertCoalescer(InsertCoalescer insertCoalescer) {
+        this.insertCoalescer = insertCoalescer;
+    }
+
+    /**
+     * @return the rewriting of amplified copies, or null
+     */
+    public Amplifier getAmplifier() {
+        return amplifier;
+    }
+
+    public void setAmplifier(Amplifier amplifier) {
+        this.amplifier = amplifier;
+    }
+
+    /**
+     * @return the recording of pre-images for reverting the replay, or null
+     */
+    public UndoStore getUndoStore() {
+        return undoStore;
+    }
+
+    public void setUndoStore(UndoStore undoStore) {
+        this.undoStore = undoStore;
+    }
+
+    /**
+     * @return the balancer spreading operations over all mongos, or null to
+     *         send everything through the replay client
+     */
+    public MongosBalancer getMongosBalancer() {
+        return mongosBalancer;
+    }
+
+    public void setMongosBalancer(MongosBalancer mongosBalancer) {
+        this.mongosBalancer = mongosBalancer;
+    }
+
+    /**
+     * @return true if inserted documents get a new ObjectId <code>_id</code>
+     *         instead of the captured one, for requests that are sent more
+     *         than once (e.g. by the {@link WorkloadGenerator})
+     */
+    public boolean isFreshInsertIds() {
+        return freshInsertIds;
+    }
+
+    public void setFreshInsertIds(boolean freshInsertIds) {
+        this.freshInsertIds = freshInsertIds;
+    }
     
     
 
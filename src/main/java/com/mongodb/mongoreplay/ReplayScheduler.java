@@ -0,0 +1,88 @@
+package com.mongodb.mongoreplay;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.util.TimerWheel;
+
+/**
+ * Schedules replayed operations at their original offset from the first
+ * captured <code>seen</code> timestamp, scaled by a speed multiplier (2.0
+ * replays twice as fast as captured, 0.5 at half speed).
+ *
+ * The reader is only allowed to run a short distance ahead of the schedule so
+ * that the number of pending tasks stays bounded.
+ */
+public class ReplayScheduler {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long LOOKAHEAD_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final TimerWheel wheel;
+    private final double speed;
+
+    private boolean started;
+    private long firstSeenSec;
+    private long firstSeenNsec;
+    private long startNanos;
+
+    public ReplayScheduler(Executor executor, double speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("speed must be > 0, was " + speed);
+        }
+        this.speed = speed;
+        this.wheel = new TimerWheel(executor, 1, TimeUnit.MILLISECONDS, 4096);
+    }
+
+    public void start() {
+        wheel.start();
+    }
+
+    /**
+     * Anchor the schedule on the first seen time of the capture, taken before
+     * any partition filtering, so that the workers of a distributed replay
+     * share one time origin. Without it the first scheduled task is the
+     * origin. Ignored once the schedule is anchored.
+     */
+    public void setOrigin(long seenSec, long seenNsec) {
+        if (!started) {
+            started = true;
+            firstSeenSec = seenSec;
+            firstSeenNsec = seenNsec;
+            startNanos = System.nanoTime();
+        }
+    }
+
+    public boolean hasOrigin() {
+        return started;
+    }
+
+    /**
+     * Schedule task for its captured time. Blocks the caller while the task is
+     * further than the lookahead window in the future.
+     */
+    public void schedule(RawReplayTask task, long seenSec, long seenNsec) throws InterruptedException {
+        setOrigin(seenSec, seenNsec);
+        long offset = (seenSec - firstSeenSec) * NANOS_PER_SECOND + (seenNsec - firstSeenNsec);
+        long target = startNanos + (long) (offset / speed);
+
+        long ahead = target - System.nanoTime() - LOOKAHEAD_NANOS;
+        if (ahead > 0) {
+            TimeUnit.NANOSECONDS.sleep(ahead);
+        }
+        task.setScheduledNanos(target);
+        wheel.schedule(task, target);
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Wait for all scheduled operations to be dispatched, then stop the wheel.
+     */
+    public void drainAndStop() throws InterruptedException {
+        wheel.drainAndStop();
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.mongodb.mongoreplay;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Streaming aggregation of replay results. Workers record each result at
+ * completion time into a per {@link AccumulatorKey} histogram, so nothing is
+ * retained per operation and percentiles can be read while the replay is
+ * still running.
+ */
+public class ReplayStatistics {
+
+    private final ConcurrentMap<AccumulatorKey, ReplayAccumulator> accumulators = new ConcurrentHashMap<AccumulatorKey, ReplayAccumulator>();
+
+    private final ConcurrentHistogram total = ReplayAccumulator.newHistogram();
+
+    private ReplayTimeSeries timeSeries;
+
+    /**
+     * One accumulator as written by {@link ReplayStatistics#write(File)}, with
+     * the histogram in the compressed HdrHistogram encoding.
+     */
+    private static class ResultEntry {
+        String dbName;
+        String collName;
+        Command command;
+        String shape;
+        long errors;
+        String histogram;
+    }
+
+    public void record(ReplayResult result) {
+        AccumulatorKey key = new AccumulatorKey(result.getDbName(), result.getCollectionName(), result.getCommand(),
+                result.getQueryShape());
+        ReplayAccumulator accumulator = accumulators.get(key);
+        if (accumulator == null) {
+            accumulator = accumulators.computeIfAbsent(key, ReplayAccumulator::new);
+        }
+        long duration = (long) result.getDuration();
+        accumulator.record(duration, result.isSuccess());
+        long micros = ReplayAccumulator.toMicros(duration);
+        total.recordValue(micros);
+        if (timeSeries != null) {
+            timeSeries.record(key, micros, result.isSuccess());
+        }
+    }
+
+    /**
+     * Also record every result into timeSeries, null to stop.
+     */
+    public void setTimeSeries(ReplayTimeSeries timeSeries) {
+        this.timeSeries = timeSeries;
+    }
+
+    public Collection<ReplayAccumulator> getAccumulators() {
+        return accumulators.values();
+    }
+
+    /**
+     * @return the accumulator for key, null if nothing was recorded for it
+     */
+    public ReplayAccumulator getAccumulator(AccumulatorKey key) {
+        return accumulators.get(key);
+    }
+
+    /**
+     * Write the accumulated results so that they can be combined with those
+     * of other replay processes, see {@link #merge(File)}.
+     */
+    public void write(File file) throws IOException {
+        List<ResultEntry> entries = new ArrayList<ResultEntry>();
+        for (ReplayAccumulator accumulator : accumulators.values()) {
+            AccumulatorKey key = accumulator.getKey();
+            Histogram histogram = accumulator.getHistogram();
+            ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+            int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+            ResultEntry entry = new ResultEntry();
+            entry.dbName = key.getDbName();
+            entry.collName = key.getCollName();
+            entry.command = key.getCommand();
+            entry.shape = key.getShape();
+            entry.errors = accumulator.getErrorCount();
+            entry.histogram = Base64.getEncoder().encodeToString(Arrays.copyOf(buffer.array(), length));
+            entries.add(entry);
+        }
+        try (Writer writer = new FileWriter(file)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(entries, writer);
+        }
+    }
+
+    /**
+     * Add the results written by {@link #write(File)}.
+     */
+    public void merge(File file) throws IOException {
+        List<ResultEntry> entries;
+        try (Reader reader = new FileReader(file)) {
+            entries = new Gson().fromJson(reader, new TypeToken<List<ResultEntry>>() {
+            }.getType());
+        }
+        if (entries == null) {
+            return;
+        }
+        for (ResultEntry entry : entries) {
+            Histogram histogram;
+            try {
+                histogram = Histogram.decodeFromCompressedByteBuffer(
+                        ByteBuffer.wrap(Base64.getDecoder().decode(entry.histogram)), 0);
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid histogram in " + file, e);
+            }
+            AccumulatorKey key = new AccumulatorKey(entry.dbName, entry.collName, entry.command, entry.shape);
+            accumulators.computeIfAbsent(key, ReplayAccumulator::new).add(histogram, entry.errors);
+            total.add(histogram);
+        }
+    }
+
+    /**
+     * @return a point in time copy of the latency histogram across all keys,
+     *         in microseconds
+     */
+    public Histogram getTotalHistogram() {
+        return total.copy();
+    }
+
+}
@@ -0,0 +1,177 @@
+package com.mongodb.mongoreplay;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per interval latency time series of a replay run. Every interval the
+ * latencies recorded for each {@link AccumulatorKey} (and in total) are
+ * snapshotted and written to:
+ * <ul>
+ * <li><code>&lt;prefix&gt;.csv</code>: throughput, errors and p50/p95/p99/p999
+ * per key and interval, for plotting</li>
+ * <li><code>&lt;prefix&gt;.hlog</code>: the interval histograms themselves, in
+ * the HdrHistogram log format (tagged by key), which can be merged and
+ * compared across runs with HistogramLogReader / HistogramLogAnalyzer</li>
+ * </ul>
+ */
+public class ReplayTimeSeries {
+
+    protected static final Logger logger = LoggerFactory.getLogger(ReplayTimeSeries.class);
+
+    private static final String TOTAL = "TOTAL";
+    private static final double MICROS_TO_MILLIS = 1000.0;
+
+    private static class Series {
+        final Recorder recorder = new Recorder(ReplayAccumulator.HIGHEST_TRACKABLE_MICROS,
+                ReplayAccumulator.SIGNIFICANT_DIGITS);
+        final LongAdder errors = new LongAdder();
+        Histogram interval;
+    }
+
+    private final ConcurrentMap<AccumulatorKey, Series> series = new ConcurrentHashMap<AccumulatorKey, Series>();
+    private final Series total = new Series();
+
+    private final long intervalMillis;
+    private final PrintWriter csv;
+    private final PrintStream hlogStream;
+    private final HistogramLogWriter hlog;
+    private final ScheduledExecutorService executor;
+    private final long startMillis;
+
+    /**
+     * @param prefix output file prefix, .csv and .hlog are appended
+     * @param intervalMillis snapshot interval
+     */
+    public ReplayTimeSeries(String prefix, long intervalMillis) throws FileNotFoundException {
+        this.intervalMillis = intervalMillis;
+        this.startMillis = System.currentTimeMillis();
+
+        this.csv = new PrintWriter(new File(prefix + ".csv"));
+        csv.println("time,elapsed,namespace,command,shape,count,errors,opsPerSec,p50,p95,p99,p999,max");
+
+        this.hlogStream = new PrintStream(new File(prefix + ".hlog"));
+        this.hlog = new HistogramLogWriter(hlogStream);
+        hlog.outputComment("mongoreplay latency, microseconds");
+        hlog.outputLogFormatVersion();
+        hlog.outputStartTime(startMillis);
+        hlog.setBaseTime(startMillis);
+        hlog.outputLegend();
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "time-series");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::snapshot, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void record(AccumulatorKey key, long micros, boolean success) {
+        Series s = series.get(key);
+        if (s == null) {
+            s = series.computeIfAbsent(key, k -> new Series());
+        }
+        s.recorder.recordValue(micros);
+        total.recorder.recordValue(micros);
+        if (!success) {
+            s.errors.increment();
+            total.errors.increment();
+        }
+    }
+
+    private synchronized void snapshot() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<AccumulatorKey, Series> entry : series.entrySet()) {
+                AccumulatorKey key = entry.getKey();
+                String command = key.getCommand().name();
+                write(now, entry.getValue(), key.getNamespace(), command, key.getShape(),
+                        tag(key.getNamespace(), command, key.getShape()));
+            }
+            // the untagged histograms are the totals
+            write(now, total, TOTAL, "", null, null);
+            csv.flush();
+            hlogStream.flush();
+        } catch (RuntimeException e) {
+            // never let the scheduled task die silently
+            logger.error("Error writing time series", e);
+        }
+    }
+
+    /**
+     * @param tag hlog tag, null for the total, which is written even if
+     *            nothing was recorded in the interval
+     */
+    private void write(long now, Series s, String namespace, String command, String shape, String tag) {
+        s.interval = s.recorder.getIntervalHistogram(s.interval);
+        long errors = s.errors.sumThenReset();
+        Histogram h = s.interval;
+        long count = h.getTotalCount();
+        if (count == 0 && errors == 0 && tag != null) {
+            return;
+        }
+        double seconds = (h.getEndTimeStamp() - h.getStartTimeStamp()) / 1000.0;
+        csv.println(String.format("%d,%.3f,%s,%s,%s,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f", now,
+                (now - startMillis) / 1000.0, csvValue(namespace), command, csvValue(shape), count, errors,
+                seconds > 0 ? count / seconds : 0.0, millis(h, 50.0), millis(h, 95.0), millis(h, 99.0),
+                millis(h, 99.9), h.getMaxValue() / MICROS_TO_MILLIS));
+        h.setTag(tag);
+        hlog.outputIntervalHistogram(h);
+    }
+
+    private static double millis(Histogram h, double percentile) {
+        return h.getValueAtPercentile(percentile) / MICROS_TO_MILLIS;
+    }
+
+    private static String csvValue(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0) {
+            return '"' + value.replace("\"", "\"\"") + '"';
+        }
+        return value;
+    }
+
+    /**
+     * hlog tags may not contain commas or whitespace
+     */
+    private static String tag(String namespace, String command, String shape) {
+        StringBuilder tag = new StringBuilder(namespace).append('/').append(command);
+        if (shape != null) {
+            tag.append('/').append(shape);
+        }
+        return tag.toString().replaceAll("[,\\s]+", "_");
+    }
+
+    /**
+     * Write the final (partial) interval and close the output files.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(intervalMillis * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshot();
+        csv.close();
+        hlogStream.close();
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.mongodb.mongoreplay;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.util.VirtualThreadExecutor;
+
+/**
+ * Runs every replayed operation on its own (virtual, on Java 21+) thread, up
+ * to maxInFlight at once. The reader blocks in {@link #execute(Runnable)}
+ * while the limit is reached, so nothing queues up here; with the blocking
+ * driver, the limit rather than a worker pool size bounds the operations in
+ * flight.
+ */
+public class VirtualReplayExecutor implements ReplayExecutor {
+
+    protected static final Logger logger = LoggerFactory.getLogger(VirtualReplayExecutor.class);
+
+    private final VirtualThreadExecutor executor;
+
+    /**
+     * @param maxInFlight maximum number of operations running at once
+     */
+    public VirtualReplayExecutor(int maxInFlight) {
+        this.executor = new VirtualThreadExecutor("replay", maxInFlight);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        executor.execute(() -> {
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                logger.error("Error executing task", e);
+            }
+        });
+    }
+
+    @Override
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return 0;
+    }
+
+    /**
+     * @return the in-flight limit
+     */
+    @Override
+    public int getPoolSize() {
+        return executor.getMaxConcurrency();
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return executor.toString();
+    }
+
+}
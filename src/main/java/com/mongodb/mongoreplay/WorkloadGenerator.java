@@ -0,0 +1,107 @@
+package com.mongodb.mongoreplay;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drive synthetic load from a {@link WorkloadModel} (see
+ * {@link WorkloadModelExtractor}) with the replay engine: every operation is
+ * a sampled captured request of an entry drawn from the modeled op mix, and
+ * is executed by a {@link RawReplayTask} like a replayed one, so results are
+ * reported per namespace / shape / command as by {@link MongoReplay}.
+ *
+ * With -s the requests are spaced by inter-arrival times drawn from the
+ * model, at that multiple of the captured rate; otherwise they are sent as
+ * fast as the workers allow, optionally held to --rate or --targetP99. The
+ * run ends after --duration seconds (by default the modeled duration) or -l
+ * operations.
+ *
+ * A sample is sent many times, so inserted documents get a new ObjectId
+ * <code>_id</code> each time rather than the captured one, which would fail
+ * with a duplicate key error after the first insert. Updates and deletes
+ * keep their captured filters.
+ */
+public class WorkloadGenerator extends AbstractMongoReplayUtil {
+
+    private final static long NANOS_PER_SECOND = 1000000000L;
+
+    private WorkloadModel model;
+
+    public void execute() throws NoSuchMethodException, SecurityException, IllegalAccessException,
+            IllegalArgumentException, InvocationTargetException, IOException {
+        if (fileNames.length != 1) {
+            throw new IllegalArgumentException("-f takes one workload model file");
+        }
+        model = WorkloadModel.read(new File(fileNames[0]));
+        if (durationSeconds == 0) {
+            double seconds = speed > 0 ? model.getDurationSeconds() / speed : model.getDurationSeconds();
+            setDurationSeconds(Math.max(1, (long) Math.ceil(seconds)));
+        }
+        logger.debug(String.format("Generating %s entries of %s for %s s", model.getEntries().size(), fileNames[0],
+                durationSeconds));
+
+        getReplayOptions().setFreshInsertIds(true);
+        init();
+        awaitStartTime();
+        generate();
+
+        logger.debug("All operations submitted, waiting for completion");
+        close();
+
+        if (resultsFile != null) {
+            try {
+                replayStatistics.write(resultsFile);
+                logger.debug("Results written to " + resultsFile);
+            } catch (IOException e) {
+                logger.error("Unable to write results to " + resultsFile, e);
+            }
+        }
+        MongoReplay.report(replayStatistics);
+    }
+
+    private void generate() {
+        Random random = ThreadLocalRandom.current();
+        // spread over as many connections as were typically active
+        long connections = Math.max(model.getConnectionsP50(), 1);
+        // synthetic seen time, only used to schedule with -s
+        long seenNanos = 0;
+        try {
+            while (!isDone()) {
+                WorkloadModel.Entry entry = model.nextEntry(random);
+                if (entry.getSampleCount() == 0) {
+                    continue;
+                }
+                ByteBuffer body = entry.getSample(random.nextInt(entry.getSampleCount()));
+                int opcode = body.getInt(body.position() + 12);
+                submit(opcode, (long) (random.nextDouble() * connections), body, CursorTracker.NONE,
+                        seenNanos / NANOS_PER_SECOND, seenNanos % NANOS_PER_SECOND);
+                seenNanos += model.nextInterArrivalNanos(random);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("interrupted while generating operations");
+        }
+        logger.debug(String.format("%s operations generated", count));
+    }
+
+    /**
+     * getMores are not modeled, the cursors of sampled requests do not exist.
+     */
+    @Override
+    public void setTrackCursors(boolean trackCursors) {
+        if (trackCursors) {
+            throw new IllegalArgumentException("--getMore is not supported by the workload generator");
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.parseArgs(args);
+        generator.execute();
+    }
+
+}
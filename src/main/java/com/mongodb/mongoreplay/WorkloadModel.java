@@ -0,0 +1,243 @@
+package com.mongodb.mongoreplay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * A compact statistical description of a capture, extracted by
+ * {@link WorkloadModelExtractor} and played by {@link WorkloadGenerator}: the
+ * op mix by namespace, command and query shape, the distribution of the time
+ * between requests, the number of concurrent connections, and for every
+ * entry of the mix a uniform (reservoir) sample of the captured requests,
+ * which carries the distribution of their parameters.
+ *
+ * Stored as JSON. Samples are the complete (decompressed) wire protocol
+ * messages, base64 encoded, so they are replayed exactly as captured.
+ */
+public class WorkloadModel {
+
+    /**
+     * One namespace / command / query shape of the op mix.
+     */
+    public static class Entry {
+        private String namespace;
+        private String command;
+        private String shape;
+        private long count;
+        private List<String> samples = new ArrayList<String>();
+
+        // decoded on first use
+        private transient volatile byte[][] decoded;
+
+        Entry() {
+        }
+
+        Entry(String namespace, String command, String shape, long count, List<byte[]> samples) {
+            this.namespace = namespace;
+            this.command = command;
+            this.shape = shape;
+            this.count = count;
+            for (byte[] sample : samples) {
+                this.samples.add(Base64.getEncoder().encodeToString(sample));
+            }
+        }
+
+        public String getNamespace() {
+            return namespace;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * @return the query shape, null for commands without a predicate
+         */
+        public String getShape() {
+            return shape;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public int getSampleCount() {
+            return samples.size();
+        }
+
+        /**
+         * @return a new little endian buffer over sample i, the message
+         *         including its header
+         */
+        public ByteBuffer getSample(int i) {
+            byte[][] d = decoded;
+            if (d == null) {
+                d = new byte[samples.size()][];
+                for (int j = 0; j < d.length; j++) {
+                    d[j] = Base64.getDecoder().decode(samples.get(j));
+                }
+                decoded = d;
+            }
+            return ByteBuffer.wrap(d[i]).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private List<String> files = new ArrayList<String>();
+    private long requests;
+    // requests of namespaces / commands / shapes beyond capacity, not modeled
+    private long otherRequests;
+    private double durationSeconds;
+    private double opsPerSecond;
+    private long connectionsP50;
+    private long connectionsP99;
+    private long connectionsMax;
+    // { from, to micros, count } buckets of the time between requests
+    private long[][] interArrivalMicros;
+    private List<Entry> entries = new ArrayList<Entry>();
+
+    // sampling state, built on first use
+    private transient long[] cumulativeCounts;
+    private transient long[] cumulativeInterArrivals;
+
+    WorkloadModel() {
+    }
+
+    WorkloadModel(List<String> files, long requests, long otherRequests, double durationSeconds, long connectionsP50,
+            long connectionsP99, long connectionsMax, long[][] interArrivalMicros, List<Entry> entries) {
+        this.files = files;
+        this.requests = requests;
+        this.otherRequests = otherRequests;
+        this.durationSeconds = durationSeconds;
+        this.opsPerSecond = durationSeconds > 0 ? requests / durationSeconds : 0;
+        this.connectionsP50 = connectionsP50;
+        this.connectionsP99 = connectionsP99;
+        this.connectionsMax = connectionsMax;
+        this.interArrivalMicros = interArrivalMicros;
+        this.entries = entries;
+    }
+
+    private static Gson gson() {
+        return new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+    }
+
+    public static WorkloadModel read(File file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            WorkloadModel model = gson().fromJson(reader, WorkloadModel.class);
+            if (model == null || model.entries.isEmpty()) {
+                throw new IOException(file + " holds no workload model entries");
+            }
+            return model;
+        }
+    }
+
+    public void write(File file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            gson().toJson(this, writer);
+        }
+    }
+
+    /**
+     * @return an entry of the mix, chosen with probability proportional to
+     *         its captured count
+     */
+    public Entry nextEntry(Random random) {
+        if (cumulativeCounts == null) {
+            long[] cumulative = new long[entries.size()];
+            long sum = 0;
+            for (int i = 0; i < cumulative.length; i++) {
+                sum += Math.max(entries.get(i).count, 1);
+                cumulative[i] = sum;
+            }
+            cumulativeCounts = cumulative;
+        }
+        return entries.get(pick(cumulativeCounts, random));
+    }
+
+    /**
+     * @return a time between two requests drawn from the captured
+     *         distribution, uniform within its histogram bucket
+     */
+    public long nextInterArrivalNanos(Random random) {
+        if (interArrivalMicros == null || interArrivalMicros.length == 0) {
+            return opsPerSecond > 0 ? (long) (1e9 / opsPerSecond) : 0;
+        }
+        if (cumulativeInterArrivals == null) {
+            long[] cumulative = new long[interArrivalMicros.length];
+            long sum = 0;
+            for (int i = 0; i < cumulative.length; i++) {
+                sum += interArrivalMicros[i][2];
+                cumulative[i] = sum;
+            }
+            cumulativeInterArrivals = cumulative;
+        }
+        int bucket = pick(cumulativeInterArrivals, random);
+        long[] range = interArrivalMicros[bucket];
+        double micros = range[0] + random.nextDouble() * (range[1] - range[0]);
+        return (long) (micros * 1000);
+    }
+
+    /**
+     * @return the index of the first cumulative weight above a uniform draw
+     */
+    private static int pick(long[] cumulative, Random random) {
+        long total = cumulative[cumulative.length - 1];
+        long r = (long) (random.nextDouble() * total);
+        int i = Arrays.binarySearch(cumulative, r + 1);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    public List<String> getFiles() {
+        return files;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getOtherRequests() {
+        return otherRequests;
+    }
+
+    public double getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public double getOpsPerSecond() {
+        return opsPerSecond;
+    }
+
+    /**
+     * @return the median number of distinct connections sending requests
+     *         per second
+     */
+    public long getConnectionsP50() {
+        return connectionsP50;
+    }
+
+    public long getConnectionsP99() {
+        return connectionsP99;
+    }
+
+    public long getConnectionsMax() {
+        return connectionsMax;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+}
@@ -0,0 +1,298 @@
+package com.mongodb.mongoreplay;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.DataFormatException;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.mongoreplay.opcodes.Opcode2012;
+import com.mongodb.mongoreplay.opcodes.WireMessage;
+import com.mongodb.util.HyperLogLog;
+import com.mongodb.util.ShapeUtil;
+
+/**
+ * Builds a {@link WorkloadModel} from (a segment of) a capture in a single
+ * pass, the way {@link CaptureProfile} does: headers, namespaces and
+ * predicates are read in place, and a request is only copied when it is
+ * taken into the sample of its namespace / command / shape.
+ *
+ * Only the commands {@link RawReplayTask} replays are modeled. getMores are
+ * left out as well, their cursors do not exist when the samples are played.
+ * Builders of different segments are combined with
+ * {@link #merge(WorkloadModelBuilder)}; not thread safe.
+ */
+public class WorkloadModelBuilder {
+
+    protected static final Logger logger = LoggerFactory.getLogger(WorkloadModelBuilder.class);
+
+    private final static int HLL_PRECISION = 8;
+    private final static long NANOS_PER_SECOND = 1000000000L;
+    private final static long MAX_INTER_ARRIVAL_MICROS = 3600L * 1000 * 1000;
+
+    private final static Set<String> MODELED = new HashSet<String>(Arrays.asList("find", "insert", "update",
+            "delete", "aggregate", "count", "findandmodify"));
+
+    /**
+     * Count and uniform sample of the requests of one namespace / command /
+     * shape.
+     */
+    private static class Reservoir {
+        private final String namespace;
+        private final String command;
+        private final String shape;
+        private long count;
+        private final List<byte[]> samples = new ArrayList<byte[]>();
+
+        Reservoir(String namespace, String command, String shape) {
+            this.namespace = namespace;
+            this.command = command;
+            this.shape = shape;
+        }
+    }
+
+    private final int capacity;
+    private final int sampleSize;
+
+    private long requests;
+    private long otherRequests;
+    private final Map<String, Reservoir> reservoirs = new LinkedHashMap<String, Reservoir>();
+
+    private final Histogram interArrivals = new Histogram(MAX_INTER_ARRIVAL_MICROS, 3);
+    private long lastSeenNanos = Long.MIN_VALUE;
+
+    private final TreeMap<Long, HyperLogLog> connections = new TreeMap<Long, HyperLogLog>();
+    private long lastSecond = Long.MIN_VALUE;
+    private HyperLogLog current;
+
+    // captured span of the open file, and the summed spans of closed ones
+    private long firstNanos = Long.MAX_VALUE;
+    private long lastNanos = Long.MIN_VALUE;
+    private long durationNanos;
+
+    private final List<String> files = new ArrayList<String>();
+    private final WireMessage message = new WireMessage();
+
+    /**
+     * @param capacity number of namespace / command / shape entries modeled,
+     *            requests of further entries are only counted
+     * @param sampleSize number of requests sampled per entry
+     */
+    public WorkloadModelBuilder(int capacity, int sampleSize) {
+        this.capacity = capacity;
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Add the records starting in [start, end) of file.
+     */
+    public void add(File file, long start, long end) throws IOException {
+        try (CaptureReader reader = CaptureReader.open(file)) {
+            reader.seek(start);
+            while (reader.next() && reader.getRecordOffset() < end) {
+                add(reader);
+            }
+        }
+    }
+
+    void add(CaptureReader reader) {
+        if (!reader.hasRawOp() || reader.getResponseTo() != 0) {
+            return;
+        }
+        ByteBuffer body = reader.getBody();
+        if (body == null || body.remaining() < WireMessage.HEADER_LENGTH) {
+            return;
+        }
+        requests++;
+
+        long sec = reader.getSeenSeconds();
+        if (sec >= 0) {
+            long seen = CaptureIndex.toUnixNanos(sec, reader.getSeenNanos());
+            if (lastSeenNanos != Long.MIN_VALUE && seen >= lastSeenNanos) {
+                interArrivals.recordValue(Math.min((seen - lastSeenNanos) / 1000, MAX_INTER_ARRIVAL_MICROS));
+            }
+            lastSeenNanos = seen;
+            firstNanos = Math.min(firstNanos, seen);
+            lastNanos = Math.max(lastNanos, seen);
+
+            long second = seen / NANOS_PER_SECOND;
+            if (second != lastSecond) {
+                current = connections.computeIfAbsent(second, s -> new HyperLogLog(HLL_PRECISION));
+                lastSecond = second;
+            }
+            current.add(reader.getSeenConnectionNum());
+        }
+
+        int opcode = reader.getOpcode();
+        if (opcode == WireMessage.OP_COMPRESSED) {
+            try {
+                body = Opcode2012.decompress(body);
+            } catch (DataFormatException e) {
+                otherRequests++;
+                return;
+            }
+            opcode = body.getInt(body.position() + 12);
+        }
+        if (opcode != WireMessage.OP_QUERY && opcode != WireMessage.OP_COMMAND && opcode != WireMessage.OP_MSG) {
+            otherRequests++;
+            return;
+        }
+        try {
+            addCommand(message.wrap(body, body.position()), body);
+        } catch (RuntimeException e) {
+            logger.trace("Unable to parse message", e);
+            otherRequests++;
+        }
+    }
+
+    private void addCommand(WireMessage message, ByteBuffer body) {
+        if (message.isSystemDatabase()
+                || (message.getOpcode() == WireMessage.OP_QUERY && !message.getFullCollectionName().endsWith(".$cmd"))) {
+            otherRequests++;
+            return;
+        }
+        String command = message.getCommandName();
+        if (command == null || !MODELED.contains(command)) {
+            otherRequests++;
+            return;
+        }
+        int doc = message.getCommandDocumentOffset();
+        String namespace = message.getDatabaseName() + "." + CaptureProfile.collectionName(message, doc);
+        int predicate = CaptureProfile.predicateOffset(message, doc, command);
+        String shape = predicate >= 0 ? ShapeUtil.getShapeString(message.getBuffer(), predicate) : null;
+
+        String key = namespace + " " + command + " " + shape;
+        Reservoir reservoir = reservoirs.get(key);
+        if (reservoir == null) {
+            if (reservoirs.size() >= capacity) {
+                otherRequests++;
+                return;
+            }
+            reservoir = new Reservoir(namespace, command, shape);
+            reservoirs.put(key, reservoir);
+        }
+        reservoir.count++;
+        // algorithm R, the i-th request replaces a sample with probability k / i
+        int slot = reservoir.samples.size() < sampleSize ? reservoir.samples.size()
+                : (int) Math.min(ThreadLocalRandom.current().nextLong(reservoir.count), Integer.MAX_VALUE);
+        if (slot < sampleSize) {
+            byte[] copy = new byte[body.remaining()];
+            body.duplicate().get(copy);
+            if (slot == reservoir.samples.size()) {
+                reservoir.samples.add(copy);
+            } else {
+                reservoir.samples.set(slot, copy);
+            }
+        }
+    }
+
+    /**
+     * The segments of the current file are done: add its captured span to the
+     * duration. Spans of different files are summed rather than measured
+     * from the first to the last request of all files, which could be days
+     * apart.
+     */
+    public void closeFile(String file) {
+        if (file != null) {
+            files.add(file);
+        }
+        if (firstNanos <= lastNanos) {
+            durationNanos += lastNanos - firstNanos;
+        }
+        firstNanos = Long.MAX_VALUE;
+        lastNanos = Long.MIN_VALUE;
+    }
+
+    public void merge(WorkloadModelBuilder other) {
+        Random random = ThreadLocalRandom.current();
+        requests += other.requests;
+        otherRequests += other.otherRequests;
+        for (Map.Entry<String, Reservoir> entry : other.reservoirs.entrySet()) {
+            Reservoir reservoir = reservoirs.get(entry.getKey());
+            Reservoir add = entry.getValue();
+            if (reservoir == null) {
+                if (reservoirs.size() >= capacity) {
+                    otherRequests += add.count;
+                } else {
+                    reservoirs.put(entry.getKey(), add);
+                }
+                continue;
+            }
+            // each slot is drawn from either sample in proportion to the
+            // requests it stands for
+            List<byte[]> a = new ArrayList<byte[]>(reservoir.samples);
+            List<byte[]> b = new ArrayList<byte[]>(add.samples);
+            Collections.shuffle(a, random);
+            Collections.shuffle(b, random);
+            double pA = reservoir.count / (double) (reservoir.count + add.count);
+            reservoir.samples.clear();
+            while (reservoir.samples.size() < sampleSize && !(a.isEmpty() && b.isEmpty())) {
+                boolean fromA = b.isEmpty() || (!a.isEmpty() && random.nextDouble() < pA);
+                List<byte[]> from = fromA ? a : b;
+                reservoir.samples.add(from.remove(from.size() - 1));
+            }
+            reservoir.count += add.count;
+        }
+        interArrivals.add(other.interArrivals);
+        for (Map.Entry<Long, HyperLogLog> entry : other.connections.entrySet()) {
+            HyperLogLog hll = connections.get(entry.getKey());
+            if (hll == null) {
+                connections.put(entry.getKey(), entry.getValue());
+            } else {
+                // a second split across two segments
+                hll.merge(entry.getValue());
+            }
+        }
+        lastSecond = Long.MIN_VALUE;
+        firstNanos = Math.min(firstNanos, other.firstNanos);
+        lastNanos = Math.max(lastNanos, other.lastNanos);
+        durationNanos += other.durationNanos;
+        files.addAll(other.files);
+    }
+
+    public WorkloadModel build() {
+        closeFile(null);
+        Histogram perSecond = new Histogram(3);
+        for (HyperLogLog hll : connections.values()) {
+            perSecond.recordValue(hll.cardinality());
+        }
+
+        List<long[]> buckets = new ArrayList<long[]>();
+        long low = 0;
+        for (HistogramIterationValue value : interArrivals.logarithmicBucketValues(1, 1.2)) {
+            long high = value.getValueIteratedTo();
+            if (value.getCountAddedInThisIterationStep() > 0) {
+                buckets.add(new long[] { low, high, value.getCountAddedInThisIterationStep() });
+            }
+            low = high;
+        }
+
+        List<WorkloadModel.Entry> entries = new ArrayList<WorkloadModel.Entry>();
+        for (Reservoir reservoir : reservoirs.values()) {
+            entries.add(new WorkloadModel.Entry(reservoir.namespace, reservoir.command, reservoir.shape,
+                    reservoir.count, reservoir.samples));
+        }
+        entries.sort((x, y) -> Long.compare(y.getCount(), x.getCount()));
+
+        return new WorkloadModel(new ArrayList<String>(files), requests, otherRequests,
+                durationNanos / (double) NANOS_PER_SECOND, perSecond.getValueAtPercentile(50.0),
+                perSecond.getValueAtPercentile(99.0), perSecond.getMaxValue(), buckets.toArray(new long[0][]),
+                entries);
+    }
+
+}
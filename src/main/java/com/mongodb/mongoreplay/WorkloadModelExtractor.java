@@ -0,0 +1,154 @@
+package com.mongodb.mongoreplay;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extract a {@link WorkloadModel} from one or more mongoreplay bson files, in
+ * one parallel pass like {@link MongoReplayStats}. The model is written as
+ * JSON and played by {@link WorkloadGenerator}.
+ */
+public class WorkloadModelExtractor {
+
+    protected static final Logger logger = LoggerFactory.getLogger(WorkloadModelExtractor.class);
+
+    private final static long MIN_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int capacity = 1000;
+    private int sampleSize = 20;
+
+    /**
+     * Extract a model from filenames, all files are combined into one model.
+     */
+    public WorkloadModel extract(String... filenames) throws IOException {
+        WorkloadModelBuilder model = new WorkloadModelBuilder(capacity, sampleSize);
+        ForkJoinPool forkJoinPool = new ForkJoinPool(threads);
+        try {
+            for (String filename : filenames) {
+                File file = new File(filename);
+                if (!file.exists()) {
+                    throw new FileNotFoundException(filename);
+                }
+                long segmentSize = Math.max(file.length() / (threads * 4L), MIN_SEGMENT_SIZE);
+                List<ForkJoinTask<WorkloadModelBuilder>> tasks = new ArrayList<ForkJoinTask<WorkloadModelBuilder>>();
+                for (long[] segment : CaptureReader.split(file, segmentSize, Long.MAX_VALUE)) {
+                    tasks.add(forkJoinPool.submit(() -> {
+                        WorkloadModelBuilder segmentModel = new WorkloadModelBuilder(capacity, sampleSize);
+                        segmentModel.add(file, segment[0], segment[1]);
+                        return segmentModel;
+                    }));
+                }
+                WorkloadModelBuilder fileModel = new WorkloadModelBuilder(capacity, sampleSize);
+                for (ForkJoinTask<WorkloadModelBuilder> task : tasks) {
+                    fileModel.merge(task.join());
+                }
+                fileModel.closeFile(filename);
+                model.merge(fileModel);
+            }
+        } finally {
+            forkJoinPool.shutdown();
+        }
+        return model.build();
+    }
+
+    public static void report(WorkloadModel model) {
+        System.out.println(String.format("%,d requests in %.1f s, %.1f ops/s, %,d not modeled", model.getRequests(),
+                model.getDurationSeconds(), model.getOpsPerSecond(), model.getOtherRequests()));
+        System.out.println(String.format("connections per second: 50p %d, 99p %d, max %d", model.getConnectionsP50(),
+                model.getConnectionsP99(), model.getConnectionsMax()));
+        System.out.println();
+        System.out.println(String.format("%12s %8s  %s", "count", "samples", "namespace / command / query shape"));
+        for (WorkloadModel.Entry entry : model.getEntries()) {
+            System.out.println(String.format("%,12d %8d  %s %s %s", entry.getCount(), entry.getSampleCount(),
+                    entry.getNamespace(), entry.getCommand(), entry.getShape() != null ? entry.getShape() : ""));
+        }
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    @SuppressWarnings("static-access")
+    private static CommandLine initializeAndParseCommandLineOptions(String[] args) {
+        Options options = new Options();
+        options.addOption(new Option("help", "print this message"));
+        options.addOption(
+                OptionBuilder.withArgName("input mongoreplay bson file(s)").hasArgs().withLongOpt("files").create("f"));
+        options.addOption(OptionBuilder.withArgName("model json output file").hasArg().withLongOpt("output")
+                .isRequired().create("o"));
+        options.addOption(OptionBuilder.withArgName("# threads").hasArg().withLongOpt("threads").create("t"));
+        options.addOption(OptionBuilder.withArgName("# requests sampled per entry").hasArg().withLongOpt("samples")
+                .create("k"));
+        options.addOption(OptionBuilder.withArgName("# namespace / command / shape entries modeled").hasArg()
+                .withLongOpt("capacity").create());
+
+        CommandLineParser parser = new GnuParser();
+        CommandLine line = null;
+        try {
+            line = parser.parse(options, args);
+            if (line.hasOption("help")) {
+                printHelpAndExit(options);
+            }
+        } catch (org.apache.commons.cli.ParseException e) {
+            System.out.println(e.getMessage());
+            printHelpAndExit(options);
+        }
+
+        if (line.getOptionValues("f") == null) {
+            printHelpAndExit(options);
+        }
+        return line;
+    }
+
+    private static void printHelpAndExit(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("workloadModelExtractor", options);
+        System.exit(-1);
+    }
+
+    public static void main(String args[]) throws Exception {
+        CommandLine line = initializeAndParseCommandLineOptions(args);
+
+        WorkloadModelExtractor extractor = new WorkloadModelExtractor();
+        if (line.hasOption("t")) {
+            extractor.setThreads(Integer.parseInt(line.getOptionValue("t")));
+        }
+        if (line.hasOption("k")) {
+            extractor.setSampleSize(Integer.parseInt(line.getOptionValue("k")));
+        }
+        if (line.hasOption("capacity")) {
+            extractor.setCapacity(Integer.parseInt(line.getOptionValue("capacity")));
+        }
+        WorkloadModel model = extractor.extract(line.getOptionValues("f"));
+        File output = new File(line.getOptionValue("o"));
+        model.write(output);
+        report(model);
+        System.out.println();
+        System.out.println("Model written to " + output);
+    }
+
+}
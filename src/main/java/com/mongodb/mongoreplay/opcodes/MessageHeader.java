@@ -1,7 +1,14 @@
 package com.mongodb.mongoreplay.opcodes;
 
+import java.nio.ByteBuffer;
+
 import org.bson.io.ByteBufferBsonInput;
 
+/**
+ * The standard 16 byte wire protocol message header. Instances are mutable
+ * and may be re-used, via {@link #wrap(ByteBuffer, int)} or
+ * {@link #read(ByteBufferBsonInput)}, to avoid an allocation per message.
+ */
 public class MessageHeader {
     
     private int messageLength;
@@ -9,6 +16,8 @@ public class MessageHeader {
     private int responseTo;
     private int headerOpcode;
     
+    public MessageHeader() {
+    }
     
     public MessageHeader(int messageLength, int requestId, int responseTo, int headerOpcode) {
         this.messageLength = messageLength;
@@ -18,11 +27,30 @@ public class MessageHeader {
     }
 
     public static MessageHeader parse(ByteBufferBsonInput bsonInput) {
-        int messageLength = bsonInput.readInt32();
-        int requestId = bsonInput.readInt32();
-        int responseTo = bsonInput.readInt32();
-        int headerOpcode = bsonInput.readInt32();
-        return new MessageHeader(messageLength, requestId, responseTo, headerOpcode);
+        return new MessageHeader().read(bsonInput);
+    }
+
+    /**
+     * Read the header from the current position of bsonInput into this instance.
+     */
+    public MessageHeader read(ByteBufferBsonInput bsonInput) {
+        this.messageLength = bsonInput.readInt32();
+        this.requestId = bsonInput.readInt32();
+        this.responseTo = bsonInput.readInt32();
+        this.headerOpcode = bsonInput.readInt32();
+        return this;
+    }
+
+    /**
+     * Read the header at offset of a little endian buffer into this instance,
+     * without changing the buffer's position.
+     */
+    public MessageHeader wrap(ByteBuffer buffer, int offset) {
+        this.messageLength = buffer.getInt(offset);
+        this.requestId = buffer.getInt(offset + 4);
+        this.responseTo = buffer.getInt(offset + 8);
+        this.headerOpcode = buffer.getInt(offset + 12);
+        return this;
     }
 
     public int getMessageLength() {
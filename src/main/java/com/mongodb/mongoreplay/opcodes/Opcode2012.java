@@ -0,0 +1,122 @@
+package com.mongodb.mongoreplay.opcodes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.xerial.snappy.Snappy;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDecompressCtx;
+
+/**
+ * OP_COMPRESSED support, see
+ * https://github.com/mongodb/specifications/blob/master/source/compression/OP_COMPRESSED.rst
+ *
+ * Decompression state (inflater, zstd context and buffers) is kept per thread
+ * and re-used, so decompressing a message does not allocate once the buffers
+ * have grown to the largest message seen.
+ */
+public class Opcode2012 {
+
+    public static final byte NOOP = 0;
+    public static final byte SNAPPY = 1;
+    public static final byte ZLIB = 2;
+    public static final byte ZSTD = 3;
+
+    // header + originalOpcode + uncompressedSize + compressorId
+    private static final int PREFIX_LENGTH = WireMessage.HEADER_LENGTH + 9;
+
+    private static final ThreadLocal<Opcode2012> DECOMPRESSOR = ThreadLocal.withInitial(Opcode2012::new);
+
+    private final Inflater inflater = new Inflater();
+    private ZstdDecompressCtx zstd;
+    private byte[] in = new byte[64 * 1024];
+    private byte[] out = new byte[64 * 1024];
+
+    private Opcode2012() {
+    }
+
+    /**
+     * Decompress a complete OP_COMPRESSED message (16 byte header included).
+     *
+     * @return a little endian buffer holding the equivalent uncompressed message
+     *         (header rewritten with the original opcode and length). The
+     *         buffer is owned by the calling thread and is only valid until its
+     *         next call.
+     */
+    public static ByteBuffer decompress(ByteBuffer message) throws DataFormatException {
+        return DECOMPRESSOR.get().decompressMessage(message);
+    }
+
+    private ByteBuffer decompressMessage(ByteBuffer message) throws DataFormatException {
+        ByteBuffer buf = message.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int base = buf.position();
+        int messageLength = buf.getInt(base);
+        int requestId = buf.getInt(base + 4);
+        int responseTo = buf.getInt(base + 8);
+        int originalOpcode = buf.getInt(base + WireMessage.HEADER_LENGTH);
+        int uncompressedSize = buf.getInt(base + WireMessage.HEADER_LENGTH + 4);
+        byte compressorId = buf.get(base + WireMessage.HEADER_LENGTH + 8);
+        int compressedLength = Math.min(messageLength, buf.remaining()) - PREFIX_LENGTH;
+        if (uncompressedSize < 0 || compressedLength < 0) {
+            throw new DataFormatException(String.format("Invalid OP_COMPRESSED message, uncompressedSize: %s, length: %s",
+                    uncompressedSize, messageLength));
+        }
+
+        int total = WireMessage.HEADER_LENGTH + uncompressedSize;
+        if (out.length < total) {
+            out = new byte[Math.max(total, out.length * 2)];
+        }
+        if (in.length < compressedLength) {
+            in = new byte[Math.max(compressedLength, in.length * 2)];
+        }
+        buf.position(base + PREFIX_LENGTH);
+        buf.get(in, 0, compressedLength);
+
+        int size;
+        switch (compressorId) {
+        case NOOP:
+            System.arraycopy(in, 0, out, WireMessage.HEADER_LENGTH, compressedLength);
+            size = compressedLength;
+            break;
+        case SNAPPY:
+            try {
+                size = Snappy.uncompress(in, 0, compressedLength, out, WireMessage.HEADER_LENGTH);
+            } catch (IOException e) {
+                throw (DataFormatException) new DataFormatException("snappy: " + e.getMessage()).initCause(e);
+            }
+            break;
+        case ZLIB:
+            inflater.reset();
+            inflater.setInput(in, 0, compressedLength);
+            size = inflater.inflate(out, WireMessage.HEADER_LENGTH, uncompressedSize);
+            break;
+        case ZSTD:
+            if (zstd == null) {
+                zstd = new ZstdDecompressCtx();
+            }
+            long result = zstd.decompressByteArray(out, WireMessage.HEADER_LENGTH, uncompressedSize, in, 0, compressedLength);
+            if (Zstd.isError(result)) {
+                throw new DataFormatException("zstd: " + Zstd.getErrorName(result));
+            }
+            size = (int) result;
+            break;
+        default:
+            throw new DataFormatException("Unsupported compressorId: " + compressorId);
+        }
+        if (size != uncompressedSize) {
+            throw new DataFormatException(String.format("Expected %s uncompressed bytes, got %s", uncompressedSize, size));
+        }
+
+        ByteBuffer result = ByteBuffer.wrap(out, 0, total).order(ByteOrder.LITTLE_ENDIAN);
+        result.putInt(0, total);
+        result.putInt(4, requestId);
+        result.putInt(8, responseTo);
+        result.putInt(12, originalOpcode);
+        return result;
+    }
+
+}
@@ -1,9 +1,22 @@
 package com.mongodb.mongoreplay.opcodes;
 
+/**
+ * OP_MSG constants, see
+ * https://github.com/mongodb/specifications/blob/master/source/message/OP_MSG.rst
+ */
 public class Opcode2013 {
-    
-    public Opcode2013() {
-        
+
+    public static final int CHECKSUM_PRESENT = 1;
+    public static final int MORE_TO_COME = 1 << 1;
+    public static final int EXHAUST_ALLOWED = 1 << 16;
+
+    /** A single BSON document, the command body */
+    public static final byte KIND_BODY = 0;
+
+    /** A sequence of BSON documents, e.g. insert "documents" */
+    public static final byte KIND_DOCUMENT_SEQUENCE = 1;
+
+    private Opcode2013() {
     }
 
 }
@@ -0,0 +1,335 @@
+package com.mongodb.mongoreplay.opcodes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import com.mongodb.util.bson.BsonScanner;
+
+/**
+ * Reusable flyweight over a complete wire protocol message (16 byte header
+ * included). All accessors read the underlying buffer in place; apart from the
+ * explicitly String returning methods nothing is allocated, so a single
+ * instance can be re-wrapped for every message on a thread.
+ *
+ * Supports OP_QUERY (2004), OP_COMMAND (2010) and OP_MSG (2013) requests,
+ * and the reply document of OP_REPLY (1), OP_COMMANDREPLY (2011) and OP_MSG.
+ */
+public class WireMessage {
+
+    public static final int OP_REPLY = 1;
+    public static final int OP_QUERY = 2004;
+    public static final int OP_COMMAND = 2010;
+    public static final int OP_COMMANDREPLY = 2011;
+    public static final int OP_COMPRESSED = 2012;
+    public static final int OP_MSG = 2013;
+
+    public static final int HEADER_LENGTH = 16;
+
+    private static final byte[] ADMIN = "admin".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LOCAL = "local".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DB = "$db".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] QUERY = "$query".getBytes(StandardCharsets.US_ASCII);
+
+    private ByteBuffer buffer;
+    private final MessageHeader header = new MessageHeader();
+    private int offset;
+
+    public WireMessage wrap(ByteBuffer message) {
+        return wrap(message, message.position());
+    }
+
+    /**
+     * @param message buffer holding the message, its byte order is switched to
+     *            little endian
+     * @param offset position of the first header byte
+     */
+    public WireMessage wrap(ByteBuffer message, int offset) {
+        this.buffer = message.order(ByteOrder.LITTLE_ENDIAN);
+        this.offset = offset;
+        header.wrap(message, offset);
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public MessageHeader getHeader() {
+        return header;
+    }
+
+    public int getMessageLength() {
+        return header.getMessageLength();
+    }
+
+    public int getRequestId() {
+        return header.getRequestId();
+    }
+
+    public int getResponseTo() {
+        return header.getResponseTo();
+    }
+
+    public int getOpcode() {
+        return header.getHeaderOpcode();
+    }
+
+    /**
+     * @return offset just past the end of the message
+     */
+    public int getEnd() {
+        return offset + header.getMessageLength();
+    }
+
+    /**
+     * @return OP_QUERY flags or OP_MSG flagBits
+     */
+    public int getFlags() {
+        return buffer.getInt(offset + HEADER_LENGTH);
+    }
+
+    // ---- OP_QUERY
+
+    /**
+     * @return offset of the OP_QUERY fullCollectionName cstring
+     */
+    public int getFullCollectionNameOffset() {
+        return offset + HEADER_LENGTH + 4;
+    }
+
+    public String getFullCollectionName() {
+        return BsonScanner.readCString(buffer, getFullCollectionNameOffset());
+    }
+
+    /**
+     * @return offset of the OP_QUERY query document
+     */
+    public int getQueryDocumentOffset() {
+        // skip numberToSkip, numberToReturn
+        return BsonScanner.skipCString(buffer, getFullCollectionNameOffset()) + 8;
+    }
+
+    // ---- OP_COMMAND
+
+    public int getCommandDatabaseOffset() {
+        return offset + HEADER_LENGTH;
+    }
+
+    /**
+     * @return offset of the OP_COMMAND commandName cstring
+     */
+    public int getOpCommandNameOffset() {
+        return BsonScanner.skipCString(buffer, getCommandDatabaseOffset());
+    }
+
+    /**
+     * @return offset of the OP_COMMAND commandArgs document
+     */
+    public int getCommandArgsOffset() {
+        return BsonScanner.skipCString(buffer, getOpCommandNameOffset());
+    }
+
+    // ---- OP_MSG
+
+    public boolean isChecksumPresent() {
+        return (getFlags() & Opcode2013.CHECKSUM_PRESENT) != 0;
+    }
+
+    /**
+     * @return offset of the first OP_MSG section
+     */
+    public int getFirstSection() {
+        return offset + HEADER_LENGTH + 4;
+    }
+
+    /**
+     * @return true if sectionOffset points at a section (rather than the
+     *         checksum or the end of the message)
+     */
+    public boolean hasSection(int sectionOffset) {
+        int end = getEnd() - (isChecksumPresent() ? 4 : 0);
+        return sectionOffset < end;
+    }
+
+    public byte getSectionKind(int sectionOffset) {
+        return buffer.get(sectionOffset);
+    }
+
+    public int getNextSection(int sectionOffset) {
+        // kind 0 is followed by a document, kind 1 by the section size; both
+        // are int32 length prefixed
+        return sectionOffset + 1 + buffer.getInt(sectionOffset + 1);
+    }
+
+    /**
+     * @return offset of the document of a kind 0 section
+     */
+    public int getBodyDocumentOffset(int sectionOffset) {
+        return sectionOffset + 1;
+    }
+
+    /**
+     * @return offset of the identifier cstring of a kind 1 section
+     */
+    public int getSequenceIdentifierOffset(int sectionOffset) {
+        return sectionOffset + 5;
+    }
+
+    /**
+     * @return offset of the first document of a kind 1 section
+     */
+    public int getSequenceFirstDocument(int sectionOffset) {
+        return BsonScanner.skipCString(buffer, getSequenceIdentifierOffset(sectionOffset));
+    }
+
+    /**
+     * @return offset just past the last document of a kind 1 section
+     */
+    public int getSequenceEnd(int sectionOffset) {
+        return getNextSection(sectionOffset);
+    }
+
+    /**
+     * @return offset of the kind 0 body document, or -1 if there is none
+     */
+    public int getMsgBodyOffset() {
+        for (int section = getFirstSection(); hasSection(section); section = getNextSection(section)) {
+            if (getSectionKind(section) == Opcode2013.KIND_BODY) {
+                return getBodyDocumentOffset(section);
+            }
+        }
+        return -1;
+    }
+
+    // ---- replies
+
+    /**
+     * @return offset of the (first) reply document of an OP_REPLY,
+     *         OP_COMMANDREPLY or OP_MSG reply, or -1
+     */
+    public int getReplyDocumentOffset() {
+        switch (getOpcode()) {
+        case OP_REPLY:
+            // skip responseFlags, cursorID, startingFrom, numberReturned
+            int numberReturned = buffer.getInt(offset + HEADER_LENGTH + 16);
+            return numberReturned > 0 ? offset + HEADER_LENGTH + 20 : -1;
+        case OP_COMMANDREPLY:
+            // the metadata document precedes the command reply
+            return BsonScanner.documentEnd(buffer, offset + HEADER_LENGTH);
+        case OP_MSG:
+            return getMsgBodyOffset();
+        default:
+            return -1;
+        }
+    }
+
+    // ---- common
+
+    /**
+     * @return offset of the command document for any supported opcode (for
+     *         OP_QUERY a $query wrapper is unwrapped), or -1
+     */
+    public int getCommandDocumentOffset() {
+        switch (getOpcode()) {
+        case OP_QUERY:
+            int query = getQueryDocumentOffset();
+            int wrapped = BsonScanner.findElement(buffer, query, QUERY);
+            if (wrapped >= 0 && BsonScanner.elementType(buffer, wrapped) == BsonScanner.DOCUMENT) {
+                return BsonScanner.valueOffset(buffer, wrapped);
+            }
+            return query;
+        case OP_COMMAND:
+            return getCommandArgsOffset();
+        case OP_MSG:
+            return getMsgBodyOffset();
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * @return offset of the command name (the first element name of the
+     *         command document, or the OP_COMMAND commandName), or -1
+     */
+    public int getCommandNameOffset() {
+        if (getOpcode() == OP_COMMAND) {
+            return getOpCommandNameOffset();
+        }
+        int doc = getCommandDocumentOffset();
+        if (doc < 0 || BsonScanner.documentEnd(buffer, doc) - doc <= 5) {
+            return -1;
+        }
+        return BsonScanner.firstElement(doc) + 1;
+    }
+
+    public boolean commandNameEquals(byte[] name) {
+        int pos = getCommandNameOffset();
+        return pos >= 0 && BsonScanner.nameEquals(buffer, pos, name);
+    }
+
+    public String getCommandName() {
+        int pos = getCommandNameOffset();
+        return pos < 0 ? null : BsonScanner.readCString(buffer, pos);
+    }
+
+    /**
+     * Compare the target database name with name, without allocating.
+     */
+    public boolean databaseEquals(byte[] name) {
+        switch (getOpcode()) {
+        case OP_QUERY:
+            // fullCollectionName is "<db>.<collection>"
+            int pos = getFullCollectionNameOffset();
+            for (int i = 0; i < name.length; i++) {
+                if (buffer.get(pos + i) != name[i]) {
+                    return false;
+                }
+            }
+            return buffer.get(pos + name.length) == '.';
+        case OP_COMMAND:
+            return BsonScanner.nameEquals(buffer, getCommandDatabaseOffset(), name);
+        case OP_MSG:
+            int body = getMsgBodyOffset();
+            if (body < 0) {
+                return false;
+            }
+            int element = BsonScanner.findElement(buffer, body, DB);
+            return element >= 0 && BsonScanner.elementType(buffer, element) == BsonScanner.STRING
+                    && BsonScanner.stringEquals(buffer, BsonScanner.valueOffset(buffer, element), name);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the message targets the admin or local database
+     */
+    public boolean isSystemDatabase() {
+        return databaseEquals(ADMIN) || databaseEquals(LOCAL);
+    }
+
+    /**
+     * @return the target database name, or null if it cannot be determined
+     */
+    public String getDatabaseName() {
+        switch (getOpcode()) {
+        case OP_QUERY:
+            String ns = getFullCollectionName();
+            int dot = ns.indexOf('.');
+            return dot < 0 ? ns : ns.substring(0, dot);
+        case OP_COMMAND:
+            return BsonScanner.readCString(buffer, getCommandDatabaseOffset());
+        case OP_MSG:
+            int body = getMsgBodyOffset();
+            int element = body < 0 ? -1 : BsonScanner.findElement(buffer, body, DB);
+            if (element < 0 || BsonScanner.elementType(buffer, element) != BsonScanner.STRING) {
+                return null;
+            }
+            return BsonScanner.readString(buffer, BsonScanner.valueOffset(buffer, element));
+        default:
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.mongodb.mongoreplay.undo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Put the target back to its state before a replay run with --undo: reads the
+ * {@link UndoStore} and reverts its records in parallel, in batches of one
+ * namespace, then drops the store so the next run starts empty.
+ */
+public class UndoRevert {
+
+    protected static final Logger logger = LoggerFactory.getLogger(UndoRevert.class);
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final MongoClient mongoClient;
+    private String namespace = UndoStore.DEFAULT_NAMESPACE;
+    private int threads = 8;
+    private boolean keep = false;
+
+    public UndoRevert(MongoClient mongoClient) {
+        this.mongoClient = mongoClient;
+    }
+
+    /**
+     * @return the number of documents reverted
+     */
+    public long revert() throws InterruptedException {
+        MongoCollection<Document> store = UndoStore.collection(mongoClient, namespace);
+        BlockingQueue<List<UndoUpdate>> queue = new ArrayBlockingQueue<List<UndoUpdate>>(threads * 2);
+        AtomicLong reverted = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        List<UndoThread> workers = new ArrayList<UndoThread>();
+        for (int i = 0; i < threads; i++) {
+            UndoThread worker = new UndoThread(queue, mongoClient, reverted, errors);
+            worker.setName("undo-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+
+        long start = System.currentTimeMillis();
+        // _id is {ns, id}, in _id order the records of a namespace are adjacent
+        List<UndoUpdate> batch = new ArrayList<UndoUpdate>(BATCH_SIZE);
+        for (Document record : store.find().sort(new Document("_id", 1))) {
+            UndoUpdate update = UndoUpdate.fromRecord(record);
+            if (batch.size() == BATCH_SIZE || (!batch.isEmpty() && !batch.get(0).namespace.equals(update.namespace))) {
+                queue.put(batch);
+                batch = new ArrayList<UndoUpdate>(BATCH_SIZE);
+            }
+            batch.add(update);
+        }
+        if (!batch.isEmpty()) {
+            queue.put(batch);
+        }
+        for (int i = 0; i < threads; i++) {
+            queue.put(UndoThread.END);
+        }
+        for (UndoThread worker : workers) {
+            worker.join();
+        }
+
+        logger.debug(String.format("Reverted %,d documents in %,d ms, %,d errors", reverted.get(),
+                System.currentTimeMillis() - start, errors.get()));
+        if (errors.get() > 0 || keep) {
+            logger.warn(String.format("Keeping undo store %s", namespace));
+        } else {
+            store.drop();
+        }
+        return reverted.get();
+    }
+
+    public void setNamespace(String namespace) {
+        this.namespace = namespace;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param keep do not drop the undo store after reverting
+     */
+    public void setKeep(boolean keep) {
+        this.keep = keep;
+    }
+
+    @SuppressWarnings("static-access")
+    private static CommandLine initializeAndParseCommandLineOptions(String[] args) {
+        Options options = new Options();
+        options.addOption(new Option("help", "print this message"));
+        options.addOption(OptionBuilder.withArgName("target mongo uri").hasArg().withLongOpt("host").isRequired()
+                .create("h"));
+        options.addOption(OptionBuilder.withArgName("database.collection").hasArg()
+                .withDescription("undo store written by mongoReplay --undo, default " + UndoStore.DEFAULT_NAMESPACE)
+                .withLongOpt("undo").create());
+        options.addOption(OptionBuilder.withArgName("# threads").hasArg().withLongOpt("threads").create("t"));
+        options.addOption(OptionBuilder.withDescription("keep the undo store after reverting").withLongOpt("keep")
+                .create());
+
+        CommandLineParser parser = new GnuParser();
+        CommandLine line = null;
+        try {
+            line = parser.parse(options, args);
+            if (line.hasOption("help")) {
+                printHelpAndExit(options);
+            }
+        } catch (org.apache.commons.cli.ParseException e) {
+            System.out.println(e.getMessage());
+            printHelpAndExit(options);
+        }
+        return line;
+    }
+
+    private static void printHelpAndExit(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("undoRevert", options);
+        System.exit(-1);
+    }
+
+    public static void main(String args[]) throws Exception {
+        CommandLine line = initializeAndParseCommandLineOptions(args);
+
+        MongoClient mongoClient = new MongoClient(new MongoClientURI(line.getOptionValue("h")));
+        try {
+            UndoRevert undoRevert = new UndoRevert(mongoClient);
+            if (line.hasOption("undo")) {
+                undoRevert.setNamespace(line.getOptionValue("undo"));
+            }
+            if (line.hasOption("t")) {
+                undoRevert.setThreads(Integer.parseInt(line.getOptionValue("t")));
+            }
+            undoRevert.setKeep(line.hasOption("keep"));
+            undoRevert.revert();
+        } finally {
+            mongoClient.close();
+        }
+    }
+
+}
@@ -0,0 +1,278 @@
+package com.mongodb.mongoreplay.undo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClient;
+import com.mongodb.ReadPreference;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.mongoreplay.Command;
+
+/**
+ * Records what a replay changes on the target so that {@link UndoRevert} can
+ * put it back afterwards, instead of restoring the target from a dump.
+ *
+ * Before an update, delete or findAndModify is replayed, the documents it is
+ * about to touch are read from the target and their pre-images recorded.
+ * Inserts are recorded before the write as well: inserted documents without
+ * an _id get one assigned, those that already exist on the target (the
+ * insert will fail with a duplicate key error) get their pre-image recorded,
+ * and the others are recorded as inserted. Upserted _ids are only known from
+ * the reply and are recorded after the write. Records go to a collection
+ * keyed by namespace and _id, so the first record of a document wins: a
+ * document updated several times is reverted to its state before the replay,
+ * and a document inserted by the replay is deleted however it was modified
+ * later.
+ *
+ * First record wins relies on the writes of a document being recorded in
+ * the order they are replayed, which holds for operations of one lane, i.e.
+ * of one captured connection with --connectionAffine. Without it, writes to
+ * the same document from different connections may run concurrently, and
+ * the record of a later write can win.
+ *
+ * Records are written in batches by a background thread. The pre-image reads
+ * run on the replay worker ahead of the replayed write, and are not part of
+ * its measured latency.
+ */
+public class UndoStore {
+
+    protected static final Logger logger = LoggerFactory.getLogger(UndoStore.class);
+
+    public static final String DEFAULT_NAMESPACE = "mongoreplay_undo.undo";
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoClient mongoClient;
+    private final MongoCollection<Document> store;
+
+    private final BlockingQueue<UndoUpdate> queue = new ArrayBlockingQueue<UndoUpdate>(100000);
+    private final Thread writer;
+    private volatile boolean closed;
+
+    private final AtomicLong preImages = new AtomicLong();
+    private final AtomicLong inserts = new AtomicLong();
+
+    /**
+     * @param mongoClient the replay target, also holds the undo store
+     * @param namespace database.collection of the undo store
+     */
+    public UndoStore(MongoClient mongoClient, String namespace) {
+        this.mongoClient = mongoClient;
+        this.store = collection(mongoClient, namespace);
+        this.writer = new Thread(this::writeRecords, "undo-store");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    static MongoCollection<Document> collection(MongoClient mongoClient, String namespace) {
+        int dot = namespace.indexOf('.');
+        if (dot <= 0 || dot == namespace.length() - 1) {
+            throw new IllegalArgumentException("undo namespace must be database.collection, was " + namespace);
+        }
+        return mongoClient.getDatabase(namespace.substring(0, dot)).getCollection(namespace.substring(dot + 1));
+    }
+
+    /**
+     * Record the pre-images of the documents the command is about to modify,
+     * and the _ids of the documents it is about to insert, which are assigned
+     * first if missing.
+     */
+    public void beforeWrite(String databaseName, String collectionName, Command command, Document commandDoc) {
+        String namespace = databaseName + "." + collectionName;
+        switch (command) {
+        case INSERT:
+            List<Object> ids = new ArrayList<Object>();
+            for (Document document : statements(commandDoc, "documents")) {
+                if (!document.containsKey("_id")) {
+                    document.put("_id", new ObjectId());
+                }
+                ids.add(document.get("_id"));
+            }
+            beforeInsert(namespace, ids);
+            break;
+        case UPDATE:
+            for (Document update : statements(commandDoc, "updates")) {
+                recordPreImages(namespace, (Document) update.get("q"), null, update.getBoolean("multi", false) ? 0 : 1);
+            }
+            break;
+        case DELETE:
+            for (Document delete : statements(commandDoc, "deletes")) {
+                Number limit = (Number) delete.get("limit");
+                recordPreImages(namespace, (Document) delete.get("q"), null, limit == null ? 0 : limit.intValue());
+            }
+            break;
+        case FIND_AND_MODIFY:
+            recordPreImages(namespace, (Document) commandDoc.get("query"), (Document) commandDoc.get("sort"), 1);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Record the documents the command upserted.
+     */
+    public void afterWrite(String databaseName, String collectionName, Command command, Document commandDoc,
+            Document commandResult) {
+        String namespace = databaseName + "." + collectionName;
+        switch (command) {
+        case UPDATE:
+            Object upserted = commandResult.get("upserted");
+            if (upserted instanceof List) {
+                for (Object upsert : (List<?>) upserted) {
+                    recordInsert(namespace, ((Document) upsert).get("_id"));
+                }
+            }
+            break;
+        case FIND_AND_MODIFY:
+            Object lastErrorObject = commandResult.get("lastErrorObject");
+            if (lastErrorObject instanceof Document && ((Document) lastErrorObject).containsKey("upserted")) {
+                recordInsert(namespace, ((Document) lastErrorObject).get("upserted"));
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Document> statements(Document commandDoc, String field) {
+        Object statements = commandDoc.get(field);
+        return statements instanceof List ? (List<Document>) statements : new ArrayList<Document>();
+    }
+
+    /**
+     * @param limit 0 for all matching documents
+     */
+    private void recordPreImages(String namespace, Document filter, Document sort, int limit) {
+        int dot = namespace.indexOf('.');
+        FindIterable<Document> preImages = mongoClient.getDatabase(namespace.substring(0, dot))
+                .getCollection(namespace.substring(dot + 1)).withReadPreference(ReadPreference.primary())
+                .find(filter != null ? filter : new Document()).limit(limit);
+        if (sort != null) {
+            preImages.sort(sort);
+        }
+        try {
+            for (Document preImage : preImages) {
+                enqueue(new UndoUpdate(namespace, preImage.get("_id"), preImage));
+                this.preImages.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            // the write itself is still replayed, it just cannot be reverted
+            logger.warn(String.format("Error reading pre-images from %s: %s", namespace, e.getMessage()));
+        }
+    }
+
+    /**
+     * Record the documents that already exist with their pre-image, the
+     * others as inserted.
+     */
+    private void beforeInsert(String namespace, List<Object> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        Set<Object> existing = new HashSet<Object>();
+        int dot = namespace.indexOf('.');
+        try {
+            for (Document preImage : mongoClient.getDatabase(namespace.substring(0, dot))
+                    .getCollection(namespace.substring(dot + 1)).withReadPreference(ReadPreference.primary())
+                    .find(new Document("_id", new Document("$in", ids)))) {
+                enqueue(new UndoUpdate(namespace, preImage.get("_id"), preImage));
+                preImages.incrementAndGet();
+                existing.add(preImage.get("_id"));
+            }
+        } catch (RuntimeException e) {
+            logger.warn(String.format("Error reading pre-images from %s: %s", namespace, e.getMessage()));
+        }
+        for (Object id : ids) {
+            if (!existing.contains(id)) {
+                recordInsert(namespace, id);
+            }
+        }
+    }
+
+    private void recordInsert(String namespace, Object id) {
+        if (id != null) {
+            enqueue(new UndoUpdate(namespace, id, null));
+            inserts.incrementAndGet();
+        }
+    }
+
+    private void enqueue(UndoUpdate update) {
+        try {
+            // blocks the replay if the store falls behind
+            queue.put(update);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeRecords() {
+        List<UndoUpdate> batch = new ArrayList<UndoUpdate>(BATCH_SIZE);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                UndoUpdate update = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (update == null) {
+                    continue;
+                }
+                batch.add(update);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                logger.error(String.format("Error writing %s undo records", batch.size()), e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(List<UndoUpdate> batch) {
+        List<Document> records = new ArrayList<Document>(batch.size());
+        for (UndoUpdate update : batch) {
+            records.add(update.toRecord());
+        }
+        try {
+            store.insertMany(records, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                // a duplicate is a document that already has its undo record
+                if (error.getCode() != DUPLICATE_KEY) {
+                    logger.warn("Error writing undo record: " + error.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the records still queued. Call once nothing is replayed anymore.
+     */
+    public void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.debug(String.format("Undo store %s: %s pre-images, %s inserted documents recorded",
+                store.getNamespace(), preImages.get(), inserts.get()));
+    }
+
+}
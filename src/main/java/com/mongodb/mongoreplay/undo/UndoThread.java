@@ -1,38 +1,95 @@
 package com.mongodb.mongoreplay.undo;
 
+import static com.mongodb.client.model.Filters.eq;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
 
+/**
+ * Reverts batches of {@link UndoUpdate}s, all of one namespace, taken from
+ * the input queue: pre-images are written back (re-creating deleted
+ * documents), documents inserted by the replay are deleted. An empty batch
+ * ends the thread.
+ */
 public class UndoThread extends Thread {
 
-    BlockingQueue<Object> inputQueue;
-    
+    protected static final Logger logger = LoggerFactory.getLogger(UndoThread.class);
+
+    public static final List<UndoUpdate> END = new ArrayList<UndoUpdate>();
+
+    BlockingQueue<List<UndoUpdate>> inputQueue;
+
     private MongoClient mongoClient;
 
-    public UndoThread(BlockingQueue<Object> inputQueue, MongoClient mongoClient) {
+    private final AtomicLong reverted;
+    private final AtomicLong errors;
+
+    public UndoThread(BlockingQueue<List<UndoUpdate>> inputQueue, MongoClient mongoClient, AtomicLong reverted,
+            AtomicLong errors) {
         this.inputQueue = inputQueue;
         this.mongoClient = mongoClient;
+        this.reverted = reverted;
+        this.errors = errors;
     }
 
     public void run() {
-        while (inputQueue.size() > 0) {
-            Object undoOp = null;
+        while (true) {
+            List<UndoUpdate> batch;
             try {
-                undoOp = inputQueue.poll(1, TimeUnit.SECONDS);
-                System.out.println("**** got unodo op " + undoOp);
-                if (undoOp == null)
-                    continue;
+                batch = inputQueue.take();
             } catch (InterruptedException interrupted) {
-                // _logger.warn("Unexpectedly interrupted while polling for
-                // blocks.", interrupted);
                 return;
             }
-
-            // _livingBlocks.addElement(blockHash);
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                revert(batch);
+            } catch (RuntimeException e) {
+                logger.error(String.format("Error reverting %s documents of %s", batch.size(), batch.get(0).namespace), e);
+                errors.addAndGet(batch.size());
+            }
         }
+    }
 
-        System.out.println("done?");
+    private void revert(List<UndoUpdate> batch) {
+        List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>(batch.size());
+        for (UndoUpdate update : batch) {
+            if (update.isInsert()) {
+                writes.add(new DeleteOneModel<Document>(eq("_id", update.id)));
+            } else {
+                writes.add(new ReplaceOneModel<Document>(eq("_id", update.id), update.preImage,
+                        new ReplaceOptions().upsert(true)));
+            }
+        }
+        String namespace = batch.get(0).namespace;
+        int dot = namespace.indexOf('.');
+        try {
+            mongoClient.getDatabase(namespace.substring(0, dot)).getCollection(namespace.substring(dot + 1))
+                    .bulkWrite(writes, new BulkWriteOptions().ordered(false));
+            reverted.addAndGet(batch.size());
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                logger.warn(String.format("Error reverting %s in %s: %s", batch.get(error.getIndex()).id, namespace,
+                        error.getMessage()));
+            }
+            errors.addAndGet(e.getWriteErrors().size());
+            reverted.addAndGet(batch.size() - e.getWriteErrors().size());
+        }
     }
 }
@@ -2,14 +2,44 @@ package com.mongodb.mongoreplay.undo;
 
 import org.bson.Document;
 
+/**
+ * How to put back one document touched by a replay: replace it with its
+ * pre-image, or delete it if the replay inserted it.
+ */
 public class UndoUpdate {
-    
-    public Document query;
-    
-    public UndoUpdate(Document query) {
-        this.query = query;
-    }
-    
-    
+
+    public final String namespace;
+
+    public final Object id;
+
+    // null if the document did not exist before the replay
+    public final Document preImage;
+
+    public UndoUpdate(String namespace, Object id, Document preImage) {
+        this.namespace = namespace;
+        this.id = id;
+        this.preImage = preImage;
+    }
+
+    /**
+     * @return the undo store record, keyed by namespace and _id so that the
+     *         first record of a document wins
+     */
+    public Document toRecord() {
+        Document record = new Document("_id", new Document("ns", namespace).append("id", id));
+        if (preImage != null) {
+            record.append("pre", preImage);
+        }
+        return record;
+    }
+
+    public static UndoUpdate fromRecord(Document record) {
+        Document key = (Document) record.get("_id");
+        return new UndoUpdate(key.getString("ns"), key.get("id"), (Document) record.get("pre"));
+    }
+
+    public boolean isInsert() {
+        return preImage == null;
+    }
 
 }
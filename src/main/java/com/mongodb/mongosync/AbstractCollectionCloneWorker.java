@@ -2,6 +2,7 @@ package com.mongodb.mongosync;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
 
 import org.bson.BsonSerializationException;
 import org.bson.BsonValue;
@@ -18,6 +19,7 @@ import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.WriteModel;
 import com.mongodb.model.Namespace;
+import com.mongodb.shardsync.MongosBalancer;
 import com.mongodb.shardsync.ShardClient;
 
 public abstract class AbstractCollectionCloneWorker {
@@ -85,13 +87,26 @@ public abstract class AbstractCollectionCloneWorker {
         return lastId;
     }
     
+    /**
+     * Run a write on the destination collection, through the next mongos if
+     * destination writes are balanced.
+     */
+    protected <T> T onDest(Function<MongoCollection<RawBsonDocument>, T> write) {
+        MongosBalancer balancer = options.getDestMongosBalancer();
+        if (balancer == null) {
+            return write.apply(destCollection);
+        }
+        return balancer.execute(client -> write.apply(client.getDatabase(ns.getDatabaseName())
+                .getCollection(ns.getCollectionName(), RawBsonDocument.class)));
+    }
+    
     protected void doInsert() {
         boolean retry = false;
         
         
         try {
             //destCollection.insertMany(buffer, insertManyOptions);
-            BulkWriteResult result = destCollection.bulkWrite(writesBuffer, bulkWriteOptions);
+            BulkWriteResult result = onDest(coll -> coll.bulkWrite(writesBuffer, bulkWriteOptions));
             successCount += result.getInsertedCount();
             errorCount += docsBuffer.size() - result.getInsertedCount();
             //WriteModel<RawBsonDocument> first = buffer.get(0);
@@ -116,7 +131,10 @@ public abstract class AbstractCollectionCloneWorker {
                 
                 try {
                     id = getId(doc);
-                    destCollection.insertOne(doc);
+                    onDest(coll -> {
+                        coll.insertOne(doc);
+                        return null;
+                    });
                     //logger.debug("inserted " + id);
                     successCount++;
                     prevId = id;
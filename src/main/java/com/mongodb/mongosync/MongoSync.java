@@ -27,7 +27,9 @@ import com.mongodb.client.MongoIterable;
 import com.mongodb.model.Namespace;
 import com.mongodb.model.Shard;
 import com.mongodb.model.ShardTimestamp;
+import com.mongodb.shardsync.MongosBalancer;
 import com.mongodb.shardsync.ShardClient;
+import com.mongodb.util.VirtualThreadExecutor;
 
 
 public class MongoSync {
@@ -35,6 +37,9 @@ public class MongoSync {
     protected static final Logger logger = LoggerFactory.getLogger(MongoSync.class);
     
     private final static String DROP_DEST_DBS = "dropDestDbs";
+    private final static String VIRTUAL = "virtual";
+    private final static int DEFAULT_VIRTUAL_CONCURRENCY = 100;
+    private final static String MONGOS = "mongos";
     
     private MongoSyncOptions mongoSyncOptions;
     
@@ -52,6 +57,11 @@ public class MongoSync {
         destShardClient = new ShardClient("dest", mongoSyncOptions.getDestMongoUri());
         destShardClient.populateShardMongoClients();
         
+        if (mongoSyncOptions.getMongosStrategy() != null) {
+            mongoSyncOptions.setDestMongosBalancer(new MongosBalancer("dest",
+                    destShardClient.getMongosMongoClientsMap(), mongoSyncOptions.getMongosStrategy()));
+        }
+        
         populateCollectionsToMigrate();
         sourceShardClient.populateCollectionsMap(mongoSyncOptions.getNamespacesToMigrate());
     }
@@ -108,7 +118,12 @@ public class MongoSync {
     }
     
     private void initialSync() {
-        initialSyncExecutor = Executors.newFixedThreadPool(mongoSyncOptions.getThreads());
+        if (mongoSyncOptions.getVirtualConcurrency() > 0) {
+            initialSyncExecutor = new VirtualThreadExecutor("clone", mongoSyncOptions.getVirtualConcurrency());
+            logger.debug("Initial sync on " + initialSyncExecutor);
+        } else {
+            initialSyncExecutor = Executors.newFixedThreadPool(mongoSyncOptions.getThreads());
+        }
         Set<String> namespaces = mongoSyncOptions.getNamespacesToMigrate();
         if (namespaces.isEmpty()) {
             
@@ -135,6 +150,9 @@ public class MongoSync {
         initialSyncExecutor.shutdown();
         while (!initialSyncExecutor.isTerminated()) {
         }
+        if (mongoSyncOptions.getDestMongosBalancer() != null) {
+            mongoSyncOptions.getDestMongosBalancer().close();
+        }
         logger.debug("Initial sync complete");
     }
     
@@ -188,6 +206,13 @@ public class MongoSync {
                 .isRequired(false).create("f"));
         options.addOption(OptionBuilder.withArgName("Drop destination databases, but preserve config metadata")
                 .withLongOpt(DROP_DEST_DBS).create(DROP_DEST_DBS));
+        options.addOption(OptionBuilder.withArgName("max namespaces at once").hasOptionalArg()
+                .withDescription("one (virtual on Java 21+) thread per namespace instead of -t threads, default limit "
+                        + DEFAULT_VIRTUAL_CONCURRENCY)
+                .withLongOpt(VIRTUAL).create(VIRTUAL));
+        options.addOption(OptionBuilder.withArgName("roundRobin|leastOutstanding").hasOptionalArg()
+                .withDescription("spread destination writes over all healthy mongos, default leastOutstanding")
+                .withLongOpt(MONGOS).create(MONGOS));
         
         CommandLineParser parser = new GnuParser();
         CommandLine line = null;
@@ -224,6 +249,16 @@ public class MongoSync {
         
         mongoSyncOptions.setNamespaceFilters(line.getOptionValues("f"));
         mongoSyncOptions.setDropDestDbs(line.hasOption(DROP_DEST_DBS));
+        if (line.hasOption(VIRTUAL)) {
+            String concurrencyStr = line.getOptionValue(VIRTUAL);
+            mongoSyncOptions.setVirtualConcurrency(
+                    concurrencyStr != null ? Integer.parseInt(concurrencyStr) : DEFAULT_VIRTUAL_CONCURRENCY);
+        }
+        if (line.hasOption(MONGOS)) {
+            String strategyStr = line.getOptionValue(MONGOS);
+            mongoSyncOptions.setMongosStrategy(strategyStr != null ? MongosBalancer.Strategy.parse(strategyStr)
+                    : MongosBalancer.Strategy.LEAST_OUTSTANDING);
+        }
         
     }
     
@@ -4,10 +4,17 @@ import java.util.HashSet;
 import java.util.Set;
 
 import com.mongodb.model.Namespace;
+import com.mongodb.shardsync.MongosBalancer;
 
 public class MongoSyncOptions {
     
     private int threads = 4;
+    // > 0 clones each namespace on its own virtual thread, at most this many at once
+    private int virtualConcurrency = 0;
+    
+    // spread destination writes over all mongos, null writes through the cluster client
+    private MongosBalancer.Strategy mongosStrategy;
+    private MongosBalancer destMongosBalancer;
     private int batchSize = 500;
     private String sourceMongoUri;
     private String destMongoUri;
@@ -30,6 +37,37 @@ public class MongoSyncOptions {
         this.threads = threads;
     }
 
+    public MongosBalancer.Strategy getMongosStrategy() {
+        return mongosStrategy;
+    }
+
+    public void setMongosStrategy(MongosBalancer.Strategy mongosStrategy) {
+        this.mongosStrategy = mongosStrategy;
+    }
+
+    /**
+     * @return the balancer for destination writes, or null
+     */
+    public MongosBalancer getDestMongosBalancer() {
+        return destMongosBalancer;
+    }
+
+    public void setDestMongosBalancer(MongosBalancer destMongosBalancer) {
+        this.destMongosBalancer = destMongosBalancer;
+    }
+
+    /**
+     * @return the limit of namespaces cloned at once on virtual threads, 0 to
+     *         use a pool of {@link #getThreads()} platform threads
+     */
+    public int getVirtualConcurrency() {
+        return virtualConcurrency;
+    }
+
+    public void setVirtualConcurrency(int virtualConcurrency) {
+        this.virtualConcurrency = virtualConcurrency;
+    }
+
     public String getSourceMongoUri() {
         return sourceMongoUri;
     }
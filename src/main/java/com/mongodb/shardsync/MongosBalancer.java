@@ -0,0 +1,393 @@
+package com.mongodb.shardsync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.client.MongoClient;
+
+/**
+ * Spreads operations over the mongos routers of a cluster (the per-mongos
+ * clients of a {@link ShardClient}) instead of sending everything through the
+ * one the connection string resolves to.
+ *
+ * A mongos is ejected when consecutive operations fail to reach it, or when
+ * its p99 over the last interval is more than slowFactor times the median of
+ * the others. Ejected routers are pinged after a cool-down and readmitted if
+ * they answer; the last healthy router is never ejected. Throughput and
+ * latency per mongos are logged periodically and on {@link #close()}.
+ *
+ * Operations that depend on server side state, such as getMores of a cursor,
+ * must not be balanced: they have to go to the mongos that created it.
+ */
+public class MongosBalancer {
+
+    protected static final Logger logger = LoggerFactory.getLogger(MongosBalancer.class);
+
+    public enum Strategy {
+        ROUND_ROBIN, LEAST_OUTSTANDING;
+
+        /**
+         * @param name roundRobin or leastOutstanding
+         */
+        public static Strategy parse(String name) {
+            if (name.equalsIgnoreCase("roundRobin")) {
+                return ROUND_ROBIN;
+            } else if (name.equalsIgnoreCase("leastOutstanding")) {
+                return LEAST_OUTSTANDING;
+            }
+            throw new IllegalArgumentException("Unknown mongos strategy " + name + ", use roundRobin or leastOutstanding");
+        }
+    }
+
+    private final static int CONSECUTIVE_FAILURES = 3;
+    private final static int MIN_INTERVAL_SAMPLES = 50;
+    private final static long HEALTH_INTERVAL_MILLIS = 1000;
+    private final static long REPORT_INTERVAL_MILLIS = 15000;
+    private final static long EJECT_MILLIS = 30000;
+    private final static int MAX_PING_THREADS = 32;
+
+    private class Target {
+
+        private final String host;
+        private final MongoClient mongoClient;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final LongAdder ops = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final Recorder latencyRecorder = new Recorder(3);
+
+        private volatile boolean ejected;
+        private volatile long retryAt;
+        private int ejections;
+
+        // health thread only
+        private final Histogram total = new Histogram(3);
+        private final Histogram reportInterval = new Histogram(3);
+        private long reportOps;
+
+        Target(String host, MongoClient mongoClient) {
+            this.host = host;
+            this.mongoClient = mongoClient;
+        }
+    }
+
+    private final String name;
+    private final Strategy strategy;
+    private final double slowFactor;
+    private final Target[] targets;
+    private volatile Target[] healthy;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final ExecutorService pingPool;
+    private final Thread healthThread;
+    private volatile boolean closed;
+
+    /**
+     * @param name used in log output, e.g. replay or dest
+     * @param mongosClients one client per mongos, by host:port
+     * @param slowFactor a mongos is ejected when its interval p99 exceeds the
+     *            median of the others times this
+     */
+    public MongosBalancer(String name, Map<String, MongoClient> mongosClients, Strategy strategy, double slowFactor) {
+        if (mongosClients.isEmpty()) {
+            throw new IllegalArgumentException(name + ": no mongos found");
+        }
+        this.name = name;
+        this.strategy = strategy;
+        this.slowFactor = slowFactor;
+        List<Target> list = new ArrayList<Target>();
+        for (Map.Entry<String, MongoClient> entry : mongosClients.entrySet()) {
+            list.add(new Target(entry.getKey(), entry.getValue()));
+        }
+        this.targets = list.toArray(new Target[0]);
+        this.healthy = targets;
+        this.pingPool = Executors.newFixedThreadPool(Math.min(targets.length, MAX_PING_THREADS), r -> {
+            Thread thread = new Thread(r, name + "-mongos-ping");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // config.mongos also lists routers that are long gone
+        try {
+            List<Target> all = Arrays.asList(targets);
+            boolean[] reachable = ping(all);
+            for (int i = 0; i < reachable.length; i++) {
+                if (!reachable[i]) {
+                    eject(all.get(i), "not reachable", System.currentTimeMillis());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.debug(String.format("%s: balancing %s over %s of %s mongos", name, strategy, healthy.length,
+                targets.length));
+        this.healthThread = new Thread(this::checkHealth, name + "-mongos-health");
+        healthThread.setDaemon(true);
+        healthThread.start();
+    }
+
+    public MongosBalancer(String name, Map<String, MongoClient> mongosClients, Strategy strategy) {
+        this(name, mongosClients, strategy, 3.0);
+    }
+
+    /**
+     * Run op against the client of the mongos chosen by the strategy, and
+     * record its latency, or the failure if op throws.
+     */
+    public <T> T execute(Function<MongoClient, T> op) {
+        Target target = select();
+        target.outstanding.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            T result = op.apply(target.mongoClient);
+            target.latencyRecorder.recordValue(Math.max((System.nanoTime() - start) / 1000, 0));
+            target.consecutiveFailures.set(0);
+            return result;
+        } catch (RuntimeException e) {
+            target.errors.increment();
+            if (isUnreachable(e) && target.consecutiveFailures.incrementAndGet() >= CONSECUTIVE_FAILURES) {
+                synchronized (this) {
+                    eject(target, e.getClass().getSimpleName(), System.currentTimeMillis());
+                }
+            }
+            throw e;
+        } finally {
+            target.ops.increment();
+            target.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Server errors (e.g. a duplicate key) say nothing about the health of
+     * the mongos, only failures to get an answer count.
+     */
+    private static boolean isUnreachable(RuntimeException e) {
+        return e instanceof MongoSocketException || e instanceof MongoTimeoutException;
+    }
+
+    private Target select() {
+        Target[] candidates = healthy;
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % candidates.length;
+        if (strategy == Strategy.ROUND_ROBIN) {
+            return candidates[start];
+        }
+        // scanning from a rotating start spreads ties
+        Target best = null;
+        for (int i = 0; i < candidates.length; i++) {
+            Target candidate = candidates[(start + i) % candidates.length];
+            if (best == null || candidate.outstanding.get() < best.outstanding.get()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Caller holds the lock.
+     */
+    private void eject(Target target, String reason, long now) {
+        if (target.ejected) {
+            return;
+        }
+        if (healthy.length <= 1) {
+            logger.warn(String.format("%s: mongos %s is %s, but it is the last one left", name, target.host, reason));
+            return;
+        }
+        target.ejected = true;
+        target.retryAt = now + EJECT_MILLIS;
+        target.ejections++;
+        updateHealthy();
+        logger.warn(String.format("%s: ejected mongos %s (%s), %s left", name, target.host, reason, healthy.length));
+    }
+
+    private void updateHealthy() {
+        List<Target> list = new ArrayList<Target>();
+        for (Target target : targets) {
+            if (!target.ejected) {
+                list.add(target);
+            }
+        }
+        healthy = list.toArray(new Target[0]);
+    }
+
+    private static boolean ping(Target target) {
+        try {
+            target.mongoClient.getDatabase("admin").runCommand(new Document("ping", 1));
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Ping the targets in parallel, so that each unreachable one does not add
+     * its timeout to the others.
+     * 
+     * @return per target, true if it answered
+     */
+    private boolean[] ping(List<Target> list) throws InterruptedException {
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (Target target : list) {
+            futures.add(pingPool.submit(() -> ping(target)));
+        }
+        boolean[] reachable = new boolean[list.size()];
+        for (int i = 0; i < reachable.length; i++) {
+            try {
+                reachable[i] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                reachable[i] = false;
+            }
+        }
+        return reachable;
+    }
+
+    private void checkHealth() {
+        long lastReport = System.currentTimeMillis();
+        long reportStart = lastReport;
+        while (!closed) {
+            try {
+                Thread.sleep(HEALTH_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            double[] p99 = new double[targets.length];
+            for (int i = 0; i < targets.length; i++) {
+                Target target = targets[i];
+                Histogram interval = target.latencyRecorder.getIntervalHistogram();
+                target.total.add(interval);
+                target.reportInterval.add(interval);
+                p99[i] = interval.getTotalCount() >= MIN_INTERVAL_SAMPLES ? interval.getValueAtPercentile(99.0) : -1;
+            }
+            ejectSlow(p99, now);
+            List<Target> due = new ArrayList<Target>();
+            for (Target target : targets) {
+                if (target.ejected && now >= target.retryAt) {
+                    due.add(target);
+                }
+            }
+            if (!due.isEmpty()) {
+                boolean[] reachable;
+                try {
+                    reachable = ping(due);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < reachable.length; i++) {
+                    readmit(due.get(i), reachable[i], now);
+                }
+            }
+            if (now - lastReport >= REPORT_INTERVAL_MILLIS) {
+                report(now - reportStart);
+                lastReport = now;
+                reportStart = now;
+            }
+        }
+    }
+
+    /**
+     * @param p99 interval p99 per target, -1 if it had too few operations
+     */
+    private synchronized void ejectSlow(double[] p99, long now) {
+        for (int i = 0; i < targets.length; i++) {
+            if (p99[i] < 0 || targets[i].ejected) {
+                continue;
+            }
+            List<Double> others = new ArrayList<Double>();
+            for (int j = 0; j < targets.length; j++) {
+                if (j != i && p99[j] >= 0 && !targets[j].ejected) {
+                    others.add(p99[j]);
+                }
+            }
+            if (others.isEmpty()) {
+                continue;
+            }
+            double[] sorted = new double[others.size()];
+            for (int j = 0; j < sorted.length; j++) {
+                sorted[j] = others.get(j);
+            }
+            Arrays.sort(sorted);
+            double median = sorted[sorted.length / 2];
+            if (p99[i] > median * slowFactor) {
+                eject(targets[i], String.format("slow, p99 %.1f ms vs %.1f ms", p99[i] / 1000.0, median / 1000.0),
+                        now);
+            }
+        }
+    }
+
+    private void readmit(Target target, boolean reachable, long now) {
+        if (reachable) {
+            synchronized (this) {
+                target.ejected = false;
+                target.consecutiveFailures.set(0);
+                updateHealthy();
+            }
+            logger.info(String.format("%s: readmitted mongos %s, %s healthy", name, target.host, healthy.length));
+        } else {
+            target.retryAt = now + EJECT_MILLIS;
+        }
+    }
+
+    private void report(long elapsedMillis) {
+        double seconds = Math.max(elapsedMillis, 1) / 1000.0;
+        StringBuilder sb = new StringBuilder(name).append(" mongos:");
+        for (Target target : targets) {
+            long ops = target.ops.sum();
+            Histogram h = target.reportInterval;
+            sb.append(String.format("%n  %-30s %8.0f ops/s, p50=%.1f, p99=%.1f ms, outstanding=%s%s", target.host,
+                    (ops - target.reportOps) / seconds, h.getValueAtPercentile(50.0) / 1000.0,
+                    h.getValueAtPercentile(99.0) / 1000.0, target.outstanding.get(),
+                    target.ejected ? " EJECTED" : ""));
+            target.reportOps = ops;
+            h.reset();
+        }
+        logger.debug(sb.toString());
+    }
+
+    /**
+     * Stop the health checks and log the totals per mongos. The clients
+     * belong to the {@link ShardClient} and are left open.
+     */
+    public void close() {
+        closed = true;
+        healthThread.interrupt();
+        try {
+            healthThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pingPool.shutdownNow();
+        StringBuilder sb = new StringBuilder(name).append(" mongos totals:");
+        for (Target target : targets) {
+            target.total.add(target.latencyRecorder.getIntervalHistogram());
+            Histogram h = target.total;
+            sb.append(String.format("%n  %-30s %10s ops, %s errors, p50=%.1f, p95=%.1f, p99=%.1f, max=%.1f ms, ejected %sx",
+                    target.host, target.ops.sum(), target.errors.sum(), h.getValueAtPercentile(50.0) / 1000.0,
+                    h.getValueAtPercentile(95.0) / 1000.0, h.getValueAtPercentile(99.0) / 1000.0,
+                    h.getMaxValue() / 1000.0, target.ejections));
+        }
+        logger.info(sb.toString());
+    }
+
+    public int getHealthyCount() {
+        return healthy.length;
+    }
+
+}
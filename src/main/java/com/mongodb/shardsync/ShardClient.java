@@ -16,6 +16,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 import org.bson.BsonDocument;
@@ -56,6 +57,8 @@ public class ShardClient {
     private static Logger logger = LoggerFactory.getLogger(ShardClient.class);
 
     private static final String MONGODB_SRV_PREFIX = "mongodb+srv://";
+    
+    private static final int MONGOS_TIMEOUT_MILLIS = 2000;
 
     private final static List<Document> countPipeline = new ArrayList<Document>();
     static {
@@ -145,22 +148,7 @@ public class ShardClient {
             for (String hostPort : srvHosts) {
                 logger.debug("populateMongosList() mongos srvHost: " + hostPort);
                 
-                String host = StringUtils.substringBefore(hostPort, ":");
-                Integer port = Integer.parseInt(StringUtils.substringAfter(hostPort, ":"));
-                
-                MongoClientSettings.Builder settingsBuilder = MongoClientSettings.builder();
-                settingsBuilder.applyToClusterSettings(builder ->
-                        builder.hosts(Arrays.asList(new ServerAddress(host, port))));
-                if (connectionString.getSslEnabled() != null) {
-                    settingsBuilder.applyToSslSettings(builder -> builder.enabled(connectionString.getSslEnabled()));
-                }
-                if (connectionString.getCredential() != null) {
-                    settingsBuilder.credential(connectionString.getCredential());
-                }
-                MongoClientSettings settings = settingsBuilder.build();
-
-                MongoClient mongoClient = MongoClients.create(settings);
-                mongosMongoClients.put(hostPort, mongoClient);
+                mongosMongoClients.put(hostPort, createMongosClient(hostPort));
             }
             
         } else {
@@ -177,23 +165,7 @@ public class ShardClient {
                 
                 logger.debug(name + " mongos: " + mongos.getId());
                 
-                String hostPort = mongos.getId();
-                String host = StringUtils.substringBefore(hostPort, ":");
-                Integer port = Integer.parseInt(StringUtils.substringAfter(hostPort, ":"));
-                
-                MongoClientSettings.Builder settingsBuilder = MongoClientSettings.builder();
-                settingsBuilder.applyToClusterSettings(builder ->
-                        builder.hosts(Arrays.asList(new ServerAddress(host, port))));
-                if (connectionString.getSslEnabled() != null) {
-                    settingsBuilder.applyToSslSettings(builder -> builder.enabled(connectionString.getSslEnabled()));
-                }
-                if (connectionString.getCredential() != null) {
-                    settingsBuilder.credential(connectionString.getCredential());
-                }
-                MongoClientSettings settings = settingsBuilder.build();
-                
-                MongoClient mongoClient = MongoClients.create(settings);
-                mongosMongoClients.put(mongos.getId(), mongoClient);
+                mongosMongoClients.put(mongos.getId(), createMongosClient(mongos.getId()));
             }
                
         }
@@ -203,6 +175,30 @@ public class ShardClient {
         logger.debug(name + " populateMongosList complete, " + mongosMongoClients.size() + " mongosMongoClients added");
     }
     
+    /**
+     * A client for one mongos. config.mongos also lists routers that are long
+     * gone, so these fail after a couple of seconds instead of the default 30s
+     * server selection timeout.
+     */
+    private MongoClient createMongosClient(String hostPort) {
+        String host = StringUtils.substringBefore(hostPort, ":");
+        Integer port = Integer.parseInt(StringUtils.substringAfter(hostPort, ":"));
+        
+        MongoClientSettings.Builder settingsBuilder = MongoClientSettings.builder();
+        settingsBuilder.applyToClusterSettings(builder ->
+                builder.hosts(Arrays.asList(new ServerAddress(host, port)))
+                        .serverSelectionTimeout(MONGOS_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        settingsBuilder.applyToSocketSettings(builder ->
+                builder.connectTimeout(MONGOS_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        if (connectionString.getSslEnabled() != null) {
+            settingsBuilder.applyToSslSettings(builder -> builder.enabled(connectionString.getSslEnabled()));
+        }
+        if (connectionString.getCredential() != null) {
+            settingsBuilder.credential(connectionString.getCredential());
+        }
+        return MongoClients.create(settingsBuilder.build());
+    }
+    
     /**
      *  Populate only a subset of all collections. Useful if there are a very large number of
      *  namespaces present.
@@ -474,6 +470,13 @@ public class ShardClient {
     public Collection<MongoClient> getMongosMongoClients() {
         return mongosMongoClients.values();
     }
+
+    /**
+     * @return one client per mongos, by host:port
+     */
+    public Map<String, MongoClient> getMongosMongoClientsMap() {
+        return mongosMongoClients;
+    }
     
     public MongoClient getShardMongoClient(String shardId) {
         return shardMongoClients.get(shardId);
@@ -521,4 +524,14 @@ public class ShardClient {
         return connectionString;
     }
 
+    public void close() {
+        for (MongoClient client : mongosMongoClients.values()) {
+            client.close();
+        }
+        for (MongoClient client : shardMongoClients.values()) {
+            client.close();
+        }
+        mongoClient.close();
+    }
+
 }
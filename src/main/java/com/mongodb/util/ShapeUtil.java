@@ -3,13 +3,18 @@ package com.mongodb.util;
 import static java.util.Arrays.asList;
 import static java.util.Map.Entry.comparingByKey;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.BiConsumer;
 import java.util.function.BinaryOperator;
 import java.util.function.Function;
@@ -20,6 +25,8 @@ import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mongodb.util.bson.BsonScanner;
+
 public class ShapeUtil {
 
     protected static final Logger logger = LoggerFactory.getLogger(ShapeUtil.class);
@@ -28,6 +35,20 @@ public class ShapeUtil {
 
     private static final Set<String> EXPRESSION_OPERATORS = asSet(Identifier.AND, Identifier.OR, Identifier.NOR);
 
+    // shape hash -> canonical shape string, see getShapeString()
+    private static final int SHAPE_CACHE_SIZE = 10000;
+    private static final ConcurrentHashMap<Long, String> shapeCache = new ConcurrentHashMap<Long, String>();
+    // the cached hashes by slot, for evicting a random one; guards additions
+    private static final long[] shapeCacheKeys = new long[SHAPE_CACHE_SIZE];
+    private static int shapeCacheEntries;
+
+    private static final ThreadLocal<KeyHashes> KEY_HASHES = ThreadLocal.withInitial(KeyHashes::new);
+
+    private static final byte[] FIND = "find".getBytes(StandardCharsets.US_ASCII);
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     private static final Set<String> ALL_OPERATORS = asSet(Identifier.AND, Identifier.OR, Identifier.NOR, "$in", "$gt",
             "$lt", "$eq", "$ne", "$nin", "$exists", "$gte", "find", "sort", "distinct", "aggregate");
 
@@ -57,6 +78,259 @@ public class ShapeUtil {
         return predicates;
     }
 
+    /**
+     * Same as <code>getShape(predicateDoc).toString()</code>, but hot shapes
+     * cost one {@link #getShapeHash(Document)} and one cache lookup instead of
+     * building the shape.
+     */
+    public static String getShapeString(final Document predicateDoc) {
+        if (predicateDoc == null) {
+            return null;
+        }
+        Long hash = getShapeHash(predicateDoc);
+        String shape = shapeCache.get(hash);
+        if (shape == null) {
+            shape = getShape(predicateDoc).toString();
+            cacheShape(hash, shape);
+        }
+        return shape;
+    }
+
+    /**
+     * {@link #getShapeString(Document)} for a raw BSON predicate document at
+     * docOffset of buf (little endian), without decoding it.
+     */
+    public static String getShapeString(final ByteBuffer buf, final int docOffset) {
+        Long hash = getShapeHash(buf, docOffset);
+        String shape = shapeCache.get(hash);
+        if (shape == null) {
+            TreeSet<String> predicates = new TreeSet<String>();
+            collectKeys(buf, docOffset, predicates);
+            shape = predicates.toString();
+            cacheShape(hash, shape);
+        }
+        return shape;
+    }
+
+    /**
+     * Add a shape, evicting a random one when the cache is full. Lookups stay
+     * lock free, only misses synchronize. Unlike clearing the cache, a random
+     * eviction rarely hits a hot shape.
+     */
+    static void cacheShape(Long hash, String shape) {
+        synchronized (shapeCacheKeys) {
+            if (shapeCache.containsKey(hash)) {
+                return;
+            }
+            int slot;
+            if (shapeCacheEntries < SHAPE_CACHE_SIZE) {
+                slot = shapeCacheEntries++;
+            } else {
+                slot = ThreadLocalRandom.current().nextInt(SHAPE_CACHE_SIZE);
+                shapeCache.remove(shapeCacheKeys[slot]);
+            }
+            shapeCacheKeys[slot] = hash;
+            shapeCache.put(hash, shape);
+        }
+    }
+
+    static int shapeCacheSize() {
+        return shapeCache.size();
+    }
+
+    /**
+     * 64 bit structural hash of the shape of a predicate: two predicates have
+     * the same hash if {@link #getShape(Document)} returns the same set of
+     * field names (barring hash collisions). Computed in a single walk without
+     * building the shape.
+     */
+    public static long getShapeHash(final Document predicateDoc) {
+        KeyHashes keys = KEY_HASHES.get();
+        keys.size = 0;
+        hashKeys(predicateDoc, keys);
+        return keys.combine();
+    }
+
+    /**
+     * {@link #getShapeHash(Document)} over a raw BSON document at docOffset of
+     * buf (little endian). Both variants return the same hash for the same
+     * predicate.
+     */
+    public static long getShapeHash(final ByteBuffer buf, final int docOffset) {
+        KeyHashes keys = KEY_HASHES.get();
+        keys.size = 0;
+        hashKeys(buf, docOffset, keys);
+        return keys.combine();
+    }
+
+    // mirrors predicateDocToShapeRecursive()
+    @SuppressWarnings("rawtypes")
+    private static void hashKeys(final Document predicateDoc, KeyHashes keys) {
+        for (final Map.Entry<String, Object> entry : predicateDoc.entrySet()) {
+            final String key = entry.getKey();
+            final Object valueObj = entry.getValue();
+            if (isExpressionOperator(key)) {
+                if (valueObj instanceof List) {
+                    for (Object elemObj : (List) valueObj) {
+                        if (elemObj instanceof Document) {
+                            hashKeys((Document) elemObj, keys);
+                        }
+                    }
+                }
+            } else if (Identifier.isDocWithNestedOperators(valueObj)) {
+                hashKeys((Document) valueObj, keys);
+            }
+            if (!isOperator(key)) {
+                keys.add(hashKey(key));
+            }
+        }
+    }
+
+    private static void hashKeys(final ByteBuffer buf, final int docOffset, KeyHashes keys) {
+        int end = BsonScanner.documentEnd(buf, docOffset) - 1;
+        for (int element = BsonScanner.firstElement(docOffset); element < end; element = BsonScanner.nextElement(buf, element)) {
+            byte type = BsonScanner.elementType(buf, element);
+            if (isExpressionOperator(buf, element + 1)) {
+                if (type == BsonScanner.ARRAY) {
+                    int array = BsonScanner.valueOffset(buf, element);
+                    int arrayEnd = BsonScanner.documentEnd(buf, array) - 1;
+                    for (int item = BsonScanner.firstElement(array); item < arrayEnd; item = BsonScanner.nextElement(buf, item)) {
+                        if (BsonScanner.elementType(buf, item) == BsonScanner.DOCUMENT) {
+                            hashKeys(buf, BsonScanner.valueOffset(buf, item), keys);
+                        }
+                    }
+                }
+            } else if (type == BsonScanner.DOCUMENT) {
+                hashKeys(buf, BsonScanner.valueOffset(buf, element), keys);
+            }
+            if (!isOperator(buf, element + 1)) {
+                keys.add(hashKey(buf, element + 1));
+            }
+        }
+    }
+
+    private static void collectKeys(final ByteBuffer buf, final int docOffset, Set<String> predicates) {
+        int end = BsonScanner.documentEnd(buf, docOffset) - 1;
+        for (int element = BsonScanner.firstElement(docOffset); element < end; element = BsonScanner.nextElement(buf, element)) {
+            byte type = BsonScanner.elementType(buf, element);
+            if (isExpressionOperator(buf, element + 1)) {
+                if (type == BsonScanner.ARRAY) {
+                    int array = BsonScanner.valueOffset(buf, element);
+                    int arrayEnd = BsonScanner.documentEnd(buf, array) - 1;
+                    for (int item = BsonScanner.firstElement(array); item < arrayEnd; item = BsonScanner.nextElement(buf, item)) {
+                        if (BsonScanner.elementType(buf, item) == BsonScanner.DOCUMENT) {
+                            collectKeys(buf, BsonScanner.valueOffset(buf, item), predicates);
+                        }
+                    }
+                }
+            } else if (type == BsonScanner.DOCUMENT) {
+                collectKeys(buf, BsonScanner.valueOffset(buf, element), predicates);
+            }
+            if (!isOperator(buf, element + 1)) {
+                predicates.add(BsonScanner.readCString(buf, element + 1));
+            }
+        }
+    }
+
+    private static boolean isOperator(final ByteBuffer buf, final int namePos) {
+        return buf.get(namePos) == '$' || BsonScanner.nameEquals(buf, namePos, FIND);
+    }
+
+    /**
+     * Raw equivalent of isExpressionOperator(String): trimmed, case
+     * insensitive match of $and, $or or $nor.
+     */
+    private static boolean isExpressionOperator(final ByteBuffer buf, final int namePos) {
+        int start = namePos;
+        while (buf.get(start) != 0 && (buf.get(start) & 0xff) <= ' ') {
+            start++;
+        }
+        if (buf.get(start) != '$') {
+            return false;
+        }
+        int end = BsonScanner.skipCString(buf, start) - 1;
+        while (end > start && (buf.get(end - 1) & 0xff) <= ' ') {
+            end--;
+        }
+        int len = end - start;
+        if (len < 3 || len > 4) {
+            return false;
+        }
+        int c1 = Character.toLowerCase(buf.get(start + 1));
+        int c2 = Character.toLowerCase(buf.get(start + 2));
+        int c3 = len == 4 ? Character.toLowerCase(buf.get(start + 3)) : 0;
+        return len == 4 && (c1 == 'a' && c2 == 'n' && c3 == 'd' || c1 == 'n' && c2 == 'o' && c3 == 'r')
+                || len == 3 && c1 == 'o' && c2 == 'r';
+    }
+
+    /**
+     * FNV-1a over the UTF-8 encoding of key, matching hashKey(ByteBuffer, int)
+     * over the same name in raw BSON.
+     */
+    private static long hashKey(final String key) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < key.length(); i++) {
+            int c = key.charAt(i);
+            if (c < 0x80) {
+                h = (h ^ c) * FNV_PRIME;
+            } else if (c < 0x800) {
+                h = (h ^ (0xc0 | c >> 6)) * FNV_PRIME;
+                h = (h ^ (0x80 | c & 0x3f)) * FNV_PRIME;
+            } else {
+                if (Character.isHighSurrogate((char) c) && i + 1 < key.length()) {
+                    int cp = Character.toCodePoint((char) c, key.charAt(++i));
+                    h = (h ^ (0xf0 | cp >> 18)) * FNV_PRIME;
+                    h = (h ^ (0x80 | cp >> 12 & 0x3f)) * FNV_PRIME;
+                    c = cp;
+                } else {
+                    h = (h ^ (0xe0 | c >> 12)) * FNV_PRIME;
+                }
+                h = (h ^ (0x80 | c >> 6 & 0x3f)) * FNV_PRIME;
+                h = (h ^ (0x80 | c & 0x3f)) * FNV_PRIME;
+            }
+        }
+        return h;
+    }
+
+    private static long hashKey(final ByteBuffer buf, int pos) {
+        long h = FNV_OFFSET;
+        byte b;
+        while ((b = buf.get(pos++)) != 0) {
+            h = (h ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * Per thread scratch space for the key hashes of one predicate.
+     */
+    private static class KeyHashes {
+        long[] hashes = new long[32];
+        int size;
+
+        void add(long hash) {
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            hashes[size++] = hash;
+        }
+
+        /**
+         * Sort and de-duplicate (the shape is a set), then mix into one hash.
+         */
+        long combine() {
+            Arrays.sort(hashes, 0, size);
+            long h = 0x9e3779b97f4a7c15L;
+            for (int i = 0; i < size; i++) {
+                if (i > 0 && hashes[i] == hashes[i - 1]) {
+                    continue;
+                }
+                h = HyperLogLog.mix(h ^ hashes[i]) + 0x9e3779b97f4a7c15L;
+            }
+            return h;
+        }
+    }
+
     public static Document predicateDocToShapeRecursive(final Document pPredicateDoc,
             Set<String> predicates) {
         
@@ -0,0 +1,151 @@
+package com.mongodb.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving heavy hitters counter (Metwally et al.). Tracks at most
+ * capacity keys; when a new key arrives at capacity, it replaces the key with
+ * the smallest count and inherits that count as its error bound. Counts are
+ * exact while fewer than capacity distinct keys have been seen.
+ *
+ * Counters are kept in a min-heap ordered by count, so the key to replace is
+ * found in constant time and every update costs O(log capacity).
+ *
+ * Not thread safe; counters built on different threads are combined with
+ * {@link #merge(SpaceSaving)}.
+ */
+public class SpaceSaving<K> {
+
+    public static class Counter<K> {
+        private final K key;
+        private long count;
+        private long error;
+        // position in the heap
+        private int index;
+
+        Counter(K key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * @return the estimated count, an upper bound of the true count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the maximum overestimation of {@link #getCount()}
+         */
+        public long getError() {
+            return error;
+        }
+    }
+
+    private final int capacity;
+    private final Map<K, Counter<K>> counters;
+    private final Counter<K>[] heap;
+
+    @SuppressWarnings("unchecked")
+    public SpaceSaving(int capacity) {
+        this.capacity = capacity;
+        this.counters = new HashMap<K, Counter<K>>(capacity * 2);
+        this.heap = new Counter[capacity];
+    }
+
+    public void add(K key) {
+        add(key, 1);
+    }
+
+    public void add(K key, long increment) {
+        Counter<K> counter = counters.get(key);
+        if (counter != null) {
+            counter.count += increment;
+            siftDown(counter.index);
+            return;
+        }
+        if (counters.size() < capacity) {
+            counter = new Counter<K>(key, increment, 0);
+            counter.index = counters.size();
+            heap[counter.index] = counter;
+            counters.put(key, counter);
+            siftUp(counter.index);
+            return;
+        }
+        // the new key takes over the counter with the smallest count
+        Counter<K> evict = heap[0];
+        counters.remove(evict.key);
+        counter = new Counter<K>(key, evict.count + increment, evict.count);
+        heap[0] = counter;
+        counters.put(key, counter);
+        siftDown(0);
+    }
+
+    private void siftUp(int i) {
+        Counter<K> counter = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            place(heap[parent], i);
+            i = parent;
+        }
+        place(counter, i);
+    }
+
+    private void siftDown(int i) {
+        Counter<K> counter = heap[i];
+        int size = counters.size();
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], i);
+            i = child;
+        }
+        place(counter, i);
+    }
+
+    private void place(Counter<K> counter, int i) {
+        heap[i] = counter;
+        counter.index = i;
+    }
+
+    public void merge(SpaceSaving<K> other) {
+        for (Counter<K> counter : other.counters.values()) {
+            add(counter.key, counter.count);
+            counters.get(counter.key).error += counter.error;
+        }
+    }
+
+    /**
+     * @return the k most frequent keys, most frequent first
+     */
+    public List<Counter<K>> top(int k) {
+        List<Counter<K>> result = new ArrayList<Counter<K>>(counters.values());
+        result.sort((a, b) -> Long.compare(b.count, a.count));
+        return result.size() > k ? new ArrayList<Counter<K>>(result.subList(0, k)) : result;
+    }
+
+    public int size() {
+        return counters.size();
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.mongodb.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel that hands tasks to an {@link Executor} once their
+ * deadline (in {@link System#nanoTime()} terms) has passed. Scheduling is a
+ * lock-free enqueue, and the single tick thread touches only the bucket for
+ * the current tick, so the per-task overhead stays constant no matter how many
+ * tasks are pending.
+ */
+public class TimerWheel {
+
+    protected static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+
+    private final long tickNanos;
+    private final Node[] buckets;
+    private final Node[] tails;
+    private final int mask;
+    private final Executor executor;
+
+    private final Queue<Node> pending = new ConcurrentLinkedQueue<Node>();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long startNanos;
+    private long tick;
+
+    private static class Node {
+        final Runnable task;
+        final long deadline;
+        long rounds;
+        Node next;
+
+        Node(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * @param executor executor that tasks are dispatched to when due
+     * @param tickDuration resolution of the wheel
+     * @param unit unit of tickDuration
+     * @param wheelSize number of buckets, rounded up to a power of 2
+     */
+    public TimerWheel(Executor executor, long tickDuration, TimeUnit unit, int wheelSize) {
+        this.executor = executor;
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.buckets = new Node[size];
+        this.tails = new Node[size];
+        this.mask = size - 1;
+        this.worker = new Thread(this::runWheel, "timer-wheel");
+        this.worker.setDaemon(true);
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+        worker.start();
+    }
+
+    /**
+     * Schedule task to be dispatched at (or as soon as possible after)
+     * deadlineNanos, a {@link System#nanoTime()} value.
+     */
+    public void schedule(Runnable task, long deadlineNanos) {
+        outstanding.incrementAndGet();
+        pending.add(new Node(task, deadlineNanos));
+    }
+
+    /**
+     * @return the number of scheduled tasks not yet handed to the executor
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Block until all scheduled tasks have been handed to the executor, then
+     * stop the tick thread.
+     */
+    public void drainAndStop() throws InterruptedException {
+        while (outstanding.get() > 0 && worker.isAlive()) {
+            Thread.sleep(10);
+        }
+        stop();
+        worker.join();
+    }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    private void runWheel() {
+        while (running) {
+            long deadline = startNanos + (tick + 1) * tickNanos;
+            long now = System.nanoTime();
+            while (now < deadline && running) {
+                LockSupport.parkNanos(deadline - now);
+                now = System.nanoTime();
+            }
+            transferPending();
+            expire((int) (tick & mask));
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Node node;
+        while ((node = pending.poll()) != null) {
+            long ticks = Math.max((node.deadline - startNanos) / tickNanos, tick);
+            node.rounds = (ticks - tick) / buckets.length;
+            int idx = (int) (ticks & mask);
+            // append, so tasks due in the same tick keep their scheduling order
+            if (tails[idx] == null) {
+                buckets[idx] = node;
+            } else {
+                tails[idx].next = node;
+            }
+            tails[idx] = node;
+        }
+    }
+
+    private void expire(int idx) {
+        Node prev = null;
+        Node node = buckets[idx];
+        while (node != null) {
+            Node next = node.next;
+            if (node.rounds <= 0) {
+                if (prev == null) {
+                    buckets[idx] = next;
+                } else {
+                    prev.next = next;
+                }
+                if (tails[idx] == node) {
+                    tails[idx] = prev;
+                }
+                node.next = null;
+                dispatch(node);
+            } else {
+                node.rounds--;
+                prev = node;
+            }
+            node = next;
+        }
+    }
+
+    private void dispatch(Node node) {
+        try {
+            executor.execute(node.task);
+        } catch (RuntimeException e) {
+            logger.error("Error dispatching scheduled task", e);
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+}
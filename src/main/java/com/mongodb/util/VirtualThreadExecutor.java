@@ -0,0 +1,157 @@
+package com.mongodb.util;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs each task on its own thread, with the number of concurrently running
+ * tasks limited by a semaphore rather than by a pool size. The caller of
+ * {@link #execute(Runnable)} blocks while the limit is reached.
+ *
+ * On a Java 21+ runtime the threads are virtual threads, so the limit can be
+ * in the thousands for blocking I/O. The JDK API is looked up reflectively so
+ * the project still compiles to Java 8; on older runtimes each task gets a
+ * platform thread from a cached pool, which behaves the same with a
+ * correspondingly lower practical limit.
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+    protected static final Logger logger = LoggerFactory.getLogger(VirtualThreadExecutor.class);
+
+    // probed once, on 19 and 20 the API throws unless preview features are enabled
+    private static final boolean VIRTUAL = virtualThreadFactory("probe") != null;
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxConcurrency;
+
+    /**
+     * @param name thread name prefix
+     * @param maxConcurrency maximum number of tasks running at once
+     */
+    public VirtualThreadExecutor(String name, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be > 0, was " + maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(maxConcurrency);
+        this.executor = newExecutor(name);
+    }
+
+    /**
+     * @return true if tasks run on virtual threads in this JVM
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL;
+    }
+
+    /**
+     * Thread.ofVirtual().name(name + "-", 0).factory(), or null before Java 21.
+     */
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newExecutor(String name) {
+        ThreadFactory factory = VIRTUAL ? virtualThreadFactory(name) : null;
+        if (factory != null) {
+            // Executors.newThreadPerTaskExecutor(factory)
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, factory);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("Virtual threads unavailable, using platform threads: " + e);
+            }
+        }
+        AtomicLong count = new AtomicLong();
+        return Executors.newCachedThreadPool(r -> new Thread(r, name + "-" + count.getAndIncrement()));
+    }
+
+    /**
+     * Start command on a new thread, blocking until fewer than
+     * maxConcurrency tasks are running.
+     */
+    @Override
+    public void execute(Runnable command) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted", e);
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of tasks currently running
+     */
+    public int getActiveCount() {
+        return maxConcurrency - permits.availablePermits();
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return executor.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s threads, max %s concurrent", isVirtual() ? "virtual" : "platform", maxConcurrency);
+    }
+
+}
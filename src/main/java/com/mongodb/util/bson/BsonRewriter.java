@@ -0,0 +1,196 @@
+package com.mongodb.util.bson;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.io.BasicOutputBuffer;
+
+/**
+ * Streaming rewrite of raw BSON: a document is copied from the input buffer to
+ * the output as runs of unchanged bytes, dropping the elements at the skipped
+ * paths and substituting the values at the replaced paths. Length prefixes of
+ * the documents on the way to a rewritten element are back-patched once their
+ * new size is known; nothing is decoded into objects.
+ *
+ * Paths are dotted field names from the root, e.g. <code>projection</code> or
+ * <code>updates.q.shardKey</code>. Arrays are traversed transparently: a path
+ * continuing through an array applies to every embedded document in it.
+ *
+ * A rewriter is immutable once configured, and may be shared between threads
+ * as long as its {@link ValueWriter}s are.
+ */
+public class BsonRewriter {
+
+    /**
+     * Writes a replacement value (without the type byte and element name).
+     */
+    public interface ValueWriter {
+        void write(BasicOutputBuffer out);
+    }
+
+    private static class Node {
+        final byte[] name;
+        final List<Node> children = new ArrayList<Node>();
+        boolean skip;
+        byte replacementType;
+        ValueWriter replacement;
+
+        Node(byte[] name) {
+            this.name = name;
+        }
+
+        Node child(ByteBuffer buf, int namePos) {
+            for (Node child : children) {
+                if (BsonScanner.nameEquals(buf, namePos, child.name)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final int COPY_CHUNK = 8192;
+
+    private final Node root = new Node(new byte[0]);
+
+    /**
+     * Drop the elements at paths.
+     */
+    public BsonRewriter skip(String... paths) {
+        for (String path : paths) {
+            node(path).skip = true;
+        }
+        return this;
+    }
+
+    /**
+     * Replace the value of the element at path (if present) with a value of
+     * type written by writer.
+     */
+    public BsonRewriter replace(String path, byte type, ValueWriter writer) {
+        Node node = node(path);
+        node.replacementType = type;
+        node.replacement = writer;
+        return this;
+    }
+
+    private Node node(String path) {
+        Node node = root;
+        for (String field : path.split("\\.")) {
+            byte[] name = field.getBytes(StandardCharsets.UTF_8);
+            Node child = null;
+            for (Node c : node.children) {
+                if (Arrays.equals(c.name, name)) {
+                    child = c;
+                }
+            }
+            if (child == null) {
+                child = new Node(name);
+                node.children.add(child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Write the rewritten copy of the document at docOffset to out.
+     *
+     * @param in little endian buffer holding the document
+     * @return the number of bytes written
+     */
+    public int rewrite(ByteBuffer in, int docOffset, BasicOutputBuffer out) {
+        int start = out.getPosition();
+        rewriteDocument(in, docOffset, root, out);
+        return out.getPosition() - start;
+    }
+
+    private static void rewriteDocument(ByteBuffer in, int docOffset, Node node, BasicOutputBuffer out) {
+        int lengthPos = out.getPosition();
+        int end = BsonScanner.documentEnd(in, docOffset);
+        // elements are copied in runs from copyFrom up to the next one that changes
+        int copyFrom = docOffset;
+        int pos = BsonScanner.firstElement(docOffset);
+        while (pos < end - 1) {
+            byte type = in.get(pos);
+            int valuePos = BsonScanner.valueOffset(in, pos);
+            int next = valuePos + BsonScanner.valueSize(in, type, valuePos);
+            Node child = node.child(in, pos + 1);
+            if (child != null) {
+                copy(in, copyFrom, pos, out);
+                if (child.skip) {
+                    // dropped
+                } else if (child.replacement != null) {
+                    out.writeByte(child.replacementType);
+                    copy(in, pos + 1, valuePos, out);
+                    child.replacement.write(out);
+                } else if (type == BsonScanner.DOCUMENT) {
+                    copy(in, pos, valuePos, out);
+                    rewriteDocument(in, valuePos, child, out);
+                } else if (type == BsonScanner.ARRAY) {
+                    copy(in, pos, valuePos, out);
+                    rewriteArray(in, valuePos, child, out);
+                } else {
+                    copy(in, pos, next, out);
+                }
+                copyFrom = next;
+            }
+            pos = next;
+        }
+        copy(in, copyFrom, end, out);
+        if (copyFrom != docOffset) {
+            out.writeInt32(lengthPos, out.getPosition() - lengthPos);
+        }
+    }
+
+    /**
+     * Apply node to every embedded document of the array at arrayOffset.
+     */
+    private static void rewriteArray(ByteBuffer in, int arrayOffset, Node node, BasicOutputBuffer out) {
+        int lengthPos = out.getPosition();
+        int end = BsonScanner.documentEnd(in, arrayOffset);
+        int copyFrom = arrayOffset;
+        int pos = BsonScanner.firstElement(arrayOffset);
+        while (pos < end - 1) {
+            byte type = in.get(pos);
+            int valuePos = BsonScanner.valueOffset(in, pos);
+            int next = valuePos + BsonScanner.valueSize(in, type, valuePos);
+            if (type == BsonScanner.DOCUMENT) {
+                copy(in, copyFrom, valuePos, out);
+                rewriteDocument(in, valuePos, node, out);
+                copyFrom = next;
+            }
+            pos = next;
+        }
+        copy(in, copyFrom, end, out);
+        out.writeInt32(lengthPos, out.getPosition() - lengthPos);
+    }
+
+    /**
+     * Copy the bytes [from, to) of in to out, in bulk from the backing array
+     * of a heap buffer or in chunks from a direct one.
+     */
+    public static void copy(ByteBuffer in, int from, int to, BasicOutputBuffer out) {
+        int length = to - from;
+        if (length <= 0) {
+            return;
+        }
+        if (in.hasArray()) {
+            out.writeBytes(in.array(), in.arrayOffset() + from, length);
+            return;
+        }
+        // e.g. a mapped capture file
+        ByteBuffer src = in.duplicate();
+        src.limit(to).position(from);
+        byte[] chunk = new byte[Math.min(length, COPY_CHUNK)];
+        while (src.hasRemaining()) {
+            int n = Math.min(chunk.length, src.remaining());
+            src.get(chunk, 0, n);
+            out.writeBytes(chunk, 0, n);
+        }
+    }
+
+}
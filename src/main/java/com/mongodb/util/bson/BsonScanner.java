@@ -0,0 +1,234 @@
+package com.mongodb.util.bson;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.bson.BsonSerializationException;
+
+/**
+ * Static helpers for walking raw BSON in place, without decoding it into
+ * objects. All offsets are absolute positions in the supplied buffer, which
+ * must be in little endian order.
+ */
+public class BsonScanner {
+
+    public static final byte DOUBLE = 0x01;
+    public static final byte STRING = 0x02;
+    public static final byte DOCUMENT = 0x03;
+    public static final byte ARRAY = 0x04;
+    public static final byte BINARY = 0x05;
+    public static final byte UNDEFINED = 0x06;
+    public static final byte OBJECT_ID = 0x07;
+    public static final byte BOOLEAN = 0x08;
+    public static final byte DATE_TIME = 0x09;
+    public static final byte NULL = 0x0A;
+    public static final byte REGULAR_EXPRESSION = 0x0B;
+    public static final byte DB_POINTER = 0x0C;
+    public static final byte JAVASCRIPT = 0x0D;
+    public static final byte SYMBOL = 0x0E;
+    public static final byte JAVASCRIPT_WITH_SCOPE = 0x0F;
+    public static final byte INT32 = 0x10;
+    public static final byte TIMESTAMP = 0x11;
+    public static final byte INT64 = 0x12;
+    public static final byte DECIMAL128 = 0x13;
+    public static final byte MIN_KEY = (byte) 0xFF;
+    public static final byte MAX_KEY = 0x7F;
+
+    private static final byte BINARY_SUBTYPE_OLD = 0x02;
+
+    /**
+     * Find the top level element with the given (ASCII / UTF-8 encoded) name in
+     * the document starting at docOffset.
+     *
+     * @return the offset of the element's type byte, or -1 if not present
+     */
+    public static int findElement(ByteBuffer buf, int docOffset, byte[] name) {
+        int end = docOffset + buf.getInt(docOffset) - 1;
+        int pos = docOffset + 4;
+        while (pos < end) {
+            byte type = buf.get(pos);
+            if (nameEquals(buf, pos + 1, name)) {
+                return pos;
+            }
+            int valuePos = skipCString(buf, pos + 1);
+            pos = valuePos + valueSize(buf, type, valuePos);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset of the first element of the document at docOffset
+     */
+    public static int firstElement(int docOffset) {
+        return docOffset + 4;
+    }
+
+    /**
+     * @return the offset just past the document's terminating 0x00
+     */
+    public static int documentEnd(ByteBuffer buf, int docOffset) {
+        return docOffset + buf.getInt(docOffset);
+    }
+
+    /**
+     * @return the offset of the element following the one at elementOffset
+     */
+    public static int nextElement(ByteBuffer buf, int elementOffset) {
+        int valuePos = valueOffset(buf, elementOffset);
+        return valuePos + valueSize(buf, buf.get(elementOffset), valuePos);
+    }
+
+    /**
+     * @return the offset of the value of the element at elementOffset
+     */
+    public static int valueOffset(ByteBuffer buf, int elementOffset) {
+        return skipCString(buf, elementOffset + 1);
+    }
+
+    public static byte elementType(ByteBuffer buf, int elementOffset) {
+        return buf.get(elementOffset);
+    }
+
+    /**
+     * Size in bytes of a value of the given type starting at valuePos.
+     */
+    public static int valueSize(ByteBuffer buf, byte type, int valuePos) {
+        switch (type) {
+        case DOUBLE:
+        case DATE_TIME:
+        case TIMESTAMP:
+        case INT64:
+            return 8;
+        case STRING:
+        case JAVASCRIPT:
+        case SYMBOL:
+            return 4 + buf.getInt(valuePos);
+        case DOCUMENT:
+        case ARRAY:
+        case JAVASCRIPT_WITH_SCOPE:
+            return buf.getInt(valuePos);
+        case BINARY:
+            return 5 + buf.getInt(valuePos);
+        case UNDEFINED:
+        case NULL:
+        case MIN_KEY:
+        case MAX_KEY:
+            return 0;
+        case OBJECT_ID:
+            return 12;
+        case BOOLEAN:
+            return 1;
+        case REGULAR_EXPRESSION:
+            return skipCString(buf, skipCString(buf, valuePos)) - valuePos;
+        case DB_POINTER:
+            return 4 + buf.getInt(valuePos) + 12;
+        case INT32:
+            return 4;
+        case DECIMAL128:
+            return 16;
+        default:
+            throw new BsonSerializationException(String.format("Unexpected BSON type 0x%02x at offset %s", type, valuePos));
+        }
+    }
+
+    /**
+     * @return the offset of the first byte after the cstring starting at pos
+     */
+    public static int skipCString(ByteBuffer buf, int pos) {
+        while (buf.get(pos) != 0) {
+            pos++;
+        }
+        return pos + 1;
+    }
+
+    /**
+     * Compare the cstring at pos with name, without allocating.
+     */
+    public static boolean nameEquals(ByteBuffer buf, int pos, byte[] name) {
+        int limit = buf.limit();
+        for (int i = 0; i < name.length; i++) {
+            if (pos + i >= limit || buf.get(pos + i) != name[i]) {
+                return false;
+            }
+        }
+        return pos + name.length < limit && buf.get(pos + name.length) == 0;
+    }
+
+    public static String readCString(ByteBuffer buf, int pos) {
+        int end = skipCString(buf, pos) - 1;
+        return decode(buf, pos, end - pos);
+    }
+
+    /**
+     * Read the BSON string value (int32 length prefixed) at valuePos.
+     */
+    public static String readString(ByteBuffer buf, int valuePos) {
+        int len = buf.getInt(valuePos) - 1;
+        return decode(buf, valuePos + 4, len);
+    }
+
+    /**
+     * Compare the BSON string value (int32 length prefixed) at valuePos with
+     * value, without allocating.
+     */
+    public static boolean stringEquals(ByteBuffer buf, int valuePos, byte[] value) {
+        if (buf.getInt(valuePos) - 1 != value.length) {
+            return false;
+        }
+        int pos = valuePos + 4;
+        for (int i = 0; i < value.length; i++) {
+            if (buf.get(pos + i) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read an integral value (int32, int64 or double) of the element at
+     * elementOffset as a long.
+     */
+    public static long readIntegral(ByteBuffer buf, int elementOffset) {
+        byte type = buf.get(elementOffset);
+        int valuePos = valueOffset(buf, elementOffset);
+        switch (type) {
+        case INT32:
+            return buf.getInt(valuePos);
+        case INT64:
+            return buf.getLong(valuePos);
+        case DOUBLE:
+            return (long) buf.getDouble(valuePos);
+        default:
+            throw new BsonSerializationException(String.format("Expected numeric BSON type, found 0x%02x", type));
+        }
+    }
+
+    /**
+     * @return the offset of the payload of the binary value at valuePos
+     */
+    public static int binaryDataOffset(ByteBuffer buf, int valuePos) {
+        if (buf.get(valuePos + 4) == BINARY_SUBTYPE_OLD) {
+            return valuePos + 9;
+        }
+        return valuePos + 5;
+    }
+
+    /**
+     * @return the length of the payload of the binary value at valuePos
+     */
+    public static int binaryDataLength(ByteBuffer buf, int valuePos) {
+        if (buf.get(valuePos + 4) == BINARY_SUBTYPE_OLD) {
+            return buf.getInt(valuePos + 5);
+        }
+        return buf.getInt(valuePos);
+    }
+
+    private static String decode(ByteBuffer buf, int pos, int len) {
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = buf.get(pos + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
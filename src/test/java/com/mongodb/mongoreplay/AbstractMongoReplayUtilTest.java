@@ -0,0 +1,68 @@
+package com.mongodb.mongoreplay;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AbstractMongoReplayUtilTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records the submitted operations instead of replaying them.
+     */
+    private static class RecordingReplayUtil extends AbstractMongoReplayUtil {
+
+        final List<long[]> submitted = new ArrayList<long[]>();
+
+        @Override
+        protected void submit(int opcode, long seenconnectionnum, ByteBuffer body, long cursorKey, long seenSec,
+                long seenNsec) {
+            submitted.add(new long[] { seenconnectionnum, seenSec, seenNsec });
+        }
+    }
+
+    @Test
+    public void timeWindowOfCompressedCaptureWithSpeed() throws Exception {
+        List<byte[]> records = WireFixtures.capture(50);
+        File capture = new File(folder.getRoot(), "capture.bson.gz");
+        try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(capture)))) {
+            for (byte[] record : records) {
+                out.write(record);
+            }
+        }
+
+        RecordingReplayUtil util = new RecordingReplayUtil();
+        util.setSpeed(1.0);
+        util.setTimeRange("+2", null);
+        util.pool = new PooledReplayExecutor(1, 16);
+        util.startScheduler();
+        try {
+            util.replayFile(capture.getPath());
+        } finally {
+            util.stopScheduler();
+            util.pool.shutdown();
+        }
+
+        // finds 20..49 are seen from the 3rd second on
+        assertEquals(30, util.submitted.size());
+        for (int i = 0; i < util.submitted.size(); i++) {
+            long[] op = util.submitted.get(i);
+            assertEquals((20 + i) % 7, op[0]);
+            assertEquals(WireFixtures.SEEN_SEC + (20 + i) / 10, op[1]);
+            assertEquals(((20 + i) % 10) * 100000000L, op[2]);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.mongodb.mongoreplay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mongodb.mongoreplay.opcodes.WireMessage;
+
+public class CaptureIndexTest {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long START = 1577836800L * NANOS_PER_SECOND;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void entriesMatchRecords() throws IOException {
+        // more than one block of index entries
+        List<byte[]> records = WireFixtures.capture(6000);
+        File capture = WireFixtures.write(folder.newFile("capture.bson"), records);
+        assertEquals(records.size(), CaptureIndex.build(capture, CaptureIndex.indexFileFor(capture)));
+
+        try (CaptureIndex index = CaptureIndex.open(capture)) {
+            assertEquals(records.size(), index.size());
+            long offset = 0;
+            for (int i = 0; i < records.size(); i++) {
+                ByteBuffer record = WireFixtures.buffer(records.get(i));
+                assertEquals(offset, index.getOffset(i));
+                assertEquals(record.remaining(), index.getLength(i));
+                offset += record.remaining();
+            }
+            // the metadata record has no rawop and takes the first seen time
+            assertEquals(-1, index.getOpcode(0));
+            assertEquals(START, index.getSeen(0));
+
+            assertEquals(START, CaptureIndex.toUnixNanos(WireFixtures.SEEN_SEC, 0));
+
+            // find i = 3 is followed by its reply
+            int find = 5; // metadata, find 0, reply 0, find 1, find 2
+            assertEquals(WireMessage.OP_MSG, index.getOpcode(find));
+            assertEquals(0, index.getResponseTo(find));
+            assertEquals(3, index.getConnectionNum(find));
+            assertEquals(START + 300000000L, index.getSeen(find));
+            assertEquals(3, index.getResponseTo(find + 1));
+            assertEquals(START + 300001000L, index.getSeen(find + 1));
+        }
+    }
+
+    @Test
+    public void reopenAndRebuild() throws IOException {
+        List<byte[]> records = WireFixtures.capture(100);
+        File capture = WireFixtures.write(folder.newFile("capture.bson"), records);
+        File indexFile = CaptureIndex.indexFileFor(capture);
+        try (CaptureIndex index = CaptureIndex.open(capture)) {
+            assertEquals(records.size(), index.size());
+        }
+        byte[] built = Files.readAllBytes(indexFile.toPath());
+        // a current index is opened as is
+        try (CaptureIndex index = CaptureIndex.open(capture)) {
+            assertEquals(records.size(), index.size());
+        }
+        assertArrayEquals(built, Files.readAllBytes(indexFile.toPath()));
+
+        // a capture that grew is indexed again
+        try (FileOutputStream out = new FileOutputStream(capture, true)) {
+            out.write(records.get(1));
+        }
+        try (CaptureIndex index = CaptureIndex.open(capture)) {
+            assertEquals(records.size() + 1, index.size());
+        }
+    }
+
+    @Test
+    public void lowerBound() throws IOException {
+        File capture = WireFixtures.write(folder.newFile("capture.bson"), WireFixtures.capture(100));
+        try (CaptureIndex index = CaptureIndex.open(capture)) {
+            assertEquals(0, index.lowerBound(Long.MIN_VALUE));
+            assertEquals(0, index.lowerBound(START));
+            assertEquals(index.size(), index.lowerBound(Long.MAX_VALUE));
+            for (long i = 0; i < index.size(); i++) {
+                long seen = index.getSeen(i);
+                long first = index.lowerBound(seen);
+                assertEquals(seen, index.getSeen(first));
+                if (first > 0) {
+                    assertTrue(index.getSeen(first - 1) < seen);
+                }
+                long next = index.lowerBound(seen + 1);
+                assertTrue(next == index.size() || index.getSeen(next) > seen);
+            }
+            // finds are seen 100 ms apart, 10 per second
+            long[] range = index.range("+2", "+3");
+            assertEquals(START + 2 * NANOS_PER_SECOND, index.getSeen(range[0]));
+            assertEquals(START + 3 * NANOS_PER_SECOND, index.getSeen(range[1]));
+            assertArrayEquals(range, index.range("2020-01-01T00:00:02Z", "2020-01-01T00:00:03Z"));
+        }
+    }
+
+}
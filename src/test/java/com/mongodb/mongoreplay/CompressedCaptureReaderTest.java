@@ -0,0 +1,142 @@
+package com.mongodb.mongoreplay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xerial.snappy.SnappyFramedOutputStream;
+import org.xerial.snappy.SnappyOutputStream;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+public class CompressedCaptureReaderTest {
+
+    private interface Compressor {
+        OutputStream wrap(OutputStream out) throws IOException;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Several MB of small records, with a few records larger than a snappy
+     * block, so that records span decompressed blocks.
+     */
+    private static List<byte[]> records() {
+        List<byte[]> records = WireFixtures.capture(20000);
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; padding.length() < 300000; i++) {
+            padding.append(i);
+        }
+        for (int i = 1; i <= 3; i++) {
+            byte[] big = WireFixtures.opMsg(-i, 0, new BsonDocument("insert", new BsonString("c"))
+                    .append("padding", new BsonString(padding.toString())).append("$db", new BsonString("db")));
+            records.add(i * records.size() / 4, WireFixtures.record(big, WireFixtures.SEEN_SEC, 0, 1));
+        }
+        return records;
+    }
+
+    private File write(String name, List<byte[]> records, Compressor compressor) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        try (OutputStream out = compressor.wrap(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (byte[] record : records) {
+                out.write(record);
+            }
+        }
+        return file;
+    }
+
+    private static void assertSameRecords(File expected, File actual) throws IOException {
+        try (CaptureReader mapped = CaptureReader.open(expected); CaptureReader reader = CaptureReader.open(actual)) {
+            assertTrue(reader instanceof CompressedCaptureReader);
+            int count = 0;
+            while (mapped.next()) {
+                assertTrue(reader.next());
+                assertEquals(mapped.getRecordOffset(), reader.getRecordOffset());
+                assertEquals(mapped.getRecordLength(), reader.getRecordLength());
+                assertEquals(mapped.getRecord(), reader.getRecord());
+                assertEquals(mapped.hasRawOp(), reader.hasRawOp());
+                assertEquals(mapped.getOpcode(), reader.getOpcode());
+                assertEquals(mapped.getRequestId(), reader.getRequestId());
+                assertEquals(mapped.getResponseTo(), reader.getResponseTo());
+                assertEquals(mapped.getSeenConnectionNum(), reader.getSeenConnectionNum());
+                assertEquals(mapped.getSeenSeconds(), reader.getSeenSeconds());
+                assertEquals(mapped.getSeenNanos(), reader.getSeenNanos());
+                assertEquals(mapped.getBody(), reader.getBody());
+                count++;
+            }
+            assertFalse(reader.next());
+            assertTrue(count > 20000);
+        }
+    }
+
+    private void assertFormat(String extension, Compressor compressor) throws IOException {
+        List<byte[]> records = records();
+        File capture = WireFixtures.write(folder.newFile("capture.bson"), records);
+        File compressed = write("capture.bson" + extension, records, compressor);
+        assertEquals("capture.bson", new File(CaptureReader.uncompressedName(compressed.getPath())).getName());
+        assertTrue(CaptureReader.isCompressed(compressed));
+        assertEquals(1, CaptureReader.split(compressed, 1024, Long.MAX_VALUE).size());
+        assertSameRecords(capture, compressed);
+    }
+
+    @Test
+    public void gzip() throws IOException {
+        assertFormat(".gz", GZIPOutputStream::new);
+    }
+
+    @Test
+    public void zstd() throws IOException {
+        assertFormat(".zst", ZstdOutputStream::new);
+    }
+
+    @Test
+    public void snappyFramed() throws IOException {
+        assertFormat(".snappy", SnappyFramedOutputStream::new);
+    }
+
+    @Test
+    public void snappyStream() throws IOException {
+        assertFormat(".sz", SnappyOutputStream::new);
+    }
+
+    @Test
+    public void seekForward() throws IOException {
+        List<byte[]> records = records();
+        File capture = WireFixtures.write(folder.newFile("capture.bson"), records);
+        File compressed = write("capture.bson.sz", records, SnappyOutputStream::new);
+        long offset = 0;
+        for (int i = 0; i < 15000; i++) {
+            offset += records.get(i).length;
+        }
+        try (CaptureReader mapped = CaptureReader.open(capture); CaptureReader reader = CaptureReader.open(compressed)) {
+            mapped.seek(offset);
+            reader.seek(offset);
+            assertTrue(mapped.next());
+            assertTrue(reader.next());
+            assertEquals(offset, reader.getRecordOffset());
+            assertEquals(mapped.getRecord(), reader.getRecord());
+            try {
+                reader.seek(0);
+                fail("expected IOException");
+            } catch (IOException e) {
+                // forward only
+            }
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.mongodb.mongoreplay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.Test;
+
+public class CursorTrackerTest {
+
+    private static ByteBuffer find(int requestId) {
+        return WireFixtures.buffer(WireFixtures.opMsg(requestId, 0,
+                new BsonDocument("find", new BsonString("c")).append("$db", new BsonString("db"))));
+    }
+
+    private static ByteBuffer reply(int responseTo, long cursorId) {
+        BsonDocument cursor = new BsonDocument("firstBatch", new BsonArray()).append("id", new BsonInt64(cursorId))
+                .append("ns", new BsonString("db.c"));
+        return WireFixtures.buffer(WireFixtures.opMsg(100 + responseTo, responseTo,
+                new BsonDocument("cursor", cursor).append("ok", new BsonDouble(1.0))));
+    }
+
+    private static ByteBuffer getMore(int requestId, long cursorId) {
+        return WireFixtures.buffer(WireFixtures.opMsg(requestId, 0, new BsonDocument("getMore", new BsonInt64(cursorId))
+                .append("collection", new BsonString("c")).append("$db", new BsonString("db"))));
+    }
+
+    @Test
+    public void getMoreOnSameConnection() {
+        CursorTracker tracker = new CursorTracker();
+        assertEquals(CursorTracker.NONE, tracker.onRequest(1, find(10)));
+        tracker.onReply(1, reply(10, 77));
+        assertEquals(1, tracker.getCapturedCursorCount());
+        assertEquals(CursorTracker.key(1, 10), tracker.onRequest(1, getMore(11, 77)));
+        tracker.onReply(1, reply(11, 0));
+        assertEquals(0, tracker.getCapturedCursorCount());
+        assertEquals(CursorTracker.NONE, tracker.onRequest(1, getMore(12, 77)));
+    }
+
+    @Test
+    public void getMoreOnOtherConnection() {
+        CursorTracker tracker = new CursorTracker();
+        tracker.onRequest(1, find(10));
+        tracker.onReply(1, reply(10, 77));
+        long cursorKey = tracker.onRequest(2, getMore(10, 77));
+        assertEquals(CursorTracker.key(1, 10), cursorKey);
+
+        // the replayed find registers its cursor under its own (copy)
+        // connection, the getMore must look it up there and not on its own
+        Document result = new Document("cursor", new Document("id", 5L).append("ns", "db.c")).append("ok", 1.0);
+        for (int copy = 0; copy < 3; copy++) {
+            long findConnection = 1 + ((long) copy << 24);
+            long getMoreConnection = 2 + ((long) copy << 24);
+            CursorTracker.LiveCursors liveCursors = new CursorTracker.LiveCursors();
+            liveCursors.opened(CursorTracker.key(findConnection, 10), result);
+            long copyKey = AbstractMongoReplayUtil.copyCursorKey(cursorKey, copy);
+            assertEquals(CursorTracker.key(findConnection, 10), copyKey);
+            assertNotNull(liveCursors.get(copyKey));
+            assertEquals(5L, liveCursors.get(copyKey).getId());
+            assertNull(liveCursors.get(CursorTracker.key(getMoreConnection, 10)));
+        }
+    }
+
+    @Test
+    public void killCursorsForgetsCursor() {
+        CursorTracker tracker = new CursorTracker();
+        tracker.onRequest(1, find(10));
+        tracker.onReply(1, reply(10, 77));
+        BsonArray cursors = new BsonArray();
+        cursors.add(new BsonInt64(77));
+        tracker.onRequest(1, WireFixtures.buffer(WireFixtures.opMsg(11, 0, new BsonDocument("killCursors",
+                new BsonString("c")).append("cursors", cursors).append("$db", new BsonString("db")))));
+        assertEquals(0, tracker.getCapturedCursorCount());
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.mongodb.mongoreplay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.Test;
+
+import com.mongodb.mongoreplay.opcodes.WireMessage;
+
+public class InsertCoalescerTest {
+
+    /**
+     * Collects the batches instead of sending them.
+     */
+    private static class RecordingCoalescer extends InsertCoalescer {
+
+        final List<InsertCoalescer.Batch> sent = new ArrayList<InsertCoalescer.Batch>();
+
+        RecordingCoalescer(int maxBatchBytes) {
+            // the window never expires during the test
+            super(null, new ReplayOptions(), 3600000, maxBatchBytes);
+        }
+
+        @Override
+        void send(InsertCoalescer.Batch batch) {
+            sent.add(batch);
+        }
+    }
+
+    private static RawReplayTask insert(int id, int padding) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < padding) {
+            sb.append('x');
+        }
+        BsonDocument document = new BsonDocument("_id", new BsonInt32(id)).append("padding",
+                new BsonString(sb.toString()));
+        byte[] message = WireFixtures.opMsg(id, 0, new BsonDocument("insert", new BsonString("c"))
+                .append("documents", new BsonArray(Arrays.asList(document)))
+                .append("$db", new BsonString("db")));
+        RawReplayTask task = new RawReplayTask(null, new ReplayStatistics(), null, new ReplayOptions(),
+                WireMessage.OP_MSG, 1, WireFixtures.buffer(message));
+        assertTrue(task.prepare());
+        return task;
+    }
+
+    @Test
+    public void batchNeverExceedsMaxBytes() {
+        int length = insert(0, 1000).getMessageLength();
+        // room for 3 messages and a bit, the 4th starts a new batch
+        RecordingCoalescer coalescer = new RecordingCoalescer(3 * length + length / 2);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(coalescer.add(insert(i, 1000)));
+        }
+        assertEquals(3, coalescer.sent.size());
+        coalescer.close();
+        assertEquals(4, coalescer.sent.size());
+
+        int id = 0;
+        for (InsertCoalescer.Batch batch : coalescer.sent) {
+            assertTrue(batch.bytes <= 3 * length + length / 2);
+            assertEquals(batch.tasks.size(), batch.documents.size());
+            for (Document document : batch.documents) {
+                assertEquals(id++, document.get("_id"));
+            }
+        }
+        assertEquals(10, id);
+        assertEquals(3, coalescer.sent.get(0).tasks.size());
+        assertEquals(1, coalescer.sent.get(3).tasks.size());
+    }
+
+    @Test
+    public void exactFitIsSentRightAway() {
+        int length = insert(0, 1000).getMessageLength();
+        RecordingCoalescer coalescer = new RecordingCoalescer(2 * length);
+        coalescer.add(insert(0, 1000));
+        assertEquals(0, coalescer.sent.size());
+        coalescer.add(insert(1, 1000));
+        assertEquals(1, coalescer.sent.size());
+        assertEquals(2 * length, coalescer.sent.get(0).bytes);
+        coalescer.close();
+        assertEquals(1, coalescer.sent.size());
+    }
+}
@@ -0,0 +1,152 @@
+package com.mongodb.mongoreplay;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.io.BasicOutputBuffer;
+
+import com.mongodb.mongoreplay.opcodes.WireMessage;
+
+/**
+ * Wire protocol messages and capture records for tests.
+ */
+public class WireFixtures {
+
+    public static byte[] bytes(BsonDocument document) {
+        RawBsonDocument raw = new RawBsonDocument(document, new BsonDocumentCodec());
+        return Arrays.copyOf(raw.getByteBuffer().array(), raw.getByteBuffer().remaining());
+    }
+
+    public static ByteBuffer buffer(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static BasicOutputBuffer header(int requestId, int responseTo, int opcode) {
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        out.writeInt32(0);
+        out.writeInt32(requestId);
+        out.writeInt32(responseTo);
+        out.writeInt32(opcode);
+        return out;
+    }
+
+    private static byte[] finish(BasicOutputBuffer out) {
+        out.writeInt32(0, out.getSize());
+        return out.toByteArray();
+    }
+
+    /**
+     * OP_MSG with a single body section.
+     */
+    public static byte[] opMsg(int requestId, int responseTo, BsonDocument body) {
+        BasicOutputBuffer out = header(requestId, responseTo, WireMessage.OP_MSG);
+        out.writeInt32(0);
+        out.writeByte(0);
+        out.writeBytes(bytes(body));
+        return finish(out);
+    }
+
+    /**
+     * OP_MSG with a body section and one document sequence section.
+     */
+    public static byte[] opMsg(int requestId, BsonDocument body, String identifier, BsonDocument... documents) {
+        BasicOutputBuffer out = header(requestId, 0, WireMessage.OP_MSG);
+        out.writeInt32(0);
+        out.writeByte(0);
+        out.writeBytes(bytes(body));
+        out.writeByte(1);
+        int sizePos = out.getPosition();
+        out.writeInt32(0);
+        out.writeCString(identifier);
+        for (BsonDocument document : documents) {
+            out.writeBytes(bytes(document));
+        }
+        out.writeInt32(sizePos, out.getPosition() - sizePos);
+        return finish(out);
+    }
+
+    public static byte[] opQuery(int requestId, String fullCollectionName, BsonDocument query) {
+        BasicOutputBuffer out = header(requestId, 0, WireMessage.OP_QUERY);
+        out.writeInt32(0);
+        out.writeCString(fullCollectionName);
+        out.writeInt32(0);
+        out.writeInt32(-1);
+        out.writeBytes(bytes(query));
+        return finish(out);
+    }
+
+    public static byte[] opCommand(int requestId, String database, String commandName, BsonDocument args) {
+        BasicOutputBuffer out = header(requestId, 0, WireMessage.OP_COMMAND);
+        out.writeCString(database);
+        out.writeCString(commandName);
+        out.writeBytes(bytes(args));
+        out.writeBytes(bytes(new BsonDocument()));
+        return finish(out);
+    }
+
+    /**
+     * A capture record as written by mongoreplay record.
+     */
+    public static byte[] record(byte[] message, long seenSec, long seenNsec, long connectionNum) {
+        ByteBuffer buf = buffer(message);
+        BsonDocument header = new BsonDocument("messagelength", new BsonInt32(buf.getInt(0)))
+                .append("requestid", new BsonInt32(buf.getInt(4))).append("responseto", new BsonInt32(buf.getInt(8)))
+                .append("opcode", new BsonInt32(buf.getInt(12)));
+        BsonDocument record = new BsonDocument("rawop",
+                new BsonDocument("header", header).append("body", new BsonBinary(message)))
+                        .append("seen", new BsonDocument("sec", new BsonInt64(seenSec)).append("nsec",
+                                new BsonInt32((int) seenNsec)))
+                        .append("order", new BsonInt64(0)).append("seenconnectionnum", new BsonInt64(connectionNum));
+        return bytes(record);
+    }
+
+    // 2020-01-01T00:00:00Z in the Go internal epoch of seen.sec
+    public static final long SEEN_SEC = 1577836800L + 62135596800L;
+
+    /**
+     * A capture of the playback metadata record followed by count records:
+     * record i is a find with requestId i on connection i % 7, seen at
+     * SEEN_SEC + i / 10 s, and every third find is followed by its reply.
+     */
+    public static List<byte[]> capture(int count) {
+        List<byte[]> records = new ArrayList<byte[]>();
+        records.add(bytes(new BsonDocument("playbackfileversion", new BsonInt32(1)).append("driveropsfiltered",
+                new BsonString("false"))));
+        for (int i = 0; i < count; i++) {
+            long sec = SEEN_SEC + i / 10;
+            long nsec = (i % 10) * 100000000L;
+            byte[] find = opMsg(i, 0, new BsonDocument("find", new BsonString("c" + (i % 3)))
+                    .append("filter", new BsonDocument("x", new BsonInt32(i))).append("$db", new BsonString("db")));
+            records.add(record(find, sec, nsec, i % 7));
+            if (i % 3 == 0) {
+                byte[] reply = opMsg(1000000 + i, i, new BsonDocument("ok", new BsonInt32(1)));
+                records.add(record(reply, sec, nsec + 1000, i % 7));
+            }
+        }
+        return records;
+    }
+
+    public static File write(File file, List<byte[]> records) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (byte[] record : records) {
+                out.write(record);
+            }
+        }
+        return file;
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.mongodb.mongoreplay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class WorkloadModelTest {
+
+    private static byte[] insert(int id) {
+        BsonArray documents = new BsonArray();
+        documents.add(new BsonDocument("_id", new BsonInt32(id)).append("x", new BsonInt32(1)));
+        return WireFixtures.opMsg(1, 0, new BsonDocument("insert", new BsonString("c"))
+                .append("documents", documents).append("$db", new BsonString("db")));
+    }
+
+    private static WorkloadModel model() {
+        WorkloadModel.Entry finds = new WorkloadModel.Entry("db.c", "find", "{x:1}", 300,
+                Collections.<byte[]> emptyList());
+        WorkloadModel.Entry inserts = new WorkloadModel.Entry("db.c", "insert", null, 100,
+                Arrays.asList(insert(1), insert(2)));
+        // 3/4 of the gaps are 0-10 us, 1/4 are 1000-2000 us
+        long[][] interArrivals = new long[][] { { 0, 10, 3 }, { 1000, 2000, 1 } };
+        return new WorkloadModel(Collections.singletonList("capture.bson"), 400, 0, 10.0, 4, 8, 10,
+                interArrivals, Arrays.asList(finds, inserts));
+    }
+
+    @Test
+    public void nextEntryFollowsCounts() {
+        WorkloadModel model = model();
+        Random random = new Random(42);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        int draws = 100000;
+        for (int i = 0; i < draws; i++) {
+            counts.merge(model.nextEntry(random).getCommand(), 1, Integer::sum);
+        }
+        assertEquals(0.75, counts.get("find") / (double) draws, 0.01);
+        assertEquals(0.25, counts.get("insert") / (double) draws, 0.01);
+    }
+
+    @Test
+    public void nextInterArrivalStaysInBuckets() {
+        WorkloadModel model = model();
+        Random random = new Random(42);
+        int draws = 100000;
+        int fast = 0;
+        for (int i = 0; i < draws; i++) {
+            long nanos = model.nextInterArrivalNanos(random);
+            if (nanos <= 10000) {
+                fast++;
+            } else {
+                assertTrue(nanos >= 1000000 && nanos <= 2000000);
+            }
+        }
+        assertEquals(0.75, fast / (double) draws, 0.01);
+    }
+
+    @Test
+    public void samplesDecode() {
+        WorkloadModel.Entry entry = model().getEntries().get(1);
+        assertEquals(2, entry.getSampleCount());
+        ByteBuffer sample = entry.getSample(1);
+        assertEquals(ByteBuffer.wrap(insert(2)), sample);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void insertsGetFreshIds() {
+        ReplayOptions replayOptions = new ReplayOptions();
+        replayOptions.setFreshInsertIds(true);
+        ByteBuffer sample = model().getEntries().get(1).getSample(0);
+        Object first = null;
+        for (int i = 0; i < 2; i++) {
+            RawReplayTask task = new RawReplayTask(null, null, null, replayOptions,
+                    sample.getInt(sample.position() + 12), 0, sample.duplicate());
+            assertTrue(task.prepare());
+            List<Document> documents = (List<Document>) task.getCommandDoc().get("documents");
+            Object id = documents.get(0).get("_id");
+            assertTrue(id instanceof ObjectId);
+            assertFalse(id.equals(first));
+            assertEquals(1, documents.get(0).get("x"));
+            first = id;
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package com.mongodb.mongoreplay.opcodes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.io.BasicOutputBuffer;
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+
+import com.github.luben.zstd.Zstd;
+import com.mongodb.mongoreplay.WireFixtures;
+
+public class Opcode2012Test {
+
+    private static byte[] message(int size) {
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < size) {
+            padding.append("compressible ");
+        }
+        return WireFixtures.opMsg(7, 3, new BsonDocument("insert", new BsonString("c"))
+                .append("padding", new BsonString(padding.toString())).append("n", new BsonInt32(size)));
+    }
+
+    private static byte[] compress(byte[] data, byte compressorId) throws IOException {
+        switch (compressorId) {
+        case Opcode2012.NOOP:
+            return data;
+        case Opcode2012.SNAPPY:
+            return Snappy.compress(data);
+        case Opcode2012.ZLIB:
+            Deflater deflater = new Deflater();
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[data.length + 1024];
+            int n = deflater.deflate(out);
+            deflater.end();
+            return Arrays.copyOf(out, n);
+        case Opcode2012.ZSTD:
+            return Zstd.compress(data);
+        default:
+            throw new IllegalArgumentException();
+        }
+    }
+
+    /**
+     * Wrap message in OP_COMPRESSED, the way a driver sends it.
+     */
+    private static byte[] opCompressed(byte[] message, byte compressorId, int uncompressedSize) throws IOException {
+        ByteBuffer original = WireFixtures.buffer(message);
+        byte[] body = Arrays.copyOfRange(message, WireMessage.HEADER_LENGTH, message.length);
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        out.writeInt32(0);
+        out.writeInt32(original.getInt(4));
+        out.writeInt32(original.getInt(8));
+        out.writeInt32(WireMessage.OP_COMPRESSED);
+        out.writeInt32(original.getInt(12));
+        out.writeInt32(uncompressedSize);
+        out.writeByte(compressorId);
+        out.writeBytes(compress(body, compressorId));
+        out.writeInt32(0, out.getSize());
+        return out.toByteArray();
+    }
+
+    @Test
+    public void eachCompressor() throws Exception {
+        for (byte compressorId : new byte[] { Opcode2012.NOOP, Opcode2012.SNAPPY, Opcode2012.ZLIB,
+                Opcode2012.ZSTD }) {
+            // the second one outgrows the initial per thread buffers
+            for (int size : new int[] { 100, 200000 }) {
+                byte[] message = message(size);
+                byte[] compressed = opCompressed(message, compressorId,
+                        message.length - WireMessage.HEADER_LENGTH);
+                ByteBuffer result = Opcode2012.decompress(WireFixtures.buffer(compressed));
+                assertEquals("compressor " + compressorId, WireFixtures.buffer(message), result);
+
+                WireMessage wrapped = new WireMessage().wrap(result, result.position());
+                assertEquals(WireMessage.OP_MSG, wrapped.getOpcode());
+                assertEquals(7, wrapped.getRequestId());
+                assertEquals(3, wrapped.getResponseTo());
+                assertEquals("insert", wrapped.getCommandName());
+            }
+        }
+    }
+
+    @Test
+    public void messageAtOffset() throws Exception {
+        byte[] message = message(1000);
+        byte[] compressed = opCompressed(message, Opcode2012.ZSTD, message.length - WireMessage.HEADER_LENGTH);
+        byte[] embedded = new byte[compressed.length + 10];
+        System.arraycopy(compressed, 0, embedded, 5, compressed.length);
+        ByteBuffer buf = WireFixtures.buffer(embedded);
+        buf.position(5);
+        assertEquals(WireFixtures.buffer(message), Opcode2012.decompress(buf));
+        // the caller's buffer is left as is
+        assertEquals(5, buf.position());
+    }
+
+    @Test
+    public void invalidMessages() throws Exception {
+        byte[] message = message(100);
+        int size = message.length - WireMessage.HEADER_LENGTH;
+        assertInvalid(opCompressed(message, Opcode2012.ZLIB, size + 1));
+        byte[] unknown = opCompressed(message, Opcode2012.NOOP, size);
+        unknown[WireMessage.HEADER_LENGTH + 8] = 9;
+        assertInvalid(unknown);
+        assertInvalid(opCompressed(message, Opcode2012.SNAPPY, -1));
+    }
+
+    private static void assertInvalid(byte[] compressed) {
+        try {
+            Opcode2012.decompress(WireFixtures.buffer(compressed));
+            fail("expected DataFormatException");
+        } catch (DataFormatException e) {
+            // expected
+        }
+    }
+
+}
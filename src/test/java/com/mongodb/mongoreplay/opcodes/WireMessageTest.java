@@ -0,0 +1,135 @@
+package com.mongodb.mongoreplay.opcodes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.junit.Test;
+
+import com.mongodb.mongoreplay.WireFixtures;
+import com.mongodb.util.bson.BsonScanner;
+
+public class WireMessageTest {
+
+    private static final int PREFIX = 7;
+
+    /**
+     * The message at offset PREFIX of a larger buffer, as in a capture.
+     */
+    private static ByteBuffer embedded(byte[] message) {
+        byte[] bytes = new byte[PREFIX + message.length + 3];
+        System.arraycopy(message, 0, bytes, PREFIX, message.length);
+        return WireFixtures.buffer(bytes);
+    }
+
+    private static BsonDocument document(ByteBuffer buf, int offset) {
+        byte[] bytes = new byte[buf.getInt(offset)];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(offset);
+        dup.get(bytes);
+        return new RawBsonDocument(bytes);
+    }
+
+    private static BsonDocument find(String db) {
+        return new BsonDocument("find", new BsonString("c")).append("filter",
+                new BsonDocument("x", new BsonInt32(1))).append("$db", new BsonString(db));
+    }
+
+    @Test
+    public void opQuery() {
+        BsonDocument query = new BsonDocument("count", new BsonString("c"));
+        BsonDocument wrapped = new BsonDocument("$query", query);
+        ByteBuffer buf = embedded(WireFixtures.opQuery(42, "db.$cmd", wrapped));
+        WireMessage message = new WireMessage().wrap(buf, PREFIX);
+        assertEquals(WireMessage.OP_QUERY, message.getOpcode());
+        assertEquals(42, message.getRequestId());
+        assertEquals(0, message.getResponseTo());
+        assertEquals("db.$cmd", message.getFullCollectionName());
+        assertEquals(wrapped, document(buf, message.getQueryDocumentOffset()));
+        // $query is unwrapped
+        assertEquals(query, document(buf, message.getCommandDocumentOffset()));
+        assertEquals("count", message.getCommandName());
+        assertTrue(message.commandNameEquals("count".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("db", message.getDatabaseName());
+        assertFalse(message.isSystemDatabase());
+        assertTrue(new WireMessage().wrap(WireFixtures.buffer(WireFixtures.opQuery(1, "admin.$cmd", query)), 0)
+                .isSystemDatabase());
+    }
+
+    @Test
+    public void opCommand() {
+        BsonDocument args = new BsonDocument("insert", new BsonString("c"));
+        ByteBuffer buf = embedded(WireFixtures.opCommand(43, "db", "insert", args));
+        WireMessage message = new WireMessage().wrap(buf, PREFIX);
+        assertEquals(WireMessage.OP_COMMAND, message.getOpcode());
+        assertEquals(43, message.getRequestId());
+        assertEquals("db", BsonScanner.readCString(buf, message.getCommandDatabaseOffset()));
+        assertEquals("insert", BsonScanner.readCString(buf, message.getOpCommandNameOffset()));
+        assertEquals(args, document(buf, message.getCommandArgsOffset()));
+        assertEquals(args, document(buf, message.getCommandDocumentOffset()));
+        assertEquals("insert", message.getCommandName());
+        assertEquals("db", message.getDatabaseName());
+        assertFalse(message.isSystemDatabase());
+        assertTrue(new WireMessage().wrap(WireFixtures.buffer(WireFixtures.opCommand(1, "local", "insert", args)), 0)
+                .isSystemDatabase());
+    }
+
+    @Test
+    public void opMsg() {
+        BsonDocument body = find("db");
+        ByteBuffer buf = embedded(WireFixtures.opMsg(44, 0, body));
+        WireMessage message = new WireMessage().wrap(buf, PREFIX);
+        assertEquals(WireMessage.OP_MSG, message.getOpcode());
+        assertEquals(44, message.getRequestId());
+        assertEquals(PREFIX + buf.getInt(PREFIX), message.getEnd());
+        int section = message.getFirstSection();
+        assertTrue(message.hasSection(section));
+        assertEquals(Opcode2013.KIND_BODY, message.getSectionKind(section));
+        assertEquals(body, document(buf, message.getBodyDocumentOffset(section)));
+        assertFalse(message.hasSection(message.getNextSection(section)));
+        assertEquals(body, document(buf, message.getCommandDocumentOffset()));
+        assertEquals("find", message.getCommandName());
+        assertEquals("db", message.getDatabaseName());
+        assertFalse(message.isSystemDatabase());
+        assertTrue(new WireMessage().wrap(WireFixtures.buffer(WireFixtures.opMsg(1, 0, find("admin"))), 0)
+                .isSystemDatabase());
+    }
+
+    @Test
+    public void opMsgDocumentSequence() {
+        BsonDocument body = new BsonDocument("insert", new BsonString("c")).append("$db", new BsonString("db"));
+        BsonDocument a = new BsonDocument("_id", new BsonInt32(1));
+        BsonDocument b = new BsonDocument("_id", new BsonInt32(2));
+        ByteBuffer buf = embedded(WireFixtures.opMsg(45, body, "documents", a, b));
+        WireMessage message = new WireMessage().wrap(buf, PREFIX);
+        int section = message.getNextSection(message.getFirstSection());
+        assertTrue(message.hasSection(section));
+        assertEquals(1, message.getSectionKind(section));
+        assertEquals("documents", BsonScanner.readCString(buf, message.getSequenceIdentifierOffset(section)));
+        int doc = message.getSequenceFirstDocument(section);
+        assertEquals(a, document(buf, doc));
+        doc = BsonScanner.documentEnd(buf, doc);
+        assertEquals(b, document(buf, doc));
+        assertEquals(message.getSequenceEnd(section), BsonScanner.documentEnd(buf, doc));
+        assertFalse(message.hasSection(message.getNextSection(section)));
+        assertEquals(body, document(buf, message.getMsgBodyOffset()));
+        assertEquals("insert", message.getCommandName());
+    }
+
+    @Test
+    public void opMsgReply() {
+        BsonDocument reply = new BsonDocument("ok", new BsonInt32(1));
+        ByteBuffer buf = embedded(WireFixtures.opMsg(46, 44, reply));
+        WireMessage message = new WireMessage().wrap(buf, PREFIX);
+        assertEquals(44, message.getResponseTo());
+        assertEquals(reply, document(buf, message.getReplyDocumentOffset()));
+    }
+
+}
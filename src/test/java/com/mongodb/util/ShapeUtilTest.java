@@ -0,0 +1,59 @@
+package com.mongodb.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.Test;
+
+public class ShapeUtilTest {
+
+    private static ByteBuffer toBuffer(Document document) {
+        RawBsonDocument raw = new RawBsonDocument(document, new DocumentCodec());
+        byte[] bytes = Arrays.copyOf(raw.getByteBuffer().array(), raw.getByteBuffer().remaining());
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static final String[] PREDICATES = { "{}", "{a: 1}", "{b: 'x', a: 2}", "{a: {$gt: 1, $lt: 5}}",
+            "{$or: [{a: 1}, {b: {$in: [1, 2]}}], c: true}", "{$AND: [{x: 1}], ' $nor ': [{y: 1}, 5]}",
+            "{a: {b: 1, c: {d: 2}}}", "{find: 'c', filter: 1}", "{'été': 1, '日本': 2, 'emoji😀': 3}",
+            "{a: 1, a2: [{z: 1}]}" };
+
+    @Test
+    public void documentAndRawVariantsAgree() {
+        for (String json : PREDICATES) {
+            Document predicate = Document.parse(json);
+            ByteBuffer raw = toBuffer(predicate);
+            assertEquals(json, ShapeUtil.getShapeHash(predicate), ShapeUtil.getShapeHash(raw, 0));
+            String expected = ShapeUtil.getShape(predicate).toString();
+            assertEquals(json, expected, ShapeUtil.getShapeString(raw, 0));
+            assertEquals(json, expected, ShapeUtil.getShapeString(predicate));
+        }
+    }
+
+    @Test
+    public void hashIgnoresValuesAndOrder() {
+        assertEquals(ShapeUtil.getShapeHash(Document.parse("{a: 1, b: 2}")),
+                ShapeUtil.getShapeHash(Document.parse("{b: 'x', a: {$gt: 3}}")));
+        assertTrue(ShapeUtil.getShapeHash(Document.parse("{a: 1}")) != ShapeUtil
+                .getShapeHash(Document.parse("{a: 1, b: 1}")));
+    }
+
+    @Test
+    public void cacheStaysBounded() {
+        Document hot = Document.parse("{hot: 1, shape: 1}");
+        String hotShape = ShapeUtil.getShapeString(hot);
+        for (int i = 0; i < 30000; i++) {
+            ShapeUtil.getShapeString(new Document("f" + i, 1));
+            assertEquals(hotShape, ShapeUtil.getShapeString(hot));
+        }
+        assertEquals(10000, ShapeUtil.shapeCacheSize());
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.mongodb.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SpaceSavingTest {
+
+    /**
+     * Zipf-like stream: key i is drawn with probability proportional to 1 / i.
+     */
+    private static Map<Integer, Long> stream(SpaceSaving<Integer> counter, int n, int keys, long seed) {
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        Random random = new Random(seed);
+        Map<Integer, Long> exact = new HashMap<Integer, Long>();
+        for (int j = 0; j < n; j++) {
+            double r = random.nextDouble() * sum;
+            int key = 0;
+            while (cumulative[key] < r) {
+                key++;
+            }
+            counter.add(key);
+            exact.merge(key, 1L, Long::sum);
+        }
+        return exact;
+    }
+
+    private static void assertBounds(SpaceSaving<Integer> counter, Map<Integer, Long> exact) {
+        for (SpaceSaving.Counter<Integer> c : counter.top(counter.size())) {
+            long count = exact.getOrDefault(c.getKey(), 0L);
+            assertTrue(c.getCount() >= count);
+            assertTrue(c.getCount() - c.getError() <= count);
+        }
+    }
+
+    @Test
+    public void exactBelowCapacity() {
+        SpaceSaving<String> counter = new SpaceSaving<String>(10);
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j <= i; j++) {
+                counter.add("k" + i);
+            }
+        }
+        counter.add("k0", 10);
+        List<SpaceSaving.Counter<String>> top = counter.top(3);
+        assertEquals("k0", top.get(0).getKey());
+        assertEquals(11, top.get(0).getCount());
+        assertEquals("k4", top.get(1).getKey());
+        assertEquals(5, top.get(1).getCount());
+        assertEquals("k3", top.get(2).getKey());
+        for (SpaceSaving.Counter<String> c : top) {
+            assertEquals(0, c.getError());
+        }
+    }
+
+    @Test
+    public void evictionKeepsBounds() {
+        SpaceSaving<Integer> counter = new SpaceSaving<Integer>(50);
+        int n = 100000;
+        Map<Integer, Long> exact = stream(counter, n, 5000, 1);
+        assertEquals(50, counter.size());
+        assertBounds(counter, exact);
+        // every key more frequent than n / capacity is tracked
+        for (Map.Entry<Integer, Long> e : exact.entrySet()) {
+            if (e.getValue() > n / 50) {
+                boolean found = false;
+                for (SpaceSaving.Counter<Integer> c : counter.top(50)) {
+                    found |= c.getKey().equals(e.getKey());
+                }
+                assertTrue("missing " + e.getKey(), found);
+            }
+        }
+        assertEquals(Integer.valueOf(0), counter.top(1).get(0).getKey());
+        long total = 0;
+        for (SpaceSaving.Counter<Integer> c : counter.top(50)) {
+            total += c.getCount();
+        }
+        // Space-Saving conserves the stream length
+        assertEquals(n, total);
+    }
+
+    @Test
+    public void merge() {
+        SpaceSaving<Integer> a = new SpaceSaving<Integer>(50);
+        SpaceSaving<Integer> b = new SpaceSaving<Integer>(50);
+        Map<Integer, Long> exact = stream(a, 50000, 5000, 1);
+        stream(b, 50000, 5000, 2).forEach((k, v) -> exact.merge(k, v, Long::sum));
+        a.merge(b);
+        assertEquals(50, a.size());
+        assertBounds(a, exact);
+        assertEquals(Integer.valueOf(0), a.top(1).get(0).getKey());
+        assertEquals(Integer.valueOf(1), a.top(2).get(1).getKey());
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.mongodb.util.bson;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.io.BasicOutputBuffer;
+import org.junit.Test;
+
+public class BsonRewriterTest {
+
+    private static ByteBuffer toBuffer(BsonDocument document) {
+        RawBsonDocument raw = new RawBsonDocument(document, new BsonDocumentCodec());
+        byte[] bytes = Arrays.copyOf(raw.getByteBuffer().array(), raw.getByteBuffer().remaining());
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static BsonDocument rewrite(BsonRewriter rewriter, ByteBuffer in) {
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        int size = rewriter.rewrite(in, in.position(), out);
+        assertEquals(out.getSize(), size);
+        return new RawBsonDocument(out.toByteArray());
+    }
+
+    private static BsonDocument update() {
+        BsonDocument statement = new BsonDocument("q", new BsonDocument("_id", new BsonInt32(1))
+                .append("shardKey", new BsonString("a"))).append("u", new BsonDocument("x", new BsonInt32(2)));
+        return new BsonDocument("update", new BsonString("c"))
+                .append("updates", new BsonArray(Arrays.asList(statement, statement.clone())))
+                .append("shardVersion", new BsonArray()).append("ordered", new BsonInt32(1));
+    }
+
+    @Test
+    public void testUnchangedDocumentIsCopied() {
+        ByteBuffer in = toBuffer(update());
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        new BsonRewriter().skip("projection", "updates.q.other").rewrite(in, 0, out);
+        assertArrayEquals(in.array(), out.toByteArray());
+    }
+
+    @Test
+    public void testSkipTopLevelAndNested() {
+        BsonRewriter rewriter = new BsonRewriter().skip("shardVersion", "updates.q.shardKey");
+        BsonDocument expected = update();
+        expected.remove("shardVersion");
+        for (Object statement : expected.getArray("updates")) {
+            ((BsonDocument) statement).getDocument("q").remove("shardKey");
+        }
+        assertEquals(expected, rewrite(rewriter, toBuffer(update())));
+    }
+
+    @Test
+    public void testReplace() {
+        byte[] body = new byte[] { 1, 2, 3 };
+        BsonRewriter rewriter = new BsonRewriter().replace("rawop.header.opcode", BsonScanner.INT32,
+                out -> out.writeInt32(2004)).replace("rawop.body", BsonScanner.BINARY, out -> {
+                    out.writeInt32(body.length);
+                    out.writeByte(0);
+                    out.writeBytes(body, 0, body.length);
+                });
+        BsonDocument record = new BsonDocument("rawop",
+                new BsonDocument("header", new BsonDocument("opcode", new BsonInt32(2010)))
+                        .append("body", new BsonBinary(new byte[100])))
+                .append("seenconnectionnum", new BsonInt32(7));
+
+        BsonDocument expected = record.clone();
+        expected.getDocument("rawop").getDocument("header").put("opcode", new BsonInt32(2004));
+        expected.getDocument("rawop").put("body", new BsonBinary(body));
+        assertEquals(expected, rewrite(rewriter, toBuffer(record)));
+    }
+
+    @Test
+    public void testDirectBufferAtOffset() {
+        ByteBuffer heap = toBuffer(update());
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.capacity() + 10).order(ByteOrder.LITTLE_ENDIAN);
+        direct.position(10);
+        direct.put(heap.duplicate());
+        direct.position(10);
+
+        BsonDocument expected = update();
+        expected.remove("shardVersion");
+        assertEquals(expected, rewrite(new BsonRewriter().skip("shardVersion"), direct));
+    }
+
+}